@@ -0,0 +1,305 @@
+package com.elaunira.sbf;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.elaunira.sbf.ScalableBloomFilter.Mode;
+
+/**
+ * A {@link StagePlanner} which plans each stage from the workload observed
+ * while the previous stages were filled, instead of a fixed growth
+ * {@link Mode} and tightening ratio.
+ * <p>
+ * A lookup for an element which has not been added checks every stage, as
+ * does a lookup for an element of an old stage. The more lookups of these
+ * kinds, the more the number of stages weighs on the lookup cost and the
+ * faster the capacity of the stages grows, from 2 to 8 times the capacity of
+ * the previous stage. The capacity also follows the insert rate: a stage is
+ * large enough to hold the elements expected during the planning horizon,
+ * within the same bounds. Finally, the stages are shrunk down to the initial
+ * capacity so that their memory does not exceed the memory limit, unless the
+ * first stage alone does. The schedule stops once a stage of the initial
+ * capacity does not fit in the memory left: the filter then adds the elements
+ * to its last stage beyond its capacity (see
+ * {@link ScalableBloomFilter#isSaturated()}).
+ * <p>
+ * The false positive probability of each stage is a share of the budget left
+ * by the previous stages. The larger the growth, the fewer the stages to come
+ * and the larger the share. The sum of the probabilities of the stages, thus
+ * the compound false positive probability, never exceeds the probability the
+ * filter has been created with.
+ * <p>
+ * The lookups are reported by the filter for one digest out of 64, possibly
+ * by several reader threads at once. They are counted atomically, and the
+ * lookups reported while a stage is being planned may be lost.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class AdaptiveStagePlanner extends StagePlanner {
+
+	private static final long serialVersionUID = 1L;
+
+	// the bounds of the growth of the capacity from a stage to the next one
+	static final int MIN_GROWTH = 2;
+
+	static final int MAX_GROWTH = 8;
+
+	// the default time during which the elements expected have to fit
+	private static final long DEFAULT_HORIZON = TimeUnit.MINUTES.toNanos(10);
+
+	// the maximum number of bits of all the stages
+	private final long memoryLimit;
+
+	// the time in nanoseconds during which the elements
+	// expected have to fit in the next stage
+	private final long horizon;
+
+	// the growth of the stage being planned
+	private double growth = MIN_GROWTH;
+
+	// the time at which each stage has been planned
+	private long[] planningTimes = new long[8];
+
+	// the sampled lookups since the last planning, answered by no stage
+	// at index 0 and by the stage i at index i + 1
+	private volatile AtomicLongArray lookups = new AtomicLongArray(9);
+
+	/**
+	 * Creates a planner without memory limit.
+	 *
+	 * @param initialCapacity
+	 *            the capacity of the first stage.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum compound false positive probability.
+	 */
+	public AdaptiveStagePlanner(int initialCapacity, double falsePositiveProbability) {
+		this(initialCapacity, falsePositiveProbability, Long.MAX_VALUE, DEFAULT_HORIZON, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates a planner.
+	 *
+	 * @param initialCapacity
+	 *            the capacity of the first stage.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum compound false positive probability.
+	 *
+	 * @param memoryLimit
+	 *            the maximum number of bytes of the bits of all the stages.
+	 *
+	 * @param horizon
+	 *            the time during which the elements expected have to fit in
+	 *            the next stage.
+	 *
+	 * @param unit
+	 *            the unit of {@code horizon}.
+	 */
+	public AdaptiveStagePlanner(int initialCapacity, double falsePositiveProbability,
+			long memoryLimit, long horizon, TimeUnit unit) {
+		super(Mode.SMALL_SET_GROWTH, 0.5, initialCapacity, falsePositiveProbability);
+
+		if (memoryLimit <= 0) {
+			throw new IllegalArgumentException("memory limit must be strict positive");
+		}
+		if (horizon <= 0) {
+			throw new IllegalArgumentException("horizon must be strict positive");
+		}
+
+		this.memoryLimit = memoryLimit > Long.MAX_VALUE / 8 ? Long.MAX_VALUE : memoryLimit * 8;
+		this.horizon = unit.toNanos(horizon);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int planCapacity(int stage) {
+		long now = this.nanoTime();
+		this.recordPlanning(stage, now);
+		if (stage == 0) {
+			return this.getInitialCapacity();
+		}
+
+		int previous = this.getCapacity(stage - 1);
+		this.growth = this.getGrowth();
+
+		long capacity = (long) Math.ceil(this.growth * previous);
+		long elapsed = now - this.planningTimes[stage - 1];
+		if (elapsed > 0) {
+			// the elements expected at the rate the previous stage was filled
+			double expected = (double) previous * this.horizon / elapsed;
+			capacity = Math.max(capacity,
+					(long) Math.min(expected, (double) MAX_GROWTH * previous));
+		}
+		capacity = Math.min(capacity, Integer.MAX_VALUE);
+
+		// shrinks the stage to fit in the memory left
+		long available = this.memoryLimit - this.getPlannedBits(stage);
+		double falsePositiveProbability = this.planFalsePositiveProbability(stage, (int) capacity);
+		while (capacity > this.getInitialCapacity()
+				&& bits((int) capacity, falsePositiveProbability) > available) {
+			capacity = Math.max(this.getInitialCapacity(), capacity * 3 / 4);
+		}
+		if (bits((int) capacity, falsePositiveProbability) > available) {
+			// stops the schedule rather than appending stages beyond the
+			// limit, with ever smaller probabilities
+			return 0;
+		}
+
+		this.resetObservations();
+		return (int) capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected double planFalsePositiveProbability(int stage, int capacity) {
+		// subtracts the stages one by one rather than their sum, which
+		// would cancel the budget out after a few tens of stages
+		double budget = this.getFalsePositiveProbability();
+		for (int i = 0; i < stage; i++) {
+			budget -= this.getFalsePositiveProbability(i);
+		}
+
+		// the share of the budget left to the stages to come
+		double growth = stage == 0 ? MIN_GROWTH : this.growth;
+		double reserved = 1 / (1 + Math.log(growth) / Math.log(2));
+		return budget * (1 - reserved);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean isObservingLookups() {
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void recordLookup(int stage) {
+		AtomicLongArray lookups = this.lookups;
+		int index = stage < 0 ? 0 : stage + 1;
+		if (index < lookups.length()) {
+			lookups.incrementAndGet(index);
+		}
+	}
+
+	/**
+	 * Returns the fraction of the lookups whose cost grows with the number of
+	 * stages: the lookups answered by no stage and the ones answered by
+	 * another stage than the last one.
+	 *
+	 * @return the fraction of the lookups checking several stages,
+	 *         {@code 0.5} if no lookup has been observed.
+	 */
+	public double getDeepLookupsRatio() {
+		AtomicLongArray lookups = this.lookups;
+		int last = this.getPlannedStagesCount();
+		long total = 0;
+		long shallow = 0;
+		for (int i = 0; i < lookups.length(); i++) {
+			long count = lookups.get(i);
+			total += count;
+			if (i == last) {
+				shallow = count;
+			}
+		}
+		if (total == 0) {
+			return 0.5;
+		}
+		return (double) (total - shallow) / total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The copy keeps the lookups observed so far, and the lookups of each
+	 * planner are observed separately from now.
+	 */
+	@Override
+	public AdaptiveStagePlanner copy() {
+		AdaptiveStagePlanner result = (AdaptiveStagePlanner) super.copy();
+		result.planningTimes = this.planningTimes.clone();
+		long[] lookups = new long[this.lookups.length()];
+		for (int i = 0; i < lookups.length; i++) {
+			lookups[i] = this.lookups.get(i);
+		}
+		result.lookups = new AtomicLongArray(lookups);
+		return result;
+	}
+
+	/**
+	 * Returns the maximum number of bytes of the bits of all the stages.
+	 *
+	 * @return the memory limit in bytes.
+	 */
+	public long getMemoryLimit() {
+		return this.memoryLimit == Long.MAX_VALUE ? Long.MAX_VALUE : this.memoryLimit / 8;
+	}
+
+	/**
+	 * Returns the current time in nanoseconds.
+	 */
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Returns the growth of the capacity of the next stage relatively to the
+	 * previous one, from the lookups observed.
+	 */
+	private double getGrowth() {
+		double deep = this.getDeepLookupsRatio();
+		return MIN_GROWTH + (MAX_GROWTH - MIN_GROWTH) * deep;
+	}
+
+	private void recordPlanning(int stage, long now) {
+		if (stage >= this.planningTimes.length) {
+			this.planningTimes = Arrays.copyOf(this.planningTimes, this.planningTimes.length * 2);
+		}
+		this.planningTimes[stage] = now;
+	}
+
+	private void resetObservations() {
+		this.lookups = new AtomicLongArray(Math.max(9, this.getPlannedStagesCount() * 2 + 3));
+	}
+
+	/**
+	 * Returns the number of bits of the stages planned before the specified
+	 * one.
+	 */
+	private long getPlannedBits(int stage) {
+		long result = 0;
+		for (int i = 0; i < stage; i++) {
+			result += this.getBits(i);
+		}
+		return result;
+	}
+
+	private static long bits(int capacity, double falsePositiveProbability) {
+		int slicesCount = BloomFilterUtil.computeSlicesCount(capacity, falsePositiveProbability);
+		return (long) slicesCount
+			* BloomFilterUtil.computeBitsPerSlice(capacity, falsePositiveProbability, slicesCount);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName()
+				+ "[initialCapacity=" + this.getInitialCapacity()
+				+ ", falsePositiveProbability=" + this.getFalsePositiveProbability()
+				+ ", memoryLimit=" + this.getMemoryLimit() + "]";
+	}
+
+}
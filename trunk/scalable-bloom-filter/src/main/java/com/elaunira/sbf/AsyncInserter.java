@@ -0,0 +1,526 @@
+package com.elaunira.sbf;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous front end adding elements to a {@link BloomFilter}. The
+ * producers hash the elements and publish their digests into a bounded
+ * lock-free ring buffer, then return immediately. One or several drainer
+ * threads take the digests by batches, sort each batch to improve the memory
+ * locality of the updates and apply them to the filter. A stage growth or any
+ * other maintenance of the filter is thus never paid by the producers.
+ * <p>
+ * When the ring buffer is full, {@link #offer(Object)} fails immediately
+ * while {@link #put(Object)} and {@link #submit(Object)} wait until a slot is
+ * available (back-pressure). The queue depth and the number of elements
+ * submitted, rejected and applied are exposed for monitoring.
+ * <p>
+ * With a single drainer thread, any filter may be used. With several ones,
+ * the filter must be thread-safe (e.g. a {@link ShardedBloomFilter}). When
+ * the filter is a {@link ScalableBloomFilter} in single-writer mode, it is
+ * published after each batch.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class AsyncInserter<E> {
+
+	// the time a drainer waits when the ring buffer is empty
+	private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	// the time a producer waits when the ring buffer is full
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+	private static final Callable<Boolean> NOTHING = new Callable<Boolean>() {
+		public Boolean call() {
+			return null;
+		}
+	};
+
+	private final BloomFilter<E> filter;
+
+	// the maximum number of digests applied at once
+	private final int batchSize;
+
+	private final int mask;
+
+	// the digests of the slots
+	private final long[] digests;
+
+	// the results to complete of the slots, null for fire-and-forget
+	private final Result[] results;
+
+	// the sequence number of each slot, written after the slot content
+	private final AtomicLongArray sequences;
+
+	// the next position to write
+	private final AtomicLong tail = new AtomicLong();
+
+	// the next position to read
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong submitted = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong applied = new AtomicLong();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final Thread[] drainers;
+
+	private volatile boolean running = true;
+
+	// the number of producers which have checked that the front end
+	// is running and may not have published their slot yet
+	private final AtomicInteger enqueuing = new AtomicInteger();
+
+	/**
+	 * Creates a front end with a single drainer thread.
+	 *
+	 * @param filter
+	 *            the filter to add the elements to.
+	 *
+	 * @param queueCapacity
+	 *            the capacity of the ring buffer, rounded up to a power of
+	 *            two.
+	 */
+	public AsyncInserter(BloomFilter<E> filter, int queueCapacity) {
+		this(filter, queueCapacity, 256, 1, null);
+	}
+
+	/**
+	 * Creates a front end.
+	 *
+	 * @param filter
+	 *            the filter to add the elements to.
+	 *
+	 * @param queueCapacity
+	 *            the capacity of the ring buffer, rounded up to a power of
+	 *            two.
+	 *
+	 * @param batchSize
+	 *            the maximum number of digests applied at once.
+	 *
+	 * @param drainers
+	 *            the number of drainer threads, the filter must be thread-safe
+	 *            if it is greater than {@code 1}.
+	 *
+	 * @param threadFactory
+	 *            the factory creating the drainer threads or {@code null} to
+	 *            create daemon threads.
+	 */
+	public AsyncInserter(BloomFilter<E> filter, int queueCapacity, int batchSize,
+			int drainers, ThreadFactory threadFactory) {
+		if (queueCapacity <= 0 || queueCapacity > 1 << 30) {
+			throw new IllegalArgumentException("queue capacity must be in ]0;2^30]");
+		}
+
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batch size must be strict positive");
+		}
+
+		if (drainers <= 0) {
+			throw new IllegalArgumentException("drainers must be strict positive");
+		}
+
+		int capacity = Integer.highestOneBit(queueCapacity);
+		if (capacity < queueCapacity) {
+			capacity <<= 1;
+		}
+
+		this.filter = filter;
+		this.batchSize = batchSize;
+		this.mask = capacity - 1;
+		this.digests = new long[capacity];
+		this.results = new Result[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			this.sequences.set(i, i);
+		}
+
+		this.drainers = new Thread[drainers];
+		for (int i = 0; i < drainers; i++) {
+			Runnable drainer = new Runnable() {
+				public void run() {
+					AsyncInserter.this.drain();
+				}
+			};
+
+			Thread thread;
+			if (threadFactory == null) {
+				thread = new Thread(drainer, "sbf-drainer-" + i);
+				thread.setDaemon(true);
+			} else {
+				thread = threadFactory.newThread(drainer);
+			}
+			this.drainers[i] = thread;
+		}
+
+		for (Thread thread : this.drainers) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Enqueues the specified element if there is a free slot, without waiting.
+	 *
+	 * @param elt
+	 *            the element to add.
+	 *
+	 * @return {@code true} if the element has been enqueued, {@code false} if
+	 *         the ring buffer is full.
+	 */
+	public boolean offer(E elt) {
+		if (this.enqueue(BloomFilterUtil.digest(elt), null)) {
+			return true;
+		}
+		this.rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Enqueues the specified element, waiting for a free slot if the ring
+	 * buffer is full.
+	 *
+	 * @param elt
+	 *            the element to add.
+	 */
+	public void put(E elt) {
+		this.enqueueWaiting(BloomFilterUtil.digest(elt), null);
+	}
+
+	/**
+	 * Enqueues the specified element, waiting for a free slot if the ring
+	 * buffer is full. The future returned completes with the result of
+	 * {@link BloomFilter#add(Object)} once the element has been applied.
+	 *
+	 * @param elt
+	 *            the element to add.
+	 *
+	 * @return a future completed with {@code true} if the element was already
+	 *         contained, {@code false} otherwise.
+	 */
+	public Future<Boolean> submit(E elt) {
+		Result result = new Result();
+		this.enqueueWaiting(BloomFilterUtil.digest(elt), result);
+		return result;
+	}
+
+	/**
+	 * Waits until all the elements enqueued before the call have been applied
+	 * to the filter, or until the front end is closed.
+	 *
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		long target = this.tail.get();
+		while (this.applied.get() < target && this.running) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Stops the drainer threads once the elements enqueued before the call
+	 * have been applied. The elements enqueued concurrently with the call are
+	 * either applied or dropped: the futures of the elements dropped fail
+	 * with an {@link IllegalStateException} and the elements dropped are
+	 * counted as rejected. Enqueueing an element once the front end is closed
+	 * throws an {@link IllegalStateException}.
+	 *
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting.
+	 */
+	public void close() throws InterruptedException {
+		this.flush();
+		this.running = false;
+
+		// the producers which have passed the check publish their slot
+		// promptly, the next ones see that the front end is closed
+		while (this.enqueuing.get() != 0) {
+			LockSupport.parkNanos(FULL_PARK_NANOS);
+		}
+
+		for (Thread thread : this.drainers) {
+			LockSupport.unpark(thread);
+			thread.join();
+		}
+
+		// the slots published after the last batch of the drainers
+		long[] digests = new long[this.batchSize];
+		Result[] results = new Result[this.batchSize];
+		IllegalStateException closed = new IllegalStateException("inserter is closed");
+		int count;
+		while ((count = this.dequeue(digests, results)) > 0) {
+			for (int i = 0; i < count; i++) {
+				if (results[i] != null) {
+					results[i].fail(closed);
+					results[i] = null;
+				}
+			}
+			this.rejected.addAndGet(count);
+		}
+	}
+
+	/**
+	 * Returns the number of elements enqueued but not yet taken by a drainer.
+	 *
+	 * @return the number of elements waiting in the ring buffer.
+	 */
+	public int getQueueDepth() {
+		return (int) Math.max(0, this.tail.get() - this.head.get());
+	}
+
+	/**
+	 * Returns the number of slots of the ring buffer.
+	 *
+	 * @return the number of slots of the ring buffer.
+	 */
+	public int getQueueCapacity() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * Returns the number of elements enqueued since the creation.
+	 *
+	 * @return the number of elements enqueued.
+	 */
+	public long getSubmittedCount() {
+		return this.submitted.get();
+	}
+
+	/**
+	 * Returns the number of elements rejected by {@link #offer(Object)}
+	 * because the ring buffer was full, or dropped by {@link #close()}.
+	 *
+	 * @return the number of elements rejected.
+	 */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * Returns the number of elements applied to the filter.
+	 *
+	 * @return the number of elements applied to the filter.
+	 */
+	public long getAppliedCount() {
+		return this.applied.get();
+	}
+
+	/**
+	 * Returns the number of batches applied to the filter.
+	 *
+	 * @return the number of batches applied to the filter.
+	 */
+	public long getBatchesCount() {
+		return this.batches.get();
+	}
+
+	/**
+	 * Returns the filter the elements are added to.
+	 *
+	 * @return the filter the elements are added to.
+	 */
+	public BloomFilter<E> getFilter() {
+		return this.filter;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName()
+				+ "[queueDepth=" + this.getQueueDepth()
+				+ ", queueCapacity=" + this.getQueueCapacity()
+				+ ", submitted=" + this.submitted.get()
+				+ ", rejected=" + this.rejected.get()
+				+ ", applied=" + this.applied.get()
+				+ ", batches=" + this.batches.get() + "]";
+	}
+
+	private void enqueueWaiting(long digest, Result result) {
+		while (!this.enqueue(digest, result)) {
+			if (!this.running) {
+				throw new IllegalStateException("inserter is closed");
+			}
+			LockSupport.parkNanos(FULL_PARK_NANOS);
+		}
+	}
+
+	private boolean enqueue(long digest, Result result) {
+		this.enqueuing.incrementAndGet();
+		try {
+			if (!this.running) {
+				throw new IllegalStateException("inserter is closed");
+			}
+			return this.claim(digest, result);
+		} finally {
+			this.enqueuing.decrementAndGet();
+		}
+	}
+
+	private boolean claim(long digest, Result result) {
+		while (true) {
+			long position = this.tail.get();
+			int index = (int) position & this.mask;
+			long delta = this.sequences.get(index) - position;
+			if (delta == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.digests[index] = digest;
+					this.results[index] = result;
+					// releases the content of the slot to the drainers
+					this.sequences.lazySet(index, position + 1);
+					this.submitted.incrementAndGet();
+					return true;
+				}
+			} else if (delta < 0) {
+				// the slot has not been drained yet: the buffer is full
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Takes up to {@code batchSize} digests from the ring buffer.
+	 *
+	 * @return the number of digests taken.
+	 */
+	private int dequeue(long[] digests, Result[] results) {
+		int count = 0;
+		while (count < digests.length) {
+			long position = this.head.get();
+			int index = (int) position & this.mask;
+			long delta = this.sequences.get(index) - (position + 1);
+			if (delta == 0) {
+				if (this.head.compareAndSet(position, position + 1)) {
+					digests[count] = this.digests[index];
+					results[count] = this.results[index];
+					this.results[index] = null;
+					// gives the slot back to the producers
+					this.sequences.lazySet(index, position + this.mask + 1);
+					count++;
+				}
+			} else if (delta < 0) {
+				// empty
+				break;
+			}
+		}
+		return count;
+	}
+
+	private void drain() {
+		long[] digests = new long[this.batchSize];
+		Result[] results = new Result[this.batchSize];
+
+		while (true) {
+			int count = this.dequeue(digests, results);
+			if (count == 0) {
+				if (!this.running) {
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+
+			sort(digests, results, 0, count - 1);
+			for (int i = 0; i < count; i++) {
+				boolean contained;
+				try {
+					contained = this.filter.addDigest(digests[i]);
+				} catch (RuntimeException e) {
+					if (results[i] != null) {
+						results[i].fail(e);
+						results[i] = null;
+					}
+					continue;
+				}
+
+				if (results[i] != null) {
+					results[i].complete(contained);
+					results[i] = null;
+				}
+			}
+
+			if (this.filter instanceof ScalableBloomFilter<?>
+					&& ((ScalableBloomFilter<E>) this.filter).isSingleWriter()) {
+				((ScalableBloomFilter<E>) this.filter).publish();
+			}
+
+			this.batches.incrementAndGet();
+			this.applied.addAndGet(count);
+		}
+	}
+
+	/**
+	 * Sorts the digests in ascending order, moving their results along.
+	 */
+	private static void sort(long[] digests, Result[] results, int low, int high) {
+		while (low < high) {
+			long pivot = digests[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (digests[i] < pivot) {
+					i++;
+				}
+				while (digests[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long digest = digests[i];
+					digests[i] = digests[j];
+					digests[j] = digest;
+					Result result = results[i];
+					results[i] = results[j];
+					results[j] = result;
+					i++;
+					j--;
+				}
+			}
+
+			// recurses on the smallest part to bound the stack depth
+			if (j - low < high - i) {
+				sort(digests, results, low, j);
+				low = i;
+			} else {
+				sort(digests, results, i, high);
+				high = j;
+			}
+		}
+	}
+
+	/**
+	 * The result of an element submitted, completed by a drainer.
+	 */
+	private static final class Result extends FutureTask<Boolean> {
+
+		Result() {
+			super(NOTHING);
+		}
+
+		void complete(boolean contained) {
+			super.set(contained);
+		}
+
+		void fail(Throwable t) {
+			super.setException(t);
+		}
+
+	}
+
+}
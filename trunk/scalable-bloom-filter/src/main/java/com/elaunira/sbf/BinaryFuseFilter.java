@@ -0,0 +1,314 @@
+package com.elaunira.sbf;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable filter built from a known set of elements, as described in the
+ * paper entitled <a href="https://arxiv.org/abs/2201.01174">Binary Fuse
+ * Filters: Fast and Smaller Than Xor Filters</a> by <em>Thomas Mueller
+ * Graf</em> and <em>Daniel Lemire</em>. Each element is mapped to three
+ * entries of a fingerprints table, the XOR of which gives the fingerprint of
+ * the element.
+ * <p>
+ * A lookup costs three memory accesses and the space used is about
+ * {@code 1.13 * log2(1 / p)} bits per element, against
+ * {@code 1.44 * log2(1 / p)} for a {@link SlicedBloomFilter}. It is used by
+ * {@link ScalableBloomFilter} to freeze the filters which are full.
+ * <p>
+ * Elements are identified by the digest computed by
+ * {@link BloomFilterUtil#digest(Object)} from their {@link #hashCode()}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class BinaryFuseFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the number of entries an element is mapped to
+	private static final int ARITY = 3;
+
+	// the maximum number of seeds tried by the construction
+	private static final int MAX_ITERATIONS = 100;
+
+	// the number of distinct elements
+	private final int count;
+
+	// the number of bits of a fingerprint
+	private final int fingerprintBits;
+
+	private final long seed;
+
+	private final int segmentLength;
+
+	private final int segmentLengthMask;
+
+	private final int segmentCountLength;
+
+	// the number of fingerprints
+	private final int arrayLength;
+
+	// the packed fingerprints
+	private final long[] fingerprints;
+
+	/**
+	 * Builds a filter containing the specified {@code elements} with no more
+	 * than {@code falsePositiveProbability} chance of false positives.
+	 *
+	 * @param elements
+	 *            the elements to store.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 */
+	public BinaryFuseFilter(Collection<? extends E> elements, double falsePositiveProbability) {
+		this(digests(elements), elements.size(), falsePositiveProbability);
+	}
+
+	/**
+	 * Builds a filter containing the elements whose digests are the
+	 * {@code length} first values of {@code digests}. The array is sorted in
+	 * place.
+	 */
+	BinaryFuseFilter(long[] digests, int length, double falsePositiveProbability) {
+		super(Math.max(1, length), falsePositiveProbability);
+
+		Arrays.sort(digests, 0, length);
+		int size = 0;
+		for (int i = 0; i < length; i++) {
+			if (size == 0 || digests[i] != digests[size - 1]) {
+				digests[size++] = digests[i];
+			}
+		}
+
+		this.count = size;
+		this.fingerprintBits =
+			Math.min(32, Math.max(1, (int) Math.ceil(
+					Math.log(1 / falsePositiveProbability) / Math.log(2))));
+
+		int segmentLength =
+			size <= 1 ? 4 : 1 << (int) Math.floor(
+					Math.log(size) / Math.log(3.33) + 2.25);
+		this.segmentLength = Math.min(segmentLength, 1 << 18);
+		this.segmentLengthMask = this.segmentLength - 1;
+
+		double sizeFactor =
+			size <= 1 ? 0 : Math.max(1.125,
+					0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+		int capacity = (int) Math.round(size * sizeFactor);
+		int initSegmentCount =
+			(capacity + this.segmentLength - 1) / this.segmentLength - (ARITY - 1);
+		int arrayLength = (initSegmentCount + ARITY - 1) * this.segmentLength;
+		int segmentCount = (arrayLength + this.segmentLength - 1) / this.segmentLength;
+		segmentCount = segmentCount <= ARITY - 1 ? 1 : segmentCount - (ARITY - 1);
+
+		this.arrayLength = (segmentCount + ARITY - 1) * this.segmentLength;
+		this.segmentCountLength = segmentCount * this.segmentLength;
+		this.fingerprints =
+			new long[BitPacking.wordsCount(this.arrayLength, this.fingerprintBits)];
+
+		this.seed = this.populate(digests, size);
+	}
+
+	/**
+	 * This filter is immutable.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             always.
+	 */
+	public boolean addDigest(long digest) {
+		throw new UnsupportedOperationException("binary fuse filter is immutable");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		if (this.count == 0) {
+			return false;
+		}
+
+		long hash = BloomFilterUtil.mix(digest + this.seed);
+		long bits = this.fingerprintBits;
+		long xor =
+			BitPacking.get(this.fingerprints, this.h0(hash) * bits, this.fingerprintBits)
+				^ BitPacking.get(this.fingerprints, this.h1(hash) * bits, this.fingerprintBits)
+				^ BitPacking.get(this.fingerprints, this.h2(hash) * bits, this.fingerprintBits);
+
+		return xor == this.fingerprint(hash);
+	}
+
+	/**
+	 * Returns the number of distinct elements stored in this filter.
+	 *
+	 * @return the number of distinct elements stored in this filter.
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * This filter is immutable.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             always.
+	 */
+	public void clear() {
+		throw new UnsupportedOperationException("binary fuse filter is immutable");
+	}
+
+	/**
+	 * Returns the number of bits of a fingerprint.
+	 *
+	 * @return the number of bits of a fingerprint.
+	 */
+	public int getFingerprintBits() {
+		return this.fingerprintBits;
+	}
+
+	/**
+	 * Returns the number of bits used by the fingerprints table.
+	 *
+	 * @return the number of bits used by the fingerprints table.
+	 */
+	public long getBitsCount() {
+		return (long) this.arrayLength * this.fingerprintBits;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() +
+			"[fingerprintBits=" + this.fingerprintBits
+				+ ", arrayLength=" + this.arrayLength + "]";
+	}
+
+	private long populate(long[] keys, int size) {
+		if (size == 0) {
+			return 0;
+		}
+
+		int[] t2count = new int[this.arrayLength];
+		long[] t2hash = new long[this.arrayLength];
+		int[] alone = new int[this.arrayLength];
+		long[] reverseOrder = new long[size];
+		byte[] reverseH = new byte[size];
+		int[] h012 = new int[5];
+
+		long seed = 0;
+		int stackSize = 0;
+
+		for (int iteration = 0; stackSize != size; iteration++) {
+			if (iteration == MAX_ITERATIONS) {
+				throw new IllegalStateException(
+						"unable to build the binary fuse filter");
+			}
+
+			seed = BloomFilterUtil.mix(seed + 0x9e3779b97f4a7c15L);
+			Arrays.fill(t2count, 0);
+			Arrays.fill(t2hash, 0);
+
+			for (int i = 0; i < size; i++) {
+				long hash = BloomFilterUtil.mix(keys[i] + seed);
+				this.positions(hash, h012);
+				for (int j = 0; j < ARITY; j++) {
+					t2count[h012[j]] += 4;
+					t2count[h012[j]] ^= j;
+					t2hash[h012[j]] ^= hash;
+				}
+			}
+
+			// peels the entries which are mapped by a single element
+			int queueSize = 0;
+			for (int i = 0; i < this.arrayLength; i++) {
+				alone[queueSize] = i;
+				if ((t2count[i] >> 2) == 1) {
+					queueSize++;
+				}
+			}
+
+			stackSize = 0;
+			while (queueSize > 0) {
+				int index = alone[--queueSize];
+				if ((t2count[index] >> 2) != 1) {
+					continue;
+				}
+
+				long hash = t2hash[index];
+				int found = t2count[index] & 3;
+				reverseH[stackSize] = (byte) found;
+				reverseOrder[stackSize] = hash;
+				stackSize++;
+
+				this.positions(hash, h012);
+				for (int j = 1; j < ARITY; j++) {
+					int other = h012[found + j];
+					alone[queueSize] = other;
+					if ((t2count[other] >> 2) == 2) {
+						queueSize++;
+					}
+					t2count[other] -= 4;
+					t2count[other] ^= (found + j) % ARITY;
+					t2hash[other] ^= hash;
+				}
+			}
+		}
+
+		long bits = this.fingerprintBits;
+		for (int i = size - 1; i >= 0; i--) {
+			long hash = reverseOrder[i];
+			int found = reverseH[i];
+			this.positions(hash, h012);
+			long value =
+				this.fingerprint(hash)
+					^ BitPacking.get(this.fingerprints, h012[found + 1] * bits, this.fingerprintBits)
+					^ BitPacking.get(this.fingerprints, h012[found + 2] * bits, this.fingerprintBits);
+			BitPacking.set(this.fingerprints, h012[found] * bits, this.fingerprintBits, value);
+		}
+
+		return seed;
+	}
+
+	private void positions(long hash, int[] h012) {
+		h012[0] = this.h0(hash);
+		h012[1] = this.h1(hash);
+		h012[2] = this.h2(hash);
+		h012[3] = h012[0];
+		h012[4] = h012[1];
+	}
+
+	private int h0(long hash) {
+		// high 64 bits of the unsigned product hash * segmentCountLength
+		long length = this.segmentCountLength;
+		return (int) (((hash >>> 32) * length
+				+ (((hash & 0xffffffffL) * length) >>> 32)) >>> 32);
+	}
+
+	private int h1(long hash) {
+		return (this.h0(hash) + this.segmentLength)
+					^ ((int) (hash >>> 18) & this.segmentLengthMask);
+	}
+
+	private int h2(long hash) {
+		return (this.h0(hash) + 2 * this.segmentLength)
+					^ ((int) hash & this.segmentLengthMask);
+	}
+
+	private long fingerprint(long hash) {
+		return (hash ^ (hash >>> 32)) & ((1L << this.fingerprintBits) - 1);
+	}
+
+	private static long[] digests(Collection<?> elements) {
+		long[] result = new long[elements.size()];
+		int i = 0;
+		for (Object elt : elements) {
+			result[i++] = BloomFilterUtil.digest(elt);
+		}
+		return result;
+	}
+
+}
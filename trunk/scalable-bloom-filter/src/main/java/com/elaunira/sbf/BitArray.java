@@ -0,0 +1,136 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A fixed size array of bits backed by an array of {@code long}. Contrary to
+ * {@link java.util.BitSet}, the words are accessible to the filters which
+ * share this package and large arrays are cleared in parallel.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+final class BitArray implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// the number of words above which the array is cleared in parallel
+	private static final int PARALLEL_CLEAR_THRESHOLD = 1 << 20;
+
+	private final long bitsCount;
+
+	private final long[] words;
+
+	BitArray(long bitsCount) {
+		this.bitsCount = bitsCount;
+		this.words = new long[BitPacking.wordsCount(bitsCount, 1)];
+	}
+
+	private BitArray(long bitsCount, long[] words) {
+		this.bitsCount = bitsCount;
+		this.words = words;
+	}
+
+	boolean get(long index) {
+		return (this.words[(int) (index >>> 6)] & (1L << index)) != 0;
+	}
+
+	void set(long index) {
+		this.words[(int) (index >>> 6)] |= 1L << index;
+	}
+
+	long bitsCount() {
+		return this.bitsCount;
+	}
+
+	long[] words() {
+		return this.words;
+	}
+
+	/**
+	 * Returns a copy of this array.
+	 */
+	BitArray copy() {
+		return new BitArray(this.bitsCount, this.words.clone());
+	}
+
+	/**
+	 * Returns the number of bits set.
+	 */
+	long cardinality() {
+		long result = 0;
+		for (long word : this.words) {
+			result += Long.bitCount(word);
+		}
+		return result;
+	}
+
+	/**
+	 * Sets all the bits to {@code 0}. Large arrays are split into chunks which
+	 * are zeroed concurrently.
+	 */
+	void clear() {
+		clear(this.words);
+	}
+
+	static void clear(final long[] words) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (words.length < PARALLEL_CLEAR_THRESHOLD || threads == 1) {
+			Arrays.fill(words, 0);
+			return;
+		}
+
+		int chunk = (words.length + threads - 1) / threads;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+		for (int from = 0; from < words.length; from += chunk) {
+			final int start = from;
+			final int end = Math.min(words.length, from + chunk);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					Arrays.fill(words, start, end, 0);
+					return null;
+				}
+			});
+		}
+
+		try {
+			for (Future<Void> future : Workers.EXECUTOR.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Arrays.fill(words, 0);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * The daemon threads used to clear large arrays, created on first use.
+	 */
+	private static final class Workers {
+
+		static final ExecutorService EXECUTOR =
+			Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "bit-array-clear");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+
+	}
+
+}
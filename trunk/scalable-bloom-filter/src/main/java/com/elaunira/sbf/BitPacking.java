@@ -0,0 +1,70 @@
+package com.elaunira.sbf;
+
+/**
+ * Static methods to read and write fixed width fields packed one after the
+ * other into an array of {@code long}. A field may overlap two consecutive
+ * words.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+final class BitPacking {
+
+	private BitPacking() {
+
+	}
+
+	/**
+	 * Returns the number of words required to store {@code count} fields of
+	 * {@code bits} bits.
+	 *
+	 * @param count
+	 *            the number of fields.
+	 *
+	 * @param bits
+	 *            the width of a field.
+	 *
+	 * @return the number of words required.
+	 */
+	static int wordsCount(long count, int bits) {
+		long words = (count * bits + 63) >>> 6;
+		if (words > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("too many bits required: " + count * bits);
+		}
+		return (int) words;
+	}
+
+	/**
+	 * Reads the field of {@code bits} bits (between 1 and 64) starting at
+	 * {@code bitIndex}.
+	 */
+	static long get(long[] words, long bitIndex, int bits) {
+		int index = (int) (bitIndex >>> 6);
+		int shift = (int) (bitIndex & 63);
+		long value = words[index] >>> shift;
+		if (shift + bits > 64) {
+			value |= words[index + 1] << (64 - shift);
+		}
+		return bits == 64 ? value : value & ((1L << bits) - 1);
+	}
+
+	/**
+	 * Writes the {@code bits} low bits (between 1 and 64) of {@code value}
+	 * starting at {@code bitIndex}.
+	 */
+	static void set(long[] words, long bitIndex, int bits, long value) {
+		long mask = bits == 64 ? -1L : (1L << bits) - 1;
+		value &= mask;
+
+		int index = (int) (bitIndex >>> 6);
+		int shift = (int) (bitIndex & 63);
+		words[index] = (words[index] & ~(mask << shift)) | (value << shift);
+		if (shift + bits > 64) {
+			int written = 64 - shift;
+			words[index + 1] =
+				(words[index + 1] & ~(mask >>> written)) | (value >>> written);
+		}
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.elaunira.sbf;
 
 import java.io.Serializable;
+import java.util.Collection;
 
 /**
  * A probabilistic "shadow" of a set of elements, useful when the set itself
@@ -9,6 +10,11 @@ import java.io.Serializable;
  * an element to the filter guarantees that {@link #contains} will return
  * {@code true}, but {@link #contains} returning {@code true} does not
  * guarantee that this element was ever actually added to the filter.
+ * <p>
+ * An element is identified by a 64 bits digest computed once by
+ * {@link BloomFilterUtil#digest(Object)}. Filters made of several stages pass
+ * the same digest to each of them through {@link #addDigest(long)} and
+ * {@link #containsDigest(long)} instead of hashing the element again.
  * 
  * @author Laurent Pellegrino
  * 
@@ -50,7 +56,24 @@ public abstract class BloomFilter<E> implements Serializable {
 	 * @return {@code true} if the element to add is already contained,
 	 *         otherwise {@code false}.
 	 */
-	public abstract boolean add(E elt);
+	public boolean add(E elt) {
+		return this.addDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Adds the element identified by the specified {@code digest} to the
+	 * bloom filter.
+	 * 
+	 * @param digest
+	 *            the digest of the element to add, as returned by
+	 *            {@link BloomFilterUtil#digest(Object)}.
+	 * 
+	 * @return {@code true} if the element to add is already contained,
+	 *         otherwise {@code false}.
+	 * 
+	 * @see #add(Object)
+	 */
+	public abstract boolean addDigest(long digest);
 
 	/**
 	 * Returns {@code true} if it is <i>possible</i> (probability nonzero) that
@@ -70,7 +93,69 @@ public abstract class BloomFilter<E> implements Serializable {
 	 *         probability that this element has <i>not</i> actually been added
 	 *         is given by {@link #getFalsePositiveProbability()}.
 	 */
-	public abstract boolean contains(E elt);
+	public boolean contains(E elt) {
+		return this.containsDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Returns {@code true} if it is <i>possible</i> that the element
+	 * identified by the specified {@code digest} is contained in the set
+	 * represented by this Bloom filter.
+	 * 
+	 * @param digest
+	 *            the digest of the element to check, as returned by
+	 *            {@link BloomFilterUtil#digest(Object)}.
+	 * 
+	 * @return {@code false} if the element is <i>definitely</i> not present,
+	 *         {@code true} otherwise.
+	 * 
+	 * @see #contains(Object)
+	 */
+	public abstract boolean containsDigest(long digest);
+
+	/**
+	 * Checks several elements at once. The {@code i}-th value of the array
+	 * returned is the result of {@link #contains(Object)} for the
+	 * {@code i}-th element of {@code elts}.
+	 * 
+	 * @param elts
+	 *            the elements to check.
+	 * 
+	 * @return the result of the check of each element.
+	 */
+	public boolean[] containsEach(Collection<? extends E> elts) {
+		long[] digests = new long[elts.size()];
+		int count = 0;
+		for (E elt : elts) {
+			digests[count++] = BloomFilterUtil.digest(elt);
+		}
+
+		boolean[] results = new boolean[count];
+		this.containsDigests(digests, count, results);
+		return results;
+	}
+
+	/**
+	 * Checks the elements identified by the first {@code count} digests:
+	 * {@code results[i]} is set to the result of
+	 * {@link #containsDigest(long)} for {@code digests[i]}. The default
+	 * implementation checks the digests one by one, filters may override it to
+	 * overlap the memory accesses of several elements.
+	 * 
+	 * @param digests
+	 *            the digests of the elements to check.
+	 * 
+	 * @param count
+	 *            the number of digests to check.
+	 * 
+	 * @param results
+	 *            the array receiving the results.
+	 */
+	public void containsDigests(long[] digests, int count, boolean[] results) {
+		for (int i = 0; i < count; i++) {
+			results[i] = this.containsDigest(digests[i]);
+		}
+	}
 
 	/**
 	 * Returns the number of unique elements which have been added to the bloom
@@ -81,6 +166,11 @@ public abstract class BloomFilter<E> implements Serializable {
 	 */
 	public abstract int size();
 
+	/**
+	 * Removes all the elements from the filter.
+	 */
+	public abstract void clear();
+
 	/**
 	 * Returns the capacity of the Bloom filter (i.e. the maximum number of
 	 * elements the Bloom filter can store without exceed the false positive
@@ -1,7 +1,5 @@
 package com.elaunira.sbf;
 
-import java.io.UnsupportedEncodingException;
-
 import com.elaunira.sbf.hash.Murmur2;
 
 /**
@@ -39,20 +37,146 @@ public class BloomFilterUtil {
 	 *         using only one hash function.
 	 */
 	public static int[] getHashBuckets(String key, int hashCount, int max) {
-		byte[] b;
-		try {
-			b = key.getBytes("UTF-16");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
+		long digest = getDigest(key);
 		int[] result = new int[hashCount];
-		int hash1 = Murmur2.hash32(b, 0);
-		int hash2 = Murmur2.hash32(b, hash1);
 		for (int i = 0; i < hashCount; i++) {
-			result[i] = Math.abs((hash1 + i * hash2) % max);
+			result[i] = getHashBucket(digest, i, max);
 		}
 		return result;
 	}
+
+	/**
+	 * Returns the {@code i}-th hash derived from the specified {@code digest},
+	 * as returned by {@link #getHashBuckets(String, int, int)} without
+	 * allocating any array.
+	 * <p>
+	 * The hashes are derived by enhanced double hashing, as explained in the
+	 * paper entitled <a
+	 * href="http://www.ccs.neu.edu/home/pete/pub/bloom-filters-verification.pdf"
+	 * >Bloom Filters in Probabilistic Verification</a> by <em>Peter C.
+	 * Dillinger</em> and <em>Panagiotis Manolios</em>: the {@code i}-th hash is
+	 * {@code a + i * b + (i^3 - i) / 6} computed on 64 bits, where {@code a} is
+	 * the digest and {@code b} is given by {@link #getProbeStep(long)}. It is
+	 * then reduced to the [0; max[ range by {@link #reduce(long, int)}, which
+	 * does not require any division.
+	 * 
+	 * @param digest
+	 *            the digest of the key, as returned by
+	 *            {@link #getDigest(String)}.
+	 * 
+	 * @param i
+	 *            the index of the hash.
+	 * 
+	 * @param max
+	 *            value used to restrict the hash value obtained in the [0;
+	 *            max[ range.
+	 * 
+	 * @return the {@code i}-th hash derived from the specified {@code digest}.
+	 */
+	public static int getHashBucket(long digest, int i, int max) {
+		long hash = 
+			digest + i * getProbeStep(digest) + ((long) i * i * i - i) / 6;
+		return reduce(hash, max);
+	}
+
+	/**
+	 * Returns the step between the first two hashes derived from the
+	 * specified {@code digest}. The hashes may be enumerated without any
+	 * multiplication:
+	 * 
+	 * <pre>
+	 * long hash = digest;
+	 * long step = getProbeStep(digest);
+	 * for (int i = 0; i &lt; hashCount; i++) {
+	 *     int bucket = reduce(hash, max);
+	 *     hash += step;
+	 *     step += i + 1;
+	 * }
+	 * </pre>
+	 * 
+	 * @param digest
+	 *            the digest of the key, as returned by
+	 *            {@link #getDigest(String)}.
+	 * 
+	 * @return the step between the first two hashes derived from the digest.
+	 */
+	public static long getProbeStep(long digest) {
+		// swaps the two 32 bits hashes so that the high bits of the step
+		// depend on the second one, the step is odd so that the hashes
+		// do not repeat
+		return (Long.rotateLeft(digest, 32) * 0x9e3779b97f4a7c15L) | 1;
+	}
+
+	/**
+	 * Maps the specified 64 bits {@code hash} to the [0; max[ range with a
+	 * multiplication and a shift instead of a modulo, as explained by
+	 * <em>Daniel Lemire</em> in <a
+	 * href="https://arxiv.org/abs/1805.10941">Fast Random Integer Generation
+	 * in an Interval</a>. The high bits of the hash are used.
+	 * 
+	 * @param hash
+	 *            the hash to reduce.
+	 * 
+	 * @param max
+	 *            the (positive) size of the range.
+	 * 
+	 * @return a value in the [0; max[ range.
+	 */
+	public static int reduce(long hash, int max) {
+		return (int) (((hash >>> 32) * max) >>> 32);
+	}
+
+	/**
+	 * Returns the digest identifying the specified element in the filters.
+	 * Elements are identified by their {@link Object#hashCode()}, the digest
+	 * is the one of its decimal representation.
+	 * 
+	 * @param elt
+	 *            the element to identify.
+	 * 
+	 * @return the digest identifying the element.
+	 */
+	public static long digest(Object elt) {
+		return getDigest(Integer.toString(elt.hashCode()));
+	}
+
+	/**
+	 * Returns a 64 bits digest of the specified {@code key}. The 32 high bits
+	 * are the first Murmur 2 hash of the key and the 32 low bits the second
+	 * one, seeded with the first. These are the two values combined by
+	 * {@link #getHashBuckets(String, int, int)}.
+	 * 
+	 * @param key
+	 *            the value to hash.
+	 * 
+	 * @return a 64 bits digest of the specified {@code key}.
+	 */
+	public static long getDigest(String key) {
+		// hashes the UTF-16 encoding of the key without building it
+		int hash1 = Murmur2.hash32Utf16(key, 0);
+		int hash2 = Murmur2.hash32Utf16(key, hash1);
+		return ((long) hash1 << 32) | (hash2 & 0xffffffffL);
+	}
+	
+	/**
+	 * Returns a well distributed 64 bits value derived from {@code h}. This is
+	 * the finalizer of the Murmur 3 hash function, used to derive from a
+	 * digest values which are independent from the hashes returned by
+	 * {@link #getHashBucket(long, int, int)}.
+	 * 
+	 * @param h
+	 *            the value to mix.
+	 * 
+	 * @return the mixed value.
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
 	
 	public static int computeSlicesCount(int capacity, double falsePositiveProbability) {
 		return (int) (Math.ceil(
@@ -65,5 +189,50 @@ public class BloomFilterUtil {
 				(2 * capacity * Math.abs(Math.log(falsePositiveProbability))) 
 					/ (slicesCount * Math.pow(Math.log(2), 2)));
 	}
+
+	/**
+	 * Returns the number of bits a fingerprint must have so that a filter
+	 * storing fingerprints in buckets of {@code bucketSize} entries does not
+	 * transcend the specified {@code falsePositiveProbability}. A lookup
+	 * compares its fingerprint against two buckets, hence the probability is
+	 * bounded by {@code 2 * bucketSize / 2^bits}.
+	 * 
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed.
+	 * 
+	 * @param bucketSize
+	 *            the number of fingerprints per bucket.
+	 * 
+	 * @return the number of bits per fingerprint.
+	 */
+	public static int computeFingerprintBits(double falsePositiveProbability, int bucketSize) {
+		return Math.max(1, (int) Math.ceil(
+				Math.log(2 * bucketSize / falsePositiveProbability) / Math.log(2)));
+	}
+
+	/**
+	 * Returns the number of buckets of {@code bucketSize} entries required to
+	 * store {@code capacity} fingerprints without exceeding the specified
+	 * {@code loadFactor}. The value returned is rounded up to the next power of
+	 * two.
+	 * 
+	 * @param capacity
+	 *            the number of fingerprints to store.
+	 * 
+	 * @param bucketSize
+	 *            the number of fingerprints per bucket.
+	 * 
+	 * @param loadFactor
+	 *            the maximum ratio of occupied entries.
+	 * 
+	 * @return the number of buckets to allocate.
+	 */
+	public static int computeBucketsCount(int capacity, int bucketSize, double loadFactor) {
+		long buckets = (long) Math.ceil(capacity / (bucketSize * loadFactor));
+		if (buckets > 1 << 30) {
+			throw new IllegalArgumentException("capacity is too large: " + capacity);
+		}
+		return Math.max(1, Integer.highestOneBit((int) buckets - 1) << 1);
+	}
 	
 }
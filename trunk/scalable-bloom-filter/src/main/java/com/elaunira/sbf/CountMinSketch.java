@@ -0,0 +1,442 @@
+package com.elaunira.sbf;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Count-Min sketch as described in the paper entitled <a
+ * href="http://dimacs.rutgers.edu/~graham/pubs/papers/cm-full.pdf">An Improved
+ * Data Stream Summary: The Count-Min Sketch and its Applications</a> by
+ * <em>Graham Cormode</em> and <em>S. Muthukrishnan</em>, which estimates how
+ * many times each element has been added.
+ * <p>
+ * The counters are laid out as the bits of a {@link SlicedBloomFilter}: one
+ * row of counters per slice, the counter of an element in each row being
+ * selected by the same hashes of its digest. A sketch and a
+ * {@link SlicedBloomFilter} created with the same capacity and false positive
+ * probability thus share the digest of an element, and the sketch answers the
+ * membership queries of a Bloom filter of this geometry as well: an element is
+ * contained when none of its counters is zero.
+ * <p>
+ * The counters are updated conservatively: only the counters equal to the
+ * minimum of the counters of an element are incremented, which reduces the
+ * overestimation of the elements sharing counters with frequent ones. The
+ * estimate is never lower than the number of times the element has been
+ * added, and exceeds it by more than {@code e / width} times the total count
+ * with a probability lower than {@code exp(-depth)}.
+ * <p>
+ * The counters are packed into an {@link AtomicLongArray}, {@code 64 /
+ * counterBits} per word, and saturate at their maximum value. They are
+ * incremented by compare-and-set without any lock, thus the sketch may be
+ * updated and queried by any number of threads. An addition reads the
+ * counters of the element and then increments once each of the ones equal to
+ * their minimum. The counters read while another element is being added may
+ * include only a part of its increments, thus the update is conservative only
+ * when no other addition is in progress: otherwise, all the counters of the
+ * element are incremented once, as in the original sketch, so that no
+ * concurrent addition of the same element is lost.
+ * <p>
+ * When an element is added, it is based on the uniqueness of this object
+ * which is defined by the {@link #hashCode()} method. Therefore it is really
+ * important to provide a correct {@link #hashCode()} method for elements which
+ * have to be passed to the {@link #add} method.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class CountMinSketch<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_COUNTER_BITS = 16;
+
+	private static final int ADDING_BITS = 24;
+
+	// the number of rows of counters (equals to the number
+	// of hash functions to use)
+	private final int depth;
+
+	// the number of counters per row
+	private final int width;
+
+	private final int counterBits;
+
+	// log2 of the number of counters per word
+	private final int counterShift;
+
+	// the value at which the counters saturate
+	private final long maxCount;
+
+	// the packed counters, row after row
+	private final AtomicLongArray counters;
+
+	// the number of elements whose counters were all zeros when added
+	private final AtomicInteger count = new AtomicInteger();
+
+	// the number of increments
+	private final AtomicLong totalCount = new AtomicLong();
+
+	// the number of additions started, shifted by ADDING_BITS, plus the
+	// number of additions in progress
+	private final AtomicLong additions = new AtomicLong();
+
+	/**
+	 * Creates a sketch with counters of {@value #DEFAULT_COUNTER_BITS} bits
+	 * and the geometry of a {@link SlicedBloomFilter} of the same capacity and
+	 * false positive probability.
+	 *
+	 * @param capacity
+	 *            the number of distinct elements for which the membership
+	 *            queries do not transcend the
+	 *            {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate of the membership queries.
+	 */
+	public CountMinSketch(int capacity, double falsePositiveProbability) {
+		this(capacity, falsePositiveProbability, DEFAULT_COUNTER_BITS);
+	}
+
+	/**
+	 * Creates a sketch with the geometry of a {@link SlicedBloomFilter} of the
+	 * same capacity and false positive probability.
+	 *
+	 * @param capacity
+	 *            the number of distinct elements for which the membership
+	 *            queries do not transcend the
+	 *            {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate of the membership queries.
+	 *
+	 * @param counterBits
+	 *            the number of bits of a counter: 4, 8, 16 or 32.
+	 */
+	public CountMinSketch(int capacity, double falsePositiveProbability, int counterBits) {
+		super(capacity, falsePositiveProbability);
+
+		if (counterBits != 4 && counterBits != 8 && counterBits != 16 && counterBits != 32) {
+			throw new IllegalArgumentException("counter bits must be 4, 8, 16 or 32");
+		}
+
+		this.depth =
+			BloomFilterUtil.computeSlicesCount(
+					capacity, falsePositiveProbability);
+		this.width =
+			BloomFilterUtil.computeBitsPerSlice(
+					capacity, falsePositiveProbability, this.depth);
+		this.counterBits = counterBits;
+		this.counterShift = Integer.numberOfTrailingZeros(64 / counterBits);
+		this.maxCount = (1L << counterBits) - 1;
+		this.counters =
+			new AtomicLongArray(BitPacking.wordsCount((long) this.depth * this.width, counterBits));
+	}
+
+	/**
+	 * Increments the counters of the element identified by the specified
+	 * {@code digest}.
+	 *
+	 * @return {@code true} if the element was already contained, that is if
+	 *         none of its counters was zero, {@code false} otherwise.
+	 */
+	public boolean addDigest(long digest) {
+		return this.addAndEstimateDigest(digest) > 1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		return this.estimateDigest(digest) > 0;
+	}
+
+	/**
+	 * Increments the counters of the specified element and returns its
+	 * estimated count, including this occurrence. The element is hashed once
+	 * for both.
+	 *
+	 * @param elt
+	 *            the element to add.
+	 *
+	 * @return the estimated number of times the element has been added.
+	 */
+	public long addAndEstimate(E elt) {
+		return this.addAndEstimateDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Increments the counters of the element identified by the specified
+	 * {@code digest} and returns its estimated count, including this
+	 * occurrence. The digest may be the one already used to check a Bloom
+	 * filter.
+	 *
+	 * @param digest
+	 *            the digest of the element to add, as returned by
+	 *            {@link BloomFilterUtil#digest(Object)}.
+	 *
+	 * @return the estimated number of times the element has been added.
+	 *
+	 * @see #addAndEstimate(Object)
+	 */
+	public long addAndEstimateDigest(long digest) {
+		long[] indexes = this.getIndexes(digest);
+		long[] values = new long[this.depth];
+
+		long min = Long.MAX_VALUE;
+		long additions = this.additions.addAndGet((1L << ADDING_BITS) + 1);
+		try {
+			for (int i = 0; i < this.depth; i++) {
+				values[i] = this.get(indexes[i]);
+				min = Math.min(min, values[i]);
+			}
+			// the counters are consistent if no other addition has been in
+			// progress while they were read
+			boolean conservative =
+				(additions & ((1L << ADDING_BITS) - 1)) == 1
+					&& this.additions.get() == additions;
+
+			// each counter is incremented at most once, even when it has
+			// been incremented by another thread since it has been read
+			for (int i = 0; i < this.depth; i++) {
+				if (!conservative || values[i] == min) {
+					this.increment(indexes[i]);
+				}
+			}
+		} finally {
+			this.additions.decrementAndGet();
+		}
+
+		if (min == 0) {
+			this.count.incrementAndGet();
+		}
+		this.totalCount.incrementAndGet();
+		return Math.min(min + 1, this.maxCount);
+	}
+
+	/**
+	 * Returns the estimated number of times the specified element has been
+	 * added. The estimate is never lower than the actual count, unless the
+	 * counters have saturated.
+	 *
+	 * @param elt
+	 *            the element to count.
+	 *
+	 * @return the estimated number of times the element has been added.
+	 */
+	public long estimate(E elt) {
+		return this.estimateDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Returns the estimated number of times the element identified by the
+	 * specified {@code digest} has been added.
+	 *
+	 * @param digest
+	 *            the digest of the element to count.
+	 *
+	 * @return the estimated number of times the element has been added.
+	 *
+	 * @see #estimate(Object)
+	 */
+	public long estimateDigest(long digest) {
+		long min = Long.MAX_VALUE;
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < this.depth && min > 0; i++) {
+			min = Math.min(min,
+					this.get(offset + BloomFilterUtil.reduce(hash, this.width)));
+			offset += this.width;
+			hash += step;
+			step += i + 1;
+		}
+		return min;
+	}
+
+	/**
+	 * Adds the counters of the specified sketch to the counters of this
+	 * sketch, which then estimates the counts of the elements added to both.
+	 * The counters saturate. The sketch merged is not modified, the counters
+	 * it is updated with concurrently may be merged or not.
+	 *
+	 * @param other
+	 *            the sketch to merge.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sketches have different geometries.
+	 */
+	public void merge(CountMinSketch<E> other) {
+		if (other.depth != this.depth || other.width != this.width
+				|| other.counterBits != this.counterBits) {
+			throw new IllegalArgumentException("sketches must have the same geometry");
+		}
+
+		long counters = (long) this.depth * this.width;
+		for (long index = 0; index < counters; index++) {
+			long value = other.get(index);
+			while (value != 0) {
+				long current = this.get(index);
+				long sum = Math.min(current + value, this.maxCount);
+				if (sum == current || this.compareAndSet(index, current, sum)) {
+					break;
+				}
+			}
+		}
+
+		this.count.addAndGet(other.count.get());
+		this.totalCount.addAndGet(other.totalCount.get());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The counters incremented concurrently may not be cleared.
+	 */
+	public void clear() {
+		for (int i = 0; i < this.counters.length(); i++) {
+			this.counters.set(i, 0);
+		}
+		this.count.set(0);
+		this.totalCount.set(0);
+	}
+
+	/**
+	 * Returns the number of elements whose counters were all zeros when they
+	 * were added, which is the number of distinct elements added up to the
+	 * false positives.
+	 *
+	 * @return the number of distinct elements added.
+	 */
+	public int size() {
+		return this.count.get();
+	}
+
+	/**
+	 * Returns the number of times elements have been added, which the error
+	 * of the estimates is relative to.
+	 *
+	 * @return the number of times elements have been added.
+	 */
+	public long getTotalCount() {
+		return this.totalCount.get();
+	}
+
+	/**
+	 * Returns the error of the estimates relatively to the total count, which
+	 * is exceeded with a probability lower than
+	 * {@code 1 - }{@link #getConfidence()}.
+	 *
+	 * @return the relative error of the estimates.
+	 */
+	public double getRelativeError() {
+		return Math.E / this.width;
+	}
+
+	/**
+	 * Returns the probability that an estimate does not exceed the count by
+	 * more than {@link #getRelativeError()} times the total count.
+	 *
+	 * @return the confidence of the estimates.
+	 */
+	public double getConfidence() {
+		return 1 - Math.exp(-this.depth);
+	}
+
+	/**
+	 * Returns the number of rows of counters.
+	 *
+	 * @return the number of rows of counters.
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+
+	/**
+	 * Returns the number of counters per row.
+	 *
+	 * @return the number of counters per row.
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Returns the number of bits of a counter.
+	 *
+	 * @return the number of bits of a counter.
+	 */
+	public int getCounterBits() {
+		return this.counterBits;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() +
+			"[depth=" + this.depth + ", width=" + this.width
+				+ ", counterBits=" + this.counterBits
+				+ ", totalCount=" + this.totalCount.get() + "]";
+	}
+
+	/**
+	 * Returns the indexes of the counters of the element identified by the
+	 * specified {@code digest}, one per row.
+	 */
+	long[] getIndexes(long digest) {
+		long[] indexes = new long[this.depth];
+
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < this.depth; i++) {
+			indexes[i] = offset + BloomFilterUtil.reduce(hash, this.width);
+			offset += this.width;
+			hash += step;
+			step += i + 1;
+		}
+		return indexes;
+	}
+
+	/**
+	 * Returns the counter at the specified index.
+	 */
+	long get(long index) {
+		int shift = (int) (index & ((1 << this.counterShift) - 1)) * this.counterBits;
+		return (this.counters.get((int) (index >>> this.counterShift)) >>> shift) & this.maxCount;
+	}
+
+	/**
+	 * Increments the counter at the specified index unless it has saturated,
+	 * retrying while the other counters of its word change.
+	 */
+	private void increment(long index) {
+		while (true) {
+			long current = this.get(index);
+			if (current == this.maxCount
+					|| this.compareAndSet(index, current, current + 1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets the counter at the specified index to {@code update} if it is
+	 * equal to {@code expect} and if the other counters of its word have not
+	 * changed since it has been read.
+	 */
+	private boolean compareAndSet(long index, long expect, long update) {
+		int word = (int) (index >>> this.counterShift);
+		int shift = (int) (index & ((1 << this.counterShift) - 1)) * this.counterBits;
+		long current = this.counters.get(word);
+		if (((current >>> shift) & this.maxCount) != expect) {
+			return false;
+		}
+		long next = (current & ~(this.maxCount << shift)) | (update << shift);
+		return this.counters.compareAndSet(word, current, next);
+	}
+
+}
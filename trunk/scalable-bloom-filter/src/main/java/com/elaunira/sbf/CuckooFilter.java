@@ -0,0 +1,505 @@
+package com.elaunira.sbf;
+
+/**
+ * A Cuckoo filter as described in the paper entitled <a
+ * href="https://www.cs.cmu.edu/~dga/papers/cuckoo-conext2014.pdf">Cuckoo
+ * Filter: Practically Better Than Bloom</a> by <em>Bin Fan</em>, <em>David G.
+ * Andersen</em>, <em>Michael Kaminsky</em> and <em>Michael D.
+ * Mitzenmacher</em>. It stores a small fingerprint of each element in one of
+ * two candidate buckets of {@link #BUCKET_SIZE} entries. Contrary to a
+ * {@link SlicedBloomFilter}, elements can be removed and the space used is
+ * lower for false positive probabilities below about 3%.
+ * <p>
+ * Buckets are packed into an array of {@code long}. When semi-sorting is
+ * enabled, the fingerprints of a bucket are sorted and their four high bits
+ * are encoded together on 12 bits, saving one bit per entry.
+ * <p>
+ * An insertion relocates at most {@code 500} entries. When no free entry has
+ * been found, the last fingerprint kicked out is kept aside and the filter is
+ * considered as full.
+ * <p>
+ * This class is <strong>not thread-safe</strong>. Moreover, when an element is
+ * added into the filter, it is based on the uniqueness of this object which
+ * is defined by the {@link #hashCode()} method. Therefore it is really
+ * important to provide a correct {@link #hashCode()} method for elements which
+ * have to be passed to the {@link #add} method.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class CuckooFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the number of fingerprints per bucket
+	public static final int BUCKET_SIZE = 4;
+
+	// the maximum ratio of occupied entries
+	private static final double LOAD_FACTOR = 0.95;
+
+	// the maximum number of entries relocated by an insertion
+	private static final int MAX_KICKS = 500;
+
+	// the number of bits of a fingerprint
+	private final int fingerprintBits;
+
+	// the number of buckets (a power of two)
+	private final int bucketsCount;
+
+	// whether the fingerprints of a bucket are semi-sorted
+	private final boolean semiSorted;
+
+	// the number of bits used to store a bucket
+	private final int bucketBits;
+
+	// the packed buckets
+	private final long[] table;
+
+	// the number of elements added in the filter
+	private int count;
+
+	// the fingerprint which has not been relocated (0 if none)
+	// and the index of one of its buckets
+	private int victimFingerprint;
+
+	private int victimIndex;
+
+	// state of the generator used to choose the entries to kick out
+	private int seed = 0x2545f491;
+
+	/**
+	 * This filter must be able to store at least {@code capacity} elements
+	 * while maintaining no more than {@code falsePositiveProbability} chance of
+	 * false positives.
+	 *
+	 * @param capacity
+	 *            the maximum number of elements the filter can contain without
+	 *            to transcend the {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 */
+	public CuckooFilter(int capacity, double falsePositiveProbability) {
+		this(capacity, falsePositiveProbability, false);
+	}
+
+	/**
+	 * This filter must be able to store at least {@code capacity} elements
+	 * while maintaining no more than {@code falsePositiveProbability} chance of
+	 * false positives.
+	 *
+	 * @param capacity
+	 *            the maximum number of elements the filter can contain without
+	 *            to transcend the {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 *
+	 * @param semiSorted
+	 *            whether the fingerprints of a bucket are semi-sorted in order
+	 *            to save one bit per entry.
+	 */
+	public CuckooFilter(int capacity, double falsePositiveProbability, boolean semiSorted) {
+		super(capacity, falsePositiveProbability);
+
+		int bits =
+			BloomFilterUtil.computeFingerprintBits(
+					falsePositiveProbability, BUCKET_SIZE);
+
+		if (semiSorted) {
+			// four bits are shared by the encoding of the sorted prefixes
+			bits = Math.max(bits, 5);
+			if (bits > 17) {
+				throw new IllegalArgumentException(
+						"false positive probability is too low for semi-sorting");
+			}
+		} else if (bits > 32) {
+			throw new IllegalArgumentException(
+					"false positive probability is too low");
+		}
+
+		this.fingerprintBits = bits;
+		this.semiSorted = semiSorted;
+		this.bucketsCount =
+			BloomFilterUtil.computeBucketsCount(
+					capacity, BUCKET_SIZE, LOAD_FACTOR);
+		this.bucketBits =
+			semiSorted ? BUCKET_SIZE * (bits - 1) : BUCKET_SIZE * bits;
+		this.table =
+			new long[BitPacking.wordsCount(this.bucketsCount, this.bucketBits)];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean addDigest(long digest) {
+		if (this.containsDigest(digest)) {
+			return true;
+		}
+
+		this.addDigestWithoutCheck(digest);
+
+		return false;
+	}
+
+	/**
+	 * Adds the specified element without verifying that the element is
+	 * contained by the filter. A new fingerprint is stored even if the element
+	 * is already contained by the filter. Therefore, this method should only
+	 * be used if you know what you do.
+	 *
+	 * @param elt
+	 *            the element to add to the filter.
+	 */
+	public void addWithoutCheck(E elt) {
+		this.addDigestWithoutCheck(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Adds the element identified by the specified {@code digest} without
+	 * verifying that the element is contained by the filter.
+	 *
+	 * @param digest
+	 *            the digest of the element to add.
+	 *
+	 * @see #addWithoutCheck(Object)
+	 */
+	public void addDigestWithoutCheck(long digest) {
+		if (this.isFull()) {
+			throw new IllegalStateException("cuckoo filter is at capacity");
+		}
+
+		this.insert(this.fingerprint(digest), this.index(digest));
+		this.count++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		int fingerprint = this.fingerprint(digest);
+		int i1 = this.index(digest);
+		int i2 = this.altIndex(i1, fingerprint);
+
+		if (this.victimFingerprint == fingerprint
+				&& (this.victimIndex == i1 || this.victimIndex == i2)) {
+			return true;
+		}
+
+		return this.find(i1, fingerprint) != -1
+					|| this.find(i2, fingerprint) != -1;
+	}
+
+	/**
+	 * Removes one occurrence of the specified element from the filter. Only
+	 * elements which have been added must be removed, otherwise the
+	 * fingerprint of another element sharing the same buckets may be removed.
+	 *
+	 * @param elt
+	 *            the element to remove.
+	 *
+	 * @return {@code true} if a fingerprint matching the element has been
+	 *         removed, {@code false} otherwise.
+	 */
+	public boolean remove(E elt) {
+		return this.removeDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Removes one occurrence of the element identified by the specified
+	 * {@code digest}.
+	 *
+	 * @param digest
+	 *            the digest of the element to remove.
+	 *
+	 * @return {@code true} if a fingerprint matching the element has been
+	 *         removed, {@code false} otherwise.
+	 *
+	 * @see #remove(Object)
+	 */
+	public boolean removeDigest(long digest) {
+		int fingerprint = this.fingerprint(digest);
+		int i1 = this.index(digest);
+		int i2 = this.altIndex(i1, fingerprint);
+
+		if (this.victimFingerprint == fingerprint
+				&& (this.victimIndex == i1 || this.victimIndex == i2)) {
+			this.victimFingerprint = 0;
+			this.count--;
+			return true;
+		}
+
+		if (this.delete(i1, fingerprint) || this.delete(i2, fingerprint)) {
+			this.count--;
+			// an entry is free now, try to store the victim again
+			if (this.victimFingerprint != 0) {
+				int victim = this.victimFingerprint;
+				this.victimFingerprint = 0;
+				this.insert(victim, this.victimIndex);
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		BitArray.clear(this.table);
+		this.count = 0;
+		this.victimFingerprint = 0;
+	}
+
+	/**
+	 * Returns a boolean indicating if the filter has reached its maximal
+	 * capacity or if an insertion has failed to find a free entry.
+	 *
+	 * @return {@code true} whether the filter has reached its maximal
+	 *         capacity, {@code false} otherwise.
+	 */
+	public boolean isFull() {
+		return this.victimFingerprint != 0 || this.count >= this.capacity;
+	}
+
+	/**
+	 * Returns the number of elements added in this filter.
+	 *
+	 * @return the number of elements added in this filter.
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * Returns the ratio of occupied entries.
+	 *
+	 * @return the ratio of occupied entries.
+	 */
+	public double getLoadFactor() {
+		return this.count / ((double) this.bucketsCount * BUCKET_SIZE);
+	}
+
+	/**
+	 * Returns the number of bits of a fingerprint.
+	 *
+	 * @return the number of bits of a fingerprint.
+	 */
+	public int getFingerprintBits() {
+		return this.fingerprintBits;
+	}
+
+	/**
+	 * Returns the number of buckets.
+	 *
+	 * @return the number of buckets.
+	 */
+	public int getBucketsCount() {
+		return this.bucketsCount;
+	}
+
+	/**
+	 * Returns whether the fingerprints of a bucket are semi-sorted.
+	 *
+	 * @return whether the fingerprints of a bucket are semi-sorted.
+	 */
+	public boolean isSemiSorted() {
+		return this.semiSorted;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() +
+			"[fingerprintBits=" + this.fingerprintBits
+				+ ", bucketsCount=" + this.bucketsCount
+				+ ", semiSorted=" + this.semiSorted + "]";
+	}
+
+	private int index(long digest) {
+		return (int) (digest >>> 32) & (this.bucketsCount - 1);
+	}
+
+	private int fingerprint(long digest) {
+		int fingerprint = (int) (digest & ((1L << this.fingerprintBits) - 1));
+		// 0 denotes an empty entry
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+
+	private int altIndex(int index, int fingerprint) {
+		return (index ^ (fingerprint * 0x5bd1e995)) & (this.bucketsCount - 1);
+	}
+
+	private void insert(int fingerprint, int index) {
+		int[] entries = new int[BUCKET_SIZE];
+
+		if (this.store(index, fingerprint, entries)
+				|| this.store(this.altIndex(index, fingerprint), fingerprint, entries)) {
+			return;
+		}
+
+		for (int n = 0; n < MAX_KICKS; n++) {
+			this.seed ^= this.seed << 13;
+			this.seed ^= this.seed >>> 17;
+			this.seed ^= this.seed << 5;
+
+			this.readBucket(index, entries);
+			int slot = this.seed & (BUCKET_SIZE - 1);
+			int kicked = entries[slot];
+			entries[slot] = fingerprint;
+			this.writeBucket(index, entries);
+
+			fingerprint = kicked;
+			index = this.altIndex(index, fingerprint);
+			if (this.store(index, fingerprint, entries)) {
+				return;
+			}
+		}
+
+		this.victimFingerprint = fingerprint;
+		this.victimIndex = index;
+	}
+
+	private boolean store(int index, int fingerprint, int[] entries) {
+		this.readBucket(index, entries);
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			if (entries[i] == 0) {
+				entries[i] = fingerprint;
+				this.writeBucket(index, entries);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean delete(int index, int fingerprint) {
+		int[] entries = new int[BUCKET_SIZE];
+		this.readBucket(index, entries);
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			if (entries[i] == fingerprint) {
+				entries[i] = 0;
+				this.writeBucket(index, entries);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int find(int index, int fingerprint) {
+		if (this.semiSorted) {
+			int[] entries = new int[BUCKET_SIZE];
+			this.readBucket(index, entries);
+			for (int i = 0; i < BUCKET_SIZE; i++) {
+				if (entries[i] == fingerprint) {
+					return i;
+				}
+			}
+		} else {
+			long offset = (long) index * this.bucketBits;
+			for (int i = 0; i < BUCKET_SIZE; i++) {
+				if ((int) BitPacking.get(this.table, offset, this.fingerprintBits) == fingerprint) {
+					return i;
+				}
+				offset += this.fingerprintBits;
+			}
+		}
+		return -1;
+	}
+
+	private void readBucket(int index, int[] entries) {
+		long offset = (long) index * this.bucketBits;
+
+		if (!this.semiSorted) {
+			for (int i = 0; i < BUCKET_SIZE; i++) {
+				entries[i] = (int) BitPacking.get(this.table, offset, this.fingerprintBits);
+				offset += this.fingerprintBits;
+			}
+			return;
+		}
+
+		long bucket = BitPacking.get(this.table, offset, this.bucketBits);
+		int lowBits = this.fingerprintBits - 4;
+		int prefixes = SemiSorting.DECODE[(int) (bucket & 0xfff)];
+		bucket >>>= 12;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			int prefix = (prefixes >>> (12 - 4 * i)) & 0xf;
+			entries[i] =
+				(prefix << lowBits) | (int) (bucket & ((1L << lowBits) - 1));
+			bucket >>>= lowBits;
+		}
+	}
+
+	private void writeBucket(int index, int[] entries) {
+		long offset = (long) index * this.bucketBits;
+
+		if (!this.semiSorted) {
+			for (int i = 0; i < BUCKET_SIZE; i++) {
+				BitPacking.set(this.table, offset, this.fingerprintBits, entries[i]);
+				offset += this.fingerprintBits;
+			}
+			return;
+		}
+
+		SemiSorting.sort(entries);
+
+		int lowBits = this.fingerprintBits - 4;
+		int prefixes = 0;
+		long bucket = 0;
+		for (int i = BUCKET_SIZE - 1; i >= 0; i--) {
+			prefixes |= (entries[i] >>> lowBits) << (12 - 4 * i);
+			bucket = (bucket << lowBits) | (entries[i] & ((1L << lowBits) - 1));
+		}
+		bucket = (bucket << 12) | SemiSorting.ENCODE[prefixes];
+		BitPacking.set(this.table, offset, this.bucketBits, bucket);
+	}
+
+	/**
+	 * Tables used to encode the four high bits of the sorted fingerprints of
+	 * a bucket. There are only 3876 sorted sequences of four values in
+	 * [0;16[, which are indexed on 12 bits instead of 16.
+	 */
+	private static final class SemiSorting {
+
+		static final short[] ENCODE = new short[1 << 16];
+
+		static final char[] DECODE = new char[3876];
+
+		static {
+			int index = 0;
+			for (int a = 0; a < 16; a++) {
+				for (int b = a; b < 16; b++) {
+					for (int c = b; c < 16; c++) {
+						for (int d = c; d < 16; d++) {
+							int prefixes = (a << 12) | (b << 8) | (c << 4) | d;
+							ENCODE[prefixes] = (short) index;
+							DECODE[index] = (char) prefixes;
+							index++;
+						}
+					}
+				}
+			}
+		}
+
+		static void sort(int[] entries) {
+			swapIfGreater(entries, 0, 1);
+			swapIfGreater(entries, 2, 3);
+			swapIfGreater(entries, 0, 2);
+			swapIfGreater(entries, 1, 3);
+			swapIfGreater(entries, 1, 2);
+		}
+
+		private static void swapIfGreater(int[] entries, int i, int j) {
+			if (entries[i] > entries[j]) {
+				int tmp = entries[i];
+				entries[i] = entries[j];
+				entries[j] = tmp;
+			}
+		}
+
+	}
+
+}
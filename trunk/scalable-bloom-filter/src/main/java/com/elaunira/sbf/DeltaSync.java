@@ -0,0 +1,249 @@
+package com.elaunira.sbf;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Synchronizes replicas of a {@link ScalableBloomFilter} by shipping only the
+ * bits set since their last synchronization.
+ * <p>
+ * The source must track its modifications (see
+ * {@link ScalableBloomFilter#enableTracking()}): each line of 512 bits of its
+ * filters is marked with the version at which it has been modified for the
+ * last time. A delta since a version contains the lines modified since this
+ * version, which the replica ORs into its own bits, and the filters created
+ * since this version, which are shipped whole with {@link FilterCodec}. The
+ * size of a delta thus grows with the number of elements added, not with the
+ * size of the filter.
+ * <p>
+ * A typical exchange is:
+ *
+ * <pre>
+ * // on the source, for each replica
+ * replicaVersion = DeltaSync.writeDelta(source, replicaVersion, out);
+ * // on the replica
+ * DeltaSync.applyDelta(replica, in);
+ * </pre>
+ *
+ * The first delta of a replica is written with the version {@code 0} and
+ * contains all the filters. A replica must not be modified otherwise. When it
+ * is in single-writer mode, it may be queried while a delta is applied: the
+ * bits are only set and the filters added are published once the delta is
+ * applied.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public final class DeltaSync {
+
+	private static final int MAGIC = 0x53424644;
+
+	// the types of entries of a delta
+	private static final byte WHOLE = 0;
+
+	private static final byte LINES = 1;
+
+	// the number of words of a line
+	private static final int LINE_WORDS = SlicedBloomFilter.LINE_BITS / 64;
+
+	private DeltaSync() {
+
+	}
+
+	/**
+	 * Writes the modifications of {@code source} since {@code since}.
+	 *
+	 * @param source
+	 *            the filter to synchronize the replica with.
+	 *
+	 * @param since
+	 *            the version returned by the previous call for the same
+	 *            replica, {@code 0} for the first one.
+	 *
+	 * @param out
+	 *            the output to write the delta to.
+	 *
+	 * @return the version to pass for the next delta of the same replica.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 *
+	 * @throws IllegalStateException
+	 *             if the modifications of the source are not tracked or if
+	 *             some of its filters are frozen.
+	 */
+	public static int writeDelta(ScalableBloomFilter<?> source, int since, DataOutput out) throws IOException {
+		if (!source.isTracking()) {
+			throw new IllegalStateException("modifications are not tracked");
+		}
+
+		List<? extends BloomFilter<?>> stages = source.getStages();
+		for (BloomFilter<?> stage : stages) {
+			if (!(stage instanceof SlicedBloomFilter<?>)) {
+				throw new IllegalStateException("frozen filters cannot be synchronized");
+			}
+		}
+
+		// the modifications from now belong to the next delta
+		int version = source.nextVersion();
+
+		out.writeInt(MAGIC);
+		out.writeInt(stages.size());
+
+		for (int i = 0; i < stages.size(); i++) {
+			SlicedBloomFilter<?> stage = (SlicedBloomFilter<?>) stages.get(i);
+
+			long[] words = stage.getBits().words();
+			int[] lineVersions = stage.getLineVersions();
+			int lines = 0;
+			long linesSize = 0;
+
+			// the replica has this filter if it has been created before
+			boolean whole = since == 0 || stage.getTrackedSince() >= since;
+			if (!whole) {
+				for (int line = 0; line < lineVersions.length; line++) {
+					if (lineVersions[line] >= since) {
+						lines++;
+						linesSize += 5 + 8 * nonZeroWords(words, line);
+					}
+				}
+				if (lines == 0) {
+					continue;
+				}
+				// the lines of a dense filter may be larger than the
+				// compressed filter
+				whole = linesSize > FilterCodec.estimateSize(stage);
+			}
+
+			out.writeInt(i);
+			if (whole) {
+				out.writeByte(WHOLE);
+				FilterCodec.write(stage, out);
+				continue;
+			}
+
+			out.writeByte(LINES);
+			out.writeInt(stage.size());
+			out.writeInt(lines);
+
+			for (int line = 0; line < lineVersions.length; line++) {
+				if (lineVersions[line] < since) {
+					continue;
+				}
+
+				out.writeInt(line);
+				int from = line * LINE_WORDS;
+				int to = Math.min(words.length, from + LINE_WORDS);
+
+				// a bit per word of the line which is not zero
+				int mask = 0;
+				for (int w = from; w < to; w++) {
+					if (words[w] != 0) {
+						mask |= 1 << (w - from);
+					}
+				}
+				out.writeByte(mask);
+				for (int w = from; w < to; w++) {
+					if (words[w] != 0) {
+						out.writeLong(words[w]);
+					}
+				}
+			}
+		}
+
+		// end of delta
+		out.writeInt(-1);
+
+		return version + 1;
+	}
+
+	/**
+	 * Applies a delta written by
+	 * {@link #writeDelta(ScalableBloomFilter, int, DataOutput)} to the
+	 * specified replica.
+	 *
+	 * @param replica
+	 *            the replica to update.
+	 *
+	 * @param in
+	 *            the input to read the delta from.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs or if the delta is not valid.
+	 */
+	public static <E> void applyDelta(ScalableBloomFilter<E> replica, DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a delta");
+		}
+
+		int stagesCount = in.readInt();
+		List<BloomFilter<E>> stages = replica.getStages();
+
+		int index;
+		while ((index = in.readInt()) >= 0) {
+			if (index > stages.size() || index >= stagesCount) {
+				throw new IOException("unexpected filter: " + index);
+			}
+
+			byte type = in.readByte();
+			if (type == WHOLE) {
+				replica.setStage(index, FilterCodec.<E>read(in));
+			} else if (type == LINES) {
+				if (index == stages.size()) {
+					throw new IOException("missing filter: " + index);
+				}
+				applyLines((SlicedBloomFilter<E>) stages.get(index), in);
+			} else {
+				throw new IOException("unknown entry: " + type);
+			}
+		}
+
+		// removes the filters the source does not have anymore
+		// and publishes the filters added
+		replica.truncateStages(stagesCount);
+	}
+
+	private static int nonZeroWords(long[] words, int line) {
+		int from = line * LINE_WORDS;
+		int to = Math.min(words.length, from + LINE_WORDS);
+		int result = 0;
+		for (int w = from; w < to; w++) {
+			if (words[w] != 0) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	private static void applyLines(SlicedBloomFilter<?> stage, DataInput in) throws IOException {
+		int size = in.readInt();
+		int lines = in.readInt();
+
+		long[] words = stage.getBits().words();
+		for (int n = 0; n < lines; n++) {
+			int line = in.readInt();
+			int from = line * LINE_WORDS;
+			if (line < 0 || from >= words.length) {
+				throw new IOException("line out of range: " + line);
+			}
+
+			int mask = in.readByte() & 0xff;
+			for (int w = 0; w < LINE_WORDS; w++) {
+				if ((mask & (1 << w)) != 0) {
+					if (from + w >= words.length) {
+						throw new IOException("word out of range: " + (from + w));
+					}
+					// the bits are only set, thus the readers never
+					// miss an element contained before the delta
+					words[from + w] |= in.readLong();
+				}
+			}
+		}
+
+		stage.setSize(size);
+	}
+
+}
@@ -0,0 +1,158 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+
+/**
+ * A set of digests stored in an open addressing table with linear probing,
+ * used to retain the exact digests of the elements added to the last stage
+ * of a {@link ScalableBloomFilter}. The table is at most half full.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+final class DigestSet implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int MIN_TABLE_LENGTH = 16;
+
+	// the digests, 0 marks an empty slot
+	private long[] table;
+
+	private int size;
+
+	// whether the digest 0 belongs to the set
+	private boolean containsZero;
+
+	DigestSet(int expected) {
+		this.table = new long[tableLength(expected)];
+	}
+
+	private DigestSet(long[] table, int size, boolean containsZero) {
+		this.table = table;
+		this.size = size;
+		this.containsZero = containsZero;
+	}
+
+	/**
+	 * Adds the specified digest.
+	 *
+	 * @return {@code false} if the digest was already in the set.
+	 */
+	boolean add(long digest) {
+		if (digest == 0) {
+			if (this.containsZero) {
+				return false;
+			}
+			this.containsZero = true;
+			this.size++;
+			return true;
+		}
+
+		int mask = this.table.length - 1;
+		int i = index(digest, mask);
+		while (this.table[i] != 0) {
+			if (this.table[i] == digest) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+
+		this.table[i] = digest;
+		if (++this.size * 2 > this.table.length) {
+			this.resize();
+		}
+		return true;
+	}
+
+	boolean contains(long digest) {
+		if (digest == 0) {
+			return this.containsZero;
+		}
+
+		int mask = this.table.length - 1;
+		int i = index(digest, mask);
+		while (this.table[i] != 0) {
+			if (this.table[i] == digest) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the digests of the set, in no particular order.
+	 */
+	long[] toArray() {
+		long[] result = new long[this.size];
+		int count = 0;
+		if (this.containsZero) {
+			count++;
+		}
+		for (long digest : this.table) {
+			if (digest != 0) {
+				result[count++] = digest;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of bytes of the table.
+	 */
+	long getBytes() {
+		return (long) this.table.length * 8;
+	}
+
+	DigestSet copy() {
+		return new DigestSet(this.table.clone(), this.size, this.containsZero);
+	}
+
+	/**
+	 * Returns the number of bytes of the table of a set holding the specified
+	 * number of digests.
+	 */
+	static long getBytes(int count) {
+		return (long) tableLength(count) * 8;
+	}
+
+	/**
+	 * Returns the length of the table holding the specified number of
+	 * digests, the smallest power of two which is at least twice this number.
+	 */
+	private static int tableLength(int count) {
+		int length = MIN_TABLE_LENGTH;
+		while (length < 2L * count && length < 1 << 30) {
+			length <<= 1;
+		}
+		return length;
+	}
+
+	private void resize() {
+		long[] old = this.table;
+		this.table = new long[old.length * 2];
+		int mask = this.table.length - 1;
+		for (long digest : old) {
+			if (digest != 0) {
+				int i = index(digest, mask);
+				while (this.table[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				this.table[i] = digest;
+			}
+		}
+	}
+
+	private static int index(long digest, int mask) {
+		return (int) BloomFilterUtil.mix(digest) & mask;
+	}
+
+}
@@ -0,0 +1,486 @@
+package com.elaunira.sbf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A sliced Bloom filter stored in a file, for filters larger than the
+ * memory. The bits are split into pages of 4 KB and each page is split into
+ * as many slices as hash functions: an element is mapped to one page, then
+ * to one bit of each slice of this page. Checking or adding an element thus
+ * costs a single page access.
+ * <p>
+ * The pages are accessed through a bounded {@link PageCache} evicting the
+ * pages with the CLOCK algorithm, whose frames may be allocated off-heap. The
+ * pages modified are written back when they are evicted or when
+ * {@link #flush()} is called, all the dirty pages being written at once in
+ * the order of the file. {@link #containsDigests(long[], int, boolean[])}
+ * reads the pages missing from the cache ahead of the lookups, in parallel
+ * when an executor is given.
+ * <p>
+ * Since an element is confined to one page, the pages are filled unevenly.
+ * With about 2300 elements per page at 14 bits per element, the deviation is
+ * about 2% and the false positive probability stays close to the one of a
+ * {@link SlicedBloomFilter} of the same size.
+ * <p>
+ * The file starts with a header page holding the parameters of the filter
+ * and the number of elements, written by {@link #flush()}. An existing file
+ * is reopened if it has been created with the same parameters.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class DiskBloomFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// changed when the bits of the pages are laid out differently
+	private static final int MAGIC = 0x53424651;
+
+	static final int PAGE_SIZE = 4096;
+
+	static final int PAGE_BITS = PAGE_SIZE * 8;
+
+	// the offset of a word in a page
+	private static final int WORD_SHIFT = 3;
+
+	private final int slicesCount;
+
+	// the number of bits of a slice in a page
+	private final int bitsPerSlice;
+
+	private final int pagesCount;
+
+	private final transient RandomAccessFile file;
+
+	private final transient FileChannel channel;
+
+	private final transient PageCache cache;
+
+	// the executor reading the pages ahead of batch lookups (optional)
+	private final transient ExecutorService readAhead;
+
+	private int count;
+
+	/**
+	 * Creates a filter stored in the specified file, or opens it if it
+	 * exists, with a cache of {@code cachePages} pages in the heap.
+	 *
+	 * @param file
+	 *            the file storing the filter.
+	 *
+	 * @param capacity
+	 *            the maximum number of elements the Bloom filter can contain
+	 *            without to transcend the {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 *
+	 * @param cachePages
+	 *            the number of pages of the cache.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public DiskBloomFilter(File file, int capacity, double falsePositiveProbability, int cachePages) throws IOException {
+		this(file, capacity, falsePositiveProbability, cachePages, false, null);
+	}
+
+	/**
+	 * Creates a filter stored in the specified file, or opens it if it
+	 * exists.
+	 *
+	 * @param file
+	 *            the file storing the filter.
+	 *
+	 * @param capacity
+	 *            the maximum number of elements the Bloom filter can contain
+	 *            without to transcend the {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 *
+	 * @param cachePages
+	 *            the number of pages of the cache.
+	 *
+	 * @param offHeap
+	 *            whether the pages of the cache are allocated off-heap.
+	 *
+	 * @param readAhead
+	 *            the executor reading the pages of batch lookups in parallel,
+	 *            {@code null} to read them from the calling thread.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the file exists and has been created with other
+	 *             parameters.
+	 */
+	public DiskBloomFilter(File file, int capacity, double falsePositiveProbability,
+			int cachePages, boolean offHeap, ExecutorService readAhead) throws IOException {
+		super(capacity, falsePositiveProbability);
+
+		this.slicesCount =
+			BloomFilterUtil.computeSlicesCount(capacity, falsePositiveProbability);
+		if (this.slicesCount > PAGE_BITS / 64) {
+			throw new IllegalArgumentException(
+					"false positive probability too low: " + falsePositiveProbability);
+		}
+		this.bitsPerSlice = PAGE_BITS / this.slicesCount;
+
+		long bitsCount = (long) this.slicesCount
+			* BloomFilterUtil.computeBitsPerSlice(capacity, falsePositiveProbability, this.slicesCount);
+		long pageCapacity = (long) this.slicesCount * this.bitsPerSlice;
+		this.pagesCount = (int) ((bitsCount + pageCapacity - 1) / pageCapacity);
+
+		boolean exists = file.exists() && file.length() > 0;
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.readAhead = readAhead;
+
+		try {
+			if (exists) {
+				this.readHeader();
+			} else {
+				// the pages are zeros, the file may be sparse
+				this.file.setLength((long) (this.pagesCount + 1) * PAGE_SIZE);
+				this.writeHeader();
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		} catch (IllegalArgumentException e) {
+			this.file.close();
+			throw e;
+		}
+
+		this.cache = new PageCache(this.channel, PAGE_SIZE, PAGE_SIZE, cachePages, offHeap);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized boolean addDigest(long digest) {
+		ByteBuffer page = this.fetch(digest);
+
+		int offset = 0;
+		long hash = hash(digest);
+		long step = BloomFilterUtil.getProbeStep(hash);
+		boolean contained = true;
+		for (int i = 0; i < this.slicesCount; i++) {
+			int bit = offset + BloomFilterUtil.reduce(hash, this.bitsPerSlice);
+			int index = (bit >>> 6) << WORD_SHIFT;
+			long word = page.getLong(index);
+			long mask = 1L << bit;
+			if ((word & mask) == 0) {
+				page.putLong(index, word | mask);
+				contained = false;
+			}
+			offset += this.bitsPerSlice;
+			hash += step;
+			step += i + 1;
+		}
+
+		if (!contained) {
+			this.cache.markDirty(this.getPage(digest));
+			this.count++;
+		}
+		return contained;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized boolean containsDigest(long digest) {
+		return this.test(this.fetch(digest), digest);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The pages missing from the cache are read first, in parallel if an
+	 * executor has been given, then the digests are checked.
+	 */
+	public void containsDigests(long[] digests, int count, boolean[] results) {
+		// the digests are checked by groups whose pages fit in the cache
+		int group = Math.max(1, this.cache.getCapacity() / 2);
+		for (int from = 0; from < count; from += group) {
+			int to = Math.min(count, from + group);
+			this.prefetch(digests, from, to);
+
+			synchronized (this) {
+				for (int i = from; i < to; i++) {
+					results[i] = this.test(this.fetch(digests[i]), digests[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the pages of the specified digests which are not cached.
+	 */
+	private void prefetch(long[] digests, int from, int to) {
+		int[] missing = new int[to - from];
+		int missingCount = 0;
+		long writes;
+		long generation;
+
+		synchronized (this) {
+			for (int i = from; i < to; i++) {
+				int page = this.getPage(digests[i]);
+				if (!this.cache.contains(page)) {
+					missing[missingCount++] = page;
+				}
+			}
+			writes = this.cache.getWritesCount();
+			generation = this.cache.getGeneration();
+		}
+		if (missingCount == 0) {
+			return;
+		}
+
+		// reads the pages once, in the order of the file
+		Arrays.sort(missing, 0, missingCount);
+		int unique = 0;
+		for (int i = 0; i < missingCount; i++) {
+			if (unique == 0 || missing[unique - 1] != missing[i]) {
+				missing[unique++] = missing[i];
+			}
+		}
+
+		ByteBuffer[] data = new ByteBuffer[unique];
+		try {
+			if (this.readAhead == null || unique == 1) {
+				for (int i = 0; i < unique; i++) {
+					data[i] = this.cache.read(missing[i]);
+				}
+			} else {
+				List<Future<ByteBuffer>> futures = new ArrayList<Future<ByteBuffer>>(unique);
+				for (int i = 0; i < unique; i++) {
+					final int page = missing[i];
+					futures.add(this.readAhead.submit(new Callable<ByteBuffer>() {
+						public ByteBuffer call() throws IOException {
+							return DiskBloomFilter.this.cache.read(page);
+						}
+					}));
+				}
+				for (int i = 0; i < unique; i++) {
+					data[i] = futures.get(i).get();
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read pages", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("cannot read pages", e.getCause());
+		}
+
+		synchronized (this) {
+			// a page written back meanwhile may have been read before
+			// being written, and the pages read before a clear are stale,
+			// the pages are then read again on demand
+			if (this.cache.getWritesCount() != writes
+					|| this.cache.getGeneration() != generation) {
+				return;
+			}
+			try {
+				for (int i = 0; i < unique; i++) {
+					this.cache.put(missing[i], data[i]);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot write pages", e);
+			}
+		}
+	}
+
+	private boolean test(ByteBuffer page, long digest) {
+		int offset = 0;
+		long hash = hash(digest);
+		long step = BloomFilterUtil.getProbeStep(hash);
+		for (int i = 0; i < this.slicesCount; i++) {
+			int bit = offset + BloomFilterUtil.reduce(hash, this.bitsPerSlice);
+			if ((page.getLong((bit >>> 6) << WORD_SHIFT) & (1L << bit)) == 0) {
+				return false;
+			}
+			offset += this.bitsPerSlice;
+			hash += step;
+			step += i + 1;
+		}
+		return true;
+	}
+
+	private static long hash(long digest) {
+		// the seed makes the bits probed in the page independent from the
+		// mixed digest used to route the elements to the shards of a
+		// ShardedBloomFilter
+		return BloomFilterUtil.mix(digest + 0xc2b2ae3d27d4eb4fL);
+	}
+
+	/**
+	 * Returns the page of the element identified by the specified digest.
+	 */
+	private int getPage(long digest) {
+		// the bits probed in the page are derived from the seeded
+		// mix of the digest, the page from the digest itself
+		return BloomFilterUtil.reduce(digest, this.pagesCount);
+	}
+
+	private ByteBuffer fetch(long digest) {
+		try {
+			return this.cache.get(this.getPage(digest));
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read page", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized void clear() {
+		this.cache.invalidate();
+		try {
+			this.file.setLength(PAGE_SIZE);
+			this.file.setLength((long) (this.pagesCount + 1) * PAGE_SIZE);
+			this.count = 0;
+			this.writeHeader();
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot clear file", e);
+		}
+	}
+
+	/**
+	 * Writes the modified pages and the number of elements to the file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		this.cache.flush();
+		this.writeHeader();
+		this.channel.force(false);
+	}
+
+	/**
+	 * Flushes the filter and closes its file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			this.flush();
+		} finally {
+			this.file.close();
+		}
+	}
+
+	/**
+	 * Returns the number of pages of the filter.
+	 *
+	 * @return the number of pages of the filter.
+	 */
+	public int getPagesCount() {
+		return this.pagesCount;
+	}
+
+	/**
+	 * Returns the number of accesses to a page which was cached.
+	 *
+	 * @return the number of accesses to a page which was cached.
+	 */
+	public synchronized long getCacheHitsCount() {
+		return this.cache.getHitsCount();
+	}
+
+	/**
+	 * Returns the number of pages read from the file.
+	 *
+	 * @return the number of pages read from the file.
+	 */
+	public synchronized long getPageReadsCount() {
+		return this.cache.getReadsCount();
+	}
+
+	/**
+	 * Returns the number of pages written to the file.
+	 *
+	 * @return the number of pages written to the file.
+	 */
+	public synchronized long getPageWritesCount() {
+		return this.cache.getWritesCount();
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(32);
+		this.channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < 32 || header.getInt() != MAGIC) {
+			throw new IOException("not a filter file");
+		}
+
+		int capacity = header.getInt();
+		double falsePositiveProbability = header.getDouble();
+		int pagesCount = header.getInt();
+		if (capacity != super.capacity
+				|| falsePositiveProbability != super.falsePositiveProbability
+				|| pagesCount != this.pagesCount) {
+			throw new IllegalArgumentException(
+					"file created with capacity " + capacity
+					+ " and false positive probability " + falsePositiveProbability);
+		}
+		this.count = header.getInt();
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(32);
+		header.putInt(MAGIC);
+		header.putInt(super.capacity);
+		header.putDouble(super.falsePositiveProbability);
+		header.putInt(this.pagesCount);
+		header.putInt(this.count);
+		header.clear();
+		while (header.hasRemaining()) {
+			this.channel.write(header, header.position());
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// the file is the serialized form of the filter
+		throw new NotSerializableException(DiskBloomFilter.class.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() +
+			"[slicesCount=" + this.slicesCount + ", pagesCount=" + this.pagesCount + "]";
+	}
+
+}
@@ -0,0 +1,766 @@
+package com.elaunira.sbf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes a {@link SlicedBloomFilter} or a {@link ScalableBloomFilter} durable
+ * with a write-ahead log.
+ * <p>
+ * The digests of the elements added are appended to a log in a directory,
+ * including the ones of the elements already contained, since adding them
+ * again may still change the filter (a {@link ScalableBloomFilter} evicting
+ * its oldest filters adds them to its last filter).
+ * They are written and synced to the disk by a background thread every
+ * {@code syncInterval} milliseconds, all the digests added during an interval
+ * being written at once (group commit). A crash thus loses at most the
+ * elements added during the last interval, while an addition never waits for
+ * the disk. {@link #sync()} makes the elements added so far durable
+ * immediately.
+ * <p>
+ * When the log exceeds a threshold (see
+ * {@link #setCheckpointThreshold(long)}), a checkpoint is written: a copy of
+ * the filter is serialized into a new file of the directory, named after the
+ * first segment of the log written after the copy. Once this file and the
+ * directory are synced, the previous checkpoints and the log written before
+ * the copy are deleted, thus a crash at any time leaves a valid checkpoint
+ * and the log following it. {@link #open(File, BloomFilter, long)} loads the
+ * newest valid checkpoint and replays the log written after it. A record
+ * partially written by a crash is detected by its checksum and dropped.
+ * <p>
+ * This class is thread-safe, the filter must only be used through it. It is
+ * not serializable, its checkpoints being its serialized form.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class DurableFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger logger = LoggerFactory.getLogger(DurableFilter.class);
+
+	private static final int MAGIC = 0x53424643;
+
+	private static final String CHECKPOINT_PREFIX = "checkpoint-";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final String SEGMENT_PREFIX = "wal-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	// the default size of the log above which a checkpoint is written
+	private static final long DEFAULT_CHECKPOINT_THRESHOLD = 64L << 20;
+
+	// the number of pending digests from which they are written
+	// without waiting for the end of the interval
+	private static final int MAX_PENDING = 1 << 16;
+
+	private final BloomFilter<E> filter;
+
+	private final File directory;
+
+	// the maximum time between two syncs, in milliseconds
+	private final long syncInterval;
+
+	// guards the filter and the pending digests
+	private final transient Object lock = new Object();
+
+	// guards the log files
+	private final transient Object io = new Object();
+
+	// the digests added but not written yet, and the array to swap them with
+	private transient long[] pending = new long[1024];
+
+	private transient int pendingCount;
+
+	private transient long[] spare = new long[1024];
+
+	private transient int spareCount;
+
+	// the number of the segment of the log being written
+	private transient long segment;
+
+	private transient FileChannel channel;
+
+	// the number of bytes written to the log since the last checkpoint
+	private transient long logSize;
+
+	private volatile long checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+
+	private transient Thread syncer;
+
+	private volatile boolean running;
+
+	// the error which stopped the log, if any
+	private volatile IOException failure;
+
+	private volatile long syncs;
+
+	private volatile long checkpoints;
+
+	private DurableFilter(File directory, BloomFilter<E> filter, long segment, long syncInterval) throws IOException {
+		super(filter.capacity, filter.falsePositiveProbability);
+
+		this.directory = directory;
+		this.filter = filter;
+		this.syncInterval = syncInterval;
+		this.segment = segment;
+		this.channel = openSegment(directory, segment);
+		this.logSize = this.channel.size();
+
+		this.running = true;
+		this.syncer = new Thread("durable-filter-" + directory.getName()) {
+			public void run() {
+				DurableFilter.this.syncLoop();
+			}
+		};
+		this.syncer.setDaemon(true);
+		this.syncer.start();
+	}
+
+	/**
+	 * Opens the durable filter stored in the specified directory. When the
+	 * directory contains a checkpoint, the filter is loaded from it, otherwise
+	 * {@code empty} is used. The log written after the checkpoint is then
+	 * replayed.
+	 *
+	 * @param directory
+	 *            the directory of the checkpoint and of the log, created if
+	 *            it does not exist.
+	 *
+	 * @param empty
+	 *            the filter to use when there is no checkpoint, either a
+	 *            {@link SlicedBloomFilter} or a {@link ScalableBloomFilter}.
+	 *
+	 * @param syncInterval
+	 *            the maximum time in milliseconds between the addition of an
+	 *            element and its write to the disk.
+	 *
+	 * @return the filter recovered.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be read or written, or if none of
+	 *             its checkpoints can be read.
+	 */
+	public static <E> DurableFilter<E> open(File directory, BloomFilter<E> empty, long syncInterval) throws IOException {
+		checkSupported(empty);
+		if (syncInterval <= 0) {
+			throw new IllegalArgumentException("sync interval must be strict positive");
+		}
+
+		directory.mkdirs();
+		if (!directory.isDirectory()) {
+			throw new IOException("not a directory: " + directory);
+		}
+
+		BloomFilter<E> filter = empty;
+		long first = 0;
+
+		// the newest checkpoint which can be read, the files left by a
+		// checkpoint interrupted by a crash are ignored
+		long[] checkpoints = listFiles(directory, CHECKPOINT_PREFIX, "");
+		boolean loaded = false;
+		int invalid = checkpoints.length;
+		for (int i = checkpoints.length - 1; i >= 0 && !loaded; i--) {
+			File checkpoint = checkpointFile(directory, checkpoints[i]);
+			try {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(checkpoint)));
+				try {
+					if (in.readInt() != MAGIC) {
+						throw new IOException("not a checkpoint: " + checkpoint);
+					}
+					first = in.readLong();
+					filter = readFilter(in);
+				} finally {
+					in.close();
+				}
+				loaded = true;
+			} catch (IOException e) {
+				logger.warn("ignoring the checkpoint " + checkpoint, e);
+				filter = empty;
+				first = 0;
+				invalid = i;
+			}
+		}
+		if (checkpoints.length > 0 && !loaded) {
+			// the log written before the checkpoints has been deleted
+			throw new IOException("no valid checkpoint in " + directory);
+		}
+		for (int i = invalid; i < checkpoints.length; i++) {
+			delete(checkpointFile(directory, checkpoints[i]));
+		}
+		for (long c : listFiles(directory, CHECKPOINT_PREFIX, TMP_SUFFIX)) {
+			delete(new File(directory, CHECKPOINT_PREFIX + c + TMP_SUFFIX));
+		}
+
+		long[] segments = listSegments(directory);
+		long next = first;
+		boolean truncated = false;
+		long replayed = 0;
+		for (long s : segments) {
+			File file = segmentFile(directory, s);
+			if (s < first || truncated) {
+				// written before the checkpoint or after a torn record
+				delete(file);
+				continue;
+			}
+
+			long valid = replay(file, filter);
+			if (valid < file.length()) {
+				logger.warn("dropping the torn end of " + file + " from offset " + valid);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(valid);
+				} finally {
+					raf.close();
+				}
+				truncated = true;
+			}
+			replayed += valid;
+			next = s + 1;
+		}
+
+		logger.debug("recovered " + directory + " (" + replayed + " bytes of log replayed)");
+
+		return new DurableFilter<E>(directory, filter, next, syncInterval);
+	}
+
+	private static void checkSupported(BloomFilter<?> filter) {
+		if (!(filter instanceof SlicedBloomFilter<?>)
+				&& !(filter instanceof ScalableBloomFilter<?>)) {
+			throw new IllegalArgumentException(
+					"unsupported filter: " + filter.getClass().getName());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> BloomFilter<E> readFilter(DataInputStream in) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(in);
+		try {
+			BloomFilter<E> result = (BloomFilter<E>) ois.readObject();
+			checkSupported(result);
+			return result;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("cannot read checkpoint: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Adds the digests of the valid records of the specified segment to the
+	 * filter and returns the length of these records.
+	 */
+	private static long replay(File file, BloomFilter<?> filter) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		long valid = 0;
+		long[] digests = new long[1024];
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8];
+
+		try {
+			while (true) {
+				int count = in.readInt();
+				if (count <= 0 || count > (file.length() - valid) / 8) {
+					break;
+				}
+
+				if (digests.length < count) {
+					digests = new long[count];
+				}
+				crc.reset();
+				for (int i = 0; i < count; i++) {
+					in.readFully(buffer);
+					crc.update(buffer, 0, 8);
+					digests[i] = ByteBuffer.wrap(buffer).getLong();
+				}
+				if (in.readLong() != crc.getValue()) {
+					break;
+				}
+
+				for (int i = 0; i < count; i++) {
+					filter.addDigest(digests[i]);
+				}
+				valid += 4 + 8L * count + 8;
+			}
+		} catch (EOFException e) {
+			// torn record
+		} finally {
+			in.close();
+		}
+
+		return valid;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean addDigest(long digest) {
+		this.checkRunning();
+
+		synchronized (this.lock) {
+			boolean contained = this.filter.addDigest(digest);
+
+			if (this.pendingCount == this.pending.length) {
+				this.pending = Arrays.copyOf(this.pending, this.pending.length * 2);
+			}
+			this.pending[this.pendingCount++] = digest;
+			if (this.pendingCount == MAX_PENDING) {
+				this.lock.notifyAll();
+			}
+			return contained;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		synchronized (this.lock) {
+			return this.filter.containsDigest(digest);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void containsDigests(long[] digests, int count, boolean[] results) {
+		synchronized (this.lock) {
+			this.filter.containsDigests(digests, count, results);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int size() {
+		synchronized (this.lock) {
+			return this.filter.size();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A checkpoint of the empty filter is written, the clearing is durable
+	 * once this method returns.
+	 */
+	public void clear() {
+		this.checkRunning();
+
+		synchronized (this.io) {
+			synchronized (this.lock) {
+				this.filter.clear();
+				this.pendingCount = 0;
+			}
+			try {
+				this.checkpoint();
+			} catch (IOException e) {
+				this.failure = e;
+				throw new IllegalStateException("cannot write checkpoint", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current false positive probability of the filter, estimated
+	 * from the bits it has set.
+	 *
+	 * @return the estimated false positive probability of the filter.
+	 */
+	public double getEstimatedFalsePositiveProbability() {
+		synchronized (this.lock) {
+			if (this.filter instanceof SlicedBloomFilter<?>) {
+				return ((SlicedBloomFilter<?>) this.filter).getEstimatedFalsePositiveProbability();
+			}
+			return ((ScalableBloomFilter<?>) this.filter).getEstimatedFalsePositiveProbability();
+		}
+	}
+
+	/**
+	 * Writes the digests added so far to the log and syncs it to the disk.
+	 *
+	 * @throws IOException
+	 *             if the log cannot be written.
+	 */
+	public void sync() throws IOException {
+		synchronized (this.io) {
+			this.checkOpen();
+			this.writePending();
+			this.channel.force(false);
+			this.syncs++;
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of the filter and deletes the log written before.
+	 * The filter is copied while holding its lock, then written without
+	 * blocking the additions.
+	 *
+	 * @throws IOException
+	 *             if the checkpoint cannot be written.
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (this.io) {
+			this.checkOpen();
+
+			BloomFilter<E> snapshot;
+			synchronized (this.lock) {
+				snapshot = copy(this.filter);
+				// the digests pending are in the copy, they are written to
+				// the segment closed in case the checkpoint fails
+				this.swapPending();
+			}
+			this.writeSwapped();
+			this.channel.force(false);
+			this.channel.close();
+
+			// the digests added from now are written to a new segment
+			this.segment++;
+			this.channel = openSegment(this.directory, this.segment);
+			this.logSize = 0;
+
+			File checkpoint = checkpointFile(this.directory, this.segment);
+			File tmp = new File(this.directory, checkpoint.getName() + TMP_SUFFIX);
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeLong(this.segment);
+				ObjectOutputStream oos = new ObjectOutputStream(out);
+				oos.writeObject(snapshot);
+				oos.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+
+			// the name is new, no checkpoint is replaced
+			if (!tmp.renameTo(checkpoint)) {
+				delete(tmp);
+				throw new IOException("cannot rename " + tmp + " to " + checkpoint);
+			}
+			syncDirectory(this.directory);
+
+			// the new checkpoint is durable, the files it makes
+			// useless may be deleted
+			for (long c : listFiles(this.directory, CHECKPOINT_PREFIX, "")) {
+				if (c < this.segment) {
+					delete(checkpointFile(this.directory, c));
+				}
+			}
+			for (long s : listSegments(this.directory)) {
+				if (s < this.segment) {
+					delete(segmentFile(this.directory, s));
+				}
+			}
+			this.checkpoints++;
+		}
+	}
+
+	/**
+	 * Sets the size of the log above which a checkpoint is written.
+	 *
+	 * @param bytes
+	 *            the size of the log in bytes.
+	 */
+	public void setCheckpointThreshold(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("threshold must be strict positive");
+		}
+		this.checkpointThreshold = bytes;
+	}
+
+	/**
+	 * Returns the number of bytes written to the log since the last
+	 * checkpoint.
+	 *
+	 * @return the number of bytes written to the log since the last
+	 *         checkpoint.
+	 */
+	public long getLogSize() {
+		synchronized (this.io) {
+			return this.logSize;
+		}
+	}
+
+	/**
+	 * Returns the number of times the log has been synced.
+	 *
+	 * @return the number of times the log has been synced.
+	 */
+	public long getSyncsCount() {
+		return this.syncs;
+	}
+
+	/**
+	 * Returns the number of checkpoints written.
+	 *
+	 * @return the number of checkpoints written.
+	 */
+	public long getCheckpointsCount() {
+		return this.checkpoints;
+	}
+
+	/**
+	 * Syncs the log and closes it. The filter cannot be modified anymore.
+	 *
+	 * @throws IOException
+	 *             if the log cannot be written.
+	 */
+	public void close() throws IOException {
+		if (!this.running) {
+			return;
+		}
+
+		this.running = false;
+		synchronized (this.lock) {
+			this.lock.notifyAll();
+		}
+		try {
+			this.syncer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this.io) {
+			try {
+				if (this.failure == null) {
+					this.writePending();
+					this.channel.force(false);
+				}
+			} finally {
+				this.channel.close();
+			}
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// the checkpoints are the serialized form of the filter
+		throw new NotSerializableException(DurableFilter.class.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> BloomFilter<E> copy(BloomFilter<E> filter) {
+		if (filter instanceof SlicedBloomFilter<?>) {
+			return ((SlicedBloomFilter<E>) filter).copy();
+		}
+		return ((ScalableBloomFilter<E>) filter).copy();
+	}
+
+	private void syncLoop() {
+		long deadline = System.currentTimeMillis() + this.syncInterval;
+		while (this.running) {
+			synchronized (this.lock) {
+				long now = System.currentTimeMillis();
+				while (this.running && this.pendingCount < MAX_PENDING && now < deadline) {
+					try {
+						this.lock.wait(deadline - now);
+					} catch (InterruptedException e) {
+						return;
+					}
+					now = System.currentTimeMillis();
+				}
+			}
+			deadline = System.currentTimeMillis() + this.syncInterval;
+
+			if (!this.running) {
+				break;
+			}
+
+			try {
+				this.sync();
+				if (this.getLogSize() >= this.checkpointThreshold) {
+					this.checkpoint();
+				}
+			} catch (IOException e) {
+				logger.error("write-ahead log of " + this.directory + " stopped", e);
+				this.failure = e;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Swaps the pending digests with the spare array, the caller holds both
+	 * locks.
+	 */
+	private void swapPending() {
+		long[] tmp = this.spare;
+		this.spare = this.pending;
+		this.pending = tmp;
+		this.spareCount = this.pendingCount;
+		this.pendingCount = 0;
+	}
+
+	private void writePending() throws IOException {
+		synchronized (this.lock) {
+			this.swapPending();
+		}
+		this.writeSwapped();
+	}
+
+	/**
+	 * Writes the digests swapped to the spare array as a record made of their
+	 * count, the digests and their checksum.
+	 */
+	private void writeSwapped() throws IOException {
+		int count = this.spareCount;
+		if (count == 0) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * count + 8);
+		buffer.putInt(count);
+		for (int i = 0; i < count; i++) {
+			buffer.putLong(this.spare[i]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, 8 * count);
+		buffer.putLong(crc.getValue());
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+		this.logSize += buffer.limit();
+		this.spareCount = 0;
+	}
+
+	private void checkRunning() {
+		if (!this.running) {
+			throw new IllegalStateException("filter closed");
+		}
+		if (this.failure != null) {
+			throw new IllegalStateException("write-ahead log failed", this.failure);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (this.failure != null) {
+			throw new IOException("write-ahead log failed: " + this.failure.getMessage());
+		}
+		if (!this.channel.isOpen()) {
+			throw new IOException("filter closed");
+		}
+	}
+
+	private static FileChannel openSegment(File directory, long segment) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segmentFile(directory, segment), "rw");
+		FileChannel result = raf.getChannel();
+		result.position(result.size());
+		return result;
+	}
+
+	private static File segmentFile(File directory, long segment) {
+		return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+
+	private static File checkpointFile(File directory, long segment) {
+		return new File(directory, CHECKPOINT_PREFIX + segment);
+	}
+
+	/**
+	 * Returns the numbers of the segments of the specified directory, sorted.
+	 */
+	private static long[] listSegments(File directory) throws IOException {
+		return listFiles(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Returns the numbers of the files of the specified directory named by a
+	 * number between {@code prefix} and {@code suffix}, sorted.
+	 */
+	private static long[] listFiles(File directory, String prefix, String suffix) throws IOException {
+		String[] names = directory.list();
+		if (names == null) {
+			throw new IOException("cannot list " + directory);
+		}
+
+		long[] result = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(prefix) && name.endsWith(suffix)) {
+				try {
+					result[count++] = Long.parseLong(name.substring(
+							prefix.length(), name.length() - suffix.length()));
+				} catch (NumberFormatException e) {
+					count--;
+				}
+			}
+		}
+
+		result = Arrays.copyOf(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Syncs the entries of the specified directory, so that the files
+	 * renamed are durable. Java 6 cannot open a directory, the directory is
+	 * thus opened through the NIO.2 API when the runtime provides it. Nothing
+	 * is done when the platform cannot open a directory.
+	 */
+	private static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+			Object options = Array.newInstance(optionClass, 1);
+			Array.set(options, 0, Class.forName(
+					"java.nio.file.StandardOpenOption").getField("READ").get(null));
+			Method open = FileChannel.class.getMethod(
+					"open", Class.forName("java.nio.file.Path"), options.getClass());
+			channel = (FileChannel) open.invoke(
+					null, File.class.getMethod("toPath").invoke(directory), options);
+		} catch (ClassNotFoundException e) {
+			return;
+		} catch (NoSuchMethodException e) {
+			return;
+		} catch (NoSuchFieldException e) {
+			return;
+		} catch (IllegalAccessException e) {
+			return;
+		} catch (InvocationTargetException e) {
+			// e.g. the directories cannot be opened on Windows
+			logger.debug("cannot open " + directory + " to sync it", e.getCause());
+			return;
+		}
+
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void delete(File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("cannot delete " + file);
+		}
+	}
+
+}
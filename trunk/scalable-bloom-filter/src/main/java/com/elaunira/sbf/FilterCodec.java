@@ -0,0 +1,540 @@
+package com.elaunira.sbf;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact binary format to ship {@link SlicedBloomFilter}s between nodes.
+ * The bits of a filter are encoded with the scheme which gives the smallest
+ * output for their density:
+ * <ul>
+ * <li>{@link Encoding#RICE}: the gaps between the set bits, Golomb-Rice
+ * coded. Best for sparse filters.</li>
+ * <li>{@link Encoding#CONTAINERS}: the bits are split into chunks of 65536
+ * bits, each one stored as the list of its set bits, the list of its unset
+ * bits or a bitmap, whichever is the smallest (like a Roaring bitmap). Best
+ * when the density varies between the chunks.</li>
+ * <li>{@link Encoding#RAW}: the words of the bit array. Best for dense
+ * filters.</li>
+ * </ul>
+ * The bits are encoded while the bit array is scanned and decoded straight
+ * into the bit array of the new filter, without any intermediate buffer.
+ * <p>
+ * The format is {@code magic (int), version (byte), capacity (int),
+ * falsePositiveProbability (double), size (int), bitsCount (long),
+ * encoding (byte)} followed by the encoded bits.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public final class FilterCodec {
+
+	private static final int MAGIC = 0x53424631;
+
+	private static final byte VERSION = 1;
+
+	// the number of bits of a container
+	private static final int CHUNK_BITS = 1 << 16;
+
+	private static final int CHUNK_WORDS = CHUNK_BITS / 64;
+
+	// the types of container
+	private static final byte ARRAY = 0;
+
+	private static final byte BITMAP = 1;
+
+	private static final byte INVERTED = 2;
+
+	/**
+	 * The schemes used to encode the bits of a filter.
+	 */
+	public enum Encoding {
+		// the words of the bit array
+		RAW,
+		// the Golomb-Rice coded gaps between the set bits
+		RICE,
+		// the chunks of bits as arrays, inverted arrays or bitmaps
+		CONTAINERS
+	}
+
+	private FilterCodec() {
+
+	}
+
+	/**
+	 * Writes the specified filter with the most compact encoding.
+	 *
+	 * @param bf
+	 *            the filter to write.
+	 *
+	 * @param out
+	 *            the output to write to.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static void write(SlicedBloomFilter<?> bf, DataOutput out) throws IOException {
+		write(bf, out, chooseEncoding(bf));
+	}
+
+	/**
+	 * Writes the specified filter with the specified encoding.
+	 *
+	 * @param bf
+	 *            the filter to write.
+	 *
+	 * @param out
+	 *            the output to write to.
+	 *
+	 * @param encoding
+	 *            the encoding of the bits.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static void write(SlicedBloomFilter<?> bf, DataOutput out, Encoding encoding) throws IOException {
+		BitArray bits = bf.getBits();
+
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(bf.getCapacity());
+		out.writeDouble(bf.getFalsePositiveProbability());
+		out.writeInt(bf.size());
+		out.writeLong(bits.bitsCount());
+		out.writeByte(encoding.ordinal());
+
+		switch (encoding) {
+			case RAW:
+				for (long word : bits.words()) {
+					out.writeLong(word);
+				}
+				break;
+			case RICE:
+				writeRice(bits, out);
+				break;
+			case CONTAINERS:
+				writeContainers(bits, out);
+				break;
+		}
+	}
+
+	/**
+	 * Reads a filter written by {@link #write(SlicedBloomFilter, DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from.
+	 *
+	 * @return the filter read.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs or if the input is not a filter.
+	 */
+	public static <E> SlicedBloomFilter<E> read(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a filter");
+		}
+
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("unsupported version: " + version);
+		}
+
+		int capacity = in.readInt();
+		double falsePositiveProbability = in.readDouble();
+		int size = in.readInt();
+		long bitsCount = in.readLong();
+		int encoding = in.readByte();
+		if (encoding < 0 || encoding >= Encoding.values().length) {
+			throw new IOException("unknown encoding: " + encoding);
+		}
+
+		BitArray bits = new BitArray(bitsCount);
+		switch (Encoding.values()[encoding]) {
+			case RAW:
+				long[] words = bits.words();
+				for (int i = 0; i < words.length; i++) {
+					words[i] = in.readLong();
+				}
+				break;
+			case RICE:
+				readRice(bits, in);
+				break;
+			case CONTAINERS:
+				readContainers(bits, in);
+				break;
+		}
+
+		try {
+			return new SlicedBloomFilter<E>(capacity, falsePositiveProbability, bits, size);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("inconsistent filter: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the encoding giving the smallest output for the bits of the
+	 * specified filter. The size of each encoding is estimated from the number
+	 * of bits set in each chunk.
+	 *
+	 * @param bf
+	 *            the filter to encode.
+	 *
+	 * @return the most compact encoding.
+	 */
+	public static Encoding chooseEncoding(SlicedBloomFilter<?> bf) {
+		long[] sizes = estimateBits(bf);
+		long raw = sizes[Encoding.RAW.ordinal()];
+		long rice = sizes[Encoding.RICE.ordinal()];
+		long containers = sizes[Encoding.CONTAINERS.ordinal()];
+
+		if (rice <= containers && rice <= raw) {
+			return Encoding.RICE;
+		}
+		return containers < raw ? Encoding.CONTAINERS : Encoding.RAW;
+	}
+
+	/**
+	 * Returns the estimated number of bytes written by
+	 * {@link #write(SlicedBloomFilter, DataOutput)} for the specified filter.
+	 */
+	static long estimateSize(SlicedBloomFilter<?> bf) {
+		long[] sizes = estimateBits(bf);
+		long min = Math.min(sizes[0], Math.min(sizes[1], sizes[2]));
+		// the header takes 30 bytes
+		return 30 + (min + 7) / 8;
+	}
+
+	/**
+	 * Returns the estimated number of bits written for the specified filter
+	 * for each encoding, indexed by their ordinal.
+	 */
+	private static long[] estimateBits(SlicedBloomFilter<?> bf) {
+		BitArray bits = bf.getBits();
+		long[] words = bits.words();
+
+		long raw = (long) words.length * 64;
+
+		long cardinality = 0;
+		long containers = 0;
+		for (int from = 0; from < words.length; from += CHUNK_WORDS) {
+			int to = Math.min(words.length, from + CHUNK_WORDS);
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				count += Long.bitCount(words[i]);
+			}
+			cardinality += count;
+			containers += 8 + 16 + containerBits(count, (to - from) * 64);
+		}
+
+		long rice = 0;
+		if (cardinality > 0) {
+			rice = 128 + (long) riceBits(bits.bitsCount(), cardinality, 
+					riceParameter(bits.bitsCount(), cardinality));
+		}
+
+		long[] result = new long[Encoding.values().length];
+		result[Encoding.RAW.ordinal()] = raw;
+		result[Encoding.RICE.ordinal()] = rice;
+		result[Encoding.CONTAINERS.ordinal()] = containers;
+		return result;
+	}
+
+	private static long containerBits(int count, int chunkBits) {
+		return Math.min((long) count * 16,
+				Math.min(chunkBits, (long) (chunkBits - count) * 16));
+	}
+
+	/**
+	 * Returns the parameter giving the shortest Rice coding of the gaps
+	 * between {@code cardinality} random bits set among {@code bitsCount}.
+	 */
+	private static int riceParameter(long bitsCount, long cardinality) {
+		// the optimal parameter is about log2(mean gap * ln(2))
+		double mean = (double) bitsCount / cardinality;
+		int guess = Math.max(0, (int) Math.floor(Math.log(mean * Math.log(2)) / Math.log(2)));
+
+		int result = guess;
+		for (int k = Math.max(0, guess - 1); k <= Math.min(62, guess + 1); k++) {
+			if (riceBits(bitsCount, cardinality, k) < riceBits(bitsCount, cardinality, result)) {
+				result = k;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the expected number of bits of the Rice coding of the gaps
+	 * between {@code cardinality} random bits set among {@code bitsCount}
+	 * with the parameter {@code k}. The gaps follow a geometric distribution,
+	 * the expected quotient {@code gap / 2^k} is {@code q / (1 - q)} where
+	 * {@code q} is the probability that {@code 2^k} consecutive bits are
+	 * unset.
+	 */
+	private static double riceBits(long bitsCount, long cardinality, int k) {
+		double p = Math.min(1, (double) cardinality / bitsCount);
+		double q = Math.pow(1 - p, Math.pow(2, k));
+		double quotient = q >= 1 ? bitsCount : q / (1 - q);
+		// the remainder, the stop bit and the unary quotient
+		return cardinality * (k + 1 + quotient);
+	}
+
+	private static void writeRice(BitArray bits, DataOutput out) throws IOException {
+		long[] words = bits.words();
+		long cardinality = bits.cardinality();
+		out.writeLong(cardinality);
+		if (cardinality == 0) {
+			return;
+		}
+
+		int k = riceParameter(bits.bitsCount(), cardinality);
+		out.writeByte(k);
+
+		BitOutput output = new BitOutput(out);
+		long previous = -1;
+		for (int i = 0; i < words.length; i++) {
+			long word = words[i];
+			while (word != 0) {
+				long position = ((long) i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+
+				long gap = position - previous - 1;
+				output.writeUnary(gap >>> k);
+				output.write(gap, k);
+				previous = position;
+			}
+		}
+		output.flush();
+	}
+
+	private static void readRice(BitArray bits, DataInput in) throws IOException {
+		long cardinality = in.readLong();
+		if (cardinality == 0) {
+			return;
+		}
+
+		int k = in.readByte();
+		BitInput input = new BitInput(in);
+		long position = -1;
+		for (long n = 0; n < cardinality; n++) {
+			long gap = (input.readUnary() << k) | input.read(k);
+			position += gap + 1;
+			if (position >= bits.bitsCount()) {
+				throw new IOException("bit index out of range: " + position);
+			}
+			bits.set(position);
+		}
+	}
+
+	private static void writeContainers(BitArray bits, DataOutput out) throws IOException {
+		long[] words = bits.words();
+		for (int from = 0; from < words.length; from += CHUNK_WORDS) {
+			int to = Math.min(words.length, from + CHUNK_WORDS);
+			int chunkBits = (int) Math.min(CHUNK_BITS, bits.bitsCount() - ((long) from << 6));
+
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				count += Long.bitCount(words[i]);
+			}
+
+			long size = containerBits(count, chunkBits);
+			if (size == (long) count * 16) {
+				out.writeByte(ARRAY);
+				out.writeShort(count);
+				writePositions(words, from, to, chunkBits, false, out);
+			} else if (size == (long) (chunkBits - count) * 16) {
+				out.writeByte(INVERTED);
+				out.writeShort(chunkBits - count);
+				writePositions(words, from, to, chunkBits, true, out);
+			} else {
+				out.writeByte(BITMAP);
+				for (int i = from; i < to; i++) {
+					out.writeLong(words[i]);
+				}
+			}
+		}
+	}
+
+	private static void writePositions(long[] words, int from, int to, int chunkBits,
+			boolean inverted, DataOutput out) throws IOException {
+		for (int i = from; i < to; i++) {
+			long word = inverted ? ~words[i] : words[i];
+			int base = (i - from) << 6;
+			if (inverted && base + 64 > chunkBits) {
+				// ignores the bits beyond the end of the array
+				word &= -1L >>> (base + 64 - chunkBits);
+			}
+			while (word != 0) {
+				out.writeShort(base + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+	}
+
+	private static void readContainers(BitArray bits, DataInput in) throws IOException {
+		long[] words = bits.words();
+		for (int from = 0; from < words.length; from += CHUNK_WORDS) {
+			int to = Math.min(words.length, from + CHUNK_WORDS);
+			int chunkBits = (int) Math.min(CHUNK_BITS, bits.bitsCount() - ((long) from << 6));
+
+			byte type = in.readByte();
+			switch (type) {
+				case ARRAY: {
+					int count = in.readUnsignedShort();
+					for (int n = 0; n < count; n++) {
+						int position = readPosition(in, chunkBits);
+						words[from + (position >>> 6)] |= 1L << position;
+					}
+					break;
+				}
+				case INVERTED: {
+					for (int i = from; i < to; i++) {
+						words[i] = -1L;
+					}
+					int tail = chunkBits & 63;
+					if (tail != 0) {
+						words[to - 1] = -1L >>> (64 - tail);
+					}
+
+					int count = in.readUnsignedShort();
+					for (int n = 0; n < count; n++) {
+						int position = readPosition(in, chunkBits);
+						words[from + (position >>> 6)] &= ~(1L << position);
+					}
+					break;
+				}
+				case BITMAP:
+					for (int i = from; i < to; i++) {
+						words[i] = in.readLong();
+					}
+					break;
+				default:
+					throw new IOException("unknown container: " + type);
+			}
+		}
+	}
+
+	private static int readPosition(DataInput in, int chunkBits) throws IOException {
+		int position = in.readUnsignedShort();
+		if (position >= chunkBits) {
+			throw new IOException("bit index out of range: " + position);
+		}
+		return position;
+	}
+
+	/**
+	 * Writes values of up to 63 bits, from the most significant bit.
+	 */
+	private static final class BitOutput {
+
+		private final DataOutput out;
+
+		private long buffer;
+
+		// the number of bits of the buffer used
+		private int count;
+
+		BitOutput(DataOutput out) {
+			this.out = out;
+		}
+
+		void write(long value, int bits) throws IOException {
+			if (bits == 0) {
+				return;
+			}
+
+			value &= -1L >>> (64 - bits);
+			int free = 64 - this.count;
+			if (bits < free) {
+				this.buffer = (this.buffer << bits) | value;
+				this.count += bits;
+				return;
+			}
+
+			// fills the buffer then keeps the remaining bits
+			int remaining = bits - free;
+			this.out.writeLong((this.buffer << free) | (value >>> remaining));
+			this.buffer = value;
+			this.count = remaining;
+		}
+
+		void writeUnary(long value) throws IOException {
+			while (value >= 32) {
+				this.write(0xffffffffL, 32);
+				value -= 32;
+			}
+			// value ones followed by a zero
+			this.write(((1L << value) - 1) << 1, (int) value + 1);
+		}
+
+		void flush() throws IOException {
+			if (this.count > 0) {
+				this.out.writeLong(this.buffer << (64 - this.count));
+				this.buffer = 0;
+				this.count = 0;
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the values written by a {@link BitOutput}.
+	 */
+	private static final class BitInput {
+
+		private final DataInput in;
+
+		private long buffer;
+
+		// the number of bits of the buffer not read yet
+		private int count;
+
+		BitInput(DataInput in) {
+			this.in = in;
+		}
+
+		long read(int bits) throws IOException {
+			if (bits == 0) {
+				return 0;
+			}
+
+			long result;
+			if (bits <= this.count) {
+				result = this.buffer >>> (this.count - bits);
+				this.count -= bits;
+			} else {
+				// the low bits of the buffer then the high bits of the next word
+				int missing = bits - this.count;
+				result = this.count == 0 ? 0 : this.buffer << missing;
+				this.buffer = this.in.readLong();
+				this.count = 64 - missing;
+				result |= this.buffer >>> this.count;
+			}
+			return result & (-1L >>> (64 - bits));
+		}
+
+		long readUnary() throws IOException {
+			long result = 0;
+			while (true) {
+				if (this.count == 0) {
+					this.buffer = this.in.readLong();
+					this.count = 64;
+				}
+
+				// the bits not read yet, aligned to the left
+				long bits = this.buffer << (64 - this.count);
+				int ones = Long.numberOfLeadingZeros(~bits);
+				if (ones < this.count) {
+					result += ones;
+					this.count -= ones + 1;
+					return result;
+				}
+				result += this.count;
+				this.count = 0;
+			}
+		}
+
+	}
+
+}
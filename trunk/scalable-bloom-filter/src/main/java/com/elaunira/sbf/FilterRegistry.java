@@ -0,0 +1,837 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.elaunira.sbf.ScalableBloomFilter.Mode;
+
+/**
+ * Hosts many scalable Bloom filters, one per tenant, inside a few large slabs
+ * of {@code long} words. Each filter behaves like a
+ * {@link ScalableBloomFilter}: it is a chain of sliced stages which grows
+ * when its last stage is full. All the filters follow the same
+ * {@link StagePlanner} schedule, shared by the registry.
+ * <p>
+ * A filter is not made of objects. Its stages are regions of a slab, and
+ * they are described by entries of a few arrays of primitives indexed by
+ * stage. The tenants are found by an open addressing table keyed by tenant
+ * id. Creating a filter, growing it or dropping it therefore allocates no
+ * object, and the garbage collector only traces a few large arrays,
+ * whatever the number of filters. When a filter is dropped, its stages are
+ * kept by level in the schedule. They are cleared and reused by the next
+ * stages of the same level.
+ * <p>
+ * The regions kept for reuse and the ends of the slabs which were too short
+ * for the next stage are wasted until {@link #compact()} moves the stages of
+ * the live filters into new slabs. {@link #snapshot()} copies the registry
+ * slab by slab.
+ * <p>
+ * This class is thread-safe, the operations being serialized.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterRegistry<E> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// the number of words of a slab (1 MB)
+	private static final int DEFAULT_SLAB_WORDS = 1 << 17;
+
+	private static final int NONE = -1;
+
+	// the schedule of the stages of all the filters
+	private final StagePlanner planner;
+
+	// the number of words of a slab, stages larger than
+	// this are stored in a slab of their own
+	private final int slabWords;
+
+	private long[][] slabs;
+
+	private int slabsCount;
+
+	// the slab the stages are allocated in and its next free word
+	private int currentSlab = NONE;
+
+	private int slabPosition;
+
+	// the slab (high 32 bits) and the offset in the slab
+	// (low 32 bits) of the words of each stage
+	private long[] stageAddresses;
+
+	// the index of each stage in the schedule
+	private int[] stageLevels;
+
+	// the number of elements added to each stage
+	private int[] stageCounts;
+
+	// the previous stage of the filter of each stage, or the
+	// next free stage of the same level for the stages kept
+	private int[] stageNext;
+
+	private int stagesCount;
+
+	// the stages which have no words, chained by stageNext
+	private int freeStage = NONE;
+
+	// the first stage kept for reuse of each level
+	private int[] freeStagesByLevel;
+
+	// the number of words of the stages of the live filters
+	private long liveWords;
+
+	private final TenantIndex index;
+
+	// the id, the last stage and the size of the filter of each tenant
+	private long[] tenantIds;
+
+	private int[] tenantStages;
+
+	private int[] tenantSizes;
+
+	private int tenantsCount;
+
+	// the tenant slots which are not used, chained by tenantStages
+	private int freeTenant = NONE;
+
+	private int liveTenants;
+
+	/**
+	 * Creates a registry whose filters grow as the
+	 * {@link ScalableBloomFilter}s created with the same parameters.
+	 *
+	 * @param initialCapacity
+	 *            the capacity of the first stage of each filter.
+	 *
+	 * @param falsePositiveProbability
+	 *            the false positive probability of the first stage of each
+	 *            filter.
+	 */
+	public FilterRegistry(int initialCapacity, double falsePositiveProbability) {
+		this(Mode.SMALL_SET_GROWTH, 0.9, initialCapacity, falsePositiveProbability, DEFAULT_SLAB_WORDS);
+	}
+
+	/**
+	 * Creates a registry.
+	 *
+	 * @param mode
+	 *            the growth of the capacity of the stages.
+	 *
+	 * @param ratio
+	 *            the tightening ratio of the false positive probability of
+	 *            the stages.
+	 *
+	 * @param initialCapacity
+	 *            the capacity of the first stage of each filter.
+	 *
+	 * @param falsePositiveProbability
+	 *            the false positive probability of the first stage of each
+	 *            filter.
+	 *
+	 * @param slabWords
+	 *            the number of {@code long} words of a slab.
+	 */
+	public FilterRegistry(Mode mode, double ratio, int initialCapacity,
+			double falsePositiveProbability, int slabWords) {
+		if (initialCapacity <= 0) {
+			throw new IllegalArgumentException("capacity must be strict positive");
+		}
+		if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+			throw new IllegalArgumentException("false positive probability must be in ]0;1[");
+		}
+		if (slabWords <= 0) {
+			throw new IllegalArgumentException("slab words must be strict positive");
+		}
+
+		this.planner = new StagePlanner(mode, ratio, initialCapacity, falsePositiveProbability);
+		this.slabWords = slabWords;
+		this.slabs = new long[4][];
+
+		this.stageAddresses = new long[64];
+		this.stageLevels = new int[64];
+		this.stageCounts = new int[64];
+		this.stageNext = new int[64];
+		this.freeStagesByLevel = new int[8];
+		Arrays.fill(this.freeStagesByLevel, NONE);
+
+		this.index = new TenantIndex();
+		this.tenantIds = new long[16];
+		this.tenantStages = new int[16];
+		this.tenantSizes = new int[16];
+	}
+
+	/**
+	 * Returns a copy of the specified registry, slab by slab.
+	 */
+	private FilterRegistry(FilterRegistry<E> registry) {
+		StagePlanner planner = registry.planner;
+		this.planner = new StagePlanner(
+				planner.getScale(), planner.getRatio(),
+				planner.getInitialCapacity(), planner.getFalsePositiveProbability());
+		this.slabWords = registry.slabWords;
+		this.slabs = new long[registry.slabs.length][];
+		for (int i = 0; i < registry.slabsCount; i++) {
+			this.slabs[i] = registry.slabs[i].clone();
+		}
+		this.slabsCount = registry.slabsCount;
+		this.currentSlab = registry.currentSlab;
+		this.slabPosition = registry.slabPosition;
+
+		this.stageAddresses = registry.stageAddresses.clone();
+		this.stageLevels = registry.stageLevels.clone();
+		this.stageCounts = registry.stageCounts.clone();
+		this.stageNext = registry.stageNext.clone();
+		this.stagesCount = registry.stagesCount;
+		this.freeStage = registry.freeStage;
+		this.freeStagesByLevel = registry.freeStagesByLevel.clone();
+		this.liveWords = registry.liveWords;
+
+		this.index = registry.index.copy();
+		this.tenantIds = registry.tenantIds.clone();
+		this.tenantStages = registry.tenantStages.clone();
+		this.tenantSizes = registry.tenantSizes.clone();
+		this.tenantsCount = registry.tenantsCount;
+		this.freeTenant = registry.freeTenant;
+		this.liveTenants = registry.liveTenants;
+	}
+
+	/**
+	 * Creates an empty filter for the specified tenant. Its first stage is
+	 * allocated when the first element is added.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @return {@code false} if the tenant already has a filter,
+	 *         {@code true} otherwise.
+	 */
+	public synchronized boolean create(long tenant) {
+		if (this.index.get(tenant) != NONE) {
+			return false;
+		}
+		this.register(tenant);
+		return true;
+	}
+
+	/**
+	 * Drops the filter of the specified tenant. Its stages are kept for the
+	 * next filters.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @return {@code true} if the tenant had a filter, {@code false}
+	 *         otherwise.
+	 */
+	public synchronized boolean drop(long tenant) {
+		int slot = this.index.remove(tenant);
+		if (slot == NONE) {
+			return false;
+		}
+
+		this.releaseStages(slot);
+		this.tenantStages[slot] = this.freeTenant;
+		this.freeTenant = slot;
+		this.liveTenants--;
+		return true;
+	}
+
+	/**
+	 * Removes all the elements of the filter of the specified tenant, which
+	 * keeps existing.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 */
+	public synchronized void clear(long tenant) {
+		int slot = this.index.get(tenant);
+		if (slot != NONE) {
+			this.releaseStages(slot);
+		}
+	}
+
+	/**
+	 * Returns whether the specified tenant has a filter.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @return whether the specified tenant has a filter.
+	 */
+	public synchronized boolean exists(long tenant) {
+		return this.index.get(tenant) != NONE;
+	}
+
+	/**
+	 * Adds the specified element to the filter of the specified tenant,
+	 * which is created if it does not exist.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @param elt
+	 *            the element to add.
+	 *
+	 * @return {@code true} if the element was already contained, otherwise
+	 *         {@code false}.
+	 */
+	public boolean add(long tenant, E elt) {
+		return this.addDigest(tenant, BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Adds the element identified by the specified {@code digest} to the
+	 * filter of the specified tenant, which is created if it does not exist.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @param digest
+	 *            the digest of the element to add.
+	 *
+	 * @return {@code true} if the element was already contained, otherwise
+	 *         {@code false}.
+	 *
+	 * @see #add(long, Object)
+	 */
+	public synchronized boolean addDigest(long tenant, long digest) {
+		int slot = this.index.get(tenant);
+		if (slot == NONE) {
+			slot = this.register(tenant);
+		} else if (this.find(slot, digest)) {
+			return true;
+		}
+
+		int stage = this.tenantStages[slot];
+		if (stage == NONE) {
+			stage = this.appendStage(slot, 0);
+		} else if (this.stageCounts[stage] > this.planner.getCapacity(this.stageLevels[stage])) {
+			stage = this.appendStage(slot, this.stageLevels[stage] + 1);
+		}
+
+		long address = this.stageAddresses[stage];
+		long[] slab = this.slabs[(int) (address >>> 32)];
+		int base = (int) address;
+		int level = this.stageLevels[stage];
+		int slicesCount = this.planner.getSlicesCount(level);
+		int bitsPerSlice = this.planner.getBitsPerSlice(level);
+
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < slicesCount; i++) {
+			long bit = offset + BloomFilterUtil.reduce(hash, bitsPerSlice);
+			slab[base + (int) (bit >>> 6)] |= 1L << bit;
+			offset += bitsPerSlice;
+			hash += step;
+			step += i + 1;
+		}
+
+		this.stageCounts[stage]++;
+		this.tenantSizes[slot]++;
+		return false;
+	}
+
+	/**
+	 * Returns {@code true} if it is <i>possible</i> that the specified element
+	 * has been added to the filter of the specified tenant.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @param elt
+	 *            the element to check.
+	 *
+	 * @return {@code false} if the element is <i>definitely</i> not present
+	 *         or if the tenant has no filter, {@code true} otherwise.
+	 */
+	public boolean contains(long tenant, E elt) {
+		return this.containsDigest(tenant, BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Returns {@code true} if it is <i>possible</i> that the element
+	 * identified by the specified {@code digest} has been added to the filter
+	 * of the specified tenant.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @param digest
+	 *            the digest of the element to check.
+	 *
+	 * @return {@code false} if the element is <i>definitely</i> not present
+	 *         or if the tenant has no filter, {@code true} otherwise.
+	 *
+	 * @see #contains(long, Object)
+	 */
+	public synchronized boolean containsDigest(long tenant, long digest) {
+		int slot = this.index.get(tenant);
+		return slot != NONE && this.find(slot, digest);
+	}
+
+	/**
+	 * Returns the number of elements added to the filter of the specified
+	 * tenant.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @return the number of elements added, {@code 0} if the tenant has no
+	 *         filter.
+	 */
+	public synchronized int size(long tenant) {
+		int slot = this.index.get(tenant);
+		return slot == NONE ? 0 : this.tenantSizes[slot];
+	}
+
+	/**
+	 * Returns a view of the filter of the specified tenant, which is created
+	 * if it does not exist. The view reads and writes the registry, and stops
+	 * working when the filter is dropped.
+	 *
+	 * @param tenant
+	 *            the id of the tenant.
+	 *
+	 * @return a view of the filter of the tenant.
+	 */
+	public BloomFilter<E> view(long tenant) {
+		this.create(tenant);
+		return new TenantFilter(tenant);
+	}
+
+	/**
+	 * Moves the stages of the live filters into new slabs, one after the
+	 * other, and forgets the stages kept for reuse.
+	 *
+	 * @return the number of bytes freed.
+	 */
+	public synchronized long compact() {
+		long before = this.getMemoryUsage();
+
+		long[][] slabs = this.slabs;
+		this.slabs = new long[4][];
+		this.slabsCount = 0;
+		this.currentSlab = NONE;
+
+		for (int slot = 0; slot < this.tenantsCount; slot++) {
+			if (this.index.get(this.tenantIds[slot]) != slot) {
+				continue;
+			}
+			for (int stage = this.tenantStages[slot]; stage != NONE; stage = this.stageNext[stage]) {
+				int words = this.getWords(this.stageLevels[stage]);
+				long address = this.stageAddresses[stage];
+				long target = this.allocate(words);
+				System.arraycopy(slabs[(int) (address >>> 32)], (int) address,
+						this.slabs[(int) (target >>> 32)], (int) target, words);
+				this.stageAddresses[stage] = target;
+			}
+		}
+
+		// the stages kept lose their words
+		for (int level = 0; level < this.freeStagesByLevel.length; level++) {
+			int stage = this.freeStagesByLevel[level];
+			while (stage != NONE) {
+				int next = this.stageNext[stage];
+				this.stageNext[stage] = this.freeStage;
+				this.freeStage = stage;
+				stage = next;
+			}
+			this.freeStagesByLevel[level] = NONE;
+		}
+
+		return before - this.getMemoryUsage();
+	}
+
+	/**
+	 * Returns a copy of this registry which does not share any state with
+	 * it. The slabs are copied as they are, the copy may be compacted.
+	 *
+	 * @return a copy of this registry.
+	 */
+	public synchronized FilterRegistry<E> snapshot() {
+		return new FilterRegistry<E>(this);
+	}
+
+	/**
+	 * Returns the number of tenants having a filter.
+	 *
+	 * @return the number of tenants having a filter.
+	 */
+	public synchronized int getTenantsCount() {
+		return this.liveTenants;
+	}
+
+	/**
+	 * Returns the number of slabs.
+	 *
+	 * @return the number of slabs.
+	 */
+	public synchronized int getSlabsCount() {
+		return this.slabsCount;
+	}
+
+	/**
+	 * Returns the number of bytes of the slabs.
+	 *
+	 * @return the number of bytes of the slabs.
+	 */
+	public synchronized long getMemoryUsage() {
+		long words = 0;
+		for (int i = 0; i < this.slabsCount; i++) {
+			words += this.slabs[i].length;
+		}
+		return words * 8;
+	}
+
+	/**
+	 * Returns the number of bytes of the stages of the live filters, the
+	 * remaining of the slabs being freed by {@link #compact()}.
+	 *
+	 * @return the number of bytes used by the live filters.
+	 */
+	public synchronized long getLiveMemoryUsage() {
+		return this.liveWords * 8;
+	}
+
+	/**
+	 * Returns the schedule of the stages of the filters.
+	 *
+	 * @return the schedule of the stages of the filters.
+	 */
+	public StagePlanner getPlanner() {
+		return this.planner;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		return this.getClass().getSimpleName()
+				+ "[tenants=" + this.liveTenants
+				+ ", slabs=" + this.slabsCount
+				+ ", memoryUsage=" + this.getMemoryUsage()
+				+ ", liveMemoryUsage=" + this.getLiveMemoryUsage() + "]";
+	}
+
+	private int register(long tenant) {
+		int slot;
+		if (this.freeTenant != NONE) {
+			slot = this.freeTenant;
+			this.freeTenant = this.tenantStages[slot];
+		} else {
+			if (this.tenantsCount == this.tenantIds.length) {
+				int length = this.tenantsCount * 2;
+				this.tenantIds = Arrays.copyOf(this.tenantIds, length);
+				this.tenantStages = Arrays.copyOf(this.tenantStages, length);
+				this.tenantSizes = Arrays.copyOf(this.tenantSizes, length);
+			}
+			slot = this.tenantsCount++;
+		}
+
+		this.tenantIds[slot] = tenant;
+		this.tenantStages[slot] = NONE;
+		this.tenantSizes[slot] = 0;
+		this.index.put(tenant, slot);
+		this.liveTenants++;
+		return slot;
+	}
+
+	private boolean find(int slot, long digest) {
+		for (int stage = this.tenantStages[slot]; stage != NONE; stage = this.stageNext[stage]) {
+			long address = this.stageAddresses[stage];
+			long[] slab = this.slabs[(int) (address >>> 32)];
+			int base = (int) address;
+			int level = this.stageLevels[stage];
+			int slicesCount = this.planner.getSlicesCount(level);
+			int bitsPerSlice = this.planner.getBitsPerSlice(level);
+
+			long offset = 0;
+			long hash = digest;
+			long step = BloomFilterUtil.getProbeStep(digest);
+			int i = 0;
+			for (; i < slicesCount; i++) {
+				long bit = offset + BloomFilterUtil.reduce(hash, bitsPerSlice);
+				if ((slab[base + (int) (bit >>> 6)] & (1L << bit)) == 0) {
+					break;
+				}
+				offset += bitsPerSlice;
+				hash += step;
+				step += i + 1;
+			}
+			if (i == slicesCount) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Appends a stage of the specified level to the filter of the specified
+	 * tenant slot, reusing a stage kept if any.
+	 */
+	private int appendStage(int slot, int level) {
+		int words = this.getWords(level);
+
+		int stage = level < this.freeStagesByLevel.length ? this.freeStagesByLevel[level] : NONE;
+		if (stage != NONE) {
+			this.freeStagesByLevel[level] = this.stageNext[stage];
+			long address = this.stageAddresses[stage];
+			int base = (int) address;
+			Arrays.fill(this.slabs[(int) (address >>> 32)], base, base + words, 0);
+		} else {
+			stage = this.newStage();
+			this.stageAddresses[stage] = this.allocate(words);
+		}
+
+		this.stageLevels[stage] = level;
+		this.stageCounts[stage] = 0;
+		this.stageNext[stage] = this.tenantStages[slot];
+		this.tenantStages[slot] = stage;
+		this.liveWords += words;
+		return stage;
+	}
+
+	private int newStage() {
+		if (this.freeStage != NONE) {
+			int stage = this.freeStage;
+			this.freeStage = this.stageNext[stage];
+			return stage;
+		}
+
+		if (this.stagesCount == this.stageAddresses.length) {
+			int length = this.stagesCount * 2;
+			this.stageAddresses = Arrays.copyOf(this.stageAddresses, length);
+			this.stageLevels = Arrays.copyOf(this.stageLevels, length);
+			this.stageCounts = Arrays.copyOf(this.stageCounts, length);
+			this.stageNext = Arrays.copyOf(this.stageNext, length);
+		}
+		return this.stagesCount++;
+	}
+
+	/**
+	 * Keeps the stages of the filter of the specified tenant slot for reuse.
+	 */
+	private void releaseStages(int slot) {
+		int stage = this.tenantStages[slot];
+		while (stage != NONE) {
+			int next = this.stageNext[stage];
+			int level = this.stageLevels[stage];
+			if (level >= this.freeStagesByLevel.length) {
+				int length = this.freeStagesByLevel.length;
+				this.freeStagesByLevel = Arrays.copyOf(this.freeStagesByLevel, Math.max(level + 1, length * 2));
+				Arrays.fill(this.freeStagesByLevel, length, this.freeStagesByLevel.length, NONE);
+			}
+			this.stageNext[stage] = this.freeStagesByLevel[level];
+			this.freeStagesByLevel[level] = stage;
+			this.liveWords -= this.getWords(level);
+			stage = next;
+		}
+
+		this.tenantStages[slot] = NONE;
+		this.tenantSizes[slot] = 0;
+	}
+
+	/**
+	 * Returns the address of {@code words} consecutive words, taken from the
+	 * current slab or from a new one.
+	 */
+	private long allocate(int words) {
+		if (words > this.slabWords) {
+			// a large stage has a slab of its own
+			return (long) this.addSlab(words) << 32;
+		}
+
+		if (this.currentSlab == NONE || this.slabPosition + words > this.slabWords) {
+			this.currentSlab = this.addSlab(this.slabWords);
+			this.slabPosition = 0;
+		}
+
+		long address = ((long) this.currentSlab << 32) | this.slabPosition;
+		this.slabPosition += words;
+		return address;
+	}
+
+	private int addSlab(int words) {
+		if (this.slabsCount == this.slabs.length) {
+			this.slabs = Arrays.copyOf(this.slabs, this.slabsCount * 2);
+		}
+		this.slabs[this.slabsCount] = new long[words];
+		return this.slabsCount++;
+	}
+
+	private int getWords(int level) {
+		return BitPacking.wordsCount(this.planner.getBits(level), 1);
+	}
+
+	/**
+	 * The filter of a tenant, seen as a {@link BloomFilter}.
+	 */
+	private final class TenantFilter extends BloomFilter<E> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long tenant;
+
+		TenantFilter(long tenant) {
+			super(FilterRegistry.this.planner.getInitialCapacity(),
+					FilterRegistry.this.planner.getFalsePositiveProbability());
+			this.tenant = tenant;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean addDigest(long digest) {
+			return FilterRegistry.this.addDigest(this.tenant, digest);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean containsDigest(long digest) {
+			return FilterRegistry.this.containsDigest(this.tenant, digest);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int size() {
+			return FilterRegistry.this.size(this.tenant);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void clear() {
+			FilterRegistry.this.clear(this.tenant);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int getCapacity() {
+			return -1;
+		}
+
+	}
+
+	/**
+	 * An open addressing table with linear probing from the tenant ids to
+	 * their slots. The table is at most half full.
+	 */
+	private static final class TenantIndex implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private long[] keys;
+
+		// the slot of each key, NONE for an empty entry
+		private int[] values;
+
+		private int size;
+
+		TenantIndex() {
+			this(new long[16], new int[16], 0);
+			Arrays.fill(this.values, NONE);
+		}
+
+		private TenantIndex(long[] keys, int[] values, int size) {
+			this.keys = keys;
+			this.values = values;
+			this.size = size;
+		}
+
+		int get(long key) {
+			int mask = this.keys.length - 1;
+			for (int i = index(key, mask); this.values[i] != NONE; i = (i + 1) & mask) {
+				if (this.keys[i] == key) {
+					return this.values[i];
+				}
+			}
+			return NONE;
+		}
+
+		void put(long key, int value) {
+			int mask = this.keys.length - 1;
+			int i = index(key, mask);
+			while (this.values[i] != NONE && this.keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if (this.values[i] == NONE) {
+				this.size++;
+			}
+			this.keys[i] = key;
+			this.values[i] = value;
+
+			if (this.size * 2 > this.keys.length) {
+				this.resize();
+			}
+		}
+
+		/**
+		 * Removes the specified key, the entries following it being moved
+		 * back so that no probe sequence is broken.
+		 *
+		 * @return the slot of the key, NONE if it was not in the table.
+		 */
+		int remove(long key) {
+			int mask = this.keys.length - 1;
+			int i = index(key, mask);
+			while (this.values[i] != NONE && this.keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			int value = this.values[i];
+			if (value == NONE) {
+				return NONE;
+			}
+
+			int hole = i;
+			for (int j = (hole + 1) & mask; this.values[j] != NONE; j = (j + 1) & mask) {
+				int home = index(this.keys[j], mask);
+				// moves the entry back unless its home is in ]hole;j]
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					this.keys[hole] = this.keys[j];
+					this.values[hole] = this.values[j];
+					hole = j;
+				}
+			}
+			this.values[hole] = NONE;
+			this.size--;
+			return value;
+		}
+
+		TenantIndex copy() {
+			return new TenantIndex(this.keys.clone(), this.values.clone(), this.size);
+		}
+
+		private void resize() {
+			long[] keys = this.keys;
+			int[] values = this.values;
+			this.keys = new long[keys.length * 2];
+			this.values = new int[keys.length * 2];
+			Arrays.fill(this.values, NONE);
+			int mask = this.keys.length - 1;
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != NONE) {
+					int j = index(keys[i], mask);
+					while (this.values[j] != NONE) {
+						j = (j + 1) & mask;
+					}
+					this.keys[j] = keys[i];
+					this.values[j] = values[i];
+				}
+			}
+		}
+
+		private static int index(long key, int mask) {
+			return (int) BloomFilterUtil.mix(key) & mask;
+		}
+
+	}
+
+}
@@ -4,7 +4,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -12,8 +11,6 @@ import java.util.List;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-import com.elaunira.sbf.hash.Murmur2;
-
 /**
  * This bloom filter is a variant of a classical bloom filter as explained in
  * the <a href=
@@ -69,26 +66,15 @@ public class KeyValueSlicedBloomFilter<K, V> extends KeyValueBloomFilter<K, V> {
 		super(capacity, falsePositiveProbability);
 		
 		this.slicesCount = 
-			this.computeSlicesCount(capacity, falsePositiveProbability);
+			BloomFilterUtil.computeSlicesCount(capacity, falsePositiveProbability);
 		
 		this.bitsPerSlice = 
-			this.computeBitsPerSlice(capacity, falsePositiveProbability);
+			BloomFilterUtil.computeBitsPerSlice(
+					capacity, falsePositiveProbability, this.slicesCount);
 
 		this.filter = new LinkedList[this.slicesCount * this.bitsPerSlice];
 	}
 	
-	private int computeSlicesCount(int capacity, double falsePositiveProbability) {
-		return (int) (Math.ceil(
-				Math.log(1 / falsePositiveProbability) / Math.log(2)));
-	}
-	
-	private int computeBitsPerSlice(int capacity, double falsePositiveProbability) {
-		return 
-			(int) Math.ceil(
-				(2 * capacity * Math.abs(Math.log(falsePositiveProbability))) 
-					/ (this.slicesCount * Math.pow(Math.log(2), 2)));
-	}
-	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -173,6 +159,7 @@ public class KeyValueSlicedBloomFilter<K, V> extends KeyValueBloomFilter<K, V> {
 			if (this.filter[offset + k] == null) {
 				return false;
 			}
+			offset += this.bitsPerSlice;
 		}
 		
 		return true;
@@ -202,21 +189,11 @@ public class KeyValueSlicedBloomFilter<K, V> extends KeyValueBloomFilter<K, V> {
 	 * 
 	 * @return {@code hashCount} hashes for the specified {@code key} by
 	 *         using only one hash function.
+	 * 
+	 * @see BloomFilterUtil#getHashBuckets(String, int, int)
 	 */
 	public static int[] getHashBuckets(String key, int hashCount, int max) {
-		byte[] b;
-		try {
-			b = key.getBytes("UTF-16");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
-		int[] result = new int[hashCount];
-		int hash1 = Murmur2.hash32(b, 0);
-		int hash2 = Murmur2.hash32(b, hash1);
-		for (int i = 0; i < hashCount; i++) {
-			result[i] = Math.abs((hash1 + i * hash2) % max);
-		}
-		return result;
+		return BloomFilterUtil.getHashBuckets(key, hashCount, max);
 	}
 
 	/**
@@ -297,11 +274,11 @@ public class KeyValueSlicedBloomFilter<K, V> extends KeyValueBloomFilter<K, V> {
 		super.falsePositiveProbability = ois.readDouble();
 		
 		this.slicesCount = 
-			this.computeSlicesCount(
+			BloomFilterUtil.computeSlicesCount(
 					super.capacity, super.falsePositiveProbability);
 		this.bitsPerSlice = 
-			this.computeBitsPerSlice(
-					super.capacity, super.falsePositiveProbability);
+			BloomFilterUtil.computeBitsPerSlice(
+					super.capacity, super.falsePositiveProbability, this.slicesCount);
 		this.filter = new LinkedList[this.slicesCount * this.bitsPerSlice];
 		
 		boolean eof = false;
@@ -0,0 +1,259 @@
+package com.elaunira.sbf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the pages of a file. The frames of the cache are
+ * allocated at once, in the heap or off-heap, and evicted with the CLOCK
+ * algorithm: each frame has a reference bit set when it is accessed, the
+ * hand of the clock clears the reference bits until it finds a frame whose
+ * bit is not set.
+ * <p>
+ * The modified pages are not written when they are modified but when a dirty
+ * frame is evicted or when the cache is flushed, all the dirty frames being
+ * then written at once in the order of the pages.
+ * <p>
+ * This class is not thread-safe, except {@link #read(int)}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+final class PageCache {
+
+	private final FileChannel channel;
+
+	// the offset of the first page in the file
+	private final long offset;
+
+	private final int pageSize;
+
+	private final ByteBuffer[] frames;
+
+	// the page held by each frame, -1 for a free frame
+	private final int[] pages;
+
+	private final boolean[] referenced;
+
+	private final boolean[] dirty;
+
+	// the frame of each page in the cache
+	private final Map<Integer, Integer> index;
+
+	// the next frame considered for eviction
+	private int hand;
+
+	private long hits;
+
+	private long reads;
+
+	private long writes;
+
+	// incremented each time the frames are dropped, so that the pages read
+	// before are not installed afterwards
+	private long generation;
+
+	PageCache(FileChannel channel, long offset, int pageSize, int capacity, boolean direct) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be strict positive");
+		}
+
+		this.channel = channel;
+		this.offset = offset;
+		this.pageSize = pageSize;
+
+		ByteBuffer memory = direct
+			? ByteBuffer.allocateDirect(capacity * pageSize)
+			: ByteBuffer.allocate(capacity * pageSize);
+		this.frames = new ByteBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			memory.limit((i + 1) * pageSize);
+			memory.position(i * pageSize);
+			this.frames[i] = memory.slice();
+		}
+
+		this.pages = new int[capacity];
+		Arrays.fill(this.pages, -1);
+		this.referenced = new boolean[capacity];
+		this.dirty = new boolean[capacity];
+		this.index = new HashMap<Integer, Integer>(capacity * 2);
+	}
+
+	/**
+	 * Returns the frame holding the specified page, reading the page if it
+	 * is not cached.
+	 */
+	ByteBuffer get(int page) throws IOException {
+		Integer frame = this.index.get(page);
+		if (frame != null) {
+			this.hits++;
+			this.referenced[frame] = true;
+			return this.frames[frame];
+		}
+
+		int victim = this.evict();
+		ByteBuffer buffer = this.frames[victim];
+		this.readInto(page, buffer);
+		this.reads++;
+		this.install(victim, page);
+		return buffer;
+	}
+
+	/**
+	 * Returns whether the specified page is cached.
+	 */
+	boolean contains(int page) {
+		return this.index.containsKey(page);
+	}
+
+	/**
+	 * Caches the specified page, read beforehand by {@link #read(int)}, unless
+	 * it is already cached.
+	 */
+	void put(int page, ByteBuffer data) throws IOException {
+		if (this.index.containsKey(page)) {
+			return;
+		}
+
+		int victim = this.evict();
+		ByteBuffer buffer = this.frames[victim];
+		buffer.clear();
+		data.rewind();
+		buffer.put(data);
+		buffer.clear();
+		this.reads++;
+		this.install(victim, page);
+	}
+
+	/**
+	 * Marks the specified page, which must be cached, as modified.
+	 */
+	void markDirty(int page) {
+		this.dirty[this.index.get(page)] = true;
+	}
+
+	/**
+	 * Reads the specified page from the file without caching it. This method
+	 * may be called concurrently with any other one, provided that the page
+	 * is not dirty in the cache.
+	 */
+	ByteBuffer read(int page) throws IOException {
+		ByteBuffer result = ByteBuffer.allocate(this.pageSize);
+		this.readInto(page, result);
+		return result;
+	}
+
+	/**
+	 * Writes all the dirty frames to the file, in the order of their pages.
+	 */
+	void flush() throws IOException {
+		int count = 0;
+		long[] order = new long[this.frames.length];
+		for (int i = 0; i < this.frames.length; i++) {
+			if (this.dirty[i]) {
+				// sorts the frames by page
+				order[count++] = ((long) this.pages[i] << 32) | i;
+			}
+		}
+		Arrays.sort(order, 0, count);
+
+		for (int i = 0; i < count; i++) {
+			int frame = (int) order[i];
+			ByteBuffer buffer = this.frames[frame].duplicate();
+			buffer.clear();
+			long position = this.offset + (long) this.pages[frame] * this.pageSize;
+			while (buffer.hasRemaining()) {
+				position += this.channel.write(buffer, position);
+			}
+			this.dirty[frame] = false;
+			this.writes++;
+		}
+	}
+
+	/**
+	 * Drops all the frames without writing them.
+	 */
+	void invalidate() {
+		Arrays.fill(this.pages, -1);
+		Arrays.fill(this.referenced, false);
+		Arrays.fill(this.dirty, false);
+		this.index.clear();
+		this.generation++;
+	}
+
+	int getCapacity() {
+		return this.frames.length;
+	}
+
+	long getHitsCount() {
+		return this.hits;
+	}
+
+	long getReadsCount() {
+		return this.reads;
+	}
+
+	long getWritesCount() {
+		return this.writes;
+	}
+
+	long getGeneration() {
+		return this.generation;
+	}
+
+	private void install(int frame, int page) {
+		this.pages[frame] = page;
+		this.referenced[frame] = true;
+		this.index.put(page, frame);
+	}
+
+	/**
+	 * Frees a frame and returns it.
+	 */
+	private int evict() throws IOException {
+		while (true) {
+			int frame = this.hand;
+			this.hand = (this.hand + 1) % this.frames.length;
+
+			if (this.pages[frame] == -1) {
+				return frame;
+			}
+			if (this.referenced[frame]) {
+				// second chance
+				this.referenced[frame] = false;
+				continue;
+			}
+
+			if (this.dirty[frame]) {
+				// the other dirty frames are written along
+				this.flush();
+			}
+			this.index.remove(this.pages[frame]);
+			this.pages[frame] = -1;
+			return frame;
+		}
+	}
+
+	private void readInto(int page, ByteBuffer buffer) throws IOException {
+		ByteBuffer target = buffer.duplicate();
+		target.clear();
+		long position = this.offset + (long) page * this.pageSize;
+		while (target.hasRemaining()) {
+			int read = this.channel.read(target, position);
+			if (read < 0) {
+				// the end of a sparse file
+				while (target.hasRemaining()) {
+					target.put((byte) 0);
+				}
+				break;
+			}
+			position += read;
+		}
+	}
+
+}
@@ -0,0 +1,862 @@
+package com.elaunira.sbf;
+
+import java.util.Arrays;
+
+/**
+ * A counting quotient filter, after the paper entitled <a
+ * href="https://www3.cs.stonybrook.edu/~ppandey/files/p775-pandey.pdf">A
+ * General-Purpose Counting Filter: Making Every Bit Count</a> by <em>Prashant
+ * Pandey</em>, <em>Michael A. Bender</em>, <em>Rob Johnson</em> and <em>Rob
+ * Patro</em>. Each element is identified by a fingerprint made of the high
+ * bits of its digest. The high bits of the fingerprint (the quotient) give the
+ * canonical slot of the element, the low bits (the remainder) are stored in
+ * the slot or, when the slot is already taken, in one of the following ones.
+ * The remainders of a quotient are stored sorted in consecutive slots (a run),
+ * and the runs are sorted by quotient. A lookup thus reads a few consecutive
+ * slots only.
+ * <p>
+ * Contrary to a {@link SlicedBloomFilter}, the filter counts the occurrences
+ * of each element: an element may be added several times and removed, and
+ * {@link #count(Object)} returns the number of occurrences of an element
+ * (or of the elements sharing its fingerprint). A count greater than one is
+ * stored in the slots following the remainder, flagged as counters, by digits
+ * of as many bits as the remainder. Each slot also has the three metadata bits
+ * of the original quotient filter, to find the runs.
+ * <p>
+ * Since the fingerprints are stored sorted, two filters are merged by a single
+ * sequential scan of both (see {@link #merge(QuotientFilter)}), and the filter
+ * is expanded to twice its number of slots without the original elements
+ * (see {@link #expand()}): one bit of each remainder moves to the quotient,
+ * which doubles the false positive probability. When expansion is enabled
+ * (see {@link #setExpanding(boolean)}), a full filter is expanded before an
+ * element is added, as long as the remainders are at least two bits long.
+ * <p>
+ * This class is <strong>not thread-safe</strong>. Moreover, when an element is
+ * added into the filter, it is based on the uniqueness of this object which
+ * is defined by the {@link #hashCode()} method. Therefore it is really
+ * important to provide a correct {@link #hashCode()} method for elements which
+ * have to be passed to the {@link #add} method.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class QuotientFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the flags of a slot, followed by the remainder it stores. The occupied
+	// flag tells whether a run exists for the quotient of the slot, the other
+	// ones describe the remainder stored in the slot
+	private static final long OCCUPIED = 1;
+
+	private static final long CONTINUATION = 2;
+
+	private static final long SHIFTED = 4;
+
+	private static final long COUNTER = 8;
+
+	private static final int FLAGS_BITS = 4;
+
+	private static final int MIN_QUOTIENT_BITS = 6;
+
+	private static final int MAX_QUOTIENT_BITS = 30;
+
+	private static final int MAX_REMAINDER_BITS = 58;
+
+	// the number of bits of a fingerprint, which does not
+	// change when the filter is expanded
+	private final int fingerprintBits;
+
+	// the number of bits of a remainder when the filter has been created
+	private final int initialRemainderBits;
+
+	private int quotientBits;
+
+	private int remainderBits;
+
+	private int slotBits;
+
+	// the number of slots allocated, beyond the canonical ones since
+	// the runs of the last quotients overflow past them
+	private int slotsCount;
+
+	// the packed slots
+	private long[] table;
+
+	// the number of slots storing a remainder or a counter
+	private int usedSlots;
+
+	// the number of distinct fingerprints
+	private int distinctCount;
+
+	// the sum of the counts of the fingerprints
+	private long totalCount;
+
+	// whether a full filter is expanded before an element is added
+	private boolean expanding;
+
+	// the fingerprints and the counts of the span being updated
+	private transient long[] spanFingerprints;
+
+	private transient long[] spanCounts;
+
+	private transient int spanLength;
+
+	/**
+	 * This filter must be able to store at least {@code capacity} elements
+	 * while maintaining no more than {@code falsePositiveProbability} chance of
+	 * false positives.
+	 *
+	 * @param capacity
+	 *            the maximum number of distinct elements the filter can
+	 *            contain without to transcend the
+	 *            {@code falsePositiveProbability}, the counters of the
+	 *            elements added several times taking up slots too.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 */
+	public QuotientFilter(int capacity, double falsePositiveProbability) {
+		super(capacity, falsePositiveProbability);
+
+		// a lookup matches a remainder of the run of its quotient,
+		// which holds less than one remainder on average
+		int remainder = Math.max(1, (int) Math.ceil(
+				Math.log(1 / falsePositiveProbability) / Math.log(2)));
+		if (remainder > MAX_REMAINDER_BITS) {
+			throw new IllegalArgumentException(
+					"false positive probability is too low");
+		}
+
+		int quotient = MIN_QUOTIENT_BITS;
+		while (getMaxUsedSlots(quotient) < capacity) {
+			if (++quotient > MAX_QUOTIENT_BITS) {
+				throw new IllegalArgumentException("capacity is too large: " + capacity);
+			}
+		}
+		if (quotient + remainder > 63) {
+			throw new IllegalArgumentException(
+					"false positive probability is too low for this capacity");
+		}
+
+		this.fingerprintBits = quotient + remainder;
+		this.initialRemainderBits = remainder;
+		this.allocate(quotient);
+	}
+
+	/**
+	 * Adds one occurrence of the element identified by the specified
+	 * {@code digest}.
+	 *
+	 * @param digest
+	 *            the digest of the element to add.
+	 *
+	 * @return {@code true} if an element with the same fingerprint had already
+	 *         been added, {@code false} otherwise.
+	 *
+	 * @throws IllegalStateException
+	 *             if the filter is full and cannot be expanded.
+	 */
+	public boolean addDigest(long digest) {
+		long fingerprint = this.fingerprint(digest);
+		while (true) {
+			if (!this.isFull()) {
+				long previous = this.update(fingerprint, 1);
+				if (previous >= 0) {
+					return previous > 0;
+				}
+			}
+			if (!this.expanding || !this.isExpandable()) {
+				throw new IllegalStateException("quotient filter is at capacity");
+			}
+			this.expand();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		return this.find(this.fingerprint(digest)) > 0;
+	}
+
+	/**
+	 * Returns the number of occurrences of the specified element which have
+	 * been added and not removed. Elements sharing the fingerprint of
+	 * {@code elt} are counted too, hence the count returned is never lower
+	 * than the actual one.
+	 *
+	 * @param elt
+	 *            the element to count.
+	 *
+	 * @return the number of occurrences of the element.
+	 */
+	public long count(E elt) {
+		return this.countDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Returns the number of occurrences of the element identified by the
+	 * specified {@code digest}.
+	 *
+	 * @param digest
+	 *            the digest of the element to count.
+	 *
+	 * @return the number of occurrences of the element.
+	 *
+	 * @see #count(Object)
+	 */
+	public long countDigest(long digest) {
+		return this.find(this.fingerprint(digest));
+	}
+
+	/**
+	 * Removes one occurrence of the specified element from the filter. Only
+	 * elements which have been added must be removed, otherwise an occurrence
+	 * of another element sharing the same fingerprint may be removed.
+	 *
+	 * @param elt
+	 *            the element to remove.
+	 *
+	 * @return {@code true} if an occurrence matching the element has been
+	 *         removed, {@code false} otherwise.
+	 */
+	public boolean remove(E elt) {
+		return this.removeDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Removes one occurrence of the element identified by the specified
+	 * {@code digest}.
+	 *
+	 * @param digest
+	 *            the digest of the element to remove.
+	 *
+	 * @return {@code true} if an occurrence matching the element has been
+	 *         removed, {@code false} otherwise.
+	 *
+	 * @see #remove(Object)
+	 */
+	public boolean removeDigest(long digest) {
+		// removing frees slots, the span always fits
+		return this.update(this.fingerprint(digest), -1) > 0;
+	}
+
+	/**
+	 * Doubles the number of slots of the filter. The quotient of each
+	 * fingerprint takes the high bit of its remainder, the false positive
+	 * probability is thus doubled. The slots are rewritten in a single
+	 * sequential scan.
+	 *
+	 * @throws IllegalStateException
+	 *             if the remainders are one bit long or if the filter has
+	 *             the maximum number of slots.
+	 */
+	public void expand() {
+		if (!this.isExpandable()) {
+			throw new IllegalStateException("quotient filter cannot be expanded anymore");
+		}
+		this.rebuild(null, this.quotientBits + 1);
+	}
+
+	/**
+	 * Adds the occurrences of the elements of the specified filter to this
+	 * filter. Both filters are scanned once, their fingerprints being sorted.
+	 * The filter with the fewer slots is expanded on the fly, and the result
+	 * is expanded further when expansion is enabled and the fingerprints do
+	 * not fit.
+	 *
+	 * @param other
+	 *            the filter to merge, which is not modified.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the filters do not have fingerprints of the same length.
+	 *
+	 * @throws IllegalStateException
+	 *             if the fingerprints of both filters do not fit in this
+	 *             filter and it cannot be expanded.
+	 */
+	public void merge(QuotientFilter<E> other) {
+		if (other.fingerprintBits != this.fingerprintBits) {
+			throw new IllegalArgumentException(
+					"filters must have fingerprints of the same length");
+		}
+
+		int quotient = Math.max(this.quotientBits, other.quotientBits);
+		while (true) {
+			Writer layout = new Writer(null, quotient, 0);
+			join(new Cursor(this, 0, false), new Cursor(other, 0, false), layout);
+			if (layout.usedSlots <= getMaxUsedSlots(quotient)
+					&& layout.position <= getSlotsCount(quotient)) {
+				break;
+			}
+			if (!this.expanding || quotient == MAX_QUOTIENT_BITS
+					|| this.fingerprintBits - quotient == 1) {
+				throw new IllegalStateException("merged filters exceed the capacity");
+			}
+			quotient++;
+		}
+
+		this.rebuild(other, quotient);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		BitArray.clear(this.table);
+		this.usedSlots = 0;
+		this.distinctCount = 0;
+		this.totalCount = 0;
+	}
+
+	/**
+	 * Returns whether the slots used have reached the maximum load factor.
+	 *
+	 * @return {@code true} whether the filter is full, {@code false}
+	 *         otherwise.
+	 */
+	public boolean isFull() {
+		return this.usedSlots >= getMaxUsedSlots(this.quotientBits);
+	}
+
+	/**
+	 * Returns the number of distinct fingerprints stored in this filter.
+	 *
+	 * @return the number of distinct fingerprints stored in this filter.
+	 */
+	public int size() {
+		return this.distinctCount;
+	}
+
+	/**
+	 * Returns the number of occurrences added to this filter and not removed.
+	 *
+	 * @return the sum of the counts of the elements.
+	 */
+	public long getTotalCount() {
+		return this.totalCount;
+	}
+
+	/**
+	 * Returns the ratio of the canonical slots which are used.
+	 *
+	 * @return the ratio of used slots.
+	 */
+	public double getLoadFactor() {
+		return this.usedSlots / (double) (1 << this.quotientBits);
+	}
+
+	/**
+	 * Returns the capacity of the filter, doubled by each expansion.
+	 *
+	 * @return the capacity of the filter.
+	 */
+	@Override
+	public int getCapacity() {
+		return (int) Math.min(Integer.MAX_VALUE,
+				(long) this.capacity << (this.initialRemainderBits - this.remainderBits));
+	}
+
+	/**
+	 * Returns the false positive probability of the filter, doubled by each
+	 * expansion.
+	 *
+	 * @return the false positive probability of the filter.
+	 */
+	@Override
+	public double getFalsePositiveProbability() {
+		return this.falsePositiveProbability
+				* (1L << (this.initialRemainderBits - this.remainderBits));
+	}
+
+	/**
+	 * Sets whether a full filter is expanded before an element is added,
+	 * rather than rejecting the element.
+	 *
+	 * @param expanding
+	 *            whether the filter expands when it is full.
+	 */
+	public void setExpanding(boolean expanding) {
+		this.expanding = expanding;
+	}
+
+	/**
+	 * Returns whether a full filter is expanded before an element is added.
+	 *
+	 * @return whether the filter expands when it is full.
+	 */
+	public boolean isExpanding() {
+		return this.expanding;
+	}
+
+	/**
+	 * Returns the number of bits of the fingerprint of an element.
+	 *
+	 * @return the number of bits of a fingerprint.
+	 */
+	public int getFingerprintBits() {
+		return this.fingerprintBits;
+	}
+
+	/**
+	 * Returns the number of bits of a quotient, the filter having
+	 * {@code 2^quotientBits} canonical slots.
+	 *
+	 * @return the number of bits of a quotient.
+	 */
+	public int getQuotientBits() {
+		return this.quotientBits;
+	}
+
+	/**
+	 * Returns the number of bits of the remainders stored in the slots.
+	 *
+	 * @return the number of bits of a remainder.
+	 */
+	public int getRemainderBits() {
+		return this.remainderBits;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() +
+			"[quotientBits=" + this.quotientBits
+				+ ", remainderBits=" + this.remainderBits
+				+ ", totalCount=" + this.totalCount + "]";
+	}
+
+	private long fingerprint(long digest) {
+		return digest >>> (64 - this.fingerprintBits);
+	}
+
+	private boolean isExpandable() {
+		return this.remainderBits > 1 && this.quotientBits < MAX_QUOTIENT_BITS;
+	}
+
+	private void allocate(int quotientBits) {
+		this.quotientBits = quotientBits;
+		this.remainderBits = this.fingerprintBits - quotientBits;
+		this.slotBits = this.remainderBits + FLAGS_BITS;
+		this.slotsCount = getSlotsCount(quotientBits);
+		this.table = new long[BitPacking.wordsCount(this.slotsCount, this.slotBits)];
+	}
+
+	private long slot(int index) {
+		return BitPacking.get(this.table, (long) index * this.slotBits, this.slotBits);
+	}
+
+	/**
+	 * Returns the count of the specified fingerprint, 0 if it is not stored.
+	 */
+	private long find(long fingerprint) {
+		int quotient = (int) (fingerprint >>> this.remainderBits);
+		long remainder = fingerprint & ((1L << this.remainderBits) - 1);
+
+		long slot = this.slot(quotient);
+		if ((slot & OCCUPIED) == 0) {
+			return 0;
+		}
+
+		// the start of the cluster, the first slot which is not shifted
+		int start = quotient;
+		while ((slot & SHIFTED) != 0) {
+			slot = this.slot(--start);
+		}
+
+		// skips the runs of the quotients of the cluster before this one
+		int index = start;
+		int runQuotient = start;
+		while (runQuotient != quotient) {
+			do {
+				index++;
+			} while ((this.slot(index) & CONTINUATION) != 0);
+			do {
+				runQuotient++;
+			} while ((this.slot(runQuotient) & OCCUPIED) == 0);
+		}
+
+		// scans the run, whose remainders are sorted
+		slot = this.slot(index);
+		while (true) {
+			long current = slot >>> FLAGS_BITS;
+			if (current > remainder) {
+				return 0;
+			}
+
+			index++;
+			long extra = 0;
+			int shift = 0;
+			while (index < this.slotsCount
+					&& ((slot = this.slot(index)) & COUNTER) != 0) {
+				extra |= (slot >>> FLAGS_BITS) << shift;
+				shift += this.remainderBits;
+				index++;
+			}
+
+			if (current == remainder) {
+				return 1 + extra;
+			}
+			if (index == this.slotsCount || (slot & CONTINUATION) == 0) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Adds {@code delta} to the count of the specified fingerprint. The
+	 * fingerprints from the start of the cluster of its quotient up to the
+	 * next empty slot are decoded, updated and written back, along with the
+	 * next clusters when the span becomes longer.
+	 *
+	 * @return the previous count of the fingerprint, or {@code -1} if the
+	 *         span does not fit in the slots.
+	 */
+	private long update(long fingerprint, long delta) {
+		int quotient = (int) (fingerprint >>> this.remainderBits);
+
+		int start = quotient;
+		while ((this.slot(start) & SHIFTED) != 0) {
+			start--;
+		}
+
+		if (this.spanFingerprints == null) {
+			this.spanFingerprints = new long[16];
+			this.spanCounts = new long[16];
+		}
+		this.spanLength = 0;
+		int end = this.decode(start);
+
+		int index = Arrays.binarySearch(this.spanFingerprints, 0, this.spanLength, fingerprint);
+		long previous = index >= 0 ? this.spanCounts[index] : 0;
+		long count = previous + delta;
+		if (count < 0) {
+			return 0;
+		}
+
+		if (index < 0) {
+			this.insert(-index - 1, fingerprint, count);
+		} else if (count == 0) {
+			System.arraycopy(this.spanFingerprints, index + 1,
+					this.spanFingerprints, index, this.spanLength - index - 1);
+			System.arraycopy(this.spanCounts, index + 1,
+					this.spanCounts, index, this.spanLength - index - 1);
+			this.spanLength--;
+		} else {
+			this.spanCounts[index] = count;
+		}
+
+		// the clusters the span runs into are updated as well
+		int last = this.layout(start);
+		int next = end;
+		while (next < last) {
+			if (next == this.slotsCount) {
+				return -1;
+			}
+			if (isEmpty(this.slot(next))) {
+				next++;
+			} else {
+				end = this.decode(next);
+				last = this.layout(start);
+				next = end;
+			}
+		}
+
+		for (int i = start; i < end; i++) {
+			BitPacking.set(this.table, (long) i * this.slotBits, this.slotBits, 0);
+		}
+		Writer writer = new Writer(this.table, this.quotientBits, start);
+		for (int i = 0; i < this.spanLength; i++) {
+			writer.append(this.spanFingerprints[i], this.spanCounts[i]);
+		}
+
+		this.usedSlots += this.getSlotsUsed(count) - this.getSlotsUsed(previous);
+		if (previous == 0) {
+			this.distinctCount++;
+		} else if (count == 0) {
+			this.distinctCount--;
+		}
+		this.totalCount += delta;
+		return previous;
+	}
+
+	/**
+	 * Appends the fingerprints of the span starting at the specified slot to
+	 * the span being updated.
+	 *
+	 * @return the index of the empty slot ending the span.
+	 */
+	private int decode(int start) {
+		Cursor cursor = new Cursor(this, start, true);
+		while (cursor.next()) {
+			this.insert(this.spanLength, cursor.fingerprint(), cursor.count);
+		}
+		return cursor.slot;
+	}
+
+	private void insert(int index, long fingerprint, long count) {
+		if (this.spanLength == this.spanFingerprints.length) {
+			this.spanFingerprints = Arrays.copyOf(this.spanFingerprints, this.spanLength * 2);
+			this.spanCounts = Arrays.copyOf(this.spanCounts, this.spanLength * 2);
+		}
+
+		System.arraycopy(this.spanFingerprints, index,
+				this.spanFingerprints, index + 1, this.spanLength - index);
+		System.arraycopy(this.spanCounts, index,
+				this.spanCounts, index + 1, this.spanLength - index);
+		this.spanFingerprints[index] = fingerprint;
+		this.spanCounts[index] = count;
+		this.spanLength++;
+	}
+
+	/**
+	 * Returns the index of the slot following the span being updated once
+	 * written from the specified slot.
+	 */
+	private int layout(int start) {
+		Writer writer = new Writer(null, this.quotientBits, start);
+		for (int i = 0; i < this.spanLength; i++) {
+			writer.append(this.spanFingerprints[i], this.spanCounts[i]);
+		}
+		return writer.position;
+	}
+
+	/**
+	 * Replaces the slots by the ones of a filter with the specified number of
+	 * quotient bits, holding the fingerprints of this filter and of the
+	 * specified one if any.
+	 */
+	private void rebuild(QuotientFilter<E> other, int quotientBits) {
+		Cursor cursor = new Cursor(this, 0, false);
+		Cursor otherCursor = other == null ? null : new Cursor(other, 0, false);
+
+		this.allocate(quotientBits);
+		Writer writer = new Writer(this.table, quotientBits, 0);
+		join(cursor, otherCursor, writer);
+
+		this.usedSlots = writer.usedSlots;
+		this.distinctCount = writer.distinctCount;
+		this.totalCount = writer.totalCount;
+	}
+
+	/**
+	 * Writes the fingerprints of both cursors by increasing order, the counts
+	 * of the fingerprints read by both being summed.
+	 */
+	private void join(Cursor cursor, Cursor other, Writer writer) {
+		boolean hasNext = cursor.next();
+		boolean otherHasNext = other != null && other.next();
+		while (hasNext || otherHasNext) {
+			if (!otherHasNext
+					|| (hasNext && cursor.fingerprint() < other.fingerprint())) {
+				writer.append(cursor.fingerprint(), cursor.count);
+				hasNext = cursor.next();
+			} else if (!hasNext || other.fingerprint() < cursor.fingerprint()) {
+				writer.append(other.fingerprint(), other.count);
+				otherHasNext = other.next();
+			} else {
+				writer.append(cursor.fingerprint(), cursor.count + other.count);
+				hasNext = cursor.next();
+				otherHasNext = other.next();
+			}
+		}
+	}
+
+	private int getSlotsUsed(long count) {
+		return getSlotsUsed(count, this.remainderBits);
+	}
+
+	/**
+	 * Returns the number of slots storing the remainder and the digits of the
+	 * specified count.
+	 */
+	private static int getSlotsUsed(long count, int remainderBits) {
+		if (count <= 1) {
+			return (int) count;
+		}
+		int bits = 64 - Long.numberOfLeadingZeros(count - 1);
+		return 1 + (bits + remainderBits - 1) / remainderBits;
+	}
+
+	private static int getMaxUsedSlots(int quotientBits) {
+		int canonical = 1 << quotientBits;
+		return canonical - canonical / 10;
+	}
+
+	private static int getSlotsCount(int quotientBits) {
+		int canonical = 1 << quotientBits;
+		return canonical + Math.max(64, (int) (10 * Math.sqrt(canonical)));
+	}
+
+	private static boolean isEmpty(long slot) {
+		return (slot & (OCCUPIED | CONTINUATION | SHIFTED)) == 0;
+	}
+
+	/**
+	 * Reads the fingerprints of a filter by increasing order, from a slot
+	 * which starts a cluster up to the next empty slot or up to the end of
+	 * the slots.
+	 */
+	private static final class Cursor {
+
+		private final long[] table;
+
+		private final int slotBits;
+
+		private final int remainderBits;
+
+		private final int slotsCount;
+
+		// whether the cursor stops at the first empty slot
+		private final boolean span;
+
+		// the next slot to read
+		int slot;
+
+		// the quotient of the run being read
+		private int quotient;
+
+		private long remainder;
+
+		long count;
+
+		Cursor(QuotientFilter<?> filter, int start, boolean span) {
+			this.table = filter.table;
+			this.slotBits = filter.slotBits;
+			this.remainderBits = filter.remainderBits;
+			this.slotsCount = filter.slotsCount;
+			this.span = span;
+			this.slot = start;
+			this.quotient = start;
+		}
+
+		boolean next() {
+			long slot;
+			if (this.span) {
+				if (this.slot == this.slotsCount || isEmpty(slot = this.get(this.slot))) {
+					return false;
+				}
+			} else {
+				while (this.slot < this.slotsCount && isEmpty(this.get(this.slot))) {
+					this.slot++;
+				}
+				if (this.slot == this.slotsCount) {
+					return false;
+				}
+				slot = this.get(this.slot);
+			}
+
+			if ((slot & SHIFTED) == 0) {
+				// the start of a cluster
+				this.quotient = this.slot;
+			} else if ((slot & CONTINUATION) == 0) {
+				// the start of the run of the next occupied quotient
+				do {
+					this.quotient++;
+				} while ((this.get(this.quotient) & OCCUPIED) == 0);
+			}
+
+			this.remainder = slot >>> FLAGS_BITS;
+			this.slot++;
+
+			long extra = 0;
+			int shift = 0;
+			while (this.slot < this.slotsCount
+					&& ((slot = this.get(this.slot)) & COUNTER) != 0) {
+				extra |= (slot >>> FLAGS_BITS) << shift;
+				shift += this.remainderBits;
+				this.slot++;
+			}
+			this.count = 1 + extra;
+			return true;
+		}
+
+		long fingerprint() {
+			return ((long) this.quotient << this.remainderBits) | this.remainder;
+		}
+
+		private long get(int index) {
+			return BitPacking.get(this.table, (long) index * this.slotBits, this.slotBits);
+		}
+
+	}
+
+	/**
+	 * Writes fingerprints by increasing order from a slot, or only computes
+	 * the slots they take up when no table is given.
+	 */
+	private final class Writer {
+
+		private final long[] table;
+
+		private final int remainderBits;
+
+		private final int slotBits;
+
+		// the next slot to write
+		int position;
+
+		// the quotient of the run being written
+		private int quotient = -1;
+
+		int usedSlots;
+
+		int distinctCount;
+
+		long totalCount;
+
+		Writer(long[] table, int quotientBits, int start) {
+			this.table = table;
+			this.remainderBits = QuotientFilter.this.fingerprintBits - quotientBits;
+			this.slotBits = this.remainderBits + FLAGS_BITS;
+			this.position = start;
+		}
+
+		void append(long fingerprint, long count) {
+			int quotient = (int) (fingerprint >>> this.remainderBits);
+			long remainder = fingerprint & ((1L << this.remainderBits) - 1);
+			int used = getSlotsUsed(count, this.remainderBits);
+
+			boolean first = quotient != this.quotient;
+			if (first) {
+				this.position = Math.max(this.position, quotient);
+				this.quotient = quotient;
+			}
+
+			if (this.table != null) {
+				if (first) {
+					BitPacking.set(this.table, (long) quotient * this.slotBits, 1, 1);
+				}
+				this.set(this.position,
+						(first ? 0 : CONTINUATION) | (this.position != quotient ? SHIFTED : 0),
+						remainder);
+				long extra = count - 1;
+				for (int i = 1; i < used; i++) {
+					this.set(this.position + i, CONTINUATION | SHIFTED | COUNTER,
+							extra & ((1L << this.remainderBits) - 1));
+					extra >>>= this.remainderBits;
+				}
+			}
+
+			this.position += used;
+			this.usedSlots += used;
+			this.distinctCount++;
+			this.totalCount += count;
+		}
+
+		/**
+		 * Writes the flags and the remainder of a slot, keeping its occupied
+		 * flag.
+		 */
+		private void set(int index, long flags, long remainder) {
+			BitPacking.set(this.table, (long) index * this.slotBits + 1,
+					this.slotBits - 1, (flags | remainder << FLAGS_BITS) >>> 1);
+		}
+
+	}
+
+}
@@ -1,7 +1,13 @@
 package com.elaunira.sbf;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * Scalable Bloom Filter is an implementation of a SBF as described in the
@@ -11,6 +17,44 @@ import java.util.LinkedList;
  * <p>
  * This implementation is greatly inspired from the Python version available at
  * {@link https://github.com/jaybaird/python-bloomfilter}.
+ * <p>
+ * When freezing is enabled (see {@link #setFreezing(boolean)}), the digests of
+ * the elements added to the last filter are retained and the filter is
+ * compacted into a {@link BinaryFuseFilter} as soon as it is full. A frozen
+ * filter is never written again, takes about 25% less memory and is faster to
+ * query.
+ * <p>
+ * An element is hashed once, then its digest is checked against each filter.
+ * <p>
+ * The capacity and the false positive probability of each filter are given by
+ * a {@link StagePlanner}. When a preallocator is set (see
+ * {@link #setPreallocator(Executor)}), the next filter is allocated in the
+ * background once the last one is three quarters full, so that the thread
+ * which triggers the growth does not pay for the allocation.
+ * <p>
+ * Since a lookup for an element which has not been added has to check every
+ * filter, small summaries of the filters may be maintained (see
+ * {@link #setSummaries(boolean)}). A summary answers with a single memory
+ * access whether its filter may contain an element, and the filters are then
+ * checked by decreasing number of hits. Most of the negative lookups are thus
+ * answered without touching the bit arrays of the filters.
+ * <p>
+ * When compaction is enabled (see {@link #setCompacting(boolean)}), the
+ * digests of the elements are retained and the filters which are no longer
+ * written may be merged (see {@link #compact()}), in the background if
+ * required, into a single filter with the same compound false positive
+ * probability, so that a lookup checks fewer filters.
+ * <p>
+ * The filter grows without limit unless a memory budget is set (see
+ * {@link #setMemoryBudget(long, Overflow)}). When the next filter does not fit
+ * in the budget, the filter either folds the largest filters into half their
+ * size, stops growing and saturates its last filter, or evicts the oldest
+ * filters. The false positive probability reached is then given by
+ * {@link #getEstimatedFalsePositiveProbability()}.
+ * <p>
+ * This class is not thread-safe, unless the single-writer mode is enabled
+ * (see {@link #setSingleWriter(boolean)}): one thread may then add elements
+ * while any number of threads query the filter without any lock.
  * 
  * @author Laurent Pellegrino
  * 
@@ -20,13 +64,114 @@ public class ScalableBloomFilter<E> extends BloomFilter<E> {
 
 	private static final long serialVersionUID = 1L;
 
+	// the fill ratio of the last filter from which the next one is allocated
+	private static final double PREALLOCATION_THRESHOLD = 0.75;
+
+	// the number of lookups after which the filters are sorted again
+	private static final int REORDER_PERIOD = 4096;
+
+	// the lookups reported to the planner are the ones of the digests
+	// whose low bits are zeros
+	private static final long OBSERVATION_MASK = 63;
+
+	// the number of bits per slice under which a filter is not folded
+	private static final int MIN_FOLDED_BITS_PER_SLICE = 64;
+
+	// the maximum ratio of bits set in a folded filter, which 
+	// allows to fold once a filter filled to its capacity
+	private static final double MAX_FOLDED_FILL = 0.75;
+
 	// tightening ratio of error probability
 	private final double ratio;
 
 	// growth ratio when full
 	private final Mode scale;
 	
-	private final LinkedList<SlicedBloomFilter<E>> filters;
+	private final ArrayList<BloomFilter<E>> filters;
+
+	// the summary of each filter, null entries when the summary is disabled
+	private final ArrayList<StageSummary> summaries;
+
+	// whether a summary is maintained for the filters created from now
+	private boolean summarizing;
+
+	// the indexes of the filters by decreasing number of hits
+	private int[] order;
+
+	// the number of lookups since the filters have been sorted
+	private int lookups;
+
+	// whether the readers query the published view
+	private boolean singleWriter;
+
+	// the filters visible to the readers in single-writer mode
+	private volatile View<E> view;
+
+	// the version the modifications are marked with, 0 if not tracked
+	private int version;
+
+	// the schedule of the filters
+	private final StagePlanner planner;
+
+	// whether the lookups are reported to the planner
+	private final boolean observing;
+
+	// the last filter, to which elements are added (null if 
+	// no filter has been created yet or if it has been frozen)
+	private SlicedBloomFilter<E> current;
+
+	// whether the filters which are full are frozen
+	private boolean freezing;
+
+	// the digests of the elements added to the last filter when
+	// freezing or compaction is enabled, null otherwise
+	private DigestSet digests;
+
+	// whether the digests of the elements are retained for compaction
+	private boolean compacting;
+
+	// the digests of the elements of each filter which is no longer 
+	// written, null entries when they have not been retained
+	private final ArrayList<long[]> sealedDigests;
+
+	// the number of filters removed by merging them, the stage
+	// planned for the next filter being offset by this number
+	private int mergedCount;
+
+	// the filters being merged in the background, if any
+	private transient FutureTask<List<Merge<E>>> compaction;
+
+	// the pool the filters are taken from and released to (optional)
+	private transient StagePool pool;
+
+	// the executor allocating the next filter in the background (optional)
+	private transient Executor preallocator;
+
+	// the next filter being allocated in the background, if any
+	private transient FutureTask<SlicedBloomFilter<E>> next;
+
+	// the maximum number of bytes of the filters, of their summaries and of
+	// the digests retained (Long.MAX_VALUE if unlimited)
+	private long memoryBudget = Long.MAX_VALUE;
+
+	// what to do when the next filter does not fit in the budget
+	private Overflow overflow = Overflow.SATURATE;
+
+	// whether the next filter has been found not to fit in the budget since
+	// the filters or the budget last changed, the memory used only growing
+	// in the meantime
+	private transient boolean unfit;
+
+	// whether the elements are added to the last filter beyond its capacity
+	private boolean saturated;
+
+	private long foldsCount;
+
+	private long evictionsCount;
+
+	// the sum of the false positive probabilities of the filters
+	// when the first one has been evicted, 0 before
+	private double evictionProbability;
 	
 	public enum Mode {
 		// slower, but takes up less memory
@@ -40,6 +185,21 @@ public class ScalableBloomFilter<E> extends BloomFilter<E> {
 			this.value = v;
 		}
 	}
+
+	/**
+	 * What the filter does when the next filter does not fit in its memory
+	 * budget.
+	 */
+	public enum Overflow {
+		// folds the largest filters into half their size until the next one
+		// fits, then saturates when no filter can be folded anymore
+		COMPACT,
+		// stops growing, the elements are added to the last filter
+		// beyond its capacity
+		SATURATE,
+		// removes the oldest filters, whose elements are forgotten
+		EVICT
+	}
 	
 	public ScalableBloomFilter() {
 		this(Mode.SMALL_SET_GROWTH, 0.9, 100, 0.001);
@@ -50,103 +210,1498 @@ public class ScalableBloomFilter<E> extends BloomFilter<E> {
 	}
 	
 	public ScalableBloomFilter(Mode mode, double ratio, int capacity, double falsePositiveProbability) {
-		super(capacity, falsePositiveProbability);
-		
-		this.ratio = ratio;
-		this.scale = mode;
-		
-		this.filters = new LinkedList<SlicedBloomFilter<E>>();
+		this(new StagePlanner(mode, ratio, capacity, falsePositiveProbability));
+	}
+
+	/**
+	 * Creates a filter whose filters are planned by the specified planner,
+	 * for instance an {@link AdaptiveStagePlanner}.
+	 * 
+	 * @param planner
+	 *            the planner giving the capacity and the false positive
+	 *            probability of each filter.
+	 */
+	public ScalableBloomFilter(StagePlanner planner) {
+		super(planner.getInitialCapacity(), planner.getFalsePositiveProbability());
+
+		this.ratio = planner.getRatio();
+		this.scale = planner.getScale();
+
+		this.filters = new ArrayList<BloomFilter<E>>();
+		this.summaries = new ArrayList<StageSummary>();
+		this.sealedDigests = new ArrayList<long[]>();
+		this.order = new int[0];
+		this.planner = planner;
+		this.observing = planner.isObservingLookups();
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
-	public boolean add(E elt) {
-		if (this.contains(elt)) {
+	public boolean addDigest(long digest) {
+		if (this.compaction != null && this.compaction.isDone()) {
+			this.installCompaction();
+		}
+
+		int stage = this.findLocal(digest);
+		if (stage >= 0 && !this.isRetained(stage, digest)) {
+			// a false positive of a filter whose digests are retained: the
+			// element would be lost when the filter is frozen or merged
+			stage = -1;
+		}
+
+		boolean contained = stage >= 0;
+		// with eviction, an element found in an older filter is added again
+		// to the last one, otherwise it would be lost with the older filter
+		if (contained && (this.overflow != Overflow.EVICT 
+				|| this.memoryBudget == Long.MAX_VALUE
+				|| stage == this.filters.size() - 1)) {
 			return true;
 		}
 		
-		if (this.filters.isEmpty() 
-				|| this.filters.getLast().isFull()) {
-			this.filters.add(
-					new SlicedBloomFilter<E>(
-							(int) (super.capacity * Math.pow(this.scale.value, this.filters.size())),
-									falsePositiveProbability * Math.pow(this.ratio, this.filters.size())));
+		boolean appended = false;
+		if (this.current == null || this.current.isFull()) {
+			int capacity = this.saturated ? 0 : this.reserveStage();
+			if (capacity == 0 && this.current != null) {
+				this.saturate(digest);
+				return contained;
+			}
+
+			appended = true;
+			this.sealDigests();
+			if (this.freezing && this.digests != null) {
+				this.freezeLast();
+			}
+
+			this.current = this.nextStage(Math.max(1, capacity));
+			if (this.version > 0) {
+				this.current.track(this.version);
+			}
+			this.filters.add(this.current);
+			this.unfit = false;
+			this.summaries.add(
+					this.summarizing 
+						? new StageSummary(this.current.getCapacity()) : null);
+			this.sealedDigests.add(null);
+
+			if (this.freezing || this.compacting) {
+				this.digests = new DigestSet(Math.min(this.current.getCapacity() + 1, 1024));
+			}
 		}
 		
-		this.filters.getLast().addWithoutCheck(elt);
+		this.current.addDigestWithoutCheck(digest);
+
+		StageSummary summary = this.summaries.get(this.summaries.size() - 1);
+		if (summary != null) {
+			summary.add(digest);
+		}
+
+		if (this.digests != null) {
+			this.digests.add(digest);
+		}
+
+		if (appended && this.singleWriter) {
+			this.publish();
+		}
+
+		if (this.preallocator != null && this.next == null && !this.unfit
+				&& this.current.size() >= PREALLOCATION_THRESHOLD * this.current.getCapacity()) {
+			if (this.fits(this.getNextStage())) {
+				final int capacity = this.planner.getCapacity(this.getNextStage());
+				final double falsePositiveProbability = 
+					this.getStageFalsePositiveProbability(this.getNextStage());
+				this.next = new FutureTask<SlicedBloomFilter<E>>(
+						new Callable<SlicedBloomFilter<E>>() {
+							public SlicedBloomFilter<E> call() {
+								return ScalableBloomFilter.this.allocateStage(
+										capacity, falsePositiveProbability);
+							}
+						});
+				this.preallocator.execute(this.next);
+			} else {
+				// not checked again on each addition to the last filter
+				this.unfit = true;
+			}
+		}
 		
-		return false;
+		return contained;
 	}
-	
+
+	private SlicedBloomFilter<E> nextStage(int capacity) {
+		FutureTask<SlicedBloomFilter<E>> task = this.next;
+		this.next = null;
+
+		int stage = this.getNextStage();
+		if (task != null && capacity == this.planner.getCapacity(stage)) {
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// allocates the filter in the current thread
+			}
+		}
+
+		return this.allocateStage(
+				capacity, this.getStageFalsePositiveProbability(stage));
+	}
+
 	/**
-	 * {@inheritDoc}
+	 * Makes room for the next filter in the memory budget, according to the
+	 * overflow policy, and returns its capacity. The capacity planned is
+	 * reduced to the memory left if it does not fit, unless the last filter
+	 * would then be larger.
+	 * 
+	 * @return the capacity of the next filter or {@code 0} if the last filter
+	 *         has to be saturated instead, the budget being reached or the
+	 *         schedule of the planner having stopped.
 	 */
-	public boolean contains(E elt) {
-		Iterator<SlicedBloomFilter<E>> iterator = this.filters.descendingIterator();
-		
-		while (iterator.hasNext()) {
-			if (iterator.next().contains(elt)) {
-				return true;
+	private int reserveStage() {
+		if (this.memoryBudget == Long.MAX_VALUE) {
+			return this.planner.getCapacity(this.getNextStage());
+		}
+
+		boolean changed = false;
+		while (!this.fits(this.getNextStage())) {
+			if (this.overflow == Overflow.EVICT && !this.filters.isEmpty()) {
+				this.evictOldest();
+			} else if (this.overflow != Overflow.COMPACT 
+					|| this.planner.getCapacity(this.getNextStage()) == 0
+					|| !this.foldLargest()) {
+				// folding does not help once the schedule has stopped
+				break;
 			}
+			changed = true;
 		}
-		
-		return false;
+
+		if (changed) {
+			// the preallocated filter may no longer be the next one
+			this.next = null;
+			this.unfit = false;
+			if (this.singleWriter) {
+				this.publish();
+			}
+		}
+
+		int stage = this.getNextStage();
+		int planned = this.planner.getCapacity(stage);
+		if (planned == 0) {
+			return 0;
+		}
+		double falsePositiveProbability = this.getStageFalsePositiveProbability(stage);
+		long available = this.memoryBudget - this.getMemoryUsage();
+		int capacity = planned;
+		while (capacity > 1 
+				&& this.getStageBytes(capacity, falsePositiveProbability) > available) {
+			capacity = capacity * 3 / 4;
+		}
+
+		if (capacity < planned && this.current != null 
+				&& capacity < this.current.getCapacity()) {
+			// the elements beyond the budget go to the largest filter
+			return 0;
+		}
+		return capacity;
 	}
-	
+
 	/**
-	 * {@inheritDoc}
+	 * Returns the false positive probability of the filter appended at the
+	 * specified {@code stage}. Once filters have been evicted, the filter
+	 * takes at most half of the probability left by the filters kept, so that
+	 * the sum of their probabilities never exceeds the one they had when the
+	 * first filter has been evicted.
 	 */
-	public int size() {
-		int sum = 0;
-		for (SlicedBloomFilter<E> bf : this.filters) {
-			sum += bf.size();
+	private double getStageFalsePositiveProbability(int stage) {
+		double planned = this.planner.getFalsePositiveProbability(stage);
+		if (this.evictionProbability == 0) {
+			return planned;
 		}
-		return sum;
+
+		double left = this.evictionProbability;
+		for (BloomFilter<E> bf : this.filters) {
+			left -= bf.getFalsePositiveProbability();
+		}
+		return Math.min(planned, left / 2);
 	}
-	
+
+	/**
+	 * Returns whether the filter planned at the specified {@code stage} fits
+	 * in the memory budget, which is never the case once the schedule of the
+	 * planner has stopped.
+	 */
+	private boolean fits(int stage) {
+		if (this.planner.getCapacity(stage) == 0) {
+			return false;
+		}
+		return this.memoryBudget == Long.MAX_VALUE
+			|| this.getMemoryUsage() + this.getStageBytes(
+					this.planner.getCapacity(stage), 
+					this.getStageFalsePositiveProbability(stage)) <= this.memoryBudget;
+	}
+
+	/**
+	 * Returns the number of bytes taken by a new filter with the specified
+	 * parameters, including its summary and its digests if any.
+	 */
+	private long getStageBytes(int capacity, double falsePositiveProbability) {
+		int slicesCount = 
+			BloomFilterUtil.computeSlicesCount(capacity, falsePositiveProbability);
+		long bits = (long) slicesCount * BloomFilterUtil.computeBitsPerSlice(
+				capacity, falsePositiveProbability, slicesCount);
+
+		long result = ((bits + 63) >>> 6) * 8;
+		if (this.summarizing) {
+			result += StageSummary.getBitsCount(capacity) / 8;
+		}
+		if (this.freezing || this.compacting) {
+			result += DigestSet.getBytes(capacity + 1);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the stage of the planner of the next filter.
+	 */
+	private int getNextStage() {
+		return this.filters.size() + this.mergedCount;
+	}
+
+	/**
+	 * Adds the specified digest to the last filter beyond its capacity, the
+	 * memory budget being reached or the schedule of the planner having
+	 * stopped.
+	 */
+	private void saturate(long digest) {
+		if (!this.saturated) {
+			this.saturated = true;
+			// the last filter is never frozen from now
+			this.digests = null;
+			this.next = null;
+		}
+
+		this.current.addDigestBeyondCapacity(digest);
+		StageSummary summary = this.summaries.get(this.summaries.size() - 1);
+		if (summary != null) {
+			summary.add(digest);
+		}
+	}
+
+	/**
+	 * Folds the filter with the most bits into half its size. A filter is
+	 * folded only if at most {@value #MAX_FOLDED_FILL} of the bits of the
+	 * folded filter are expected to be set, thus once if it is full, so that
+	 * its false positive probability remains bounded.
+	 * 
+	 * @return {@code false} if no filter can be folded.
+	 */
+	private boolean foldLargest() {
+		int largest = -1;
+		long largestBits = 0;
+		for (int i = 0; i < this.filters.size(); i++) {
+			BloomFilter<E> bf = this.filters.get(i);
+			if (bf instanceof SlicedBloomFilter<?>) {
+				SlicedBloomFilter<E> stage = (SlicedBloomFilter<E>) bf;
+				long bits = stage.getBits().bitsCount();
+				// each element sets a bit per slice
+				double fill = 1 - Math.exp(-2.0 * stage.size() / stage.getBitsPerSlice());
+				if (stage.getBitsPerSlice() >= 2 * MIN_FOLDED_BITS_PER_SLICE 
+						&& fill <= MAX_FOLDED_FILL && bits > largestBits) {
+					largest = i;
+					largestBits = bits;
+				}
+			}
+		}
+
+		if (largest == -1) {
+			return false;
+		}
+
+		SlicedBloomFilter<E> stage = (SlicedBloomFilter<E>) this.filters.get(largest);
+		SlicedBloomFilter<E> folded = stage.fold(stage.getBitsPerSlice() / 2);
+		if (this.version > 0) {
+			folded.track(this.version);
+		}
+		this.filters.set(largest, folded);
+		if (stage == this.current) {
+			this.current = folded;
+		}
+		if (this.pool != null && !this.singleWriter) {
+			this.pool.release(stage);
+		}
+
+		this.foldsCount++;
+		return true;
+	}
+
+	private void evictOldest() {
+		if (this.evictionProbability == 0) {
+			for (BloomFilter<E> bf : this.filters) {
+				this.evictionProbability += bf.getFalsePositiveProbability();
+			}
+		}
+
+		BloomFilter<E> evicted = this.filters.remove(0);
+		this.summaries.remove(0);
+		this.sealedDigests.remove(0);
+		this.order = new int[0];
+
+		if (evicted == this.current) {
+			this.current = null;
+			this.digests = null;
+		}
+		if (this.pool != null && !this.singleWriter 
+				&& evicted instanceof SlicedBloomFilter<?>) {
+			this.pool.release((SlicedBloomFilter<E>) evicted);
+		}
+
+		if (this.version > 0) {
+			// the filters have moved, the replicas receive them whole
+			// (the filters are not frozen while tracking)
+			for (BloomFilter<E> bf : this.filters) {
+				if (bf instanceof SlicedBloomFilter<?>) {
+					((SlicedBloomFilter<E>) bf).resetTracking(this.version);
+				}
+			}
+		}
+
+		this.evictionsCount++;
+	}
+
+	private SlicedBloomFilter<E> allocateStage(int capacity, double falsePositiveProbability) {
+		StagePool pool = this.pool;
+		if (pool == null) {
+			return new SlicedBloomFilter<E>(capacity, falsePositiveProbability);
+		}
+		return pool.acquire(capacity, falsePositiveProbability);
+	}
+
 	/**
 	 * {@inheritDoc}
+	 * <p>
+	 * When a pool has been set, the filters are released to it, unless the
+	 * single-writer mode is enabled since readers may still query them.
 	 */
-	public int getCapacity() {
-		return -1;
+	public void clear() {
+		if (this.pool != null && !this.singleWriter) {
+			for (BloomFilter<E> bf : this.filters) {
+				if (bf instanceof SlicedBloomFilter<?>) {
+					this.pool.release((SlicedBloomFilter<E>) bf);
+				}
+			}
+		}
+
+		this.filters.clear();
+		this.summaries.clear();
+		this.sealedDigests.clear();
+		this.order = new int[0];
+		this.mergedCount = 0;
+		this.compaction = null;
+		this.current = null;
+		this.saturated = false;
+		this.evictionProbability = 0;
+		// the preallocated filter does not match the first stage
+		this.next = null;
+		this.unfit = false;
+		this.digests = null;
+
+		if (this.singleWriter) {
+			this.publish();
+		}
 	}
 
 	/**
-	 * Returns the initial capacity of the filter when it has been created.
+	 * Enables or disables the single-writer mode. In this mode, the elements
+	 * must be added by a single thread (the writer) but the filter may be
+	 * queried concurrently by any number of threads (the readers) without any
+	 * lock. The readers query the filters as they were when
+	 * {@link #publish()} has been called for the last time: an element added
+	 * by the writer is guaranteed to be seen by the readers once the next
+	 * call to {@link #publish()} has returned, and may be seen before.
+	 * <p>
+	 * The filters are published automatically when one is appended or frozen.
+	 * {@link #size()} returns the number of elements published. In this mode,
+	 * the filters are never released to the {@link StagePool} since a reader
+	 * may still be using them.
 	 * 
-	 * @return the initial capacity of the filter when it has been created.
+	 * @param singleWriter
+	 *            whether the single-writer mode is enabled.
 	 */
-	public int getInitialCapacity() {
-		return super.capacity;
+	public void setSingleWriter(boolean singleWriter) {
+		this.singleWriter = singleWriter;
+		this.publish();
 	}
-	
+
 	/**
-	 * Returns the tightening ratio of error probability.
+	 * Returns whether the single-writer mode is enabled.
 	 * 
-	 * @return the tightening ratio of error probability.
+	 * @return whether the single-writer mode is enabled.
 	 */
-	public double getRatio() {
-		return this.ratio;
+	public boolean isSingleWriter() {
+		return this.singleWriter;
 	}
-	
+
 	/**
-	 * Returns the growth ratio value used when a new filter has to be appended.
+	 * Makes the elements added so far visible to the readers, when the
+	 * single-writer mode is enabled. It is typically called by the writer
+	 * once a batch of elements has been added. This method must only be
+	 * called by the writer.
+	 */
+	@SuppressWarnings("unchecked")
+	public void publish() {
+		if (this.compaction != null && this.compaction.isDone()) {
+			// publishes the merged filters
+			this.installCompaction();
+		}
+
+		BloomFilter<E>[] filters = this.filters.toArray(new BloomFilter[this.filters.size()]);
+		StageSummary[] summaries = this.summaries.toArray(new StageSummary[this.summaries.size()]);
+		int size = 0;
+		for (BloomFilter<E> bf : filters) {
+			size += bf.size();
+		}
+
+		View<E> previous = this.view;
+		// the volatile write releases all the writes done so far to 
+		// the readers which read the view (acquire)
+		this.view = new View<E>(filters, summaries, size, 
+				previous == null ? 0 : previous.epoch + 1);
+	}
+
+	/**
+	 * Returns the number of times the filters have been published in
+	 * single-writer mode.
 	 * 
-	 * @return the growth ratio value used when a new filter has to be appended.
+	 * @return the number of publications.
 	 */
-	public Mode getScale() {
-		return this.scale;
+	public long getEpoch() {
+		View<E> view = this.view;
+		return view == null ? 0 : view.epoch;
 	}
-	
+
 	/**
-	 * {@inheritDoc}
+	 * Enables or disables the summaries of the filters. When enabled, a
+	 * summary taking {@value StageSummary#BITS_PER_ELEMENT} bits per element
+	 * is maintained for each filter created from now, and the filters are
+	 * checked by decreasing number of hits.
+	 * 
+	 * @param summaries
+	 *            whether the filters have to be summarized.
 	 */
-	@Override
-	public String toString() {
-		return 
-			super.toString() 
-				+ "[ratio=" + this.ratio + ", scale=" + this.scale.value + "]";
+	public void setSummaries(boolean summaries) {
+		this.summarizing = summaries;
+		if (!summaries) {
+			for (int i = 0; i < this.summaries.size(); i++) {
+				this.summaries.set(i, null);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the filters created from now are summarized.
+	 * 
+	 * @return whether the filters created from now are summarized.
+	 */
+	public boolean isSummarized() {
+		return this.summarizing;
+	}
+
+	/**
+	 * Sets the executor which allocates the next filter in the background
+	 * once the last one is three quarters full.
+	 * 
+	 * @param preallocator
+	 *            the executor to use or {@code null} to allocate the filters
+	 *            when they are required.
+	 */
+	public void setPreallocator(Executor preallocator) {
+		this.preallocator = preallocator;
+	}
+
+	/**
+	 * Sets the maximum number of bytes taken by the filters, their summaries
+	 * and the digests retained, and what to do when the next
+	 * filter does not fit:
+	 * <ul>
+	 * <li>{@link Overflow#COMPACT} folds the largest filters into half their
+	 * size, which keeps their elements but increases their false positive
+	 * probability (about {@code 0.75^k} instead of {@code 0.5^k} for a full
+	 * filter with {@code k} slices), then saturates when no filter can be
+	 * folded anymore;</li>
+	 * <li>{@link Overflow#SATURATE} appends a last filter reduced to the memory
+	 * left if it is not smaller than the previous one, then keeps adding the
+	 * elements to the last filter beyond its capacity;</li>
+	 * <li>{@link Overflow#EVICT} removes the oldest filters, whose elements
+	 * are then forgotten, until the next filter fits. An element added again
+	 * is then added to the last filter if it is contained by an older one
+	 * only. The false positive probability of the filters appended from then
+	 * keeps the compound probability under the one reached when the first
+	 * filter has been evicted.</li>
+	 * </ul>
+	 * The false positive probability of a filter which has been compacted or
+	 * saturated is given by {@link #getEstimatedFalsePositiveProbability()}.
+	 * The budget applies from the next filter appended.
+	 * 
+	 * @param bytes
+	 *            the memory budget in bytes, {@link Long#MAX_VALUE} for no
+	 *            limit.
+	 * 
+	 * @param overflow
+	 *            what to do when the budget is reached.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the first filter does not fit in the budget.
+	 */
+	public void setMemoryBudget(long bytes, Overflow overflow) {
+		if (overflow == null) {
+			throw new IllegalArgumentException("overflow policy must be specified");
+		}
+		long first = this.getStageBytes(
+				this.planner.getCapacity(0), this.planner.getFalsePositiveProbability(0));
+		if (bytes < first) {
+			throw new IllegalArgumentException(
+					"memory budget must hold the first filter (" + first + " bytes)");
+		}
+
+		this.memoryBudget = bytes;
+		this.overflow = overflow;
+		this.unfit = false;
+	}
+
+	/**
+	 * Returns the memory budget in bytes or {@link Long#MAX_VALUE} if the
+	 * filter grows without limit.
+	 * 
+	 * @return the memory budget in bytes.
+	 */
+	public long getMemoryBudget() {
+		return this.memoryBudget;
+	}
+
+	/**
+	 * Returns what the filter does when the memory budget is reached.
+	 * 
+	 * @return the overflow policy.
+	 */
+	public Overflow getOverflow() {
+		return this.overflow;
+	}
+
+	/**
+	 * Returns the number of bytes taken by the filters, their summaries and
+	 * the digests retained for freezing or compaction, as accounted for the
+	 * memory budget.
+	 * 
+	 * @return the memory used in bytes.
+	 */
+	public long getMemoryUsage() {
+		long bits = 0;
+		for (BloomFilter<E> bf : this.filters) {
+			if (bf instanceof SlicedBloomFilter<?>) {
+				bits += (long) ((SlicedBloomFilter<E>) bf).getBits().words().length * 64;
+			} else {
+				bits += ((BinaryFuseFilter<E>) bf).getBitsCount();
+			}
+		}
+		for (StageSummary summary : this.summaries) {
+			if (summary != null) {
+				bits += summary.getBitsCount();
+			}
+		}
+
+		long result = (bits + 7) / 8;
+		if (this.digests != null) {
+			result += this.digests.getBytes();
+		}
+		for (long[] digests : this.sealedDigests) {
+			if (digests != null) {
+				result += (long) digests.length * 8;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns whether the filter has stopped growing, the elements being
+	 * added to the last filter beyond its capacity. This happens when the
+	 * memory budget is reached or when the planner stops its schedule (see
+	 * {@link StagePlanner#planCapacity(int)}).
+	 * 
+	 * @return whether the last filter is saturated.
+	 */
+	public boolean isSaturated() {
+		return this.saturated;
+	}
+
+	/**
+	 * Returns the number of times a filter has been folded to fit in the
+	 * memory budget.
+	 * 
+	 * @return the number of folds.
+	 */
+	public long getFoldsCount() {
+		return this.foldsCount;
+	}
+
+	/**
+	 * Returns the number of filters evicted to fit in the memory budget.
+	 * 
+	 * @return the number of filters evicted.
+	 */
+	public long getEvictionsCount() {
+		return this.evictionsCount;
+	}
+
+	/**
+	 * Returns the planner giving the capacity and the false positive
+	 * probability of the filters appended by this filter.
+	 * 
+	 * @return the planner of the filters.
+	 */
+	public StagePlanner getPlanner() {
+		return this.planner;
+	}
+
+	/**
+	 * Sets the pool the filters are taken from when the filter grows and
+	 * released to when it is cleared. Using a pool avoids allocating new
+	 * arrays when filters of the same sizes are built and discarded
+	 * repeatedly.
+	 * 
+	 * @param pool
+	 *            the pool to use or {@code null} to allocate new filters.
+	 */
+	public void setStagePool(StagePool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the pool the filters are taken from or {@code null} if none.
+	 * 
+	 * @return the pool the filters are taken from or {@code null} if none.
+	 */
+	public StagePool getStagePool() {
+		return this.pool;
+	}
+
+	/**
+	 * Enables or disables the freezing of the filters which are full. When
+	 * enabled, the digests of the elements added to the filters created from
+	 * now are retained in a hash table (128 to 256 bits per element) until the
+	 * filter is full and replaced by a {@link BinaryFuseFilter}. The digests
+	 * also tell the elements added from the false positives of the last
+	 * filter, which would otherwise be lost when it is frozen.
+	 * 
+	 * @param freezing
+	 *            whether the filters which are full have to be frozen.
+	 */
+	public void setFreezing(boolean freezing) {
+		if (freezing && this.version > 0) {
+			throw new IllegalStateException("freezing is not compatible with tracking");
+		}
+
+		this.freezing = freezing;
+		if (!freezing && !this.compacting) {
+			this.digests = null;
+		}
+	}
+
+	/**
+	 * Starts tracking the lines of bits modified, so that the modifications
+	 * may be shipped to replicas by {@link DeltaSync}. Tracking costs 4 bytes
+	 * per 512 bits. It cannot be combined with freezing since a frozen filter
+	 * loses the bits which have been modified.
+	 * 
+	 * @throws IllegalStateException
+	 *             if freezing is enabled or if some filters have been frozen.
+	 */
+	public void enableTracking() {
+		if (this.freezing) {
+			throw new IllegalStateException("tracking is not compatible with freezing");
+		}
+
+		for (BloomFilter<E> bf : this.filters) {
+			if (!(bf instanceof SlicedBloomFilter<?>)) {
+				throw new IllegalStateException("tracking is not compatible with frozen filters");
+			}
+		}
+
+		if (this.version == 0) {
+			this.version = 1;
+			for (BloomFilter<E> bf : this.filters) {
+				((SlicedBloomFilter<E>) bf).track(this.version);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the modifications are tracked.
+	 * 
+	 * @return whether the modifications are tracked.
+	 */
+	public boolean isTracking() {
+		return this.version > 0;
+	}
+
+	/**
+	 * Returns the version the modifications are marked with from now, or
+	 * {@code 0} if they are not tracked.
+	 */
+	int getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Closes the current version: the modifications done from now are marked
+	 * with the next one.
+	 * 
+	 * @return the version closed.
+	 */
+	int nextVersion() {
+		int result = this.version++;
+		if (this.current != null) {
+			this.current.track(this.version);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the filters, from the oldest to the most recent.
+	 */
+	List<BloomFilter<E>> getStages() {
+		return this.filters;
+	}
+
+	/**
+	 * Replaces the filter at the specified {@code index}, or appends it if
+	 * {@code index} is the number of filters. Used by the replicas.
+	 */
+	void setStage(int index, SlicedBloomFilter<E> stage) {
+		if (index == this.filters.size()) {
+			this.filters.add(stage);
+			this.summaries.add(null);
+			this.sealedDigests.add(null);
+		} else {
+			this.filters.set(index, stage);
+			this.summaries.set(index, null);
+			this.sealedDigests.set(index, null);
+		}
+		this.current = stage;
+		this.next = null;
+		this.unfit = false;
+	}
+
+	/**
+	 * Removes the filters beyond the {@code count} first ones. Used by the
+	 * replicas.
+	 */
+	void truncateStages(int count) {
+		while (this.filters.size() > count) {
+			this.filters.remove(this.filters.size() - 1);
+			this.summaries.remove(this.summaries.size() - 1);
+			this.sealedDigests.remove(this.sealedDigests.size() - 1);
+		}
+
+		BloomFilter<E> last = 
+			this.filters.isEmpty() ? null : this.filters.get(this.filters.size() - 1);
+		this.current = 
+			last instanceof SlicedBloomFilter<?> ? (SlicedBloomFilter<E>) last : null;
+		this.unfit = false;
+
+		if (this.singleWriter) {
+			this.publish();
+		}
+	}
+
+	/**
+	 * Enables or disables the compaction. When enabled, the digests of the
+	 * elements added to the filters created from now are retained (64 bits
+	 * per element once the filter is no longer written, as for freezing
+	 * before), so that the filters which are no longer written may be merged
+	 * by {@link #compact()}. An element reported by a filter whose digests are
+	 * retained but which is not among them is a false positive and is added
+	 * again, otherwise it would be lost by the merge.
+	 * 
+	 * @param compacting
+	 *            whether the digests have to be retained for compaction.
+	 */
+	public void setCompacting(boolean compacting) {
+		this.compacting = compacting;
+		if (!compacting) {
+			if (!this.freezing) {
+				this.digests = null;
+			}
+			for (int i = 0; i < this.sealedDigests.size(); i++) {
+				this.sealedDigests.set(i, null);
+			}
+			this.compaction = null;
+		}
+	}
+
+	/**
+	 * Returns whether the digests are retained for compaction.
+	 * 
+	 * @return whether the digests are retained for compaction.
+	 */
+	public boolean isCompacting() {
+		return this.compacting;
+	}
+
+	/**
+	 * Merges each run of consecutive filters which are no longer written and
+	 * whose digests have been retained into a single filter. The merged
+	 * filter is built from the digests, its false positive probability is the
+	 * sum of the ones of the filters merged, thus the compound false positive
+	 * probability does not change while the lookups check fewer filters. The
+	 * merged filter is a {@link BinaryFuseFilter} when freezing is enabled.
+	 * 
+	 * @return the number of filters removed.
+	 */
+	public int compact() {
+		if (this.compaction != null) {
+			this.installCompaction();
+		}
+
+		List<Merge<E>> merges = this.planMerges();
+		for (Merge<E> merge : merges) {
+			merge.build();
+		}
+		return this.install(merges);
+	}
+
+	/**
+	 * Merges the filters as {@link #compact()} does, but builds the merged
+	 * filters with the specified {@code executor}. They replace the filters
+	 * merged at the next addition or publication, as a single step for the
+	 * readers in single-writer mode. Nothing is done if a compaction is
+	 * already in progress.
+	 * 
+	 * @param executor
+	 *            the executor building the merged filters.
+	 */
+	public void compact(Executor executor) {
+		if (this.compaction != null) {
+			return;
+		}
+
+		final List<Merge<E>> merges = this.planMerges();
+		if (merges.isEmpty()) {
+			return;
+		}
+
+		this.compaction = new FutureTask<List<Merge<E>>>(
+				new Callable<List<Merge<E>>>() {
+					public List<Merge<E>> call() {
+						for (Merge<E> merge : merges) {
+							merge.build();
+						}
+						return merges;
+					}
+				});
+		executor.execute(this.compaction);
+	}
+
+	/**
+	 * Returns whether a compaction is in progress in the background.
+	 * 
+	 * @return whether a compaction is in progress.
+	 */
+	public boolean isCompactionPending() {
+		return this.compaction != null;
+	}
+
+	/**
+	 * Returns the number of filters removed by merging them since the filter
+	 * has been created or cleared.
+	 * 
+	 * @return the number of filters removed by merging them.
+	 */
+	public int getMergedCount() {
+		return this.mergedCount;
+	}
+
+	/**
+	 * Returns whether the specified digest is retained by the filter at the
+	 * specified {@code stage}, {@code true} if its digests are not retained.
+	 */
+	private boolean isRetained(int stage, long digest) {
+		if (stage == this.filters.size() - 1 && this.digests != null) {
+			return this.digests.contains(digest);
+		}
+
+		long[] digests = this.sealedDigests.get(stage);
+		return digests == null || Arrays.binarySearch(digests, digest) >= 0;
+	}
+
+	/**
+	 * Retains the digests of the last filter, which is no longer written.
+	 */
+	private void sealDigests() {
+		if (this.compacting && this.digests != null && !this.filters.isEmpty()) {
+			// sorted to be searched
+			long[] digests = this.digests.toArray();
+			Arrays.sort(digests);
+			this.sealedDigests.set(this.sealedDigests.size() - 1, digests);
+		}
+	}
+
+	/**
+	 * Returns the runs of at least two consecutive filters whose digests have
+	 * been retained.
+	 */
+	private List<Merge<E>> planMerges() {
+		List<Merge<E>> result = new ArrayList<Merge<E>>();
+		int from = 0;
+		for (int i = 0; i <= this.filters.size(); i++) {
+			if (i < this.filters.size() && this.sealedDigests.get(i) != null) {
+				continue;
+			}
+
+			if (i - from >= 2) {
+				boolean summarized = false;
+				for (int j = from; j < i; j++) {
+					summarized |= this.summaries.get(j) != null;
+				}
+				result.add(new Merge<E>(
+						new ArrayList<BloomFilter<E>>(this.filters.subList(from, i)),
+						new ArrayList<long[]>(this.sealedDigests.subList(from, i)),
+						this.freezing, summarized));
+			}
+			from = i + 1;
+		}
+		return result;
+	}
+
+	private void installCompaction() {
+		FutureTask<List<Merge<E>>> task = this.compaction;
+		this.compaction = null;
+
+		try {
+			this.install(task.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the filters are merged again by the next compaction
+		}
+	}
+
+	/**
+	 * Replaces the filters merged by the merged filters, unless they have
+	 * been modified in the meantime.
+	 * 
+	 * @return the number of filters removed.
+	 */
+	private int install(List<Merge<E>> merges) {
+		int removed = 0;
+		for (Merge<E> merge : merges) {
+			int from = -1;
+			for (int i = 0; i < this.filters.size(); i++) {
+				if (this.filters.get(i) == merge.stages.get(0)) {
+					from = i;
+					break;
+				}
+			}
+
+			// the filters may have been folded, evicted or cleared
+			boolean unchanged = from >= 0 
+				&& from + merge.stages.size() <= this.filters.size();
+			for (int i = 0; unchanged && i < merge.stages.size(); i++) {
+				unchanged = this.filters.get(from + i) == merge.stages.get(i)
+					&& this.sealedDigests.get(from + i) != null;
+			}
+			// a merge planned while freezing is not installed once the
+			// modifications are tracked, the next compaction redoes it
+			if (!unchanged || (this.version > 0 
+					&& !(merge.result instanceof SlicedBloomFilter<?>))) {
+				continue;
+			}
+
+			for (int i = merge.stages.size() - 1; i > 0; i--) {
+				this.filters.remove(from + i);
+				this.summaries.remove(from + i);
+				this.sealedDigests.remove(from + i);
+			}
+			this.filters.set(from, merge.result);
+			this.summaries.set(from, merge.summary);
+			this.sealedDigests.set(from, merge.digests);
+			removed += merge.stages.size() - 1;
+
+			if (this.pool != null && !this.singleWriter) {
+				for (BloomFilter<E> bf : merge.stages) {
+					if (bf instanceof SlicedBloomFilter<?>) {
+						this.pool.release((SlicedBloomFilter<E>) bf);
+					}
+				}
+			}
+		}
+
+		if (removed > 0) {
+			this.mergedCount += removed;
+			this.order = new int[0];
+			this.unfit = false;
+			if (this.version > 0) {
+				// the filters have moved, the replicas receive them whole
+				for (BloomFilter<E> bf : this.filters) {
+					if (bf instanceof SlicedBloomFilter<?>) {
+						SlicedBloomFilter<E> stage = (SlicedBloomFilter<E>) bf;
+						stage.track(this.version);
+						stage.resetTracking(this.version);
+					}
+				}
+			}
+			if (this.singleWriter) {
+				this.publish();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns whether the filters which are full are frozen.
+	 * 
+	 * @return whether the filters which are full are frozen.
+	 */
+	public boolean isFreezing() {
+		return this.freezing;
+	}
+
+	/**
+	 * Returns the probability that an element which has not been added is
+	 * reported as contained by at least one filter. The probability of each
+	 * filter which is not frozen is estimated from the ratio of bits it has
+	 * set.
+	 * 
+	 * @return the current false positive probability of this filter.
+	 */
+	public double getEstimatedFalsePositiveProbability() {
+		double result = 1;
+		for (BloomFilter<E> bf : this.filters) {
+			if (bf instanceof SlicedBloomFilter<?>) {
+				result *= 1 - ((SlicedBloomFilter<E>) bf).getEstimatedFalsePositiveProbability();
+			} else {
+				result *= 1 - Math.pow(2, -((BinaryFuseFilter<E>) bf).getFingerprintBits());
+			}
+		}
+		return 1 - result;
+	}
+
+	/**
+	 * Returns a copy of this filter which does not share any mutable state
+	 * with it. The frozen filters, which are immutable, are shared. The
+	 * planner is copied, the preallocator is not.
+	 */
+	ScalableBloomFilter<E> copy() {
+		// the copy plans its next filters with its own planner
+		ScalableBloomFilter<E> result = new ScalableBloomFilter<E>(this.planner.copy());
+
+		for (BloomFilter<E> bf : this.filters) {
+			if (bf instanceof SlicedBloomFilter<?>) {
+				SlicedBloomFilter<E> copy = ((SlicedBloomFilter<E>) bf).copy();
+				if (bf == this.current) {
+					result.current = copy;
+				}
+				result.filters.add(copy);
+			} else {
+				result.filters.add(bf);
+			}
+		}
+		for (StageSummary summary : this.summaries) {
+			result.summaries.add(summary == null ? null : summary.copy());
+		}
+
+		result.summarizing = this.summarizing;
+		result.order = this.order.clone();
+		result.freezing = this.freezing;
+		result.compacting = this.compacting;
+		// the sealed digests are never modified
+		result.sealedDigests.addAll(this.sealedDigests);
+		result.mergedCount = this.mergedCount;
+		if (this.digests != null) {
+			result.digests = this.digests.copy();
+		}
+		result.pool = this.pool;
+		result.memoryBudget = this.memoryBudget;
+		result.overflow = this.overflow;
+		result.saturated = this.saturated;
+		result.foldsCount = this.foldsCount;
+		result.evictionsCount = this.evictionsCount;
+		result.evictionProbability = this.evictionProbability;
+
+		return result;
+	}
+
+	/**
+	 * Freezes the last filter if it is full and its digests have been
+	 * retained. This is done automatically when a new filter is appended, but
+	 * may be called to release the memory of the last filter as soon as
+	 * possible.
+	 * 
+	 * @return {@code true} if the last filter has been frozen, {@code false}
+	 *         otherwise.
+	 */
+	public boolean freeze() {
+		if (!this.freezing || this.digests == null || !this.current.isFull()) {
+			return false;
+		}
+
+		this.sealDigests();
+		this.freezeLast();
+		return true;
+	}
+
+	private void freezeLast() {
+		// the summary remains valid for the frozen filter
+		this.filters.set(this.filters.size() - 1, new BinaryFuseFilter<E>(
+				this.digests.toArray(), this.digests.size(), 
+				this.current.getFalsePositiveProbability()));
+
+		if (this.pool != null && !this.singleWriter) {
+			this.pool.release(this.current);
+		}
+
+		this.current = null;
+		this.digests = null;
+		this.unfit = false;
+
+		if (this.singleWriter) {
+			this.publish();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		if (this.singleWriter) {
+			return this.containsPublished(digest);
+		}
+
+		int stage = this.findLocal(digest);
+		this.observe(digest, stage);
+		return stage >= 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each filter checks at once the elements which have not been found by
+	 * the previous ones (and which pass its summary, if any).
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void containsDigests(long[] digests, int count, boolean[] results) {
+		BloomFilter<E>[] filters;
+		StageSummary[] summaries;
+		if (this.singleWriter) {
+			View<E> view = this.view;
+			filters = view.filters;
+			summaries = view.summaries;
+		} else {
+			filters = this.filters.toArray(new BloomFilter[this.filters.size()]);
+			summaries = this.summaries.toArray(new StageSummary[this.summaries.size()]);
+		}
+
+		// the indexes of the digests not found so far
+		int[] pending = new int[count];
+		long[] candidates = new long[count];
+		int[] candidateIndexes = new int[count];
+		boolean[] found = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			pending[i] = i;
+			results[i] = false;
+		}
+
+		int pendingCount = count;
+		for (int s = filters.length - 1; s >= 0 && pendingCount > 0; s--) {
+			int candidatesCount = 0;
+			for (int i = 0; i < pendingCount; i++) {
+				long digest = digests[pending[i]];
+				if (summaries[s] == null || summaries[s].mightContain(digest)) {
+					candidates[candidatesCount] = digest;
+					candidateIndexes[candidatesCount++] = pending[i];
+				}
+			}
+
+			if (candidatesCount == 0) {
+				continue;
+			}
+
+			filters[s].containsDigests(candidates, candidatesCount, found);
+			for (int i = 0; i < candidatesCount; i++) {
+				if (found[i]) {
+					results[candidateIndexes[i]] = true;
+				}
+			}
+
+			int remaining = 0;
+			for (int i = 0; i < pendingCount; i++) {
+				if (!results[pending[i]]) {
+					pending[remaining++] = pending[i];
+				}
+			}
+			pendingCount = remaining;
+		}
+	}
+
+	private boolean containsPublished(long digest) {
+		View<E> view = this.view;
+		for (int i = view.filters.length - 1; i >= 0; i--) {
+			StageSummary summary = view.summaries[i];
+			if (summary != null && !summary.mightContain(digest)) {
+				continue;
+			}
+
+			if (view.filters[i].containsDigest(digest)) {
+				this.observe(digest, i);
+				return true;
+			}
+		}
+
+		this.observe(digest, -1);
+		return false;
+	}
+
+	/**
+	 * Returns the index of a filter containing the specified digest, or
+	 * {@code -1} if none contains it.
+	 */
+	private int findLocal(long digest) {
+		if (this.summarizing) {
+			return this.findSummarized(digest);
+		}
+
+		for (int i = this.filters.size() - 1; i >= 0; i--) {
+			if (this.filters.get(i).containsDigest(digest)) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+
+	/**
+	 * Reports a sample of the lookups to the planner, if it observes them.
+	 */
+	private void observe(long digest, int stage) {
+		if (this.observing && (digest & OBSERVATION_MASK) == 0) {
+			// the last filter is the last stage planned
+			this.planner.recordLookup(stage < 0 ? stage : stage + this.mergedCount);
+		}
+	}
+
+	private int findSummarized(long digest) {
+		if (this.order.length != this.filters.size() 
+				|| ++this.lookups >= REORDER_PERIOD) {
+			this.reorder();
+		}
+
+		for (int i : this.order) {
+			StageSummary summary = this.summaries.get(i);
+			if (summary != null && !summary.mightContain(digest)) {
+				continue;
+			}
+
+			if (this.filters.get(i).containsDigest(digest)) {
+				if (summary != null) {
+					summary.hits++;
+				}
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private void reorder() {
+		int[] order = new int[this.filters.size()];
+		long[] hits = new long[order.length];
+		// insertion sort by decreasing number of hits, the most 
+		// recent filters first in case of equality
+		for (int n = 0; n < order.length; n++) {
+			int stage = order.length - 1 - n;
+			StageSummary summary = this.summaries.get(stage);
+			long h = summary == null ? 0 : summary.hits;
+			int j = n;
+			while (j > 0 && hits[j - 1] < h) {
+				order[j] = order[j - 1];
+				hits[j] = hits[j - 1];
+				j--;
+			}
+			order[j] = stage;
+			hits[j] = h;
+		}
+
+		this.order = order;
+		this.lookups = 0;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int size() {
+		if (this.singleWriter) {
+			return this.view.size;
+		}
+
+		int sum = 0;
+		for (BloomFilter<E> bf : this.filters) {
+			sum += bf.size();
+		}
+		return sum;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getCapacity() {
+		return -1;
+	}
+
+	/**
+	 * Returns the initial capacity of the filter when it has been created.
+	 * 
+	 * @return the initial capacity of the filter when it has been created.
+	 */
+	public int getInitialCapacity() {
+		return super.capacity;
+	}
+	
+	/**
+	 * Returns the tightening ratio of error probability.
+	 * 
+	 * @return the tightening ratio of error probability.
+	 */
+	public double getRatio() {
+		return this.ratio;
+	}
+	
+	/**
+	 * Returns the growth ratio value used when a new filter has to be appended.
+	 * 
+	 * @return the growth ratio value used when a new filter has to be appended.
+	 */
+	public Mode getScale() {
+		return this.scale;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return 
+			super.toString() 
+				+ "[ratio=" + this.ratio + ", scale=" + this.scale.value + "]";
+	}
+
+	/**
+	 * A run of consecutive filters merged into a single one.
+	 */
+	private static final class Merge<E> {
+
+		private final List<BloomFilter<E>> stages;
+
+		private final List<long[]> stagesDigests;
+
+		// whether the merged filter is frozen
+		private final boolean frozen;
+
+		private final boolean summarized;
+
+		// the digests of the elements of all the filters merged
+		private long[] digests;
+
+		private BloomFilter<E> result;
+
+		private StageSummary summary;
+
+		Merge(List<BloomFilter<E>> stages, List<long[]> stagesDigests, 
+				boolean frozen, boolean summarized) {
+			this.stages = stages;
+			this.stagesDigests = stagesDigests;
+			this.frozen = frozen;
+			this.summarized = summarized;
+		}
+
+		/**
+		 * Builds the merged filter. The filters merged are not accessed, thus
+		 * this method may be called by any thread.
+		 */
+		void build() {
+			int length = 0;
+			for (long[] digests : this.stagesDigests) {
+				length += digests.length;
+			}
+			long[] digests = new long[length];
+			length = 0;
+			for (long[] d : this.stagesDigests) {
+				System.arraycopy(d, 0, digests, length, d.length);
+				length += d.length;
+			}
+
+			// an element may have been added again to a more recent filter
+			Arrays.sort(digests);
+			length = 0;
+			for (int i = 0; i < digests.length; i++) {
+				if (length == 0 || digests[i] != digests[length - 1]) {
+					digests[length++] = digests[i];
+				}
+			}
+			digests = Arrays.copyOf(digests, length);
+
+			double falsePositiveProbability = 0;
+			for (BloomFilter<E> bf : this.stages) {
+				falsePositiveProbability += bf.getFalsePositiveProbability();
+			}
+			// a filter is useless beyond
+			falsePositiveProbability = Math.min(falsePositiveProbability, 0.5);
+
+			if (this.frozen) {
+				// the digests are modified in place
+				this.result = new BinaryFuseFilter<E>(
+						digests.clone(), length, falsePositiveProbability);
+			} else {
+				SlicedBloomFilter<E> bf = 
+					new SlicedBloomFilter<E>(Math.max(1, length), falsePositiveProbability);
+				for (long digest : digests) {
+					bf.addDigestWithoutCheck(digest);
+				}
+				this.result = bf;
+			}
+
+			if (this.summarized) {
+				this.summary = new StageSummary(length);
+				for (long digest : digests) {
+					this.summary.add(digest);
+				}
+			}
+			this.digests = digests;
+		}
+
+	}
+
+	/**
+	 * The filters published to the readers in single-writer mode.
+	 */
+	private static final class View<E> implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final BloomFilter<E>[] filters;
+
+		private final StageSummary[] summaries;
+
+		// the number of elements published
+		private final int size;
+
+		private final long epoch;
+
+		View(BloomFilter<E>[] filters, StageSummary[] summaries, int size, long epoch) {
+			this.filters = filters;
+			this.summaries = summaries;
+			this.size = size;
+			this.epoch = epoch;
+		}
+
 	}
 	
 }
@@ -0,0 +1,190 @@
+package com.elaunira.sbf;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.elaunira.sbf.ScalableBloomFilter.Mode;
+
+/**
+ * A scalable filter which chains {@link CuckooFilter}s the same way as
+ * {@link ScalableBloomFilter} chains {@link SlicedBloomFilter}s: when the last
+ * filter is full, a new one with a larger capacity and a tighter false
+ * positive probability is appended. Contrary to {@link ScalableBloomFilter},
+ * elements can be removed.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class ScalableCuckooFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// tightening ratio of error probability
+	private final double ratio;
+
+	// growth ratio when full
+	private final Mode scale;
+
+	// whether the fingerprints of the filters are semi-sorted
+	private final boolean semiSorted;
+
+	private final LinkedList<CuckooFilter<E>> filters;
+
+	public ScalableCuckooFilter() {
+		this(Mode.SMALL_SET_GROWTH, 0.9, 100, 0.001, false);
+	}
+
+	public ScalableCuckooFilter(int initialCapacity, double falsePositiveProbability) {
+		this(Mode.SMALL_SET_GROWTH, 0.9, initialCapacity, falsePositiveProbability, false);
+	}
+
+	public ScalableCuckooFilter(Mode mode, double ratio, int capacity,
+			double falsePositiveProbability, boolean semiSorted) {
+		super(capacity, falsePositiveProbability);
+
+		this.ratio = ratio;
+		this.scale = mode;
+		this.semiSorted = semiSorted;
+
+		this.filters = new LinkedList<CuckooFilter<E>>();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean addDigest(long digest) {
+		if (this.containsDigest(digest)) {
+			return true;
+		}
+
+		if (this.filters.isEmpty()
+				|| this.filters.getLast().isFull()) {
+			this.filters.add(
+					new CuckooFilter<E>(
+							(int) (super.capacity * Math.pow(this.scale.value, this.filters.size())),
+									falsePositiveProbability * Math.pow(this.ratio, this.filters.size()),
+									this.semiSorted));
+		}
+
+		this.filters.getLast().addDigestWithoutCheck(digest);
+
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		Iterator<CuckooFilter<E>> iterator = this.filters.descendingIterator();
+
+		while (iterator.hasNext()) {
+			if (iterator.next().containsDigest(digest)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Removes one occurrence of the specified element from the most recent
+	 * filter containing it. Only elements which have been added must be
+	 * removed.
+	 *
+	 * @param elt
+	 *            the element to remove.
+	 *
+	 * @return {@code true} if a fingerprint matching the element has been
+	 *         removed, {@code false} otherwise.
+	 */
+	public boolean remove(E elt) {
+		return this.removeDigest(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Removes one occurrence of the element identified by the specified
+	 * {@code digest} from the most recent filter containing it.
+	 *
+	 * @param digest
+	 *            the digest of the element to remove.
+	 *
+	 * @return {@code true} if a fingerprint matching the element has been
+	 *         removed, {@code false} otherwise.
+	 */
+	public boolean removeDigest(long digest) {
+		Iterator<CuckooFilter<E>> iterator = this.filters.descendingIterator();
+
+		while (iterator.hasNext()) {
+			if (iterator.next().removeDigest(digest)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int size() {
+		int sum = 0;
+		for (CuckooFilter<E> cf : this.filters) {
+			sum += cf.size();
+		}
+		return sum;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		this.filters.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getCapacity() {
+		return -1;
+	}
+
+	/**
+	 * Returns the initial capacity of the filter when it has been created.
+	 *
+	 * @return the initial capacity of the filter when it has been created.
+	 */
+	public int getInitialCapacity() {
+		return super.capacity;
+	}
+
+	/**
+	 * Returns the tightening ratio of error probability.
+	 *
+	 * @return the tightening ratio of error probability.
+	 */
+	public double getRatio() {
+		return this.ratio;
+	}
+
+	/**
+	 * Returns the growth ratio value used when a new filter has to be appended.
+	 *
+	 * @return the growth ratio value used when a new filter has to be appended.
+	 */
+	public Mode getScale() {
+		return this.scale;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return
+			super.toString()
+				+ "[ratio=" + this.ratio + ", scale=" + this.scale.value
+				+ ", semiSorted=" + this.semiSorted + "]";
+	}
+
+}
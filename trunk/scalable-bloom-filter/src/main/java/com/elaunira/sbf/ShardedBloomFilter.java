@@ -0,0 +1,337 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.elaunira.sbf.ScalableBloomFilter.Mode;
+
+/**
+ * A Bloom filter partitioned into independent shards. Each element is routed
+ * by the high bits of its (mixed) digest to exactly one shard, thus a lookup
+ * or an addition only touches the memory of one shard and only takes the lock
+ * of that shard. Threads working on different shards never contend, neither
+ * on a lock nor on a cache line.
+ * <p>
+ * The shards are created by a {@link ShardFactory}. When executors are given
+ * at construction, the shard {@code i} is created (and its memory first
+ * touched) by the executor {@code i % executors.length}. Binding each
+ * executor to a group of cores of the same NUMA node lets the JVM (run with
+ * {@code -XX:+UseNUMA}) place the memory of the shards close to the threads
+ * using them.
+ * <p>
+ * Each shard may be snapshotted independently (see {@link #snapshot(int)})
+ * while the other shards keep being updated.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class ShardedBloomFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the shards, each one is its own lock
+	private final BloomFilter<E>[] shards;
+
+	// the number of bits of the digest used to select a shard
+	private final int shardBits;
+
+	/**
+	 * Creates the shards of a {@link ShardedBloomFilter}.
+	 */
+	public interface ShardFactory<E> extends Serializable {
+
+		/**
+		 * Creates the specified shard.
+		 *
+		 * @param shard
+		 *            the index of the shard to create.
+		 *
+		 * @return the new shard.
+		 */
+		BloomFilter<E> create(int shard);
+
+	}
+
+	/**
+	 * Creates a filter made of {@code shards} {@link ScalableBloomFilter}s,
+	 * each one with an initial capacity of {@code capacity / shards}.
+	 *
+	 * @param shards
+	 *            the number of shards, must be a power of two.
+	 *
+	 * @param capacity
+	 *            the initial capacity of the whole filter.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by each shard.
+	 */
+	public ShardedBloomFilter(int shards, int capacity, double falsePositiveProbability) {
+		this(shards, capacity, falsePositiveProbability,
+				ShardedBloomFilter.<E>scalableShards(
+						Math.max(1, capacity / Math.max(1, shards)), falsePositiveProbability),
+				null);
+	}
+
+	/**
+	 * Creates a filter made of {@code shards} shards built by {@code factory}.
+	 *
+	 * @param shards
+	 *            the number of shards, must be a power of two.
+	 *
+	 * @param capacity
+	 *            the capacity of the whole filter.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by each shard.
+	 *
+	 * @param factory
+	 *            the factory creating the shards.
+	 *
+	 * @param executors
+	 *            the executors creating the shards or {@code null} to create
+	 *            them in the current thread.
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardedBloomFilter(int shards, int capacity, double falsePositiveProbability,
+			final ShardFactory<E> factory, ExecutorService[] executors) {
+		super(capacity, falsePositiveProbability);
+
+		if (shards <= 0 || Integer.bitCount(shards) != 1) {
+			throw new IllegalArgumentException("shards must be a power of two");
+		}
+
+		this.shards = new BloomFilter[shards];
+		this.shardBits = Integer.numberOfTrailingZeros(shards);
+
+		if (executors == null || executors.length == 0) {
+			for (int i = 0; i < shards; i++) {
+				this.shards[i] = factory.create(i);
+			}
+			return;
+		}
+
+		Future<BloomFilter<E>>[] futures = new Future[shards];
+		for (int i = 0; i < shards; i++) {
+			final int shard = i;
+			futures[i] = executors[i % executors.length].submit(
+					new Callable<BloomFilter<E>>() {
+						public BloomFilter<E> call() {
+							return factory.create(shard);
+						}
+					});
+		}
+
+		try {
+			for (int i = 0; i < shards; i++) {
+				this.shards[i] = futures[i].get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while creating the shards", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("failed to create the shards", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns a factory creating {@link ScalableBloomFilter}s with the
+	 * specified initial capacity and false positive probability.
+	 *
+	 * @param capacity
+	 *            the initial capacity of each shard.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by each shard.
+	 *
+	 * @return a factory creating {@link ScalableBloomFilter}s.
+	 */
+	public static <E> ShardFactory<E> scalableShards(
+			final int capacity, final double falsePositiveProbability) {
+		return new ShardFactory<E>() {
+			private static final long serialVersionUID = 1L;
+
+			public BloomFilter<E> create(int shard) {
+				return new ScalableBloomFilter<E>(
+						Mode.SMALL_SET_GROWTH, 0.9, capacity, falsePositiveProbability);
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean addDigest(long digest) {
+		BloomFilter<E> shard = this.shards[this.shardOf(digest)];
+		synchronized (shard) {
+			return shard.addDigest(digest);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		BloomFilter<E> shard = this.shards[this.shardOf(digest)];
+		synchronized (shard) {
+			return shard.containsDigest(digest);
+		}
+	}
+
+	/**
+	 * Returns the sum of the sizes of the shards. The shards are not locked
+	 * all together, thus the result is approximate when elements are added
+	 * concurrently.
+	 *
+	 * @return the number of elements added in the filter.
+	 */
+	public int size() {
+		int sum = 0;
+		for (int i = 0; i < this.shards.length; i++) {
+			sum += this.getShardSize(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		for (BloomFilter<E> shard : this.shards) {
+			synchronized (shard) {
+				shard.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of elements added in the specified shard.
+	 *
+	 * @param shard
+	 *            the index of the shard.
+	 *
+	 * @return the number of elements added in the shard.
+	 */
+	public int getShardSize(int shard) {
+		BloomFilter<E> bf = this.shards[shard];
+		synchronized (bf) {
+			return bf.size();
+		}
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return the number of shards.
+	 */
+	public int getShardsCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * Returns the index of the shard the specified element is routed to.
+	 *
+	 * @param elt
+	 *            the element.
+	 *
+	 * @return the index of the shard the element is routed to.
+	 */
+	public int getShard(E elt) {
+		return this.shardOf(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Returns the current false positive probability of the filter, which is
+	 * the average of the probabilities of the shards since an element is
+	 * uniformly routed to one of them. The probability of a
+	 * {@link SlicedBloomFilter} or {@link ScalableBloomFilter} shard is
+	 * estimated from the bits it has set, the probability of the other shards
+	 * is the one they have been created with.
+	 *
+	 * @return the estimated false positive probability of the filter.
+	 */
+	public double getEstimatedFalsePositiveProbability() {
+		double sum = 0;
+		for (BloomFilter<E> shard : this.shards) {
+			synchronized (shard) {
+				if (shard instanceof SlicedBloomFilter<?>) {
+					sum += ((SlicedBloomFilter<E>) shard).getEstimatedFalsePositiveProbability();
+				} else if (shard instanceof ScalableBloomFilter<?>) {
+					sum += ((ScalableBloomFilter<E>) shard).getEstimatedFalsePositiveProbability();
+				} else {
+					sum += shard.getFalsePositiveProbability();
+				}
+			}
+		}
+		return sum / this.shards.length;
+	}
+
+	/**
+	 * Returns a copy of the specified shard, taken while holding its lock
+	 * only. The other shards may be updated during the copy. Only
+	 * {@link SlicedBloomFilter} and {@link ScalableBloomFilter} shards can be
+	 * snapshotted.
+	 *
+	 * @param shard
+	 *            the index of the shard to copy.
+	 *
+	 * @return a copy of the shard.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the shard cannot be copied.
+	 */
+	public BloomFilter<E> snapshot(int shard) {
+		BloomFilter<E> bf = this.shards[shard];
+		synchronized (bf) {
+			if (bf instanceof SlicedBloomFilter<?>) {
+				return ((SlicedBloomFilter<E>) bf).copy();
+			} else if (bf instanceof ScalableBloomFilter<?>) {
+				return ((ScalableBloomFilter<E>) bf).copy();
+			}
+		}
+
+		throw new UnsupportedOperationException(
+				bf.getClass().getSimpleName() + " shards cannot be snapshotted");
+	}
+
+	/**
+	 * Returns the sum of the capacities of the shards or {@code -1} if one of
+	 * them is not bounded.
+	 *
+	 * @return the capacity of the filter or {@code -1} if it is not bounded.
+	 */
+	public int getCapacity() {
+		long sum = 0;
+		for (BloomFilter<E> shard : this.shards) {
+			int capacity = shard.getCapacity();
+			if (capacity < 0) {
+				return -1;
+			}
+			sum += capacity;
+		}
+		return (int) Math.min(sum, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() + "[shards=" + this.shards.length + "]";
+	}
+
+	private int shardOf(long digest) {
+		if (this.shardBits == 0) {
+			return 0;
+		}
+		// the digest is mixed since its high bits are also
+		// used to select the bits of the element in a shard
+		return (int) (BloomFilterUtil.mix(digest) >>> (64 - this.shardBits));
+	}
+
+}
@@ -1,10 +1,16 @@
 package com.elaunira.sbf;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.BitSet;
-import java.util.zip.GZIPOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * This bloom filter is a variant of a classical bloom filter as explained in
@@ -30,6 +36,14 @@ import java.util.zip.GZIPOutputStream;
 public class SlicedBloomFilter<E> extends BloomFilter<E> {
 
 	private static final long serialVersionUID = 1L;
+
+	// the number of elements checked together by containsDigests
+	private static final int LANES = 8;
+
+	// the size of the lines whose modifications are tracked (a cache line)
+	static final int LINE_SHIFT = 9;
+
+	static final int LINE_BITS = 1 << LINE_SHIFT;
 	
 	// the number of slices to use (equals to the number 
 	// of hash function to use)
@@ -39,11 +53,21 @@ public class SlicedBloomFilter<E> extends BloomFilter<E> {
 	private final int bitsPerSlice;
 	
 	// the set containing the values for each slice
-	private final BitSet filter;
+	private final BitArray filter;
 
 	// the number of elements added in the Bloom filter
 	private int count;
 
+	// the version at which each line of 512 bits has been modified
+	// for the last time, null when the modifications are not tracked
+	private int[] lineVersions;
+
+	// the version assigned to the lines modified from now
+	private int version;
+
+	// the version at which the tracking has started
+	private int trackedSince;
+
 	/**
 	 * This BloomFilter must be able to store at least {@code capacity} elements
 	 * while maintaining no more than {@code falsePositiveProbability} chance of
@@ -57,28 +81,61 @@ public class SlicedBloomFilter<E> extends BloomFilter<E> {
 	 *            the maximum false positives rate allowed by this filter.
 	 */
 	public SlicedBloomFilter(int capacity, double falsePositiveProbability) {
+		this(capacity, falsePositiveProbability, null);
+	}
+
+	/**
+	 * Creates a filter which uses the specified {@code filter} as bits
+	 * storage. The bits must be cleared and their number must match the
+	 * geometry computed from {@code capacity} and
+	 * {@code falsePositiveProbability}. When {@code filter} is {@code null} a
+	 * new array is allocated.
+	 */
+	SlicedBloomFilter(int capacity, double falsePositiveProbability, BitArray filter) {
+		this(capacity, falsePositiveProbability, filter, 0);
+	}
+
+	/**
+	 * Creates a filter which uses the specified {@code filter} as bits
+	 * storage and in which {@code count} elements have already been added.
+	 */
+	SlicedBloomFilter(int capacity, double falsePositiveProbability, BitArray filter, int count) {
 		super(capacity, falsePositiveProbability);
 		
 		this.slicesCount = 
 			BloomFilterUtil.computeSlicesCount(
 					capacity, falsePositiveProbability);
 		
-		this.bitsPerSlice = 
+		int bitsPerSlice = 
 			BloomFilterUtil.computeBitsPerSlice(
 					capacity, falsePositiveProbability, this.slicesCount);
 
-		this.filter = new BitSet(this.slicesCount * this.bitsPerSlice);
+		long bitsCount = (long) this.slicesCount * bitsPerSlice;
+		if (filter == null) {
+			filter = new BitArray(bitsCount);
+		} else if (filter.bitsCount() != bitsCount) {
+			// a folded filter has fewer bits per slice than computed
+			if (filter.bitsCount() <= 0 || filter.bitsCount() > bitsCount
+					|| filter.bitsCount() % this.slicesCount != 0) {
+				throw new IllegalArgumentException(
+						"expected " + bitsCount + " bits but got " + filter.bitsCount());
+			}
+			bitsPerSlice = (int) (filter.bitsCount() / this.slicesCount);
+		}
+		this.bitsPerSlice = bitsPerSlice;
+		this.filter = filter;
+		this.count = count;
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
-	public boolean add(E elt) {
-		if (this.contains(elt)) {
+	public boolean addDigest(long digest) {
+		if (this.containsDigest(digest)) {
 			return true;
 		}
 		
-		this.addWithoutCheck(elt);
+		this.addDigestWithoutCheck(digest);
 		
 		return false;
 	}
@@ -94,19 +151,44 @@ public class SlicedBloomFilter<E> extends BloomFilter<E> {
 	 *            the element to add to the Bloom filter.
 	 */
 	public void addWithoutCheck(E elt) {
+		this.addDigestWithoutCheck(BloomFilterUtil.digest(elt));
+	}
+
+	/**
+	 * Adds the element identified by the specified {@code digest} without
+	 * verifying that the element is contained by the Bloom filter.
+	 * 
+	 * @param digest
+	 *            the digest of the element to add.
+	 * 
+	 * @see #addWithoutCheck(Object)
+	 */
+	public void addDigestWithoutCheck(long digest) {
 		if (this.isFull()) {
 			throw new IllegalStateException("bloom filter is at capacity");
 		}
-		
-		int[] hashes = 
-			BloomFilterUtil.getHashBuckets(
-					Integer.toString(elt.hashCode()), 
-					this.slicesCount, this.bitsPerSlice);
-		
-		int offset = 0;
-		for (int k : hashes) {
-			this.filter.set(offset + k);
+
+		this.addDigestBeyondCapacity(digest);
+	}
+
+	/**
+	 * Adds the element identified by the specified {@code digest} even if
+	 * this filter is full, its false positive probability then exceeding the
+	 * one it has been created with. Used by the filters which stop growing.
+	 */
+	void addDigestBeyondCapacity(long digest) {
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < this.slicesCount; i++) {
+			long bit = offset + BloomFilterUtil.reduce(hash, this.bitsPerSlice);
+			this.filter.set(bit);
+			if (this.lineVersions != null) {
+				this.lineVersions[(int) (bit >>> LINE_SHIFT)] = this.version;
+			}
 			offset += this.bitsPerSlice;
+			hash += step;
+			step += i + 1;
 		}
 		
 		this.count++;
@@ -115,23 +197,126 @@ public class SlicedBloomFilter<E> extends BloomFilter<E> {
 	/**
 	 * {@inheritDoc}
 	 */
-	public boolean contains(E elt) {
-		int[] hashes = 
-			BloomFilterUtil.getHashBuckets(
-					Integer.toString(elt.hashCode()),
-					this.slicesCount, this.bitsPerSlice);
-		
-		int offset = 0;
-		for (int k : hashes) {
-			if (!this.filter.get(offset + k)) {
+	public boolean containsDigest(long digest) {
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < this.slicesCount; i++) {
+			if (!this.filter.get(
+					offset + BloomFilterUtil.reduce(hash, this.bitsPerSlice))) {
 				return false;
 			}
 			offset += this.bitsPerSlice;
+			hash += step;
+			step += i + 1;
 		}
 		
 		return true;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The digests are checked by groups of {@value #LANES}: the bits of a
+	 * slice are tested for all the elements of a group before moving to the
+	 * next slice. The loads of a group do not depend on each other, thus they
+	 * are issued together instead of waiting for each cache miss in turn.
+	 */
+	@Override
+	public void containsDigests(long[] digests, int count, boolean[] results) {
+		long[] words = this.filter.words();
+
+		for (int base = 0; base < count; base += LANES) {
+			int lanes = Math.min(LANES, count - base);
+			// one bit per element of the group which may be contained
+			int alive = (1 << lanes) - 1;
+
+			long offset = 0;
+			for (int i = 0; i < this.slicesCount && alive != 0; i++) {
+				for (int j = 0; j < lanes; j++) {
+					if ((alive & (1 << j)) == 0) {
+						continue;
+					}
+
+					long bit = offset + BloomFilterUtil.getHashBucket(
+							digests[base + j], i, this.bitsPerSlice);
+					if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+						alive &= ~(1 << j);
+					}
+				}
+				offset += this.bitsPerSlice;
+			}
+
+			for (int j = 0; j < lanes; j++) {
+				results[base + j] = (alive & (1 << j)) != 0;
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The bits are zeroed in place (concurrently for large filters) and
+	 * reused by the next additions.
+	 */
+	public void clear() {
+		this.filter.clear();
+		this.count = 0;
+		if (this.lineVersions != null) {
+			// the bits have to be shipped whole
+			Arrays.fill(this.lineVersions, 0);
+			this.trackedSince = this.version;
+		}
+	}
+
+	/**
+	 * Starts or continues tracking the lines of bits modified: the lines
+	 * modified from now are marked with {@code version}.
+	 */
+	void track(int version) {
+		if (this.lineVersions == null) {
+			this.lineVersions = 
+				new int[(int) ((this.filter.bitsCount() + LINE_BITS - 1) >>> LINE_SHIFT)];
+			this.trackedSince = version;
+		}
+		this.version = version;
+	}
+
+	/**
+	 * Marks the whole filter as modified at {@code version}, when the
+	 * modifications are tracked, so that it is shipped whole to the replicas.
+	 */
+	void resetTracking(int version) {
+		if (this.lineVersions != null) {
+			Arrays.fill(this.lineVersions, 0);
+			this.trackedSince = version;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Returns the version at which the tracking has started.
+	 */
+	int getTrackedSince() {
+		return this.trackedSince;
+	}
+
+	/**
+	 * Returns the version at which each line of {@value #LINE_BITS} bits has
+	 * been modified for the last time, or {@code null} if the modifications
+	 * are not tracked.
+	 */
+	int[] getLineVersions() {
+		return this.lineVersions;
+	}
+
+	/**
+	 * Sets the number of elements added, when the bits are updated directly.
+	 */
+	void setSize(int count) {
+		this.count = count;
+	}
+
 	/**
 	 * Returns a boolean indicating if the Bloom filter has reached its maximal
 	 * capacity.
@@ -170,6 +355,78 @@ public class SlicedBloomFilter<E> extends BloomFilter<E> {
 		return slicesCount;
 	}
 	
+	/**
+	 * Returns the probability that an element which has not been added is
+	 * reported as contained, estimated from the ratio of bits set. The whole
+	 * bit array is scanned.
+	 * 
+	 * @return the current false positive probability of this filter.
+	 */
+	public double getEstimatedFalsePositiveProbability() {
+		double fill = (double) this.filter.cardinality() / this.filter.bitsCount();
+		return Math.pow(fill, this.slicesCount);
+	}
+
+	/**
+	 * Returns a copy of this filter which does not share any state with it.
+	 */
+	SlicedBloomFilter<E> copy() {
+		return new SlicedBloomFilter<E>(
+				super.capacity, super.falsePositiveProbability, 
+				this.filter.copy(), this.count);
+	}
+
+	/**
+	 * Returns a copy of this filter whose slices are folded to
+	 * {@code bitsPerSlice} bits. The hashes are mapped onto a slice by a
+	 * multiplication, thus the bit a hash selects in the folded slice is the
+	 * position of the bit it selects in the original one scaled down: each
+	 * bit set is scaled down to the one or two bits it may map to, the filter
+	 * keeps all its elements and its false positive probability increases.
+	 * The copy is not tracked.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code bitsPerSlice} is not strictly between {@code 0}
+	 *             and the number of bits per slice of this filter.
+	 */
+	SlicedBloomFilter<E> fold(int bitsPerSlice) {
+		if (bitsPerSlice <= 0 || bitsPerSlice >= this.bitsPerSlice) {
+			throw new IllegalArgumentException(
+					"bits per slice must be in ]0;" + this.bitsPerSlice + "[");
+		}
+
+		BitArray folded = new BitArray((long) this.slicesCount * bitsPerSlice);
+		long[] words = this.filter.words();
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				long bit = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+
+				int slice = (int) (bit / this.bitsPerSlice);
+				long position = bit - (long) slice * this.bitsPerSlice;
+				long offset = (long) slice * bitsPerSlice;
+				// the hashes selecting this position select
+				// one of these positions in the folded slice
+				long from = position * bitsPerSlice / this.bitsPerSlice;
+				long to = ((position + 1) * bitsPerSlice - 1) / this.bitsPerSlice;
+				for (long p = from; p <= to; p++) {
+					folded.set(offset + p);
+				}
+			}
+		}
+
+		return new SlicedBloomFilter<E>(
+				super.capacity, super.falsePositiveProbability, folded, this.count);
+	}
+
+	/**
+	 * Returns the bits of this filter.
+	 */
+	BitArray getBits() {
+		return this.filter;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -179,17 +436,48 @@ public class SlicedBloomFilter<E> extends BloomFilter<E> {
 			"[slicesCount=" + this.slicesCount + ", bitsPerSlice=" + this.bitsPerSlice + "]";
 	}
 
-	private void writeObject(ObjectOutputStream out) throws IOException {
-		GZIPOutputStream gzipos = new GZIPOutputStream(out);
-		ObjectOutputStream oos = new ObjectOutputStream(gzipos);
-		
-		oos.writeInt(super.capacity);
-		oos.writeDouble(super.falsePositiveProbability);
-		oos.writeObject(this.filter);
+	/**
+	 * Serializes this filter in the compact form of {@link FilterCodec}. The
+	 * tracking of the modifications is not serialized.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(this);
+	}
+
+	private void readObject(ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException("serialized form expected");
 	}
 
-	private void readObject(ObjectInputStream in) throws IOException,
-			ClassNotFoundException {
+	/**
+	 * The serialized form of a {@link SlicedBloomFilter}.
+	 */
+	private static final class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		// the filter encoded by FilterCodec
+		private final byte[] data;
+
+		SerializedForm(SlicedBloomFilter<?> bf) throws ObjectStreamException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try {
+				DataOutputStream out = new DataOutputStream(baos);
+				FilterCodec.write(bf, out);
+				out.close();
+			} catch (IOException e) {
+				throw new NotSerializableException(e.getMessage());
+			}
+			this.data = baos.toByteArray();
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				return FilterCodec.read(
+						new DataInputStream(new ByteArrayInputStream(this.data)));
+			} catch (IOException e) {
+				throw new InvalidObjectException(e.getMessage());
+			}
+		}
 
 	}
 
@@ -0,0 +1,345 @@
+package com.elaunira.sbf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Stable Bloom filter as described in the paper entitled <a
+ * href="https://webdocs.cs.ualberta.ca/~drafiei/papers/DupDet06Sigmod.pdf"
+ * >Approximately Detecting Duplicates for Streaming Data using Stable Bloom
+ * Filters</a> by <em>Fan Deng</em> and <em>Davood Rafiei</em>. It detects the
+ * duplicates of an unbounded stream with a constant memory: each element
+ * sets its cells to the maximum value of a cell, and each insertion first
+ * decrements a few consecutive cells from a random position. The old
+ * elements are thus evicted, and the ratio of cells which are not zero
+ * converges to a fixed value whatever the length of the stream, as does the
+ * false positive probability.
+ * <p>
+ * The cells are laid out as the bits of a {@link SlicedBloomFilter} created
+ * with the same capacity and false positive probability: one slice per hash,
+ * a cell of {@code cellBits} bits instead of each bit. The number of cells
+ * decremented per insertion is computed so that the stable false positive
+ * probability is the one the filter has been created with. Contrary to the
+ * other filters, an element which has been added may be reported as not
+ * contained once it has been evicted, the more likely the older the element
+ * is. The capacity gives the number of cells, hence how long the elements
+ * are remembered.
+ * <p>
+ * The cells are packed into an {@link AtomicLongArray} and updated by
+ * compare-and-set, thus the filter may be updated and queried by any number
+ * of threads without any lock. The positions of the decrements are drawn
+ * from a generator whose state is shared without synchronization, mixed with
+ * the digest of the element inserted so that racing threads do not decrement
+ * the same cells.
+ * <p>
+ * When an element is added into the filter, it is based on the uniqueness of
+ * this object which is defined by the {@link #hashCode()} method. Therefore
+ * it is really important to provide a correct {@link #hashCode()} method for
+ * elements which have to be passed to the {@link #add} method.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class StableBloomFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_CELL_BITS = 2;
+
+	// the number of slices to use (equals to the number
+	// of hash function to use)
+	private final int slicesCount;
+
+	private final int cellsPerSlice;
+
+	// the number of cells of all the slices
+	private final long cellsCount;
+
+	private final int cellBits;
+
+	// log2 of the number of cells per word
+	private final int cellShift;
+
+	// the value the cells of an element are set to
+	private final long maxValue;
+
+	// the number of consecutive cells decremented by an insertion
+	private final int decrementsCount;
+
+	// the packed cells, slice after slice
+	private final AtomicLongArray cells;
+
+	// the number of elements which were not contained when added
+	private final AtomicLong count = new AtomicLong();
+
+	// state of the generator used to choose the cells to decrement
+	private long seed = 0x2545f4914f6cdd1dL;
+
+	/**
+	 * Creates a filter whose cells are {@value #DEFAULT_CELL_BITS} bits long.
+	 *
+	 * @param capacity
+	 *            the capacity of the {@link SlicedBloomFilter} whose geometry
+	 *            is used, which gives the number of cells.
+	 *
+	 * @param falsePositiveProbability
+	 *            the false positive probability the filter converges to.
+	 */
+	public StableBloomFilter(int capacity, double falsePositiveProbability) {
+		this(capacity, falsePositiveProbability, DEFAULT_CELL_BITS);
+	}
+
+	/**
+	 * Creates a filter.
+	 *
+	 * @param capacity
+	 *            the capacity of the {@link SlicedBloomFilter} whose geometry
+	 *            is used, which gives the number of cells.
+	 *
+	 * @param falsePositiveProbability
+	 *            the false positive probability the filter converges to.
+	 *
+	 * @param cellBits
+	 *            the number of bits of a cell: 1, 2, 4 or 8. The larger the
+	 *            cells, the more cells are decremented per insertion.
+	 */
+	public StableBloomFilter(int capacity, double falsePositiveProbability, int cellBits) {
+		super(capacity, falsePositiveProbability);
+
+		if (cellBits != 1 && cellBits != 2 && cellBits != 4 && cellBits != 8) {
+			throw new IllegalArgumentException("cell bits must be 1, 2, 4 or 8");
+		}
+
+		this.slicesCount =
+			BloomFilterUtil.computeSlicesCount(
+					capacity, falsePositiveProbability);
+		this.cellsPerSlice =
+			BloomFilterUtil.computeBitsPerSlice(
+					capacity, falsePositiveProbability, this.slicesCount);
+		this.cellsCount = (long) this.slicesCount * this.cellsPerSlice;
+		this.cellBits = cellBits;
+		this.cellShift = Integer.numberOfTrailingZeros(64 / cellBits);
+		this.maxValue = (1L << cellBits) - 1;
+		this.cells = new AtomicLongArray(BitPacking.wordsCount(this.cellsCount, cellBits));
+
+		// the ratio of zero cells at which the false positive
+		// probability is the one requested
+		double zeros = 1 - Math.pow(falsePositiveProbability, 1.0 / this.slicesCount);
+		double x = Math.pow(zeros, -1.0 / this.maxValue) - 1;
+		double decrements = 1 / (x * (1.0 / this.slicesCount - 1.0 / this.cellsCount));
+		this.decrementsCount =
+			(int) Math.max(1, Math.min(this.cellsCount, Math.round(decrements)));
+	}
+
+	/**
+	 * Decrements {@link #getDecrementsCount()} cells, then sets the cells of
+	 * the element identified by the specified {@code digest} to their maximum
+	 * value.
+	 *
+	 * @return {@code true} if the element was contained before being added,
+	 *         {@code false} otherwise.
+	 */
+	public boolean addDigest(long digest) {
+		boolean contained = this.containsDigest(digest);
+
+		this.decrement(digest);
+
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < this.slicesCount; i++) {
+			this.setMax(offset + BloomFilterUtil.reduce(hash, this.cellsPerSlice));
+			offset += this.cellsPerSlice;
+			hash += step;
+			step += i + 1;
+		}
+
+		if (!contained) {
+			this.count.incrementAndGet();
+		}
+		return contained;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		long offset = 0;
+		long hash = digest;
+		long step = BloomFilterUtil.getProbeStep(digest);
+		for (int i = 0; i < this.slicesCount; i++) {
+			if (this.get(offset + BloomFilterUtil.reduce(hash, this.cellsPerSlice)) == 0) {
+				return false;
+			}
+			offset += this.cellsPerSlice;
+			hash += step;
+			step += i + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of elements which were not contained when they were
+	 * added, some of them having been evicted since.
+	 *
+	 * @return the number of elements added, {@link Integer#MAX_VALUE} if it
+	 *         does not fit in an {@code int}.
+	 */
+	public int size() {
+		return (int) Math.min(this.count.get(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The cells updated concurrently may not be cleared.
+	 */
+	public void clear() {
+		for (int i = 0; i < this.cells.length(); i++) {
+			this.cells.set(i, 0);
+		}
+		this.count.set(0);
+	}
+
+	/**
+	 * Returns the false positive probability the filter converges to, given
+	 * the number of cells decremented per insertion.
+	 *
+	 * @return the stable false positive probability.
+	 */
+	public double getStableFalsePositiveProbability() {
+		double x = 1 / (this.decrementsCount * (1.0 / this.slicesCount - 1.0 / this.cellsCount));
+		double zeros = Math.pow(1 / (1 + x), this.maxValue);
+		return Math.pow(1 - zeros, this.slicesCount);
+	}
+
+	/**
+	 * Returns the probability that an element which has not been added is
+	 * reported as contained, estimated from the ratio of cells which are not
+	 * zero. All the cells are scanned.
+	 *
+	 * @return the current false positive probability of this filter.
+	 */
+	public double getEstimatedFalsePositiveProbability() {
+		long nonZero = 0;
+		for (long i = 0; i < this.cellsCount; i++) {
+			if (this.get(i) != 0) {
+				nonZero++;
+			}
+		}
+		return Math.pow((double) nonZero / this.cellsCount, this.slicesCount);
+	}
+
+	/**
+	 * Returns the number of cells decremented by each insertion.
+	 *
+	 * @return the number of cells decremented by each insertion.
+	 */
+	public int getDecrementsCount() {
+		return this.decrementsCount;
+	}
+
+	/**
+	 * Returns the number of bits of a cell.
+	 *
+	 * @return the number of bits of a cell.
+	 */
+	public int getCellBits() {
+		return this.cellBits;
+	}
+
+	/**
+	 * Returns the number of cells per slice.
+	 *
+	 * @return the number of cells per slice.
+	 */
+	public int getCellsPerSlice() {
+		return this.cellsPerSlice;
+	}
+
+	/**
+	 * Returns the number of slices associated to this filter.
+	 *
+	 * @return the number of slices associated to this filter.
+	 */
+	public int getSlicesCount() {
+		return this.slicesCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return super.toString() +
+			"[slicesCount=" + this.slicesCount + ", cellsPerSlice=" + this.cellsPerSlice
+				+ ", cellBits=" + this.cellBits
+				+ ", decrementsCount=" + this.decrementsCount + "]";
+	}
+
+	private long get(long index) {
+		int shift = (int) (index & ((1 << this.cellShift) - 1)) * this.cellBits;
+		return (this.cells.get((int) (index >>> this.cellShift)) >>> shift) & this.maxValue;
+	}
+
+	private void setMax(long index) {
+		int word = (int) (index >>> this.cellShift);
+		long mask = this.maxValue << ((int) (index & ((1 << this.cellShift) - 1)) * this.cellBits);
+		while (true) {
+			long current = this.cells.get(word);
+			if ((current & mask) == mask
+					|| this.cells.compareAndSet(word, current, current | mask)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decrements the cells which are not zero among the
+	 * {@link #decrementsCount} cells following a random position, wrapping
+	 * around the end of the cells. The cells of a word are decremented by a
+	 * single compare-and-set. The position is mixed with the digest of the
+	 * element inserted so that the threads which have read the same state of
+	 * the generator decrement different cells.
+	 */
+	private void decrement(long digest) {
+		long seed = this.seed;
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		this.seed = seed;
+
+		long index = BloomFilterUtil.reduce(
+				BloomFilterUtil.mix(seed ^ digest), (int) Math.min(this.cellsCount, Integer.MAX_VALUE));
+		int remaining = this.decrementsCount;
+		int cellsPerWord = 1 << this.cellShift;
+		while (remaining > 0) {
+			int word = (int) (index >>> this.cellShift);
+			int first = (int) (index & (cellsPerWord - 1));
+			int last = (int) Math.min(cellsPerWord, Math.min(
+					first + (long) remaining, this.cellsCount - ((long) word << this.cellShift)));
+
+			while (true) {
+				long current = this.cells.get(word);
+				long next = current;
+				for (int c = first; c < last; c++) {
+					int shift = c * this.cellBits;
+					if (((current >>> shift) & this.maxValue) != 0) {
+						next -= 1L << shift;
+					}
+				}
+				if (next == current || this.cells.compareAndSet(word, current, next)) {
+					break;
+				}
+			}
+
+			remaining -= last - first;
+			index += last - first;
+			if (index == this.cellsCount) {
+				index = 0;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,392 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.elaunira.sbf.ScalableBloomFilter.Mode;
+
+/**
+ * Computes the schedule of the filters (stages) appended by a
+ * {@link ScalableBloomFilter}: the stage {@code i} has a capacity of
+ * {@code initialCapacity * scale^i} elements and a false positive probability
+ * of {@code falsePositiveProbability * ratio^i}. The geometry of each stage is
+ * computed once and cached, thus a growth does not require any
+ * {@link Math#pow} call.
+ * <p>
+ * Given the number of elements expected, the planner gives the number of
+ * stages which will be created, the memory they require and the resulting
+ * compound false positive probability. The stages not planned yet are then
+ * planned by a {@link #copy()} of the planner, as if they were requested now:
+ * the schedule of the planner is not modified, and the result is only an
+ * estimate for a planner which adapts to the workload.
+ * <p>
+ * Subclasses may plan each stage when it is requested for the first time
+ * from what they observe of the workload (see {@link AdaptiveStagePlanner}),
+ * and may stop the schedule: the stages from a stage planned with a capacity
+ * of {@code 0} are never created, the filter adding the elements to its last
+ * stage beyond its capacity instead.
+ * <p>
+ * A planner is not thread-safe: a filter owns its planner, and a copy of the
+ * filter plans its stages with a {@link #copy()} of the planner. Only
+ * {@link #recordLookup(int)} may be called concurrently, by the readers of a
+ * filter in single-writer mode.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class StagePlanner implements Serializable, Cloneable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Mode scale;
+
+	private final double ratio;
+
+	private final int initialCapacity;
+
+	private final double falsePositiveProbability;
+
+	// the schedule of the stages computed so far
+	private int[] capacities;
+
+	private double[] falsePositiveProbabilities;
+
+	private int[] slicesCounts;
+
+	private int[] bitsPerSlices;
+
+	private int computed;
+
+	public StagePlanner(Mode mode, double ratio, int initialCapacity, double falsePositiveProbability) {
+		if (ratio <= 0 || ratio >= 1) {
+			throw new IllegalArgumentException("ratio must be in ]0;1[");
+		}
+
+		this.scale = mode;
+		this.ratio = ratio;
+		this.initialCapacity = initialCapacity;
+		this.falsePositiveProbability = falsePositiveProbability;
+
+		this.capacities = new int[8];
+		this.falsePositiveProbabilities = new double[8];
+		this.slicesCounts = new int[8];
+		this.bitsPerSlices = new int[8];
+	}
+
+	/**
+	 * Returns the capacity of the specified stage.
+	 *
+	 * @param stage
+	 *            the index of the stage, starting from {@code 0}.
+	 *
+	 * @return the capacity of the specified stage, {@code 0} if the schedule
+	 *         stops before it.
+	 */
+	public int getCapacity(int stage) {
+		this.compute(stage);
+		return this.capacities[stage];
+	}
+
+	/**
+	 * Returns the false positive probability of the specified stage.
+	 *
+	 * @param stage
+	 *            the index of the stage, starting from {@code 0}.
+	 *
+	 * @return the false positive probability of the specified stage.
+	 */
+	public double getFalsePositiveProbability(int stage) {
+		this.compute(stage);
+		return this.falsePositiveProbabilities[stage];
+	}
+
+	/**
+	 * Returns the number of slices of the specified stage.
+	 *
+	 * @param stage
+	 *            the index of the stage, starting from {@code 0}.
+	 *
+	 * @return the number of slices of the specified stage.
+	 */
+	public int getSlicesCount(int stage) {
+		this.compute(stage);
+		return this.slicesCounts[stage];
+	}
+
+	/**
+	 * Returns the number of bits per slice of the specified stage.
+	 *
+	 * @param stage
+	 *            the index of the stage, starting from {@code 0}.
+	 *
+	 * @return the number of bits per slice of the specified stage.
+	 */
+	public int getBitsPerSlice(int stage) {
+		this.compute(stage);
+		return this.bitsPerSlices[stage];
+	}
+
+	/**
+	 * Returns the number of bits used by the specified stage.
+	 *
+	 * @param stage
+	 *            the index of the stage, starting from {@code 0}.
+	 *
+	 * @return the number of bits used by the specified stage.
+	 */
+	public long getBits(int stage) {
+		this.compute(stage);
+		return (long) this.slicesCounts[stage] * this.bitsPerSlices[stage];
+	}
+
+	/**
+	 * Returns the number of stages required to store
+	 * {@code expectedElements} elements, or the number of stages of the
+	 * schedule if it stops before.
+	 *
+	 * @param expectedElements
+	 *            the number of elements expected.
+	 *
+	 * @return the number of stages required to store the elements.
+	 */
+	public int getStagesCount(long expectedElements) {
+		return this.copy().countStages(expectedElements);
+	}
+
+	/**
+	 * Returns the number of bits used by the stages required to store
+	 * {@code expectedElements} elements.
+	 *
+	 * @param expectedElements
+	 *            the number of elements expected.
+	 *
+	 * @return the number of bits used by the stages.
+	 */
+	public long getTotalBits(long expectedElements) {
+		StagePlanner planner = this.copy();
+		long result = 0;
+		int stages = planner.countStages(expectedElements);
+		for (int i = 0; i < stages; i++) {
+			result += planner.getBits(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the probability that an element which has not been added is
+	 * reported as contained by at least one of the stages required to store
+	 * {@code expectedElements} elements, once they are all full.
+	 *
+	 * @param expectedElements
+	 *            the number of elements expected.
+	 *
+	 * @return the compound false positive probability.
+	 */
+	public double getCompoundFalsePositiveProbability(long expectedElements) {
+		StagePlanner planner = this.copy();
+		double result = 1;
+		int stages = planner.countStages(expectedElements);
+		for (int i = 0; i < stages; i++) {
+			result *= 1 - planner.getFalsePositiveProbability(i);
+		}
+		return 1 - result;
+	}
+
+	private int countStages(long expectedElements) {
+		int stages = 0;
+		long capacity = 0;
+		while (capacity < expectedElements && this.getCapacity(stages) > 0) {
+			// a stage stores one element more than its capacity
+			capacity += this.getCapacity(stages) + 1;
+			stages++;
+		}
+		return stages;
+	}
+
+	/**
+	 * Returns the capacity of the first stage.
+	 *
+	 * @return the capacity of the first stage.
+	 */
+	public int getInitialCapacity() {
+		return this.initialCapacity;
+	}
+
+	/**
+	 * Returns the false positive probability the filter has been created
+	 * with.
+	 *
+	 * @return the false positive probability the filter has been created
+	 *         with.
+	 */
+	public double getFalsePositiveProbability() {
+		return this.falsePositiveProbability;
+	}
+
+	/**
+	 * Returns the growth ratio of the capacity of the stages.
+	 *
+	 * @return the growth ratio of the capacity of the stages.
+	 */
+	public Mode getScale() {
+		return this.scale;
+	}
+
+	/**
+	 * Returns the tightening ratio of error probability.
+	 *
+	 * @return the tightening ratio of error probability.
+	 */
+	public double getRatio() {
+		return this.ratio;
+	}
+
+	/**
+	 * Returns a copy of this planner, with the stages planned so far. The
+	 * copy plans the next stages independently of this planner. Subclasses
+	 * with a mutable state must override this method to copy it.
+	 *
+	 * @return a copy of this planner.
+	 */
+	public StagePlanner copy() {
+		StagePlanner result;
+		try {
+			result = (StagePlanner) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+
+		result.capacities = this.capacities.clone();
+		result.falsePositiveProbabilities = this.falsePositiveProbabilities.clone();
+		result.slicesCounts = this.slicesCounts.clone();
+		result.bitsPerSlices = this.bitsPerSlices.clone();
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName()
+				+ "[initialCapacity=" + this.initialCapacity
+				+ ", falsePositiveProbability=" + this.falsePositiveProbability
+				+ ", ratio=" + this.ratio + ", scale=" + this.scale.value + "]";
+	}
+
+	private void compute(int stage) {
+		if (stage < this.computed) {
+			return;
+		}
+
+		if (stage >= this.capacities.length) {
+			int length = Math.max(stage + 1, this.capacities.length * 2);
+			this.capacities = Arrays.copyOf(this.capacities, length);
+			this.falsePositiveProbabilities = Arrays.copyOf(this.falsePositiveProbabilities, length);
+			this.slicesCounts = Arrays.copyOf(this.slicesCounts, length);
+			this.bitsPerSlices = Arrays.copyOf(this.bitsPerSlices, length);
+		}
+
+		for (int i = this.computed; i <= stage; i++) {
+			if (i > 0 && this.capacities[i - 1] == 0) {
+				// the schedule has stopped, the arrays are zeroed
+				this.computed = i + 1;
+				continue;
+			}
+
+			this.capacities[i] = this.planCapacity(i);
+			if (this.capacities[i] == 0) {
+				this.computed = i + 1;
+				continue;
+			}
+			double falsePositiveProbability =
+				this.planFalsePositiveProbability(i, this.capacities[i]);
+
+			this.falsePositiveProbabilities[i] = falsePositiveProbability;
+			this.slicesCounts[i] =
+				BloomFilterUtil.computeSlicesCount(
+						this.capacities[i], falsePositiveProbability);
+			this.bitsPerSlices[i] =
+				BloomFilterUtil.computeBitsPerSlice(
+						this.capacities[i], falsePositiveProbability, this.slicesCounts[i]);
+			// the previous stages may be read while planning the next one
+			this.computed = i + 1;
+		}
+	}
+
+	/**
+	 * Returns the capacity of the specified stage, once the previous stages
+	 * have been planned. A stage is planned once, when its capacity or its
+	 * geometry is requested for the first time, typically when the filter
+	 * needs it. The capacity is {@code initialCapacity * scale^stage}.
+	 * <p>
+	 * A capacity of {@code 0} stops the schedule: the stage and the next ones
+	 * are never planned, their false positive probability and their geometry
+	 * being {@code 0}.
+	 *
+	 * @param stage
+	 *            the index of the stage to plan.
+	 *
+	 * @return the capacity of the stage, {@code 0} to stop the schedule.
+	 */
+	protected int planCapacity(int stage) {
+		if (stage == 0) {
+			return this.initialCapacity;
+		}
+		long capacity = (long) this.capacities[stage - 1] * this.scale.value;
+		return (int) Math.min(capacity, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the false positive probability of the specified stage, once
+	 * its capacity has been planned. The probability is
+	 * {@code falsePositiveProbability * ratio^stage}.
+	 *
+	 * @param stage
+	 *            the index of the stage to plan.
+	 *
+	 * @param capacity
+	 *            the capacity of the stage.
+	 *
+	 * @return the false positive probability of the stage.
+	 */
+	protected double planFalsePositiveProbability(int stage, int capacity) {
+		if (stage == 0) {
+			return this.falsePositiveProbability;
+		}
+		return this.falsePositiveProbabilities[stage - 1] * this.ratio;
+	}
+
+	/**
+	 * Returns the number of stages planned so far.
+	 *
+	 * @return the number of stages planned so far.
+	 */
+	protected int getPlannedStagesCount() {
+		return this.computed;
+	}
+
+	/**
+	 * Returns whether the filter has to report its lookups with
+	 * {@link #recordLookup(int)}. The default planner does not use them.
+	 *
+	 * @return whether the lookups have to be reported.
+	 */
+	protected boolean isObservingLookups() {
+		return false;
+	}
+
+	/**
+	 * Records a (sampled) lookup of the filter. This method may be called
+	 * by several threads at once, concurrently with the planning of a stage.
+	 *
+	 * @param stage
+	 *            the index of the stage containing the element, {@code -1}
+	 *            if no stage contains it.
+	 */
+	protected void recordLookup(int stage) {
+
+	}
+
+}
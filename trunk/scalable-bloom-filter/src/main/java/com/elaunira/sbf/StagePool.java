@@ -0,0 +1,165 @@
+package com.elaunira.sbf;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A pool of the bits used by the {@link SlicedBloomFilter}s, indexed by
+ * geometry (number of bits per slice and number of slices). The bits of a
+ * filter which is no longer used are cleared and kept by the pool, then
+ * reused by the next filter having the same geometry instead of allocating a
+ * new array.
+ * <p>
+ * A pool may be shared by several {@link ScalableBloomFilter}s and
+ * {@link WindowedBloomFilter}s which create filters of the same sizes. This
+ * class is thread-safe.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class StagePool {
+
+	// the maximum number of arrays kept per geometry
+	private final int maxPerGeometry;
+
+	private final Map<Geometry, LinkedList<BitArray>> arrays;
+
+	// the number of arrays kept by the pool
+	private int size;
+
+	/**
+	 * Creates a pool which keeps at most {@code maxPerGeometry} arrays of bits
+	 * for each geometry.
+	 *
+	 * @param maxPerGeometry
+	 *            the maximum number of arrays kept per geometry.
+	 */
+	public StagePool(int maxPerGeometry) {
+		if (maxPerGeometry <= 0) {
+			throw new IllegalArgumentException("maxPerGeometry must be strict positive");
+		}
+
+		this.maxPerGeometry = maxPerGeometry;
+		this.arrays = new HashMap<Geometry, LinkedList<BitArray>>();
+	}
+
+	/**
+	 * Returns an empty filter which reuses pooled bits when some are
+	 * available for the geometry computed from {@code capacity} and
+	 * {@code falsePositiveProbability}.
+	 *
+	 * @param capacity
+	 *            the maximum number of elements the Bloom filter can contain
+	 *            without to transcend the {@code falsePositiveProbability}.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by this filter.
+	 *
+	 * @return an empty filter.
+	 */
+	public <E> SlicedBloomFilter<E> acquire(int capacity, double falsePositiveProbability) {
+		int slicesCount =
+			BloomFilterUtil.computeSlicesCount(capacity, falsePositiveProbability);
+		int bitsPerSlice =
+			BloomFilterUtil.computeBitsPerSlice(
+					capacity, falsePositiveProbability, slicesCount);
+
+		return new SlicedBloomFilter<E>(
+				capacity, falsePositiveProbability,
+				this.poll(new Geometry(bitsPerSlice, slicesCount)));
+	}
+
+	/**
+	 * Clears the bits of the specified filter and keeps them for a next
+	 * filter with the same geometry. The filter must not be used anymore.
+	 *
+	 * @param filter
+	 *            the filter to release.
+	 */
+	public void release(SlicedBloomFilter<?> filter) {
+		Geometry geometry =
+			new Geometry(filter.getBitsPerSlice(), filter.getSlicesCount());
+
+		synchronized (this) {
+			LinkedList<BitArray> list = this.arrays.get(geometry);
+			if (list != null && list.size() >= this.maxPerGeometry) {
+				return;
+			}
+		}
+
+		// zeroes the bits outside of the lock
+		BitArray bits = filter.getBits();
+		bits.clear();
+
+		synchronized (this) {
+			LinkedList<BitArray> list = this.arrays.get(geometry);
+			if (list == null) {
+				list = new LinkedList<BitArray>();
+				this.arrays.put(geometry, list);
+			}
+			if (list.size() < this.maxPerGeometry) {
+				list.add(bits);
+				this.size++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of arrays of bits kept by the pool.
+	 *
+	 * @return the number of arrays of bits kept by the pool.
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the maximum number of arrays kept per geometry.
+	 *
+	 * @return the maximum number of arrays kept per geometry.
+	 */
+	public int getMaxPerGeometry() {
+		return this.maxPerGeometry;
+	}
+
+	private synchronized BitArray poll(Geometry geometry) {
+		LinkedList<BitArray> list = this.arrays.get(geometry);
+		if (list == null || list.isEmpty()) {
+			return null;
+		}
+
+		this.size--;
+		return list.removeFirst();
+	}
+
+	private static final class Geometry {
+
+		private final int bitsPerSlice;
+
+		private final int slicesCount;
+
+		Geometry(int bitsPerSlice, int slicesCount) {
+			this.bitsPerSlice = bitsPerSlice;
+			this.slicesCount = slicesCount;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.bitsPerSlice + this.slicesCount;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Geometry)) {
+				return false;
+			}
+			Geometry other = (Geometry) obj;
+			return this.bitsPerSlice == other.bitsPerSlice
+						&& this.slicesCount == other.slicesCount;
+		}
+
+	}
+
+}
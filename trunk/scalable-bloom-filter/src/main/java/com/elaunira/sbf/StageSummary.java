@@ -0,0 +1,93 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+
+/**
+ * A small register-blocked Bloom filter summarizing the elements of a stage of
+ * a {@link ScalableBloomFilter}. All the bits of an element are set in a
+ * single 64 bits word, thus a lookup reads one word only. With
+ * {@link #BITS_PER_ELEMENT} bits per element the summary rejects about 97% of
+ * the elements which have not been added, which lets a negative lookup skip
+ * the stage without touching its (large) bit array.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+final class StageSummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// the number of bits of the summary per element of the stage
+	static final int BITS_PER_ELEMENT = 8;
+
+	// the number of bits set per element in its word
+	private static final int HASHES = 4;
+
+	private final long[] words;
+
+	// the number of lookups answered positively by the stage
+	long hits;
+
+	StageSummary(int capacity) {
+		this.words = new long[(int) (getBitsCount(capacity) / 64)];
+	}
+
+	private StageSummary(long[] words, long hits) {
+		this.words = words;
+		this.hits = hits;
+	}
+
+	void add(long digest) {
+		long h = hash(digest);
+		this.words[this.index(h)] |= mask(h);
+	}
+
+	boolean mightContain(long digest) {
+		long h = hash(digest);
+		long mask = mask(h);
+		return (this.words[this.index(h)] & mask) == mask;
+	}
+
+	StageSummary copy() {
+		return new StageSummary(this.words.clone(), this.hits);
+	}
+
+	void clear() {
+		BitArray.clear(this.words);
+		this.hits = 0;
+	}
+
+	long getBitsCount() {
+		return (long) this.words.length * 64;
+	}
+
+	/**
+	 * Returns the number of bits of the summary of a stage of the specified
+	 * capacity.
+	 */
+	static long getBitsCount(int capacity) {
+		long bits = ((long) capacity + 1) * BITS_PER_ELEMENT;
+		return Math.max(1, Math.min((bits + 63) / 64, Integer.MAX_VALUE - 8)) * 64;
+	}
+
+	private static long hash(long digest) {
+		// the seed makes the hash independent from the mixed digest
+		// used to route the elements to the shards of a ShardedBloomFilter
+		return BloomFilterUtil.mix(digest + 0x9e3779b97f4a7c15L);
+	}
+
+	private int index(long h) {
+		// maps the high 32 bits onto [0;words.length[ without a division
+		return (int) (((h >>> 32) * this.words.length) >>> 32);
+	}
+
+	private static long mask(long h) {
+		long mask = 0;
+		for (int i = 0; i < HASHES; i++) {
+			mask |= 1L << (h >>> (i * 6));
+		}
+		return mask;
+	}
+
+}
@@ -0,0 +1,311 @@
+package com.elaunira.sbf;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A Bloom filter which only remembers the elements added during a sliding
+ * window. The window is divided into {@code generations} consecutive
+ * generations, each one backed by a {@link ScalableBloomFilter}. Elements are
+ * added to the most recent generation and queries cover all the generations
+ * of the window. When a new generation starts, the oldest one is dropped,
+ * thus the memory used remains steady and there is no need to rebuild the
+ * whole filter periodically.
+ * <p>
+ * A generation lasts either a fixed amount of time ({@link Rotation#TIME}) or
+ * a fixed number of additions ({@link Rotation#COUNT}). An element is
+ * guaranteed to be remembered during {@code (generations - 1) * length} after
+ * its last addition and is forgotten after {@code generations * length}.
+ * <p>
+ * The false positive probability of a generation is the false positive
+ * probability of the window divided by the number of generations.
+ * <p>
+ * When a {@link StagePool} is set, the filters of the expired generations are
+ * cleared and reused by the next generations.
+ * <p>
+ * This class is <strong>not thread-safe</strong>.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class WindowedBloomFilter<E> extends BloomFilter<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the event which starts a new generation
+	private final Rotation rotation;
+
+	// the duration in milliseconds or the number of additions of a generation
+	private final long generationLength;
+
+	// the number of generations of the window
+	private final int generationsCount;
+
+	// the generations, from the oldest to the most recent
+	private final LinkedList<Generation<E>> generations;
+
+	// the pool the filters of the generations are taken from (optional)
+	private transient StagePool pool;
+
+	public enum Rotation {
+		// a generation lasts generationLength milliseconds
+		TIME,
+		// a generation lasts generationLength additions
+		COUNT
+	}
+
+	/**
+	 * Creates a filter remembering the elements added during a sliding window
+	 * of {@code generations} generations.
+	 *
+	 * @param rotation
+	 *            the event which starts a new generation.
+	 *
+	 * @param generationLength
+	 *            the duration of a generation in milliseconds for
+	 *            {@link Rotation#TIME}, its number of additions for
+	 *            {@link Rotation#COUNT}.
+	 *
+	 * @param generations
+	 *            the number of generations of the window.
+	 *
+	 * @param capacity
+	 *            the initial capacity of each generation.
+	 *
+	 * @param falsePositiveProbability
+	 *            the maximum false positives rate allowed by the window.
+	 */
+	public WindowedBloomFilter(Rotation rotation, long generationLength,
+			int generations, int capacity, double falsePositiveProbability) {
+		super(capacity, falsePositiveProbability);
+
+		if (generationLength <= 0) {
+			throw new IllegalArgumentException("generation length must be strict positive");
+		}
+
+		if (generations <= 0) {
+			throw new IllegalArgumentException("generations must be strict positive");
+		}
+
+		this.rotation = rotation;
+		this.generationLength = generationLength;
+		this.generationsCount = generations;
+		this.generations = new LinkedList<Generation<E>>();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean addDigest(long digest) {
+		this.expire();
+
+		Iterator<Generation<E>> iterator = this.generations.descendingIterator();
+		Generation<E> current = iterator.next();
+
+		// the element is always added to the current generation, so that
+		// an element seen again is remembered from its last addition
+		boolean contained = current.filter.addDigest(digest);
+		if (!contained) {
+			current.added++;
+		}
+
+		while (!contained && iterator.hasNext()) {
+			contained = iterator.next().filter.containsDigest(digest);
+		}
+
+		return contained;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean containsDigest(long digest) {
+		this.expire();
+
+		Iterator<Generation<E>> iterator = this.generations.descendingIterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().filter.containsDigest(digest)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Starts a new generation immediately, dropping the oldest one if the
+	 * window is complete.
+	 */
+	public void rotate() {
+		long start =
+			this.rotation == Rotation.TIME ? this.currentTimeMillis() : 0;
+		this.startGeneration(start);
+	}
+
+	/**
+	 * Returns the number of unique elements added during each generation of
+	 * the window, summed over the generations. An element added during
+	 * several generations is counted once per generation.
+	 *
+	 * @return the number of elements added during the window.
+	 */
+	public int size() {
+		this.expire();
+
+		int sum = 0;
+		for (Generation<E> generation : this.generations) {
+			sum += generation.filter.size();
+		}
+		return sum;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		for (Generation<E> generation : this.generations) {
+			generation.filter.clear();
+		}
+		this.generations.clear();
+	}
+
+	/**
+	 * Sets the pool the filters of the generations are taken from and
+	 * released to when a generation expires.
+	 *
+	 * @param pool
+	 *            the pool to use or {@code null} to allocate new filters.
+	 */
+	public void setStagePool(StagePool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getCapacity() {
+		return -1;
+	}
+
+	/**
+	 * Returns the event which starts a new generation.
+	 *
+	 * @return the event which starts a new generation.
+	 */
+	public Rotation getRotation() {
+		return this.rotation;
+	}
+
+	/**
+	 * Returns the duration in milliseconds or the number of additions of a
+	 * generation.
+	 *
+	 * @return the duration in milliseconds or the number of additions of a
+	 *         generation.
+	 */
+	public long getGenerationLength() {
+		return this.generationLength;
+	}
+
+	/**
+	 * Returns the number of generations of the window.
+	 *
+	 * @return the number of generations of the window.
+	 */
+	public int getGenerationsCount() {
+		return this.generationsCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return
+			super.toString()
+				+ "[rotation=" + this.rotation
+				+ ", generationLength=" + this.generationLength
+				+ ", generations=" + this.generations.size()
+				+ "/" + this.generationsCount + "]";
+	}
+
+	/**
+	 * Returns the current time in milliseconds, used to rotate the
+	 * generations when the rotation is {@link Rotation#TIME}.
+	 *
+	 * @return the current time in milliseconds.
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private void expire() {
+		if (this.rotation == Rotation.COUNT) {
+			if (this.generations.isEmpty()
+					|| this.generations.getLast().added >= this.generationLength) {
+				this.startGeneration(0);
+			}
+			return;
+		}
+
+		long now = this.currentTimeMillis();
+
+		if (this.generations.isEmpty()) {
+			this.startGeneration(now);
+			return;
+		}
+
+		long start = this.generations.getLast().start;
+		long elapsed = now - start;
+		if (elapsed < this.generationLength) {
+			return;
+		}
+
+		if (elapsed >= this.generationLength * this.generationsCount) {
+			// the whole window has expired
+			this.clear();
+			this.startGeneration(now - elapsed % this.generationLength);
+			return;
+		}
+
+		for (long i = 1; i <= elapsed / this.generationLength; i++) {
+			this.startGeneration(start + i * this.generationLength);
+		}
+	}
+
+	private void startGeneration(long start) {
+		if (this.generations.size() == this.generationsCount) {
+			this.generations.removeFirst().filter.clear();
+		}
+
+		ScalableBloomFilter<E> filter = 
+			new ScalableBloomFilter<E>(
+					super.capacity, 
+					super.falsePositiveProbability / this.generationsCount);
+		filter.setStagePool(this.pool);
+
+		this.generations.add(new Generation<E>(filter, start));
+	}
+
+	private static final class Generation<E> implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ScalableBloomFilter<E> filter;
+
+		// the time at which the generation has started
+		private final long start;
+
+		// the number of elements added during the generation
+		private long added;
+
+		Generation(ScalableBloomFilter<E> filter, long start) {
+			this.filter = filter;
+			this.start = start;
+		}
+
+	}
+
+}
@@ -18,65 +18,157 @@
 
 package com.elaunira.sbf.hash;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * This is a very fast, non-cryptographic hash suitable for general hash-based
  * lookup. See http://murmurhash.googlepages.com/ for more details.
  * <p>
  * The C version of MurmurHash 2.0 found at that site was ported to Java by
  * Andrzej Bialecki (ab at getopt org).
+ * <p>
+ * The data may be given as an array, as a {@link ByteBuffer} (heap or direct)
+ * whose blocks are read by little-endian {@link ByteBuffer#getInt(int)} loads,
+ * or as the UTF-16 encoding of a {@link CharSequence} computed on the fly.
+ * All the variants return the same hash for the same bytes.
  */
 public class Murmur2 implements HashFunction {
 
+	private static final int M = 0x5bd1e995;
+
+	private static final int R = 24;
+
+	// the byte order mark written by the UTF-16 encoder
+	private static final int UTF16_BOM = 0xfffe;
+
 	public int hash(String data, int seed) {
 		return hash32(data.getBytes(), seed);
 	}
 	
 	public static int hash32(byte[] data, int seed) {
-		int m = 0x5bd1e995;
-		int r = 24;
-
-		int h = seed ^ data.length;
-
-		int len = data.length;
-		int len_4 = len >> 2;
-
-		for (int i = 0; i < len_4; i++) {
-			int i_4 = i << 2;
-			int k = data[i_4 + 3];
-			k = k << 8;
-			k = k | (data[i_4 + 2] & 0xff);
-			k = k << 8;
-			k = k | (data[i_4 + 1] & 0xff);
-			k = k << 8;
-			k = k | (data[i_4 + 0] & 0xff);
-			k *= m;
-			k ^= k >>> r;
-			k *= m;
-			h *= m;
-			h ^= k;
-		}
+		return hash32(ByteBuffer.wrap(data), seed);
+	}
+
+	/**
+	 * Hashes the remaining bytes of the specified buffer, from its position
+	 * to its limit. The position of the buffer is not modified. Each block of
+	 * four bytes is read by a single little-endian load, whatever the order
+	 * of the buffer.
+	 * 
+	 * @param data
+	 *            the bytes to hash.
+	 * 
+	 * @param seed
+	 *            the seed of the hash.
+	 * 
+	 * @return the hash of the remaining bytes.
+	 */
+	public static int hash32(ByteBuffer data, int seed) {
+		ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
 
-		int len_m = len_4 << 2;
-		int left = len - len_m;
+		int start = buffer.position();
+		int len = buffer.remaining();
+		int end = start + (len & ~3);
 
+		int h = seed ^ len;
+
+		for (int i = start; i < end; i += 4) {
+			h = mix(h, buffer.getInt(i));
+		}
+
+		int left = len & 3;
 		if (left != 0) {
+			int limit = start + len;
 			if (left >= 3) {
-				h ^= (int) data[len - 3] << 16;
+				h ^= (int) buffer.get(limit - 3) << 16;
 			}
 			if (left >= 2) {
-				h ^= (int) data[len - 2] << 8;
+				h ^= (int) buffer.get(limit - 2) << 8;
 			}
-			if (left >= 1) {
-				h ^= (int) data[len - 1];
+			h ^= (int) buffer.get(limit - 1);
+
+			h *= M;
+		}
+
+		return finish(h);
+	}
+
+	/**
+	 * Hashes the UTF-16 encoding of the specified characters, as returned by
+	 * {@code s.toString().getBytes("UTF-16")}, without building it: the byte
+	 * order mark followed by the characters in big-endian order. The result
+	 * is the one of {@link #hash32(byte[], int)} on the encoded bytes.
+	 * <p>
+	 * The encoder replaces the unpaired surrogates, thus the characters are
+	 * encoded the regular way when {@code s} contains surrogates.
+	 * 
+	 * @param s
+	 *            the characters to hash.
+	 * 
+	 * @param seed
+	 *            the seed of the hash.
+	 * 
+	 * @return the hash of the UTF-16 encoding of the characters.
+	 */
+	public static int hash32Utf16(CharSequence s, int seed) {
+		int n = s.length();
+		if (n == 0) {
+			// the encoder does not write any byte order mark
+			return finish(seed);
+		}
+
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= '\uD800' && c <= '\uDFFF') {
+				try {
+					return hash32(s.toString().getBytes("UTF-16"), seed);
+				} catch (java.io.UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
 			}
+		}
+
+		// 2 bytes of byte order mark, then 2 bytes per character
+		int h = seed ^ (2 + 2 * n);
 
-			h *= m;
+		// the first block holds the byte order mark and the first character
+		h = mix(h, UTF16_BOM | swap(s.charAt(0)) << 16);
+
+		// each next block holds two characters
+		int i = 1;
+		for (; i + 1 < n; i += 2) {
+			h = mix(h, swap(s.charAt(i)) | swap(s.charAt(i + 1)) << 16);
+		}
+
+		if (i < n) {
+			// two bytes left, sign-extended as by hash32(byte[], int)
+			char c = s.charAt(i);
+			h ^= (int) (byte) (c >>> 8) << 8;
+			h ^= (int) (byte) c;
+			h *= M;
 		}
 
+		return finish(h);
+	}
+
+	private static int swap(char c) {
+		return ((c & 0xff) << 8) | (c >>> 8);
+	}
+
+	private static int mix(int h, int k) {
+		k *= M;
+		k ^= k >>> R;
+		k *= M;
+		h *= M;
+		h ^= k;
+		return h;
+	}
+
+	private static int finish(int h) {
 		h ^= h >>> 13;
-		h *= m;
+		h *= M;
 		h ^= h >>> 15;
-
 		return h;
 	}
 
@@ -0,0 +1,380 @@
+package com.elaunira.sbf.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.elaunira.sbf.BloomFilterUtil;
+
+/**
+ * A client of a {@link FilterServer}. The elements are hashed by the client
+ * and only their digests are sent, thus the results are the ones the filters
+ * of the server would give for the elements themselves.
+ * <p>
+ * A client holds a single connection, shared by all the threads using it.
+ * The requests are pipelined: a request is sent without waiting for the
+ * responses of the previous ones, and the requests sent concurrently by
+ * several threads are flushed together. The asynchronous methods let a
+ * single thread pipeline its own requests.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterClient {
+
+	private static final Callable<boolean[]> NOTHING = new Callable<boolean[]>() {
+		public boolean[] call() {
+			return null;
+		}
+	};
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Socket socket;
+
+	private final DataOutputStream out;
+
+	private final DataInputStream in;
+
+	// the requests waiting for their response, by identifier
+	private final ConcurrentMap<Integer, Response> pending =
+		new ConcurrentHashMap<Integer, Response>();
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	// the number of threads writing or waiting to write a request,
+	// the last one flushes the requests
+	private final AtomicInteger writers = new AtomicInteger();
+
+	private final Thread reader;
+
+	private volatile IOException failure;
+
+	/**
+	 * Connects to the server listening on the specified host and port.
+	 *
+	 * @param host
+	 *            the host of the server.
+	 *
+	 * @param port
+	 *            the port of the server.
+	 *
+	 * @throws IOException
+	 *             if the connection fails.
+	 */
+	public FilterClient(String host, int port) throws IOException {
+		this.socket = new Socket();
+		this.socket.setTcpNoDelay(true);
+		this.socket.connect(new InetSocketAddress(host, port));
+
+		this.out = new DataOutputStream(
+				new BufferedOutputStream(this.socket.getOutputStream(), BUFFER_SIZE));
+		this.in = new DataInputStream(
+				new BufferedInputStream(this.socket.getInputStream(), BUFFER_SIZE));
+
+		this.reader = new Thread("filter-client-" + this.socket.getLocalPort()) {
+			public void run() {
+				FilterClient.this.readResponses();
+			}
+		};
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * Adds the specified element to the specified filter.
+	 *
+	 * @param filter
+	 *            the name of the filter.
+	 *
+	 * @param elt
+	 *            the element to add.
+	 *
+	 * @return {@code true} if the element was already contained, otherwise
+	 *         {@code false}.
+	 *
+	 * @throws IOException
+	 *             if the request fails.
+	 */
+	public boolean add(String filter, Object elt) throws IOException {
+		return this.addAll(filter, Collections.singleton(elt))[0];
+	}
+
+	/**
+	 * Checks whether the specified element is contained in the specified
+	 * filter.
+	 *
+	 * @param filter
+	 *            the name of the filter.
+	 *
+	 * @param elt
+	 *            the element to check.
+	 *
+	 * @return {@code false} if the element is <i>definitely</i> not present,
+	 *         {@code true} otherwise.
+	 *
+	 * @throws IOException
+	 *             if the request fails.
+	 */
+	public boolean contains(String filter, Object elt) throws IOException {
+		return this.containsAll(filter, Collections.singleton(elt))[0];
+	}
+
+	/**
+	 * Adds the specified elements to the specified filter with a single
+	 * request.
+	 *
+	 * @param filter
+	 *            the name of the filter.
+	 *
+	 * @param elts
+	 *            the elements to add.
+	 *
+	 * @return for each element, {@code true} if it was already contained.
+	 *
+	 * @throws IOException
+	 *             if the request fails.
+	 */
+	public boolean[] addAll(String filter, Collection<?> elts) throws IOException {
+		return get(this.addAllAsync(filter, elts));
+	}
+
+	/**
+	 * Checks the specified elements against the specified filter with a single
+	 * request.
+	 *
+	 * @param filter
+	 *            the name of the filter.
+	 *
+	 * @param elts
+	 *            the elements to check.
+	 *
+	 * @return for each element, {@code false} if it is <i>definitely</i> not
+	 *         present.
+	 *
+	 * @throws IOException
+	 *             if the request fails.
+	 */
+	public boolean[] containsAll(String filter, Collection<?> elts) throws IOException {
+		return get(this.containsAllAsync(filter, elts));
+	}
+
+	/**
+	 * Sends a request adding the specified elements to the specified filter
+	 * without waiting for its response.
+	 *
+	 * @param filter
+	 *            the name of the filter.
+	 *
+	 * @param elts
+	 *            the elements to add.
+	 *
+	 * @return the future result of {@link #addAll(String, Collection)}.
+	 *
+	 * @throws IOException
+	 *             if the request cannot be sent.
+	 */
+	public Future<boolean[]> addAllAsync(String filter, Collection<?> elts) throws IOException {
+		return this.send(Protocol.ADD, filter, elts);
+	}
+
+	/**
+	 * Sends a request checking the specified elements against the specified
+	 * filter without waiting for its response.
+	 *
+	 * @param filter
+	 *            the name of the filter.
+	 *
+	 * @param elts
+	 *            the elements to check.
+	 *
+	 * @return the future result of {@link #containsAll(String, Collection)}.
+	 *
+	 * @throws IOException
+	 *             if the request cannot be sent.
+	 */
+	public Future<boolean[]> containsAllAsync(String filter, Collection<?> elts) throws IOException {
+		return this.send(Protocol.CONTAINS, filter, elts);
+	}
+
+	/**
+	 * Closes the connection. The requests waiting for their response fail.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void close() throws IOException {
+		this.socket.close();
+		try {
+			this.reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Future<boolean[]> send(byte op, String filter, Collection<?> elts) throws IOException {
+		if (elts.size() > Protocol.MAX_ELEMENTS) {
+			throw new IllegalArgumentException("too many elements: " + elts.size());
+		}
+
+		// hashes the elements before taking the lock
+		long[] digests = new long[elts.size()];
+		int count = 0;
+		for (Object elt : elts) {
+			digests[count++] = BloomFilterUtil.digest(elt);
+		}
+		byte[] name = filter.getBytes(Protocol.UTF_8);
+		if (name.length > 0xffff) {
+			throw new IllegalArgumentException("name too long: " + filter);
+		}
+
+		int id = this.nextId.getAndIncrement();
+		Response response = new Response(count);
+		this.pending.put(id, response);
+
+		this.writers.incrementAndGet();
+		try {
+			synchronized (this.out) {
+				this.checkOpen();
+				this.out.writeInt(4 + 1 + 2 + name.length + 4 + 8 * count);
+				this.out.writeInt(id);
+				this.out.writeByte(op);
+				this.out.writeShort(name.length);
+				this.out.write(name);
+				this.out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					this.out.writeLong(digests[i]);
+				}
+
+				if (this.writers.decrementAndGet() == 0) {
+					this.out.flush();
+				}
+			}
+		} catch (IOException e) {
+			this.pending.remove(id);
+			this.fail(e);
+			throw e;
+		}
+
+		return response;
+	}
+
+	private void checkOpen() throws IOException {
+		IOException e = this.failure;
+		if (e != null) {
+			throw new IOException("connection failed: " + e.getMessage());
+		}
+	}
+
+	private void readResponses() {
+		try {
+			while (true) {
+				int length = this.in.readInt();
+				if (length < 5 || length > Protocol.MAX_FRAME_LENGTH) {
+					throw new IOException("invalid response length: " + length);
+				}
+				int id = this.in.readInt();
+				byte status = this.in.readByte();
+
+				Response response = this.pending.remove(id);
+				if (response == null) {
+					throw new IOException("unexpected response: " + id);
+				}
+
+				if (status == Protocol.OK) {
+					int count = this.in.readInt();
+					boolean[] results = new boolean[count];
+					for (int i = 0; i < Protocol.resultsLength(count); i++) {
+						int b = this.in.readUnsignedByte();
+						for (int j = 0; j < 8 && (i << 3) + j < count; j++) {
+							results[(i << 3) + j] = (b & (1 << j)) != 0;
+						}
+					}
+					response.complete(results);
+				} else {
+					byte[] message = new byte[this.in.readUnsignedShort()];
+					this.in.readFully(message);
+					response.fail(new IOException(new String(message, Protocol.UTF_8)));
+				}
+			}
+		} catch (IOException e) {
+			this.fail(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		if (this.failure == null) {
+			this.failure = e;
+		}
+		try {
+			this.socket.close();
+		} catch (IOException ignored) {
+			// already failed
+		}
+
+		for (Integer id : this.pending.keySet()) {
+			Response response = this.pending.remove(id);
+			if (response != null) {
+				response.fail(new IOException("connection failed: " + e.getMessage()));
+			}
+		}
+	}
+
+	private static boolean[] get(Future<boolean[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw new IOException(e.getCause().getMessage());
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * The future response of a request.
+	 */
+	private static final class Response extends FutureTask<boolean[]> {
+
+		private final int count;
+
+		Response(int count) {
+			super(NOTHING);
+			this.count = count;
+		}
+
+		void complete(boolean[] results) {
+			if (results.length != this.count) {
+				this.fail(new IOException("unexpected number of results: " + results.length));
+			} else {
+				super.set(results);
+			}
+		}
+
+		void fail(Throwable t) {
+			super.setException(t);
+		}
+
+	}
+
+}
@@ -0,0 +1,457 @@
+package com.elaunira.sbf.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elaunira.sbf.BloomFilter;
+
+/**
+ * Serves named Bloom filters over TCP, so that several processes share a
+ * single copy of each filter. The filters are registered by name with
+ * {@link #register(String, BloomFilter)} and queried with a
+ * {@link FilterClient}.
+ * <p>
+ * The server is made of a single thread multiplexing all the connections with
+ * a {@link Selector}. All the requests received by a read on a connection
+ * (several requests when the client pipelines them) are processed before
+ * their responses are written at once. When a client does not read its
+ * responses, the server stops reading its requests until the pending
+ * responses are written.
+ * <p>
+ * The clients send the digests of the elements (see
+ * {@link com.elaunira.sbf.BloomFilterUtil#digest(Object)}), thus the server
+ * never hashes an element. Each operation on a filter is done while holding
+ * the lock of the filter, the process embedding the server may then use the
+ * filters too if it synchronizes on them.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterServer {
+
+	private static final Logger logger = LoggerFactory.getLogger(FilterServer.class);
+
+	// the initial size of the buffers of a connection
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// the size of the pending responses above which the requests
+	// of a connection are not read anymore
+	private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+	private final InetSocketAddress address;
+
+	private final ConcurrentMap<String, BloomFilter<?>> filters =
+		new ConcurrentHashMap<String, BloomFilter<?>>();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong elements = new AtomicLong();
+
+	private ServerSocketChannel serverChannel;
+
+	private Selector selector;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	// the digests and results of the request being processed,
+	// only used by the thread of the server
+	private long[] digests = new long[1024];
+
+	private boolean[] results = new boolean[1024];
+
+	/**
+	 * Creates a server listening on the specified port of all the interfaces.
+	 *
+	 * @param port
+	 *            the port to listen on, {@code 0} for any free port.
+	 */
+	public FilterServer(int port) {
+		this(new InetSocketAddress(port));
+	}
+
+	/**
+	 * Creates a server listening on the specified address.
+	 *
+	 * @param address
+	 *            the address to listen on.
+	 */
+	public FilterServer(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * Registers a filter under the specified name, replacing the filter
+	 * previously registered under this name if any.
+	 *
+	 * @param name
+	 *            the name of the filter.
+	 *
+	 * @param filter
+	 *            the filter to serve.
+	 */
+	public void register(String name, BloomFilter<?> filter) {
+		if (name.getBytes(Protocol.UTF_8).length > 0xffff) {
+			throw new IllegalArgumentException("name too long: " + name);
+		}
+		this.filters.put(name, filter);
+	}
+
+	/**
+	 * Stops serving the filter registered under the specified name.
+	 *
+	 * @param name
+	 *            the name of the filter.
+	 *
+	 * @return the filter removed or {@code null}.
+	 */
+	public BloomFilter<?> unregister(String name) {
+		return this.filters.remove(name);
+	}
+
+	/**
+	 * Returns the filter registered under the specified name.
+	 *
+	 * @param name
+	 *            the name of the filter.
+	 *
+	 * @return the filter or {@code null}.
+	 */
+	public BloomFilter<?> getFilter(String name) {
+		return this.filters.get(name);
+	}
+
+	/**
+	 * Binds the server and starts serving the requests.
+	 *
+	 * @throws IOException
+	 *             if the server cannot be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (this.running) {
+			throw new IllegalStateException("server already started");
+		}
+
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().setReuseAddress(true);
+		this.serverChannel.socket().bind(this.address);
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+		this.running = true;
+		this.thread = new Thread("filter-server-" + this.getPort()) {
+			public void run() {
+				FilterServer.this.serve();
+			}
+		};
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 *
+	 * @return the port the server listens on, {@code -1} if it is not started.
+	 */
+	public int getPort() {
+		ServerSocketChannel channel = this.serverChannel;
+		return channel == null ? -1 : channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the number of requests processed.
+	 *
+	 * @return the number of requests processed.
+	 */
+	public long getRequestsCount() {
+		return this.requests.get();
+	}
+
+	/**
+	 * Returns the number of elements added or checked.
+	 *
+	 * @return the number of elements added or checked.
+	 */
+	public long getElementsCount() {
+		return this.elements.get();
+	}
+
+	/**
+	 * Stops the server and closes all the connections.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for the server
+	 *             to stop.
+	 */
+	public synchronized void close() throws InterruptedException {
+		if (!this.running) {
+			return;
+		}
+
+		this.running = false;
+		this.selector.wakeup();
+		this.thread.join();
+	}
+
+	private void serve() {
+		try {
+			while (this.running) {
+				this.selector.select();
+
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							this.accept();
+						} else {
+							Connection connection = (Connection) key.attachment();
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+						}
+					} catch (IOException e) {
+						logger.debug("closing connection", e);
+						close(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("filter server stopped", e);
+		} catch (ClosedSelectorException e) {
+			// closed
+		} finally {
+			for (SelectionKey key : this.selector.keys()) {
+				close(key);
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				logger.warn("cannot close selector", e);
+			}
+			this.running = false;
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = this.serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.warn("cannot close channel", e);
+		}
+	}
+
+	/**
+	 * Processes the request of {@code in} (positioned after its length) and
+	 * appends its response to {@code out}.
+	 */
+	private ByteBuffer process(ByteBuffer in, int end, ByteBuffer out) {
+		int id = in.getInt();
+		String message;
+
+		try {
+			byte op = in.get();
+			int nameLength = in.getShort() & 0xffff;
+			if (in.position() + nameLength + 4 > end) {
+				throw new IllegalArgumentException("truncated request");
+			}
+			byte[] name = new byte[nameLength];
+			in.get(name);
+			int count = in.getInt();
+			if (count < 0 || in.position() + (long) count * 8 != end) {
+				throw new IllegalArgumentException("invalid number of elements: " + count);
+			}
+
+			String filterName = new String(name, Protocol.UTF_8);
+			BloomFilter<?> filter = this.filters.get(filterName);
+			if (filter == null) {
+				throw new IllegalArgumentException("unknown filter: " + filterName);
+			}
+
+			if (this.digests.length < count) {
+				int length = Math.max(count, this.digests.length * 2);
+				this.digests = new long[length];
+				this.results = new boolean[length];
+			}
+			for (int i = 0; i < count; i++) {
+				this.digests[i] = in.getLong();
+			}
+
+			synchronized (filter) {
+				switch (op) {
+					case Protocol.ADD:
+						for (int i = 0; i < count; i++) {
+							this.results[i] = filter.addDigest(this.digests[i]);
+						}
+						break;
+					case Protocol.CONTAINS:
+						filter.containsDigests(this.digests, count, this.results);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown operation: " + op);
+				}
+			}
+
+			this.requests.incrementAndGet();
+			this.elements.addAndGet(count);
+
+			int length = Protocol.resultsLength(count);
+			out = ensureRemaining(out, 13 + length);
+			out.putInt(9 + length);
+			out.putInt(id);
+			out.put(Protocol.OK);
+			out.putInt(count);
+			for (int i = 0; i < length; i++) {
+				int b = 0;
+				for (int j = 0; j < 8 && (i << 3) + j < count; j++) {
+					if (this.results[(i << 3) + j]) {
+						b |= 1 << j;
+					}
+				}
+				out.put((byte) b);
+			}
+			return out;
+		} catch (IllegalArgumentException e) {
+			message = e.getMessage();
+		} catch (RuntimeException e) {
+			logger.warn("cannot process request", e);
+			message = e.toString();
+		} finally {
+			in.position(end);
+		}
+
+		byte[] bytes = message.getBytes(Protocol.UTF_8);
+		if (bytes.length > 0xffff) {
+			bytes = "error".getBytes(Protocol.UTF_8);
+		}
+		out = ensureRemaining(out, 11 + bytes.length);
+		out.putInt(7 + bytes.length);
+		out.putInt(id);
+		out.put(Protocol.ERROR);
+		out.putShort((short) bytes.length);
+		out.put(bytes);
+		return out;
+	}
+
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int length) {
+		if (buffer.remaining() >= length) {
+			return buffer;
+		}
+
+		ByteBuffer result = ByteBuffer.allocate(
+				Math.max(buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		result.put(buffer);
+		return result;
+	}
+
+	/**
+	 * The state of a connection.
+	 */
+	private final class Connection {
+
+		private final SocketChannel channel;
+
+		private final SelectionKey key;
+
+		// the bytes received, in write mode
+		private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+		// the responses to send, in write mode
+		private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		void read() throws IOException {
+			if (this.channel.read(this.in) < 0) {
+				throw new IOException("connection closed by peer");
+			}
+
+			this.in.flip();
+			while (this.in.remaining() >= 4) {
+				int length = this.in.getInt(this.in.position());
+				if (length < 9 || length > Protocol.MAX_FRAME_LENGTH) {
+					throw new IOException("invalid request length: " + length);
+				}
+				if (this.in.remaining() < 4 + length) {
+					if (this.in.capacity() < 4 + length) {
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						larger.put(this.in);
+						this.in = larger;
+						this.in.flip();
+					}
+					break;
+				}
+
+				this.in.getInt();
+				this.out = FilterServer.this.process(
+						this.in, this.in.position() + length, this.out);
+			}
+			this.in.compact();
+
+			this.write();
+		}
+
+		void write() throws IOException {
+			if (this.out.position() > 0) {
+				this.out.flip();
+				this.channel.write(this.out);
+				this.out.compact();
+			}
+
+			int pending = this.out.position();
+			int ops = 0;
+			if (pending < MAX_PENDING_OUTPUT) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (pending > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (this.key.interestOps() != ops) {
+				this.key.interestOps(ops);
+			}
+		}
+
+	}
+
+}
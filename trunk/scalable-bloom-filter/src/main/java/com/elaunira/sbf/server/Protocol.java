@@ -0,0 +1,68 @@
+package com.elaunira.sbf.server;
+
+import java.nio.charset.Charset;
+
+/**
+ * The binary protocol between a {@link FilterClient} and a
+ * {@link FilterServer}. All the integers are big-endian.
+ * <p>
+ * A request is made of:
+ * <ul>
+ * <li>the length of the rest of the request ({@code int}),</li>
+ * <li>the identifier of the request, chosen by the client ({@code int}),</li>
+ * <li>the operation ({@code byte}),</li>
+ * <li>the length of the name of the filter ({@code short}) followed by the
+ * name encoded in UTF-8,</li>
+ * <li>the number of elements ({@code int}) followed by the digest of each
+ * element ({@code long}).</li>
+ * </ul>
+ * A response is made of:
+ * <ul>
+ * <li>the length of the rest of the response ({@code int}),</li>
+ * <li>the identifier of the request ({@code int}),</li>
+ * <li>the status ({@code byte}),</li>
+ * <li>if the status is {@link #OK}, the number of elements ({@code int})
+ * followed by one bit per element, the result for the element {@code i}
+ * being the bit {@code i % 8} of the byte {@code i / 8},</li>
+ * <li>otherwise the length of the error message ({@code short}) followed by
+ * the message encoded in UTF-8.</li>
+ * </ul>
+ * The responses of a connection are sent in the order of the requests, thus
+ * a client may send several requests without waiting for their responses.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+final class Protocol {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// the operations
+	static final byte ADD = 1;
+
+	static final byte CONTAINS = 2;
+
+	// the status of a response
+	static final byte OK = 0;
+
+	static final byte ERROR = 1;
+
+	// the maximum length of a request or a response
+	static final int MAX_FRAME_LENGTH = 16 << 20;
+
+	// the maximum number of elements of a request
+	static final int MAX_ELEMENTS = (MAX_FRAME_LENGTH - 64) / 8;
+
+	private Protocol() {
+
+	}
+
+	/**
+	 * Returns the number of bytes of the results of {@code count} elements.
+	 */
+	static int resultsLength(int count) {
+		return (count + 7) >>> 3;
+	}
+
+}
@@ -0,0 +1,240 @@
+package com.elaunira.sbf;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link AdaptiveStagePlanner}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class AdaptiveStagePlannerTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(AdaptiveStagePlannerTest.class);
+
+	@Test
+	public void testCompoundFalsePositiveProbability() {
+		final int nbElements = 1000000;
+
+		for (double rate : new double[] { 0.1, 0.01, 0.001 }) {
+			AdaptiveStagePlanner planner = new AdaptiveStagePlanner(1000, rate);
+			ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(planner);
+			for (int i=0; i<nbElements; i++) {
+				bf.add(i);
+				bf.contains(-i);
+			}
+
+			int falsePositives = 0;
+			for (int i=nbElements; i<2 * nbElements; i++) {
+				if (bf.contains(i)) {
+					falsePositives++;
+				}
+			}
+
+			logger.info(planner.getStagesCount(nbElements) + " stages, compound probability "
+					+ planner.getCompoundFalsePositiveProbability(nbElements)
+					+ ", measured " + ((double) falsePositives / nbElements));
+			Assert.assertTrue(planner.getCompoundFalsePositiveProbability(nbElements) <= rate);
+			Assert.assertTrue(falsePositives < rate * nbElements);
+		}
+	}
+
+	@Test
+	public void testGrowthFollowsLookups() {
+		final int nbElements = 500000;
+
+		// the lookups answered by no stage
+		TestPlanner negative = new TestPlanner(1000, 0.01, Long.MAX_VALUE);
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(negative);
+		for (int i=0; i<nbElements; i++) {
+			bf.add(i);
+			bf.contains(-i - 1);
+		}
+
+		// the lookups of the elements just added
+		TestPlanner recent = new TestPlanner(1000, 0.01, Long.MAX_VALUE);
+		ScalableBloomFilter<Integer> bf2 = new ScalableBloomFilter<Integer>(recent);
+		for (int i=0; i<nbElements; i++) {
+			bf2.add(i);
+			bf2.contains(i);
+		}
+
+		int negativeStages = negative.getStagesCount(nbElements);
+		int recentStages = recent.getStagesCount(nbElements);
+		logger.info(negativeStages + " stages for negative lookups, "
+				+ recentStages + " stages for recent lookups");
+		Assert.assertTrue(negativeStages < recentStages);
+		Assert.assertTrue(negative.getCapacity(2) >= 7 * negative.getCapacity(1));
+		Assert.assertTrue(recent.getCapacity(2) <= 3 * recent.getCapacity(1));
+	}
+
+	@Test
+	public void testGrowthFollowsInsertRate() {
+		// the stages are filled in one second, the elements
+		// of the next minute are expected
+		TestPlanner planner = new TestPlanner(1000, 0.01, Long.MAX_VALUE);
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(planner);
+		for (int i=0; i<100000; i++) {
+			planner.time += TimeUnit.SECONDS.toNanos(1) / 1000;
+			bf.add(i);
+			bf.contains(i);
+		}
+
+		// the growth is the maximum one despite the lookups
+		Assert.assertEquals(
+				AdaptiveStagePlanner.MAX_GROWTH * planner.getCapacity(0),
+				planner.getCapacity(1));
+	}
+
+	@Test
+	public void testMemoryLimit() {
+		long limit = 16 * 1024;
+		AdaptiveStagePlanner planner = 
+			new AdaptiveStagePlanner(1000, 0.01, limit, 10, TimeUnit.MINUTES);
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(planner);
+		for (int i=0; i<2000000; i++) {
+			bf.add(i);
+			bf.contains(-i - 1);
+		}
+		for (int i=0; i<2000000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+
+		// the schedule stops once a stage of the initial capacity does not fit
+		int stages = planner.getStagesCount(2000000);
+		long bits = planner.getTotalBits(2000000);
+		logger.info(stages + " stages using " + (bits / 8) + " bytes");
+		Assert.assertEquals(stages, bf.getStages().size());
+		Assert.assertEquals(0, planner.getCapacity(stages));
+		Assert.assertTrue(bits > 0);
+		Assert.assertTrue(bits / 8 <= limit);
+		Assert.assertTrue(bf.getMemoryUsage() <= limit + 8 * stages);
+		Assert.assertTrue(bf.isSaturated());
+		Assert.assertTrue(
+				planner.getCompoundFalsePositiveProbability(2000000) <= planner.getFalsePositiveProbability());
+	}
+
+	@Test
+	public void testSummariesDoNotPlan() {
+		TestPlanner planner = new TestPlanner(1000, 0.01, Long.MAX_VALUE);
+		int stages = planner.getStagesCount(1000000);
+		long bits = planner.getTotalBits(1000000);
+		Assert.assertEquals(0, planner.getPlannedStagesCount());
+
+		// the stages are planned from the lookups of the elements just added
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(planner);
+		for (int i=0; i<500000; i++) {
+			bf.add(i);
+			bf.contains(i);
+		}
+		logger.info(stages + " stages using " + (bits / 8) + " bytes estimated, "
+				+ planner.getStagesCount(1000000) + " stages planned from the lookups");
+		Assert.assertTrue(planner.getCapacity(2) <= 3 * planner.getCapacity(1));
+		Assert.assertTrue(planner.getStagesCount(1000000) > stages);
+	}
+
+	@Test
+	public void testConcurrentLookups() throws InterruptedException {
+		TestPlanner planner = new TestPlanner(1000, 0.01, Long.MAX_VALUE);
+		final ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(planner);
+		bf.setSingleWriter(true);
+		for (int i=0; i<500; i++) {
+			bf.add(i);
+		}
+		bf.publish();
+
+		// the sampled lookups answered by the only stage and by no stage
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong misses = new AtomicLong();
+		Thread[] readers = new Thread[8];
+		for (int t=0; t<readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int n=0; n<100; n++) {
+						for (int i=-500; i<500; i++) {
+							boolean contained = bf.contains(i);
+							if ((BloomFilterUtil.digest(i) & 63) == 0) {
+								(contained ? hits : misses).incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			readers[t].start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		// no lookup reported by the readers is lost
+		Assert.assertTrue(hits.get() > 0 && misses.get() > 0);
+		Assert.assertEquals(
+				(double) misses.get() / (hits.get() + misses.get()),
+				planner.getDeepLookupsRatio(), 0);
+	}
+
+	@Test
+	public void testCopy() {
+		AdaptiveStagePlanner planner = new AdaptiveStagePlanner(1000, 0.01);
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(planner);
+		for (int i=0; i<10000; i++) {
+			bf.add(i);
+			bf.contains(i);
+		}
+		double deep = planner.getDeepLookupsRatio();
+
+		// the lookups of the copy are not reported to the planner of the filter
+		ScalableBloomFilter<Integer> copy = bf.copy();
+		Assert.assertNotSame(planner, copy.getPlanner());
+		Assert.assertTrue(copy.getPlanner() instanceof AdaptiveStagePlanner);
+		for (int i=0; i<100000; i++) {
+			copy.contains(-i - 1);
+		}
+		Assert.assertEquals(deep, planner.getDeepLookupsRatio());
+		Assert.assertTrue(((AdaptiveStagePlanner) copy.getPlanner()).getDeepLookupsRatio() > deep);
+
+		// the stages planned so far are the same, the next ones are planned apart
+		for (int i=0; i<bf.getStages().size(); i++) {
+			Assert.assertEquals(planner.getCapacity(i), copy.getPlanner().getCapacity(i));
+		}
+		for (int i=10000; i<100000; i++) {
+			copy.add(i);
+		}
+		Assert.assertEquals(deep, planner.getDeepLookupsRatio());
+		for (int i=0; i<100000; i++) {
+			Assert.assertTrue(copy.contains(i));
+		}
+	}
+
+	/**
+	 * A planner whose clock is set by the test, a filter being filled
+	 * instantly by default.
+	 */
+	private static final class TestPlanner extends AdaptiveStagePlanner {
+
+		private static final long serialVersionUID = 1L;
+
+		long time;
+
+		TestPlanner(int initialCapacity, double falsePositiveProbability, long memoryLimit) {
+			super(initialCapacity, falsePositiveProbability, memoryLimit, 1, TimeUnit.MINUTES);
+		}
+
+		@Override
+		long nanoTime() {
+			return this.time;
+		}
+
+	}
+
+}
@@ -0,0 +1,175 @@
+package com.elaunira.sbf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link AsyncInserter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class AsyncInserterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(AsyncInserterTest.class);
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int nbProducers = 4;
+		final int nbElementsPerProducer = 50000;
+
+		ScalableBloomFilter<Integer> bf =
+			new ScalableBloomFilter<Integer>(1000, 0.001);
+		bf.setSingleWriter(true);
+
+		final AsyncInserter<Integer> inserter =
+			new AsyncInserter<Integer>(bf, 1024);
+
+		Thread[] producers = new Thread[nbProducers];
+		for (int t=0; t<nbProducers; t++) {
+			final int offset = t * nbElementsPerProducer;
+			producers[t] = new Thread() {
+				public void run() {
+					for (int i=offset; i<offset + nbElementsPerProducer; i++) {
+						inserter.put(i);
+					}
+				}
+			};
+			producers[t].start();
+		}
+
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		inserter.close();
+
+		logger.info(inserter.toString());
+
+		int total = nbProducers * nbElementsPerProducer;
+		Assert.assertEquals(total, inserter.getSubmittedCount());
+		Assert.assertEquals(total, inserter.getAppliedCount());
+		Assert.assertEquals(0, inserter.getQueueDepth());
+		Assert.assertTrue(inserter.getBatchesCount() > 0);
+		for (int i=0; i<total; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+
+	@Test
+	public void testSubmit() throws InterruptedException, ExecutionException {
+		SlicedBloomFilter<Integer> bf =
+			new SlicedBloomFilter<Integer>(10000, 0.001);
+		AsyncInserter<Integer> inserter =
+			new AsyncInserter<Integer>(bf, 64);
+
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int i=0; i<1000; i++) {
+			futures.add(inserter.submit(i));
+		}
+
+		int contained = 0;
+		for (Future<Boolean> future : futures) {
+			if (future.get()) {
+				contained++;
+			}
+		}
+		Assert.assertTrue(contained < 10);
+
+		// the element is already contained
+		Assert.assertTrue(inserter.submit(0).get());
+		inserter.close();
+
+		Assert.assertEquals(bf.size(), 1000 - contained);
+	}
+
+	@Test
+	public void testBackPressure() throws InterruptedException {
+		SlicedBloomFilter<Integer> bf =
+			new SlicedBloomFilter<Integer>(1000000, 0.001);
+		AsyncInserter<Integer> inserter =
+			new AsyncInserter<Integer>(bf, 4);
+
+		int accepted = 0;
+		for (int i=0; i<100000; i++) {
+			if (inserter.offer(i)) {
+				accepted++;
+			}
+		}
+		inserter.close();
+
+		Assert.assertEquals(100000, accepted + inserter.getRejectedCount());
+		Assert.assertEquals(accepted, inserter.getAppliedCount());
+		Assert.assertTrue(inserter.getQueueCapacity() == 4);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testClosed() throws InterruptedException {
+		AsyncInserter<Integer> inserter =
+			new AsyncInserter<Integer>(new SlicedBloomFilter<Integer>(100, 0.001), 4);
+		inserter.close();
+		inserter.put(0);
+	}
+
+	@Test
+	public void testCloseWithConcurrentProducers() throws Exception {
+		final int nbProducers = 4;
+
+		for (int round=0; round<20; round++) {
+			final AsyncInserter<Integer> inserter =
+				new AsyncInserter<Integer>(new SlicedBloomFilter<Integer>(100000, 0.001), 64);
+			final List<List<Future<Boolean>>> futures = new ArrayList<List<Future<Boolean>>>();
+
+			Thread[] producers = new Thread[nbProducers];
+			for (int t=0; t<nbProducers; t++) {
+				final List<Future<Boolean>> submitted = new ArrayList<Future<Boolean>>();
+				futures.add(submitted);
+				producers[t] = new Thread() {
+					public void run() {
+						try {
+							for (int i=0; ; i++) {
+								submitted.add(inserter.submit(i));
+							}
+						} catch (IllegalStateException e) {
+							// closed
+						}
+					}
+				};
+				producers[t].start();
+			}
+
+			Thread.sleep(5);
+			inserter.close();
+			for (Thread producer : producers) {
+				producer.join();
+			}
+
+			// every future completes, the ones of the elements dropped fail
+			int failed = 0;
+			for (List<Future<Boolean>> submitted : futures) {
+				for (Future<Boolean> future : submitted) {
+					try {
+						future.get(10, TimeUnit.SECONDS);
+					} catch (ExecutionException e) {
+						Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+						failed++;
+					}
+				}
+			}
+			Assert.assertEquals(inserter.getRejectedCount(), failed);
+			Assert.assertEquals(inserter.getSubmittedCount(),
+					inserter.getAppliedCount() + inserter.getRejectedCount());
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.elaunira.sbf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to the {@link BinaryFuseFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class BinaryFuseFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger = 
+		LoggerFactory.getLogger(BinaryFuseFilterTest.class);
+
+	@Test
+	public void testFalsePositiveRate() {
+		final int nbElementsToInsert = 100000;
+
+		List<Integer> elements = new ArrayList<Integer>(nbElementsToInsert);
+		for (int i=0; i<nbElementsToInsert; i++) {
+			elements.add(i);
+		}
+
+		for (double errorRate : errorRates) {
+			BinaryFuseFilter<Integer> bf = 
+				new BinaryFuseFilter<Integer>(elements, errorRate);
+
+			logger.info(bf.toString());
+
+			for (int i=0; i<nbElementsToInsert; i++) {
+				Assert.assertTrue(bf.contains(i));
+			}
+
+			int falsePositives = 0;
+			for (int i=nbElementsToInsert; i<2*nbElementsToInsert; i++) {
+				if (bf.contains(i)) {
+					falsePositives++;
+				}
+			}
+
+			Assert.assertEquals(nbElementsToInsert, bf.size());
+			// tolerates some noise for the lowest error rates
+			Assert.assertTrue(
+					falsePositives <= errorRate * nbElementsToInsert * 1.1 + 5);
+		}
+	}
+
+	@Test
+	public void testSmallSets() {
+		for (int size=0; size<64; size++) {
+			List<Integer> elements = new ArrayList<Integer>(size);
+			for (int i=0; i<size; i++) {
+				elements.add(i);
+			}
+			elements.addAll(elements);
+
+			BinaryFuseFilter<Integer> bf = 
+				new BinaryFuseFilter<Integer>(elements, 0.01);
+
+			Assert.assertEquals(size, bf.size());
+			for (int i=0; i<size; i++) {
+				Assert.assertTrue(bf.contains(i));
+			}
+		}
+	}
+
+}
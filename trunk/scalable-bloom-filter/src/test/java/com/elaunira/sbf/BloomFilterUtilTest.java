@@ -0,0 +1,72 @@
+package com.elaunira.sbf;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests associated to {@link BloomFilterUtil}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class BloomFilterUtilTest {
+
+	@Test
+	public void testHashBucketsRange() {
+		Random random = new Random(42);
+		int[] maxs = { 1, 2, 3, 1000, 1 << 20, Integer.MAX_VALUE };
+
+		for (int n=0; n<10000; n++) {
+			long digest = random.nextLong();
+			for (int max : maxs) {
+				for (int i=0; i<16; i++) {
+					int bucket = BloomFilterUtil.getHashBucket(digest, i, max);
+					Assert.assertTrue(bucket >= 0 && bucket < max);
+				}
+			}
+		}
+
+		// the extreme digests do not produce negative buckets
+		Assert.assertTrue(BloomFilterUtil.getHashBucket(Long.MIN_VALUE, 0, 1000) >= 0);
+		Assert.assertTrue(BloomFilterUtil.getHashBucket(-1L, 3, 1000) >= 0);
+	}
+
+	@Test
+	public void testIncrementalProbes() {
+		Random random = new Random(42);
+
+		for (int n=0; n<1000; n++) {
+			long digest = random.nextLong();
+			long hash = digest;
+			long step = BloomFilterUtil.getProbeStep(digest);
+			for (int i=0; i<32; i++) {
+				Assert.assertEquals(
+						BloomFilterUtil.getHashBucket(digest, i, 1000003),
+						BloomFilterUtil.reduce(hash, 1000003));
+				hash += step;
+				step += i + 1;
+			}
+		}
+	}
+
+	@Test
+	public void testUniformity() {
+		final int max = 100;
+		final int n = 1000000;
+		int[] counts = new int[max];
+
+		for (int i=0; i<n; i++) {
+			long digest = BloomFilterUtil.digest(i);
+			counts[BloomFilterUtil.getHashBucket(digest, 2, max)]++;
+		}
+
+		for (int count : counts) {
+			Assert.assertTrue(Math.abs(count - n / max) < n / max / 10);
+		}
+	}
+
+}
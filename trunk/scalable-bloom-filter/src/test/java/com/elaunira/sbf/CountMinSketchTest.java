@@ -0,0 +1,210 @@
+package com.elaunira.sbf;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to the {@link CountMinSketch}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class CountMinSketchTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(CountMinSketchTest.class);
+
+	@Test
+	public void testEstimates() {
+		final int nbElements = 10000;
+
+		CountMinSketch<Integer> cms = new CountMinSketch<Integer>(nbElements, 0.01);
+		int[] counts = new int[nbElements];
+		Random random = new Random(42);
+		for (int n=0; n<500000; n++) {
+			// a skewed distribution, the small elements being the frequent ones
+			int elt = (int) (nbElements * Math.pow(random.nextDouble(), 3));
+			counts[elt]++;
+			Assert.assertTrue(cms.addAndEstimate(elt) >= counts[elt]);
+		}
+
+		logger.info(cms.toString());
+		Assert.assertEquals(500000, cms.getTotalCount());
+
+		double bound = cms.getRelativeError() * cms.getTotalCount();
+		int exceeding = 0;
+		long error = 0;
+		for (int i=0; i<nbElements; i++) {
+			long estimate = cms.estimate(i);
+			Assert.assertTrue(estimate >= counts[i]);
+			if (estimate - counts[i] > bound) {
+				exceeding++;
+			}
+			error += estimate - counts[i];
+		}
+
+		logger.info("average error " + ((double) error / nbElements) + ", bound " + bound);
+		Assert.assertTrue(exceeding <= (1 - cms.getConfidence()) * nbElements + 1);
+	}
+
+	@Test
+	public void testMembership() {
+		final int nbElementsToInsert = 100000;
+
+		CountMinSketch<Integer> cms = new CountMinSketch<Integer>(nbElementsToInsert, 0.01);
+		SlicedBloomFilter<Integer> bf = new SlicedBloomFilter<Integer>(nbElementsToInsert, 0.01);
+		for (int i=0; i<nbElementsToInsert; i++) {
+			long digest = BloomFilterUtil.digest(i);
+			Assert.assertEquals(bf.addDigest(digest), cms.addDigest(digest));
+		}
+
+		// the same counters are selected as the bits of the filter
+		for (int i=nbElementsToInsert; i<2*nbElementsToInsert; i++) {
+			Assert.assertEquals(bf.contains(i), cms.contains(i));
+		}
+		Assert.assertEquals(bf.size(), cms.size());
+	}
+
+	@Test
+	public void testSaturation() {
+		CountMinSketch<Integer> cms = new CountMinSketch<Integer>(1000, 0.01, 4);
+		for (int i=0; i<100; i++) {
+			Assert.assertEquals(Math.min(i + 1, 15), cms.addAndEstimate(1));
+		}
+		Assert.assertEquals(15, cms.estimate(1));
+		Assert.assertEquals(0, cms.estimate(2));
+
+		try {
+			new CountMinSketch<Integer>(1000, 0.01, 12);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws InterruptedException {
+		final int nbThreads = 8;
+		final int nbIncrements = 32 * 1600;
+		// few counters, so that the threads update the same words
+		final CountMinSketch<Integer> cms = new CountMinSketch<Integer>(16, 0.1, 32);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread[] threads = new Thread[nbThreads];
+		for (int t=0; t<nbThreads; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i=0; i<nbIncrements; i++) {
+						cms.add(i % 32);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		logger.info(cms.toString());
+		Assert.assertEquals((long) nbThreads * nbIncrements, cms.getTotalCount());
+		for (int i=0; i<32; i++) {
+			Assert.assertTrue(cms.estimate(i) >= nbThreads * nbIncrements / 32);
+		}
+	}
+
+	@Test
+	public void testConcurrentCounters() throws InterruptedException {
+		final int nbThreads = 8;
+		final int nbElements = 64;
+		final int nbIncrements = 64 * 1600;
+		final CountMinSketch<Integer> cms = new CountMinSketch<Integer>(32, 0.1, 32);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread[] threads = new Thread[nbThreads];
+		for (int t=0; t<nbThreads; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i=0; i<nbIncrements; i++) {
+						cms.add((i + offset) % nbElements);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// the number of additions of the elements sharing each counter
+		// and the number of these elements
+		long count = (long) nbThreads * nbIncrements / nbElements;
+		long counters = (long) cms.getDepth() * cms.getWidth();
+		long[] adds = new long[(int) counters];
+		int[] elements = new int[(int) counters];
+		for (int i=0; i<nbElements; i++) {
+			for (long index : cms.getIndexes(BloomFilterUtil.digest(i))) {
+				adds[(int) index] += count;
+				elements[(int) index]++;
+			}
+		}
+
+		logger.info(cms.toString());
+		for (int index=0; index<counters; index++) {
+			// a counter is incremented at most once per addition
+			Assert.assertTrue(cms.get(index) <= adds[index]);
+			if (elements[index] == 1) {
+				Assert.assertEquals(adds[index], cms.get(index));
+			}
+		}
+		for (int i=0; i<nbElements; i++) {
+			Assert.assertTrue(cms.estimate(i) >= count);
+		}
+	}
+
+	@Test
+	public void testMerge() {
+		CountMinSketch<Integer> cms1 = new CountMinSketch<Integer>(1000, 0.01);
+		CountMinSketch<Integer> cms2 = new CountMinSketch<Integer>(1000, 0.01);
+		for (int i=0; i<1000; i++) {
+			for (int j=0; j<=i % 5; j++) {
+				cms1.add(i);
+				cms2.add(i + 500);
+			}
+		}
+
+		cms1.merge(cms2);
+		Assert.assertEquals(cms2.getTotalCount() * 2, cms1.getTotalCount());
+		for (int i=0; i<1500; i++) {
+			long expected = (i < 1000 ? i % 5 + 1 : 0) + (i >= 500 ? (i - 500) % 5 + 1 : 0);
+			Assert.assertTrue(cms1.estimate(i) >= expected);
+		}
+
+		try {
+			cms1.merge(new CountMinSketch<Integer>(1000, 0.001));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.elaunira.sbf;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to the {@link CuckooFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class CuckooFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger = 
+		LoggerFactory.getLogger(CuckooFilterTest.class);
+
+	private static final double[] cuckooErrorRates = {
+		0.1, 0.01, 0.001, 0.0001
+	};
+
+	@Test
+	public void testFalsePositiveRate() {
+		final int nbElementsToInsert = 100000;
+
+		for (boolean semiSorted : new boolean[] { false, true }) {
+			for (double errorRate : cuckooErrorRates) {
+				CuckooFilter<Integer> cf = 
+					new CuckooFilter<Integer>(nbElementsToInsert, errorRate, semiSorted);
+
+				for (int i=0; i<nbElementsToInsert; i++) {
+					cf.add(i);
+				}
+
+				logger.info(cf.toString());
+
+				for (int i=0; i<nbElementsToInsert; i++) {
+					Assert.assertTrue(cf.contains(i));
+				}
+
+				int falsePositives = 0;
+				for (int i=nbElementsToInsert; i<2*nbElementsToInsert; i++) {
+					if (cf.contains(i)) {
+						falsePositives++;
+					}
+				}
+
+				Assert.assertTrue(cf.size() <= cf.getCapacity());
+				Assert.assertTrue(
+						(double) falsePositives / nbElementsToInsert <= errorRate);
+			}
+		}
+	}
+
+	@Test
+	public void testRemove() {
+		final int nbElementsToInsert = 10000;
+
+		for (boolean semiSorted : new boolean[] { false, true }) {
+			CuckooFilter<Integer> cf = 
+				new CuckooFilter<Integer>(nbElementsToInsert, 0.001, semiSorted);
+
+			for (int i=0; i<nbElementsToInsert; i++) {
+				cf.addWithoutCheck(i);
+			}
+
+			for (int i=0; i<nbElementsToInsert; i+=2) {
+				Assert.assertTrue(cf.remove(i));
+			}
+
+			Assert.assertEquals(nbElementsToInsert / 2, cf.size());
+			for (int i=1; i<nbElementsToInsert; i+=2) {
+				Assert.assertTrue(cf.contains(i));
+			}
+		}
+	}
+
+}
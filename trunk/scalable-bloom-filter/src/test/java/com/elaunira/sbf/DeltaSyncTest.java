@@ -0,0 +1,199 @@
+package com.elaunira.sbf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link DeltaSync}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class DeltaSyncTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(DeltaSyncTest.class);
+
+	@Test
+	public void testDeltas() throws IOException {
+		ScalableBloomFilter<Integer> source =
+			new ScalableBloomFilter<Integer>(10000, 0.001);
+		source.enableTracking();
+		ScalableBloomFilter<Integer> replica =
+			new ScalableBloomFilter<Integer>(10000, 0.001);
+		replica.setSingleWriter(true);
+
+		int version = 0;
+		int added = 0;
+		int[] batches = { 5000, 10, 100, 1000, 0, 20000 };
+		int[] sizes = new int[batches.length];
+
+		for (int b = 0; b < batches.length; b++) {
+			for (int i = 0; i < batches[b]; i++) {
+				source.add(added++);
+			}
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(baos);
+			version = DeltaSync.writeDelta(source, version, out);
+			out.close();
+			sizes[b] = baos.size();
+			logger.info(batches[b] + " elements added, delta of " + sizes[b] + " bytes");
+
+			DeltaSync.applyDelta(replica, new DataInputStream(
+					new ByteArrayInputStream(baos.toByteArray())));
+
+			Assert.assertEquals(source.size(), replica.size());
+			Assert.assertEquals(source.getStages().size(), replica.getStages().size());
+			for (int i = 0; i < added; i++) {
+				Assert.assertTrue(replica.contains(i));
+			}
+		}
+
+		// the size of a delta depends on the elements added since the
+		// previous one, not on the size of the filter
+		Assert.assertTrue(sizes[1] < sizes[2]);
+		Assert.assertTrue(sizes[2] < sizes[3]);
+		Assert.assertTrue(sizes[1] * 3 < sizes[0]);
+		Assert.assertTrue(sizes[4] < 16);
+	}
+
+	@Test
+	public void testClear() throws IOException {
+		ScalableBloomFilter<Integer> source =
+			new ScalableBloomFilter<Integer>(100, 0.01);
+		source.enableTracking();
+		ScalableBloomFilter<Integer> replica =
+			new ScalableBloomFilter<Integer>(100, 0.01);
+
+		for (int i = 0; i < 1000; i++) {
+			source.add(i);
+		}
+		int version = sync(source, 0, replica);
+
+		source.clear();
+		source.add(-1);
+		sync(source, version, replica);
+
+		Assert.assertEquals(1, replica.getStages().size());
+		Assert.assertEquals(1, replica.size());
+		Assert.assertTrue(replica.contains(-1));
+	}
+
+	@Test
+	public void testPipedReplica() throws Exception {
+		final int nbDeltas = 20;
+		final int nbElementsPerDelta = 2000;
+
+		final ScalableBloomFilter<Integer> source =
+			new ScalableBloomFilter<Integer>(1000, 0.001);
+		source.enableTracking();
+		final ScalableBloomFilter<Integer> replica =
+			new ScalableBloomFilter<Integer>(1000, 0.001);
+		replica.setSingleWriter(true);
+
+		PipedOutputStream pos = new PipedOutputStream();
+		final DataInputStream in =
+			new DataInputStream(new PipedInputStream(pos, 1 << 16));
+		DataOutputStream out = new DataOutputStream(pos);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread applier = new Thread() {
+			public void run() {
+				try {
+					for (int d = 0; d < nbDeltas; d++) {
+						DeltaSync.applyDelta(replica, in);
+					}
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		applier.start();
+
+		int version = 0;
+		for (int d = 0; d < nbDeltas; d++) {
+			for (int i = d * nbElementsPerDelta; i < (d + 1) * nbElementsPerDelta; i++) {
+				source.add(i);
+			}
+			version = DeltaSync.writeDelta(source, version, out);
+			out.flush();
+
+			// the replica is queried while the deltas are applied
+			for (int i = 0; i < nbElementsPerDelta; i++) {
+				replica.contains(i);
+			}
+		}
+		out.close();
+		applier.join();
+
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(source.size(), replica.size());
+		for (int i = 0; i < nbDeltas * nbElementsPerDelta; i++) {
+			Assert.assertTrue(replica.contains(i));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNotTracked() throws IOException {
+		DeltaSync.writeDelta(
+				new ScalableBloomFilter<Integer>(100, 0.01), 0,
+				new DataOutputStream(new ByteArrayOutputStream()));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTrackingWithFreezing() {
+		ScalableBloomFilter<Integer> bf =
+			new ScalableBloomFilter<Integer>(100, 0.01);
+		bf.enableTracking();
+		bf.setFreezing(true);
+	}
+
+	@Test
+	public void testTrackingAfterFreezing() {
+		ScalableBloomFilter<Integer> bf =
+			new ScalableBloomFilter<Integer>(100, 0.01);
+		bf.setFreezing(true);
+		for (int i=0; i<1000; i++) {
+			bf.add(i);
+		}
+		bf.setFreezing(false);
+
+		// the frozen filters have lost the bits to ship
+		try {
+			bf.enableTracking();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertFalse(bf.isTracking());
+		for (int i=0; i<1000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+
+	private static int sync(ScalableBloomFilter<Integer> source, int version,
+			ScalableBloomFilter<Integer> replica) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		version = DeltaSync.writeDelta(source, version, out);
+		out.close();
+		DeltaSync.applyDelta(replica, new DataInputStream(
+				new ByteArrayInputStream(baos.toByteArray())));
+		return version;
+	}
+
+}
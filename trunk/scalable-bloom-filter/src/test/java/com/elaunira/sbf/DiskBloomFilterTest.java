@@ -0,0 +1,278 @@
+package com.elaunira.sbf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link DiskBloomFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class DiskBloomFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(DiskBloomFilterTest.class);
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		this.file = File.createTempFile("disk-bloom-filter", ".sbf");
+		this.file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	@Test
+	public void testFalsePositiveRate() throws IOException {
+		final int nbElements = 200000;
+		double[] rates = { 0.1, 0.01, 0.001 };
+
+		for (double rate : rates) {
+			DiskBloomFilter<Integer> bf =
+				new DiskBloomFilter<Integer>(this.file, nbElements, rate, 8);
+			for (int i=0; i<nbElements; i++) {
+				bf.add(i);
+			}
+			for (int i=0; i<nbElements; i++) {
+				Assert.assertTrue(bf.contains(i));
+			}
+
+			int falsePositives = 0;
+			for (int i=nbElements; i<2 * nbElements; i++) {
+				if (bf.contains(i)) {
+					falsePositives++;
+				}
+			}
+			logger.info(bf + ": " + ((double) falsePositives / nbElements) + " false positives");
+			Assert.assertTrue(falsePositives < 1.2 * rate * nbElements);
+			Assert.assertTrue(getFalsePositiveRate(bf, nbElements) < 1.2 * rate);
+
+			bf.close();
+			this.file.delete();
+		}
+	}
+
+	@Test
+	public void testShards() throws IOException {
+		final int nbShards = 16;
+		final int nbElements = 320000;
+		final List<File> files = new ArrayList<File>();
+		final List<DiskBloomFilter<Integer>> filters = new ArrayList<DiskBloomFilter<Integer>>();
+
+		ShardedBloomFilter<Integer> bf = new ShardedBloomFilter<Integer>(
+				nbShards, nbElements, 0.01,
+				new ShardedBloomFilter.ShardFactory<Integer>() {
+					private static final long serialVersionUID = 1L;
+
+					public BloomFilter<Integer> create(int shard) {
+						try {
+							File file = File.createTempFile("disk-bloom-filter", ".sbf");
+							file.delete();
+							files.add(file);
+							filters.add(new DiskBloomFilter<Integer>(file, nbElements / nbShards, 0.01, 8));
+							return filters.get(filters.size() - 1);
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				}, null);
+
+		try {
+			for (int i=0; i<nbElements; i++) {
+				bf.add(i);
+			}
+
+			int falsePositives = 0;
+			for (int i=nbElements; i<2 * nbElements; i++) {
+				if (bf.contains(i)) {
+					falsePositives++;
+				}
+			}
+
+			// a single shard with the same load
+			DiskBloomFilter<Integer> single =
+				new DiskBloomFilter<Integer>(this.file, nbElements / nbShards, 0.01, 8);
+			for (int i=0; i<nbElements / nbShards; i++) {
+				single.add(i);
+			}
+			int singleFalsePositives = 0;
+			for (int i=nbElements; i<2 * nbElements; i++) {
+				if (single.contains(i)) {
+					singleFalsePositives++;
+				}
+			}
+			single.close();
+
+			// the bits probed in a shard do not depend on the routing
+			logger.info(nbShards + " shards: " + ((double) falsePositives / nbElements) 
+					+ " false positives, single shard: " + ((double) singleFalsePositives / nbElements));
+			Assert.assertTrue(falsePositives < 2 * singleFalsePositives + 50);
+		} finally {
+			for (DiskBloomFilter<Integer> filter : filters) {
+				filter.close();
+			}
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testOnePageFetchPerKey() throws IOException {
+		DiskBloomFilter<Integer> bf =
+			new DiskBloomFilter<Integer>(this.file, 1000000, 0.001, 1);
+		Assert.assertTrue(bf.getPagesCount() > 100);
+
+		for (int i=0; i<10000; i++) {
+			long reads = bf.getPageReadsCount();
+			bf.add(i);
+			bf.contains(i);
+			Assert.assertTrue(bf.getPageReadsCount() - reads <= 1);
+		}
+		bf.close();
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		DiskBloomFilter<Integer> bf =
+			new DiskBloomFilter<Integer>(this.file, 100000, 0.01, 4);
+		for (int i=0; i<50000; i++) {
+			bf.add(i);
+		}
+		int size = bf.size();
+		bf.close();
+		Assert.assertTrue(bf.getPageWritesCount() >= bf.getPagesCount());
+
+		bf = new DiskBloomFilter<Integer>(this.file, 100000, 0.01, 4, true, null);
+		Assert.assertEquals(size, bf.size());
+		for (int i=0; i<50000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+
+		bf.clear();
+		Assert.assertEquals(0, bf.size());
+		Assert.assertFalse(bf.contains(0));
+		bf.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOtherParameters() throws IOException {
+		new DiskBloomFilter<Integer>(this.file, 100000, 0.01, 4).close();
+		new DiskBloomFilter<Integer>(this.file, 200000, 0.01, 4);
+	}
+
+	@Test
+	public void testClearDuringPrefetch() throws Exception {
+		final CountDownLatch read = new CountDownLatch(1);
+		final CountDownLatch cleared = new CountDownLatch(1);
+
+		// the pages read ahead are returned once the filter has been cleared
+		ExecutorService executor = new ThreadPoolExecutor(
+				2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+				return new FutureTask<T>(new Callable<T>() {
+					public T call() throws Exception {
+						T result = callable.call();
+						read.countDown();
+						cleared.await();
+						return result;
+					}
+				});
+			}
+		};
+
+		final DiskBloomFilter<Integer> bf =
+			new DiskBloomFilter<Integer>(this.file, 100000, 0.01, 16, false, executor);
+		for (int i=0; i<10000; i++) {
+			bf.add(i);
+		}
+		bf.flush();
+
+		final long[] digests = new long[8];
+		for (int i=0; i<digests.length; i++) {
+			digests[i] = BloomFilterUtil.digest(i * 1000);
+		}
+		Thread reader = new Thread() {
+			public void run() {
+				bf.containsDigests(digests, digests.length, new boolean[digests.length]);
+			}
+		};
+		reader.start();
+		read.await();
+		bf.clear();
+		cleared.countDown();
+		reader.join();
+		executor.shutdown();
+
+		// the pages read before the clear have not been cached
+		for (int i=0; i<digests.length; i++) {
+			Assert.assertFalse(bf.containsDigest(digests[i]));
+			bf.addDigest(BloomFilterUtil.digest(-i - 1));
+		}
+		for (int i=0; i<10000; i++) {
+			Assert.assertFalse(bf.contains(i));
+		}
+		bf.close();
+
+		DiskBloomFilter<Integer> reopened = new DiskBloomFilter<Integer>(this.file, 100000, 0.01, 16);
+		for (int i=0; i<10000; i++) {
+			Assert.assertFalse(reopened.contains(i));
+		}
+		reopened.close();
+	}
+
+	@Test
+	public void testReadAhead() throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		DiskBloomFilter<Integer> bf =
+			new DiskBloomFilter<Integer>(this.file, 100000, 0.001, 16, false, executor);
+		for (int i=0; i<100000; i += 2) {
+			bf.add(i);
+		}
+
+		List<Integer> elts = new ArrayList<Integer>();
+		for (int i=0; i<100000; i++) {
+			elts.add(i);
+		}
+		boolean[] results = bf.containsEach(elts);
+		for (int i=0; i<100000; i++) {
+			Assert.assertEquals(bf.contains(i), results[i]);
+			if (i % 2 == 0) {
+				Assert.assertTrue(results[i]);
+			}
+		}
+
+		logger.info(bf.getPageReadsCount() + " pages read, "
+				+ bf.getCacheHitsCount() + " hits, "
+				+ bf.getPageWritesCount() + " pages written");
+		bf.close();
+		executor.shutdown();
+	}
+
+}
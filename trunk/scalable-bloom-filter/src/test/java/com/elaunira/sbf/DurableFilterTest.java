@@ -0,0 +1,244 @@
+package com.elaunira.sbf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link DurableFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class DurableFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(DurableFilterTest.class);
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = File.createTempFile("durable-filter", "");
+		this.directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(100000, 0.001), 10);
+		for (int i=0; i<50000; i++) {
+			bf.add(i);
+		}
+		int size = bf.size();
+		bf.close();
+
+		bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(100000, 0.001), 10);
+		Assert.assertEquals(size, bf.size());
+		for (int i=0; i<50000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		bf.close();
+	}
+
+	@Test
+	public void testCrash() throws IOException, InterruptedException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new ScalableBloomFilter<Integer>(1000, 0.001), 10);
+		for (int i=0; i<20000; i++) {
+			bf.add(i);
+		}
+
+		// the filter is not closed, the elements are synced in background
+		long deadline = System.currentTimeMillis() + 5000;
+		while (bf.getSyncsCount() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(bf.getSyncsCount() >= 2);
+
+		DurableFilter<Integer> recovered = DurableFilter.open(
+				this.directory, new ScalableBloomFilter<Integer>(1000, 0.001), 10);
+		Assert.assertEquals(bf.size(), recovered.size());
+		for (int i=0; i<20000; i++) {
+			Assert.assertTrue(recovered.contains(i));
+		}
+		recovered.close();
+	}
+
+	@Test
+	public void testCheckpoints() throws IOException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new ScalableBloomFilter<Integer>(1000, 0.001), 1000);
+		bf.setCheckpointThreshold(64 * 1024);
+
+		for (int i=0; i<100000; i++) {
+			bf.add(i);
+			if (i % 10000 == 0) {
+				bf.sync();
+			}
+		}
+		bf.checkpoint();
+		for (int i=100000; i<101000; i++) {
+			bf.add(i);
+		}
+		int size = bf.size();
+		bf.close();
+
+		Assert.assertTrue(bf.getCheckpointsCount() >= 1);
+		// the log written before the last checkpoint has been deleted
+		Assert.assertTrue(bf.getLogSize() < 64 * 1024);
+		logger.info(this.directory.list().length + " files after "
+				+ bf.getCheckpointsCount() + " checkpoints");
+		Assert.assertTrue(this.directory.list().length <= 3);
+
+		bf = DurableFilter.open(
+				this.directory, new ScalableBloomFilter<Integer>(1000, 0.001), 1000);
+		Assert.assertEquals(size, bf.size());
+		for (int i=0; i<101000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		bf.close();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(10000, 0.001), 1000);
+		for (int i=0; i<1000; i++) {
+			bf.add(i);
+		}
+		bf.close();
+
+		// a record partially written when the process died
+		File[] logs = this.directory.listFiles();
+		Assert.assertEquals(1, logs.length);
+		FileOutputStream out = new FileOutputStream(logs[0], true);
+		out.write(new byte[] { 0, 0, 0, 10, 1, 2, 3 });
+		out.close();
+		long length = logs[0].length();
+
+		bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(10000, 0.001), 1000);
+		Assert.assertEquals(length - 7, logs[0].length());
+		for (int i=0; i<1000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		bf.add(1000);
+		bf.close();
+
+		bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(10000, 0.001), 1000);
+		Assert.assertTrue(bf.contains(1000));
+		Assert.assertEquals(1001, bf.size());
+		bf.close();
+	}
+
+	@Test
+	public void testClear() throws IOException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(10000, 0.001), 1000);
+		for (int i=0; i<1000; i++) {
+			bf.add(i);
+		}
+		bf.sync();
+		bf.clear();
+		bf.add(-1);
+		bf.close();
+
+		bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(10000, 0.001), 1000);
+		Assert.assertEquals(1, bf.size());
+		Assert.assertTrue(bf.contains(-1));
+		bf.close();
+	}
+
+	@Test
+	public void testInterruptedCheckpoint() throws IOException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new ScalableBloomFilter<Integer>(1000, 0.001), 1000);
+		for (int i=0; i<10000; i++) {
+			bf.add(i);
+		}
+		bf.checkpoint();
+		for (int i=10000; i<20000; i++) {
+			bf.add(i);
+		}
+		int size = bf.size();
+		bf.close();
+
+		// a checkpoint written partially then renamed by a crash, and one
+		// whose rename has not happened
+		FileOutputStream fos = new FileOutputStream(new File(this.directory, "checkpoint-1000"));
+		fos.write(new byte[] { 1, 2, 3 });
+		fos.close();
+		fos = new FileOutputStream(new File(this.directory, "checkpoint-1001.tmp"));
+		fos.write(new byte[] { 1, 2, 3 });
+		fos.close();
+
+		// the newest valid checkpoint and the log following it are used
+		bf = DurableFilter.open(
+				this.directory, new ScalableBloomFilter<Integer>(1000, 0.001), 1000);
+		Assert.assertEquals(size, bf.size());
+		for (int i=0; i<20000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		Assert.assertFalse(new File(this.directory, "checkpoint-1000").exists());
+		Assert.assertFalse(new File(this.directory, "checkpoint-1001.tmp").exists());
+		bf.close();
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		ScalableBloomFilter<Integer> live = new ScalableBloomFilter<Integer>(100, 0.01);
+		live.setMemoryBudget(4096, ScalableBloomFilter.Overflow.EVICT);
+		DurableFilter<Integer> bf = DurableFilter.open(this.directory, live, 1000);
+		for (int i=1; i<=3000; i++) {
+			bf.add(i);
+			// an element contained by an old filter is added to the last one
+			if (i % 40 == 0) {
+				bf.add(0);
+			}
+		}
+		bf.close();
+		Assert.assertTrue(live.getEvictionsCount() > 0);
+
+		ScalableBloomFilter<Integer> empty = new ScalableBloomFilter<Integer>(100, 0.01);
+		empty.setMemoryBudget(4096, ScalableBloomFilter.Overflow.EVICT);
+		bf = DurableFilter.open(this.directory, empty, 1000);
+		Assert.assertTrue(bf.contains(0));
+		for (int i=0; i<=3000; i++) {
+			Assert.assertEquals(live.contains(i), bf.contains(i));
+		}
+		bf.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testClosed() throws IOException {
+		DurableFilter<Integer> bf = DurableFilter.open(
+				this.directory, new SlicedBloomFilter<Integer>(100, 0.001), 1000);
+		bf.close();
+		bf.add(0);
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.elaunira.sbf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elaunira.sbf.FilterCodec.Encoding;
+
+/**
+ * Tests associated to {@link FilterCodec}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterCodecTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(FilterCodecTest.class);
+
+	@Test
+	public void testEncodings() throws IOException {
+		int[] fills = { 0, 10, 1000, 50000, 100000 };
+
+		for (int fill : fills) {
+			SlicedBloomFilter<Integer> bf =
+				new SlicedBloomFilter<Integer>(100000, 0.01);
+			for (int i=0; i<fill; i++) {
+				bf.add(i);
+			}
+
+			for (Encoding encoding : Encoding.values()) {
+				byte[] data = encode(bf, encoding);
+				logger.info(fill + " elements, " + encoding + ": " + data.length + " bytes");
+
+				SlicedBloomFilter<Integer> copy = decode(data);
+				Assert.assertEquals(bf.size(), copy.size());
+				Assert.assertEquals(bf.getCapacity(), copy.getCapacity());
+				Assert.assertTrue(Arrays.equals(
+						bf.getBits().words(), copy.getBits().words()));
+				for (int i=0; i<fill; i++) {
+					Assert.assertTrue(copy.contains(i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testChooseEncoding() throws IOException {
+		SlicedBloomFilter<Integer> bf =
+			new SlicedBloomFilter<Integer>(100000, 0.01);
+
+		for (int i=0; i<100000; i++) {
+			bf.add(i);
+
+			if (i % 10000 == 0) {
+				int smallest = Integer.MAX_VALUE;
+				for (Encoding encoding : Encoding.values()) {
+					smallest = Math.min(smallest, encode(bf, encoding).length);
+				}
+
+				// the size of each encoding is estimated
+				Encoding chosen = FilterCodec.chooseEncoding(bf);
+				Assert.assertTrue(encode(bf, chosen).length <= smallest * 1.05);
+			}
+		}
+
+		SlicedBloomFilter<Integer> sparse =
+			new SlicedBloomFilter<Integer>(100000, 0.01);
+		for (int i=0; i<1000; i++) {
+			sparse.add(i);
+		}
+		Assert.assertEquals(Encoding.RICE, FilterCodec.chooseEncoding(sparse));
+		Assert.assertTrue(
+				encode(sparse, Encoding.RICE).length * 4 
+					< encode(sparse, Encoding.RAW).length);
+	}
+
+	@Test
+	public void testSmallFilters() throws IOException {
+		// the last chunk is shorter than a container
+		for (int capacity=1; capacity<200; capacity+=7) {
+			SlicedBloomFilter<Integer> bf =
+				new SlicedBloomFilter<Integer>(capacity, 0.5);
+			for (int i=0; i<capacity; i++) {
+				bf.add(i);
+			}
+
+			for (Encoding encoding : Encoding.values()) {
+				SlicedBloomFilter<Integer> copy = decode(encode(bf, encoding));
+				Assert.assertTrue(Arrays.equals(
+						bf.getBits().words(), copy.getBits().words()));
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidInput() throws IOException {
+		decode(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+	}
+
+	private static byte[] encode(SlicedBloomFilter<?> bf, Encoding encoding) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		FilterCodec.write(bf, out, encoding);
+		out.close();
+		return baos.toByteArray();
+	}
+
+	private static SlicedBloomFilter<Integer> decode(byte[] data) throws IOException {
+		return FilterCodec.<Integer>read(
+				new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.elaunira.sbf;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to the {@link FilterRegistry}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterRegistryTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(FilterRegistryTest.class);
+
+	@Test
+	public void testTenants() {
+		final int nbTenants = 2000;
+
+		FilterRegistry<Integer> registry = new FilterRegistry<Integer>(100, 0.01);
+		for (int t=0; t<nbTenants; t++) {
+			for (int i=0; i<elementsCount(t); i++) {
+				registry.add(t, i);
+			}
+		}
+
+		logger.info(registry.toString());
+		Assert.assertEquals(nbTenants, registry.getTenantsCount());
+		for (int t=0; t<nbTenants; t++) {
+			Assert.assertTrue(registry.size(t) <= elementsCount(t));
+			for (int i=0; i<elementsCount(t); i++) {
+				Assert.assertTrue(registry.contains(t, i));
+			}
+		}
+		Assert.assertFalse(registry.exists(nbTenants));
+		Assert.assertFalse(registry.contains(nbTenants, 0));
+	}
+
+	@Test
+	public void testSameAsScalableBloomFilter() {
+		FilterRegistry<Integer> registry = new FilterRegistry<Integer>(100, 0.01);
+		ScalableBloomFilter<Integer> sbf = new ScalableBloomFilter<Integer>(100, 0.01);
+
+		BloomFilter<Integer> view = registry.view(42);
+		for (int i=0; i<20000; i++) {
+			Assert.assertEquals(sbf.add(i), view.add(i));
+			registry.add(43, -i);
+		}
+
+		// the stages have the same geometry and the same hashes
+		for (int i=20000; i<100000; i++) {
+			Assert.assertEquals(sbf.contains(i), view.contains(i));
+		}
+		Assert.assertEquals(sbf.size(), view.size());
+	}
+
+	@Test
+	public void testDropAndReuse() {
+		final int nbTenants = 1000;
+
+		FilterRegistry<Integer> registry =
+			new FilterRegistry<Integer>(ScalableBloomFilter.Mode.SMALL_SET_GROWTH, 0.9, 100, 0.01, 1 << 12);
+		for (int t=0; t<nbTenants; t++) {
+			for (int i=0; i<elementsCount(t); i++) {
+				registry.add(t, i);
+			}
+		}
+
+		long memoryUsage = registry.getMemoryUsage();
+		for (int round=1; round<=5; round++) {
+			for (int t=0; t<nbTenants; t++) {
+				Assert.assertTrue(registry.drop(t + (round - 1) * nbTenants));
+			}
+			Assert.assertEquals(0, registry.getTenantsCount());
+			Assert.assertEquals(0, registry.getLiveMemoryUsage());
+
+			// the new tenants have the same sizes, thus the same stages
+			for (int t=0; t<nbTenants; t++) {
+				for (int i=0; i<elementsCount(t); i++) {
+					registry.add(t + round * nbTenants, i);
+				}
+			}
+		}
+
+		logger.info(registry.toString());
+		Assert.assertEquals(memoryUsage, registry.getMemoryUsage());
+		Assert.assertFalse(registry.drop(0));
+	}
+
+	@Test
+	public void testCompact() {
+		final int nbTenants = 1000;
+
+		FilterRegistry<Integer> registry =
+			new FilterRegistry<Integer>(ScalableBloomFilter.Mode.SMALL_SET_GROWTH, 0.9, 100, 0.01, 1 << 12);
+		for (int t=0; t<nbTenants; t++) {
+			for (int i=0; i<elementsCount(t); i++) {
+				registry.add(t, i);
+			}
+		}
+		for (int t=0; t<nbTenants; t+=2) {
+			registry.drop(t);
+		}
+
+		long memoryUsage = registry.getMemoryUsage();
+		long freed = registry.compact();
+		logger.info(registry.toString() + ", " + freed + " bytes freed");
+
+		Assert.assertTrue(freed > memoryUsage / 3);
+		Assert.assertEquals(memoryUsage - freed, registry.getMemoryUsage());
+		Assert.assertTrue(registry.getLiveMemoryUsage() <= registry.getMemoryUsage());
+		for (int t=1; t<nbTenants; t+=2) {
+			for (int i=0; i<elementsCount(t); i++) {
+				Assert.assertTrue(registry.contains(t, i));
+			}
+		}
+
+		// the registry keeps growing after a compaction
+		for (int i=0; i<10000; i++) {
+			registry.add(1, -i);
+		}
+		for (int i=0; i<10000; i++) {
+			Assert.assertTrue(registry.contains(1, -i));
+		}
+	}
+
+	@Test
+	public void testSnapshot() {
+		FilterRegistry<Integer> registry = new FilterRegistry<Integer>(100, 0.01);
+		for (int t=0; t<100; t++) {
+			for (int i=0; i<elementsCount(t); i++) {
+				registry.add(t, i);
+			}
+		}
+
+		FilterRegistry<Integer> snapshot = registry.snapshot();
+		registry.drop(0);
+		for (int i=0; i<1000; i++) {
+			registry.add(1, -i - 1);
+			snapshot.add(2, -i - 1);
+		}
+
+		// the snapshot and the registry do not share anything
+		Assert.assertEquals(100, snapshot.getTenantsCount());
+		Assert.assertEquals(99, registry.getTenantsCount());
+		for (int t=0; t<100; t++) {
+			for (int i=0; i<elementsCount(t); i++) {
+				Assert.assertTrue(snapshot.contains(t, i));
+			}
+		}
+		Assert.assertTrue(registry.size(1) > snapshot.size(1));
+		Assert.assertTrue(snapshot.size(2) > registry.size(2));
+	}
+
+	/**
+	 * Returns the number of elements added to the filter of a tenant, most
+	 * of the filters being small.
+	 */
+	private static int elementsCount(int tenant) {
+		return tenant % 10 == 0 ? 2000 : tenant % 50;
+	}
+
+}
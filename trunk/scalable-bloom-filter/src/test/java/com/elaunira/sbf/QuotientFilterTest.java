@@ -0,0 +1,225 @@
+package com.elaunira.sbf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to the {@link QuotientFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class QuotientFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(QuotientFilterTest.class);
+
+	@Test
+	public void testFalsePositiveRate() {
+		final int nbElementsToInsert = 100000;
+
+		for (double errorRate : errorRates) {
+			QuotientFilter<Integer> qf =
+				new QuotientFilter<Integer>(nbElementsToInsert, errorRate);
+
+			for (int i=0; i<nbElementsToInsert; i++) {
+				qf.add(i);
+			}
+
+			logger.info(qf.toString());
+
+			for (int i=0; i<nbElementsToInsert; i++) {
+				Assert.assertTrue(qf.contains(i));
+			}
+
+			Assert.assertTrue(qf.size() <= nbElementsToInsert);
+			Assert.assertEquals(nbElementsToInsert, qf.getTotalCount());
+			Assert.assertTrue(
+					countFalsePositives(qf, nbElementsToInsert) <= errorRate * nbElementsToInsert);
+		}
+	}
+
+	@Test
+	public void testCounts() {
+		// few quotient and remainder bits, so that the clusters are long
+		// and the counts take up several slots
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(200, 0.1);
+		Map<Long, Long> counts = new HashMap<Long, Long>();
+		Random random = new Random(42);
+
+		for (int n=0; n<200000; n++) {
+			long digest = BloomFilterUtil.digest(random.nextInt(40));
+			long fingerprint = digest >>> (64 - qf.getFingerprintBits());
+			Long count = counts.get(fingerprint);
+
+			if (random.nextInt(3) == 0) {
+				Assert.assertEquals(count != null, qf.removeDigest(digest));
+				if (count != null && count == 1) {
+					counts.remove(fingerprint);
+				} else if (count != null) {
+					counts.put(fingerprint, count - 1);
+				}
+			} else {
+				Assert.assertEquals(count != null, qf.addDigest(digest));
+				counts.put(fingerprint, count == null ? 1 : count + 1);
+			}
+		}
+
+		long total = 0;
+		for (int i=0; i<40; i++) {
+			long digest = BloomFilterUtil.digest(i);
+			Long count = counts.get(digest >>> (64 - qf.getFingerprintBits()));
+			Assert.assertEquals(count == null ? 0 : count.longValue(), qf.countDigest(digest));
+		}
+		for (long count : counts.values()) {
+			total += count;
+		}
+
+		logger.info(qf.toString());
+		Assert.assertEquals(counts.size(), qf.size());
+		Assert.assertEquals(total, qf.getTotalCount());
+		Assert.assertTrue(total > 1000);
+	}
+
+	@Test
+	public void testRemove() {
+		final int nbElementsToInsert = 10000;
+
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(nbElementsToInsert, 0.001);
+		for (int i=0; i<nbElementsToInsert; i++) {
+			qf.add(i);
+		}
+		for (int i=0; i<nbElementsToInsert; i+=2) {
+			Assert.assertTrue(qf.remove(i));
+		}
+
+		Assert.assertEquals(nbElementsToInsert / 2, qf.getTotalCount());
+		for (int i=1; i<nbElementsToInsert; i+=2) {
+			Assert.assertTrue(qf.contains(i));
+		}
+		for (int i=1; i<nbElementsToInsert; i+=2) {
+			Assert.assertTrue(qf.remove(i));
+		}
+		Assert.assertEquals(0, qf.size());
+		Assert.assertEquals(0.0, qf.getLoadFactor());
+	}
+
+	@Test
+	public void testExpand() {
+		final int nbElementsToInsert = 50000;
+
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(nbElementsToInsert, 0.001);
+		for (int i=0; i<nbElementsToInsert; i++) {
+			qf.add(i);
+			if (i % 10 == 0) {
+				qf.add(i);
+			}
+		}
+
+		int quotientBits = qf.getQuotientBits();
+		qf.expand();
+		Assert.assertEquals(quotientBits + 1, qf.getQuotientBits());
+		Assert.assertEquals(2 * nbElementsToInsert, qf.getCapacity());
+		Assert.assertEquals(0.002, qf.getFalsePositiveProbability(), 1e-9);
+
+		// the elements sharing a fingerprint share their count
+		for (int i=0; i<nbElementsToInsert; i++) {
+			Assert.assertTrue(qf.count(i) >= (i % 10 == 0 ? 2 : 1));
+		}
+		Assert.assertTrue(
+				countFalsePositives(qf, nbElementsToInsert) <= 0.002 * nbElementsToInsert);
+
+		// fills the filter expanded
+		for (int i=nbElementsToInsert; i<2 * nbElementsToInsert; i++) {
+			qf.add(i);
+		}
+		for (int i=0; i<2 * nbElementsToInsert; i++) {
+			Assert.assertTrue(qf.contains(i));
+		}
+	}
+
+	@Test
+	public void testExpanding() {
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(1000, 0.0001);
+		try {
+			for (int i=0; i<100000; i++) {
+				qf.add(i);
+			}
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		qf.clear();
+		qf.setExpanding(true);
+		for (int i=0; i<100000; i++) {
+			qf.add(i);
+		}
+		logger.info(qf.toString());
+		for (int i=0; i<100000; i++) {
+			Assert.assertTrue(qf.contains(i));
+		}
+		Assert.assertTrue(qf.getQuotientBits() > 11);
+		Assert.assertEquals(
+				0.0001 * (1 << (qf.getQuotientBits() - 11)), qf.getFalsePositiveProbability(), 1e-9);
+	}
+
+	@Test
+	public void testMerge() {
+		final int nbElementsToInsert = 20000;
+
+		QuotientFilter<Integer> qf1 = new QuotientFilter<Integer>(nbElementsToInsert, 0.01);
+		QuotientFilter<Integer> qf2 = new QuotientFilter<Integer>(nbElementsToInsert, 0.01);
+		for (int i=0; i<nbElementsToInsert; i++) {
+			qf1.add(i);
+			qf2.add(i + nbElementsToInsert / 2);
+		}
+
+		// the merged fingerprints do not fit without expansion
+		try {
+			qf1.merge(qf2);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertEquals(nbElementsToInsert, qf1.getTotalCount());
+
+		// the filter with fewer slots is expanded on the fly
+		qf2.expand();
+		qf1.merge(qf2);
+		logger.info(qf1.toString());
+		Assert.assertEquals(qf2.getQuotientBits(), qf1.getQuotientBits());
+		Assert.assertEquals(2 * nbElementsToInsert, qf1.getTotalCount());
+		for (int i=0; i<nbElementsToInsert / 2; i++) {
+			Assert.assertTrue(qf1.count(i) >= 1);
+			Assert.assertTrue(qf1.count(i + nbElementsToInsert / 2) >= 2);
+			Assert.assertTrue(qf1.count(i + nbElementsToInsert) >= 1);
+		}
+
+		try {
+			qf1.merge(new QuotientFilter<Integer>(nbElementsToInsert, 0.001));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static int countFalsePositives(QuotientFilter<Integer> qf, int nbElements) {
+		int falsePositives = 0;
+		for (int i=nbElements; i<2*nbElements; i++) {
+			if (qf.contains(i)) {
+				falsePositives++;
+			}
+		}
+		return falsePositives;
+	}
+
+}
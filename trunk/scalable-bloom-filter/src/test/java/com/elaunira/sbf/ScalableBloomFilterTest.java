@@ -1,5 +1,11 @@
 package com.elaunira.sbf;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
@@ -39,6 +45,414 @@ public class ScalableBloomFilterTest extends AbstractBloomFilterTest {
 		}
 	}
 	
+	@Test
+	public void testFreezing() {
+		final int nbElementsToInsert = 100000;
+		
+		ScalableBloomFilter<Integer> bf = 
+			new ScalableBloomFilter<Integer>(100, 0.001);
+		bf.setFreezing(true);
+		
+		for (int i=0; i<nbElementsToInsert; i++) {
+			bf.add(i);
+		}
+		
+		logger.info(bf.toString());
+		
+		for (int i=0; i<nbElementsToInsert; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		
+		// freezes the filters which are full but keeps the elements
+		int size = bf.size();
+		while (!bf.freeze()) {
+			bf.add(size++);
+		}
+		
+		for (int i=0; i<nbElementsToInsert; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		Assert.assertFalse(bf.add(-1));
+		Assert.assertTrue(bf.contains(-1));
+	}
+	
+	@Test
+	public void testStagePool() {
+		StagePool pool = new StagePool(2);
+		
+		ScalableBloomFilter<Integer> bf = 
+			new ScalableBloomFilter<Integer>(100, 0.001);
+		bf.setStagePool(pool);
+		
+		for (int round=0; round<3; round++) {
+			for (int i=0; i<10000; i++) {
+				bf.add(i);
+			}
+			for (int i=0; i<10000; i++) {
+				Assert.assertTrue(bf.contains(i));
+			}
+			Assert.assertEquals(0, pool.size());
+			
+			bf.clear();
+			Assert.assertEquals(0, bf.size());
+			Assert.assertTrue(pool.size() > 0);
+		}
+	}
+	
+	@Test
+	public void testPlanner() {
+		ScalableBloomFilter<Integer> bf = 
+			new ScalableBloomFilter<Integer>(100, 0.001);
+		StagePlanner planner = bf.getPlanner();
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		bf.setPreallocator(executor);
+		
+		for (int i=0; i<100000; i++) {
+			bf.add(i);
+		}
+		executor.shutdown();
+		
+		logger.info(planner.toString());
+		
+		int stages = planner.getStagesCount(bf.size());
+		long bits = 0;
+		for (int i=0; i<stages; i++) {
+			Assert.assertEquals(100 << i, planner.getCapacity(i));
+			bits += planner.getBits(i);
+		}
+		Assert.assertEquals(bits, planner.getTotalBits(bf.size()));
+		Assert.assertTrue(
+				planner.getCompoundFalsePositiveProbability(bf.size()) 
+					< stages * bf.getFalsePositiveProbability());
+		for (int i=0; i<100000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+	
+	@Test
+	public void testSummaries() {
+		ScalableBloomFilter<Integer> plain = 
+			new ScalableBloomFilter<Integer>(100, 0.01);
+		ScalableBloomFilter<Integer> summarized = 
+			new ScalableBloomFilter<Integer>(100, 0.01);
+		summarized.setSummaries(true);
+		
+		for (int i=0; i<100000; i++) {
+			plain.add(i);
+			summarized.add(i);
+		}
+		
+		Assert.assertTrue(summarized.isSummarized());
+		for (int i=0; i<100000; i++) {
+			Assert.assertTrue(summarized.contains(i));
+		}
+		
+		// a summary may only reject elements
+		Assert.assertTrue(summarized.size() >= plain.size());
+		Assert.assertTrue(
+				getFalsePositiveRate(summarized, 100000) 
+					<= getFalsePositiveRate(plain, 100000));
+		
+		List<Integer> elts = new ArrayList<Integer>();
+		for (int i=0; i<200000; i+=3) {
+			elts.add(i);
+		}
+		boolean[] results = summarized.containsEach(elts);
+		for (int i=0; i<results.length; i++) {
+			Assert.assertEquals(summarized.contains(elts.get(i)), results[i]);
+		}
+		
+		summarized.clear();
+		Assert.assertEquals(0, summarized.size());
+		Assert.assertFalse(summarized.contains(0));
+	}
+	
+	@Test
+	public void testSingleWriter() throws InterruptedException {
+		final ScalableBloomFilter<Integer> bf = 
+			new ScalableBloomFilter<Integer>(100, 0.001);
+		bf.setSingleWriter(true);
+		bf.setFreezing(true);
+		
+		final int nbElements = 100000;
+		final AtomicInteger published = new AtomicInteger();
+		final AtomicInteger missed = new AtomicInteger();
+		
+		Thread[] readers = new Thread[4];
+		for (int t=0; t<readers.length; t++) {
+			readers[t] = new Thread() {
+				public void run() {
+					int p;
+					do {
+						p = published.get();
+						for (int i=0; i<p; i+=97) {
+							if (!bf.contains(i)) {
+								missed.incrementAndGet();
+							}
+						}
+					} while (p < nbElements);
+				}
+			};
+			readers[t].start();
+		}
+		
+		for (int i=0; i<nbElements; i++) {
+			bf.add(i);
+			if ((i + 1) % 1000 == 0) {
+				bf.publish();
+				published.set(i + 1);
+			}
+		}
+		
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		
+		Assert.assertEquals(0, missed.get());
+		Assert.assertTrue(bf.getEpoch() >= nbElements / 1000);
+		Assert.assertTrue(
+				getFalsePositiveRate(bf, nbElements) 
+					<= bf.getFalsePositiveProbability() * 10);
+	}
+	
+	@Test
+	public void testMemoryBudgetSaturate() {
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(1000, 0.01);
+		bf.setMemoryBudget(64 * 1024, ScalableBloomFilter.Overflow.SATURATE);
+		for (int i=0; i<60000; i++) {
+			bf.add(i);
+			Assert.assertTrue(bf.getMemoryUsage() <= bf.getMemoryBudget());
+		}
+
+		logger.info(bf + ": " + bf.getMemoryUsage() + " bytes, estimated probability "
+				+ bf.getEstimatedFalsePositiveProbability());
+		Assert.assertTrue(bf.isSaturated());
+		for (int i=0; i<60000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		double rate = getMeasuredFalsePositiveRate(bf, 60000);
+		logger.info("measured probability " + rate);
+		Assert.assertTrue(rate > bf.getFalsePositiveProbability());
+		Assert.assertTrue(Math.abs(rate - bf.getEstimatedFalsePositiveProbability()) < 0.05);
+
+		bf.clear();
+		Assert.assertFalse(bf.isSaturated());
+		Assert.assertEquals(0, bf.getMemoryUsage());
+	}
+
+	@Test
+	public void testMemoryBudgetPreallocation() {
+		final AtomicInteger usages = new AtomicInteger();
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(1000, 0.01) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public long getMemoryUsage() {
+				usages.incrementAndGet();
+				return super.getMemoryUsage();
+			}
+		};
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		bf.setPreallocator(executor);
+		bf.setMemoryBudget(64 * 1024, ScalableBloomFilter.Overflow.SATURATE);
+
+		int stages = 0;
+		for (int i=0; i<60000; i++) {
+			bf.add(i);
+			if (bf.getStages().size() > stages) {
+				stages = bf.getStages().size();
+				usages.set(0);
+			}
+			// the next filter not fitting is not checked on each addition
+			Assert.assertTrue(usages.get() <= 4);
+		}
+		executor.shutdown();
+
+		Assert.assertTrue(bf.isSaturated());
+		for (int i=0; i<60000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+
+	@Test
+	public void testMemoryBudgetCompact() {
+		ScalableBloomFilter<Integer> bf = 
+			new ScalableBloomFilter<Integer>(ScalableBloomFilter.Mode.LARGE_SET_GROWTH, 0.9, 1000, 0.001);
+		bf.setSummaries(true);
+		bf.setMemoryBudget(384 * 1024, ScalableBloomFilter.Overflow.COMPACT);
+		for (int i=0; i<150000; i++) {
+			bf.add(i);
+			Assert.assertTrue(bf.getMemoryUsage() <= bf.getMemoryBudget());
+		}
+
+		logger.info(bf + ": " + bf.getFoldsCount() + " folds, estimated probability "
+				+ bf.getEstimatedFalsePositiveProbability());
+		Assert.assertTrue(bf.getFoldsCount() > 0);
+		for (int i=0; i<150000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		// the estimate ignores the summaries, which filter out 
+		// some of the false positives of the saturated filter
+		double rate = getMeasuredFalsePositiveRate(bf, 150000);
+		logger.info("measured probability " + rate);
+		Assert.assertTrue(rate < bf.getEstimatedFalsePositiveProbability() + 0.01);
+	}
+
+	@Test
+	public void testMemoryBudgetEvict() {
+		ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(1000, 0.01);
+		bf.setFreezing(true);
+		bf.setMemoryBudget(128 * 1024, ScalableBloomFilter.Overflow.EVICT);
+		// the sum of the probabilities of the filters before the first eviction
+		double probability = 0;
+		for (int i=0; i<500000; i++) {
+			bf.add(i);
+			Assert.assertTrue(bf.getMemoryUsage() <= bf.getMemoryBudget());
+
+			double sum = 0;
+			for (BloomFilter<Integer> stage : bf.getStages()) {
+				sum += stage.getFalsePositiveProbability();
+			}
+			if (bf.getEvictionsCount() == 0) {
+				probability = Math.max(probability, sum);
+			} else {
+				Assert.assertTrue(sum <= probability);
+			}
+		}
+
+		logger.info(bf + ": " + bf.getEvictionsCount() + " evictions, " + bf.size() + " elements");
+		Assert.assertTrue(bf.getEvictionsCount() > 0);
+		Assert.assertFalse(bf.isSaturated());
+		// the most recent elements are kept
+		for (int i=500000 - bf.size() / 2; i<500000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+		Assert.assertTrue(getMeasuredFalsePositiveRate(bf, 500000) < probability);
+	}
+
+	@Test
+	public void testCompaction() {
+		for (boolean freezing : new boolean[] { false, true }) {
+			ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(100, 0.01);
+			bf.setFreezing(freezing);
+			bf.setSummaries(true);
+			bf.setCompacting(true);
+			for (int i=0; i<200000; i++) {
+				bf.add(i);
+			}
+
+			int stages = bf.getStages().size();
+			int size = bf.size();
+			double rate = getMeasuredFalsePositiveRate(bf, 200000);
+			long memory = bf.getMemoryUsage();
+			double probability = 0;
+			for (BloomFilter<Integer> stage : bf.getStages()) {
+				probability += stage.getFalsePositiveProbability();
+			}
+
+			Assert.assertEquals(stages - 2, bf.compact());
+			Assert.assertEquals(2, bf.getStages().size());
+			Assert.assertEquals(0, bf.compact());
+			logger.info(stages + " stages merged, false positives " + rate + " before, "
+					+ getMeasuredFalsePositiveRate(bf, 200000) + " after, "
+					+ memory + " bytes before, " + bf.getMemoryUsage() + " after");
+
+			Assert.assertEquals(size, bf.size());
+			for (int i=0; i<200000; i++) {
+				Assert.assertTrue(bf.contains(i));
+			}
+			// the compound probability does not change
+			Assert.assertTrue(getMeasuredFalsePositiveRate(bf, 200000) < probability);
+			Assert.assertTrue(bf.getMemoryUsage() < memory);
+
+			// the next filters are planned as if nothing had been merged
+			for (int i=200000; i<400000; i++) {
+				bf.add(i);
+			}
+			Assert.assertTrue(bf.getStages().size() < stages);
+			Assert.assertEquals(stages - 2, bf.getMergedCount());
+			for (int i=0; i<400000; i++) {
+				Assert.assertTrue(bf.contains(i));
+			}
+		}
+	}
+
+	@Test
+	public void testBackgroundCompaction() throws InterruptedException {
+		final int nbElements = 300000;
+		final ScalableBloomFilter<Integer> bf = new ScalableBloomFilter<Integer>(100, 0.01);
+		bf.setCompacting(true);
+		bf.setSingleWriter(true);
+
+		final AtomicInteger published = new AtomicInteger();
+		final AtomicInteger missed = new AtomicInteger();
+		Thread[] readers = new Thread[2];
+		for (int t=0; t<readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					int p;
+					do {
+						p = published.get();
+						for (int i=0; i<p; i+=31) {
+							if (!bf.contains(i)) {
+								missed.incrementAndGet();
+							}
+						}
+					} while (p < nbElements);
+				}
+			};
+			readers[t].start();
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		int maxStages = 0;
+		for (int i=0; i<nbElements; i++) {
+			bf.add(i);
+			if ((i + 1) % 1000 == 0) {
+				maxStages = Math.max(maxStages, bf.getStages().size());
+				if (bf.getStages().size() > 4) {
+					bf.compact(executor);
+				}
+				bf.publish();
+				published.set(i + 1);
+			}
+		}
+
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		executor.shutdown();
+
+		Assert.assertEquals(0, missed.get());
+		Assert.assertTrue(bf.getMergedCount() > 0);
+		Assert.assertTrue(maxStages <= 6);
+		for (int i=0; i<nbElements; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+
+	/**
+	 * Returns the ratio of the elements which have not been added that the
+	 * filter contains, the elements added being {@code [0;nbElementsAdded[}.
+	 */
+	private static double getMeasuredFalsePositiveRate(BloomFilter<Integer> bf, int nbElementsAdded) {
+		int falsePositives = 0;
+		for (int i=nbElementsAdded; i<nbElementsAdded + 100000; i++) {
+			if (bf.contains(i)) {
+				falsePositives++;
+			}
+		}
+		return falsePositives / 100000.0;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMemoryBudgetTooSmall() {
+		new ScalableBloomFilter<Integer>(100000, 0.01).setMemoryBudget(
+				1024, ScalableBloomFilter.Overflow.EVICT);
+	}
+
 	@Test
 	public void testSizeAfterSerialization() {
 		super.testSizeAfterSerialization(
@@ -0,0 +1,51 @@
+package com.elaunira.sbf;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link ScalableCuckooFilter}.
+ * 
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class ScalableCuckooFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger = 
+		LoggerFactory.getLogger(ScalableCuckooFilterTest.class);
+
+	@Test
+	public void testAddContainsRemove() {
+		final int nbElementsToInsert = 100000;
+
+		ScalableCuckooFilter<Integer> cf = 
+			new ScalableCuckooFilter<Integer>(
+					ScalableBloomFilter.Mode.SMALL_SET_GROWTH, 0.9, 100, 0.001, true);
+
+		for (int i=0; i<nbElementsToInsert; i++) {
+			cf.add(i);
+		}
+
+		logger.info(cf.toString());
+
+		for (int i=0; i<nbElementsToInsert; i++) {
+			Assert.assertTrue(cf.contains(i));
+		}
+
+		int size = cf.size();
+		int removed = 0;
+		for (int i=0; i<nbElementsToInsert; i++) {
+			if (cf.remove(i)) {
+				removed++;
+			}
+		}
+
+		Assert.assertEquals(size, removed);
+		Assert.assertEquals(0, cf.size());
+	}
+
+}
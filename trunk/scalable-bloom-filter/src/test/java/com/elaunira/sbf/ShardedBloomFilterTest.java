@@ -0,0 +1,109 @@
+package com.elaunira.sbf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to {@link ShardedBloomFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class ShardedBloomFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(ShardedBloomFilterTest.class);
+
+	@Test
+	public void testConcurrentAdditions() throws InterruptedException {
+		final int nbThreads = 4;
+		final int nbElementsPerThread = 50000;
+
+		ExecutorService[] allocators = new ExecutorService[2];
+		for (int i=0; i<allocators.length; i++) {
+			allocators[i] = Executors.newSingleThreadExecutor();
+		}
+
+		final ShardedBloomFilter<Integer> bf =
+			new ShardedBloomFilter<Integer>(
+					16, 100000, 0.001,
+					ShardedBloomFilter.<Integer>scalableShards(1000, 0.001),
+					allocators);
+
+		for (ExecutorService allocator : allocators) {
+			allocator.shutdown();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		for (int t=0; t<nbThreads; t++) {
+			final int offset = t * nbElementsPerThread;
+			executor.execute(new Runnable() {
+				public void run() {
+					for (int i=offset; i<offset + nbElementsPerThread; i++) {
+						bf.add(i);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+		logger.info(bf.toString());
+
+		for (int i=0; i<nbThreads * nbElementsPerThread; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+
+		int sum = 0;
+		for (int i=0; i<bf.getShardsCount(); i++) {
+			Assert.assertTrue(bf.getShardSize(i) > 0);
+			sum += bf.getShardSize(i);
+		}
+		Assert.assertEquals(sum, bf.size());
+		Assert.assertEquals(-1, bf.getCapacity());
+		Assert.assertTrue(
+				getFalsePositiveRate(bf, nbThreads * nbElementsPerThread)
+					<= bf.getFalsePositiveProbability() * 10);
+		Assert.assertTrue(bf.getEstimatedFalsePositiveProbability() < 0.01);
+	}
+
+	@Test
+	public void testSnapshot() {
+		ShardedBloomFilter<Integer> bf =
+			new ShardedBloomFilter<Integer>(4, 10000, 0.001);
+
+		for (int i=0; i<10000; i++) {
+			bf.add(i);
+		}
+
+		BloomFilter<Integer> snapshot = bf.snapshot(bf.getShard(0));
+		int size = snapshot.size();
+		Assert.assertEquals(bf.getShardSize(bf.getShard(0)), size);
+		Assert.assertTrue(snapshot.contains(0));
+
+		for (int i=10000; i<20000; i++) {
+			bf.add(i);
+		}
+
+		// the snapshot is not affected by the next additions
+		Assert.assertEquals(size, snapshot.size());
+
+		bf.clear();
+		Assert.assertEquals(0, bf.size());
+		Assert.assertTrue(snapshot.contains(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardsCount() {
+		new ShardedBloomFilter<Integer>(3, 1000, 0.001);
+	}
+
+}
@@ -1,5 +1,15 @@
 package com.elaunira.sbf;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
@@ -39,6 +49,108 @@ public class SlicedBloomFilterTest extends AbstractBloomFilterTest {
 		}
 	}	
 	
+	@Test
+	public void testClear() {
+		SlicedBloomFilter<Integer> bf = new SlicedBloomFilter<Integer>(10000, 0.001);
+		
+		for (int i=0; i<10000; i++) {
+			bf.add(i);
+		}
+		
+		bf.clear();
+		
+		Assert.assertEquals(0, bf.size());
+		Assert.assertEquals(0, bf.getBits().cardinality());
+		for (int i=0; i<10000; i++) {
+			Assert.assertFalse(bf.add(i));
+		}
+	}
+	
+	@Test
+	public void testContainsEach() {
+		SlicedBloomFilter<Integer> bf = new SlicedBloomFilter<Integer>(10000, 0.01);
+		
+		for (int i=0; i<10000; i+=2) {
+			bf.add(i);
+		}
+		
+		List<Integer> elts = new ArrayList<Integer>();
+		for (int i=0; i<10003; i++) {
+			elts.add(i);
+		}
+		
+		boolean[] results = bf.containsEach(elts);
+		Assert.assertEquals(elts.size(), results.length);
+		for (int i=0; i<results.length; i++) {
+			Assert.assertEquals(bf.contains(i), results[i]);
+		}
+	}
+	
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		SlicedBloomFilter<Integer> bf = new SlicedBloomFilter<Integer>(100000, 0.01);
+		for (int i=0; i<50000; i++) {
+			bf.add(i);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(baos);
+		out.writeObject(bf);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(baos.toByteArray()));
+		@SuppressWarnings("unchecked")
+		SlicedBloomFilter<Integer> copy = (SlicedBloomFilter<Integer>) in.readObject();
+
+		Assert.assertEquals(bf.size(), copy.size());
+		Assert.assertEquals(bf.getCapacity(), copy.getCapacity());
+		for (int i=0; i<50000; i++) {
+			Assert.assertTrue(copy.contains(i));
+		}
+	}
+
+	@Test
+	public void testFold() throws IOException {
+		SlicedBloomFilter<Integer> bf = new SlicedBloomFilter<Integer>(100000, 0.001);
+		for (int i=0; i<100000; i++) {
+			bf.add(i);
+		}
+
+		// an odd number of bits per slice maps a bit onto two bits
+		int[] sizes = { bf.getBitsPerSlice() / 2, bf.getBitsPerSlice() / 3 | 1 };
+		for (int bitsPerSlice : sizes) {
+			SlicedBloomFilter<Integer> folded = bf.fold(bitsPerSlice);
+			Assert.assertEquals(bitsPerSlice, folded.getBitsPerSlice());
+			Assert.assertEquals(bf.size(), folded.size());
+			for (int i=0; i<100000; i++) {
+				Assert.assertTrue(folded.contains(i));
+			}
+			Assert.assertTrue(folded.getEstimatedFalsePositiveProbability()
+					> bf.getEstimatedFalsePositiveProbability());
+
+			boolean[] results = new boolean[100];
+			long[] digests = new long[100];
+			for (int i=0; i<100; i++) {
+				digests[i] = BloomFilterUtil.digest(i);
+			}
+			folded.containsDigests(digests, 100, results);
+			for (int i=0; i<100; i++) {
+				Assert.assertTrue(results[i]);
+			}
+
+			// the folded geometry is kept by the codec
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			FilterCodec.write(folded, new DataOutputStream(baos));
+			SlicedBloomFilter<Integer> copy = FilterCodec.read(
+					new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+			Assert.assertEquals(bitsPerSlice, copy.getBitsPerSlice());
+			for (int i=0; i<100000; i++) {
+				Assert.assertTrue(copy.contains(i));
+			}
+		}
+	}
+
 	@Test
 	public void testSizeAfterSerialization() {
 		super.testSizeAfterSerialization(
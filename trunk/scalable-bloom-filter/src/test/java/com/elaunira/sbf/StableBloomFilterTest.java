@@ -0,0 +1,152 @@
+package com.elaunira.sbf;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests associated to the {@link StableBloomFilter}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class StableBloomFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(StableBloomFilterTest.class);
+
+	@Test
+	public void testStableFalsePositiveRate() {
+		final int capacity = 10000;
+		final double fpp = 0.01;
+
+		StableBloomFilter<Integer> sbf = new StableBloomFilter<Integer>(capacity, fpp);
+		logger.info(sbf.toString() + ", stable fpp " + sbf.getStableFalsePositiveProbability());
+		Assert.assertEquals(fpp, sbf.getStableFalsePositiveProbability(), fpp / 10);
+
+		// a stream much longer than the capacity does not saturate the filter
+		double previous = 0;
+		for (int round=1; round<=5; round++) {
+			for (int i=(round - 1) * 10 * capacity; i<round * 10 * capacity; i++) {
+				sbf.add(i);
+			}
+
+			int falsePositives = 0;
+			for (int i=-1; i>=-100000; i--) {
+				if (sbf.contains(i)) {
+					falsePositives++;
+				}
+			}
+			double rate = falsePositives / 100000.0;
+			logger.info("round " + round + ", false positive rate " + rate
+					+ ", estimated " + sbf.getEstimatedFalsePositiveProbability());
+			Assert.assertTrue(rate < 1.5 * fpp);
+			if (round > 1) {
+				Assert.assertEquals(previous, rate, fpp / 2);
+			}
+			previous = rate;
+		}
+	}
+
+	@Test
+	public void testRecentElements() {
+		final int capacity = 10000;
+
+		StableBloomFilter<Integer> sbf = new StableBloomFilter<Integer>(capacity, 0.01);
+		for (int i=0; i<20 * capacity; i++) {
+			sbf.add(i);
+		}
+
+		// the last elements are remembered, the oldest ones are evicted
+		int recentMissing = 0;
+		for (int i=20 * capacity - capacity / 10; i<20 * capacity; i++) {
+			if (!sbf.contains(i)) {
+				recentMissing++;
+			}
+		}
+		int oldFound = 0;
+		for (int i=0; i<capacity; i++) {
+			if (sbf.contains(i)) {
+				oldFound++;
+			}
+		}
+
+		logger.info(recentMissing + " recent elements missing, " + oldFound + " old elements found");
+		Assert.assertTrue(recentMissing < capacity / 100);
+		Assert.assertTrue(oldFound < capacity / 20);
+	}
+
+	@Test
+	public void testDuplicates() {
+		StableBloomFilter<Integer> sbf = new StableBloomFilter<Integer>(10000, 0.01);
+		int detected = 0;
+		for (int i=0; i<100000; i++) {
+			sbf.add(i);
+			// each element is seen again a few insertions later
+			if (i >= 10 && sbf.add(i - 10)) {
+				detected++;
+			}
+		}
+		Assert.assertTrue(detected > 0.99 * (100000 - 10));
+
+		sbf.clear();
+		Assert.assertEquals(0, sbf.size());
+		Assert.assertFalse(sbf.contains(99999));
+
+		try {
+			new StableBloomFilter<Integer>(10000, 0.01, 3);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentInserts() throws InterruptedException {
+		final int nbThreads = 8;
+		final int nbInserts = 100000;
+		final int capacity = 10000;
+		final StableBloomFilter<Integer> sbf = new StableBloomFilter<Integer>(capacity, 0.01);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger missing = new AtomicInteger();
+
+		Thread[] threads = new Thread[nbThreads];
+		for (int t=0; t<nbThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i=0; i<nbInserts; i++) {
+						sbf.add(thread * nbInserts + i);
+						// unless a concurrent insertion has decremented its cells
+						if (!sbf.contains(thread * nbInserts + i)) {
+							missing.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		logger.info(sbf.toString() + ", estimated fpp " + sbf.getEstimatedFalsePositiveProbability());
+		Assert.assertTrue(sbf.getEstimatedFalsePositiveProbability() < 1.5 * 0.01);
+
+		logger.info(missing.get() + " elements missing right after their insertion");
+		Assert.assertTrue(missing.get() < nbThreads * nbInserts / 1000);
+	}
+
+}
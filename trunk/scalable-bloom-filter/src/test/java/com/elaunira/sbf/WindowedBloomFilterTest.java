@@ -0,0 +1,121 @@
+package com.elaunira.sbf;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elaunira.sbf.WindowedBloomFilter.Rotation;
+
+/**
+ * Tests associated to {@link WindowedBloomFilter}.
+ * 
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class WindowedBloomFilterTest extends AbstractBloomFilterTest {
+
+	private static final Logger logger = 
+		LoggerFactory.getLogger(WindowedBloomFilterTest.class);
+
+	@Test
+	public void testTimeRotation() {
+		final long[] now = { 0 };
+
+		WindowedBloomFilter<Integer> bf = 
+			new WindowedBloomFilter<Integer>(Rotation.TIME, 1000, 4, 100, 0.001) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected long currentTimeMillis() {
+					return now[0];
+				}
+			};
+
+		for (int i=0; i<1000; i++) {
+			Assert.assertFalse(bf.add(i));
+		}
+
+		// still in the window
+		now[0] = 3999;
+		for (int i=0; i<1000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+
+		for (int i=1000; i<2000; i++) {
+			bf.add(i);
+		}
+
+		logger.info(bf.toString());
+
+		// the first generation has expired
+		now[0] = 4000;
+		int remembered = 0;
+		for (int i=0; i<1000; i++) {
+			if (bf.contains(i)) {
+				remembered++;
+			}
+		}
+		Assert.assertTrue(remembered < 10);
+		for (int i=1000; i<2000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+
+		// the whole window has expired
+		now[0] = 100000;
+		Assert.assertEquals(0, bf.size());
+	}
+
+	@Test
+	public void testCountRotation() {
+		WindowedBloomFilter<Integer> bf = 
+			new WindowedBloomFilter<Integer>(Rotation.COUNT, 1000, 3, 100, 0.001);
+
+		for (int i=0; i<10000; i++) {
+			bf.add(i);
+			Assert.assertTrue(bf.size() <= 3000);
+		}
+
+		logger.info(bf.toString());
+
+		for (int i=8000; i<10000; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+
+	@Test
+	public void testRefreshedElements() {
+		final long[] now = { 0 };
+
+		WindowedBloomFilter<Integer> bf = 
+			new WindowedBloomFilter<Integer>(Rotation.TIME, 1000, 4, 100, 0.001) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected long currentTimeMillis() {
+					return now[0];
+				}
+			};
+
+		for (int i=0; i<100; i++) {
+			Assert.assertFalse(bf.add(i));
+		}
+
+		// the elements seen once per generation are never forgotten,
+		// although the generation of their first addition has expired
+		for (int g=1; g<20; g++) {
+			now[0] = g * 1000;
+			for (int i=0; i<100; i++) {
+				Assert.assertTrue(bf.add(i));
+			}
+		}
+
+		now[0] = 20 * 1000 + 2999;
+		for (int i=0; i<100; i++) {
+			Assert.assertTrue(bf.contains(i));
+		}
+	}
+
+}
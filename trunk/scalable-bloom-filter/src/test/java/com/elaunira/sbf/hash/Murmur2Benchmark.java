@@ -0,0 +1,76 @@
+package com.elaunira.sbf.hash;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the throughput of the {@link Murmur2} variants. Run it with
+ * {@code java -cp target/classes:target/test-classes
+ * com.elaunira.sbf.hash.Murmur2Benchmark}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class Murmur2Benchmark {
+
+	private static final int ITERATIONS = 5000000;
+
+	private static volatile int sink;
+
+	public static void main(String[] args) throws UnsupportedEncodingException {
+		String[] keys = new String[1024];
+		for (int i=0; i<keys.length; i++) {
+			keys[i] = Integer.toString(i * 7919 - 4000000);
+		}
+
+		byte[] data = new byte[1024];
+		ByteBuffer heap = ByteBuffer.wrap(data);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+
+		for (int round=0; round<5; round++) {
+			long start = System.nanoTime();
+			int h = 0;
+			for (int i=0; i<ITERATIONS; i++) {
+				h += Murmur2.hash32(keys[i & 1023].getBytes("UTF-16"), h);
+			}
+			report("encode + hash32(byte[])", start, ITERATIONS, h);
+
+			start = System.nanoTime();
+			h = 0;
+			for (int i=0; i<ITERATIONS; i++) {
+				h += Murmur2.hash32Utf16(keys[i & 1023], h);
+			}
+			report("hash32Utf16(CharSequence)", start, ITERATIONS, h);
+
+			start = System.nanoTime();
+			h = 0;
+			for (int i=0; i<ITERATIONS / 100; i++) {
+				h += Murmur2.hash32(data, h);
+			}
+			report("hash32(byte[1024])", start, ITERATIONS / 100, h);
+
+			start = System.nanoTime();
+			h = 0;
+			for (int i=0; i<ITERATIONS / 100; i++) {
+				h += Murmur2.hash32(heap, h);
+			}
+			report("hash32(heap ByteBuffer[1024])", start, ITERATIONS / 100, h);
+
+			start = System.nanoTime();
+			h = 0;
+			for (int i=0; i<ITERATIONS / 100; i++) {
+				h += Murmur2.hash32(direct, h);
+			}
+			report("hash32(direct ByteBuffer[1024])", start, ITERATIONS / 100, h);
+		}
+	}
+
+	private static void report(String name, long start, int iterations, int h) {
+		sink = h;
+		long elapsed = System.nanoTime() - start;
+		System.out.println(
+				String.format("%-32s %8.1f ns/op", name, (double) elapsed / iterations));
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.elaunira.sbf.hash;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests associated to {@link Murmur2}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class Murmur2Test {
+
+	@Test
+	public void testByteBuffer() {
+		Random random = new Random(42);
+
+		for (int len=0; len<64; len++) {
+			byte[] data = new byte[len + 3];
+			random.nextBytes(data);
+			int seed = random.nextInt();
+			byte[] slice = new byte[len];
+			System.arraycopy(data, 3, slice, 0, len);
+			int expected = reference(slice, seed);
+			Assert.assertEquals(expected, Murmur2.hash32(slice, seed));
+
+			ByteBuffer heap = ByteBuffer.wrap(data);
+			heap.position(3);
+			Assert.assertEquals(expected, Murmur2.hash32(heap, seed));
+			Assert.assertEquals(3, heap.position());
+
+			ByteBuffer direct = 
+				ByteBuffer.allocateDirect(len + 3).order(ByteOrder.BIG_ENDIAN);
+			direct.put(data);
+			direct.position(3);
+			Assert.assertEquals(expected, Murmur2.hash32(direct, seed));
+		}
+	}
+
+	@Test
+	public void testUtf16() throws UnsupportedEncodingException {
+		Random random = new Random(42);
+
+		String[] samples = { 
+			"", "a", "ab", "abc", "abcd", "-2147483648", "été", 
+			"￿\u0080ÿ", "😀", "a\ud800b" 
+		};
+		for (String s : samples) {
+			int seed = random.nextInt();
+			Assert.assertEquals(
+					reference(s.getBytes("UTF-16"), seed), 
+					Murmur2.hash32Utf16(s, seed));
+		}
+
+		for (int n=0; n<10000; n++) {
+			char[] chars = new char[random.nextInt(20)];
+			for (int i=0; i<chars.length; i++) {
+				chars[i] = (char) random.nextInt(0xd800);
+			}
+			String s = new String(chars);
+			int seed = random.nextInt();
+			Assert.assertEquals(
+					reference(s.getBytes("UTF-16"), seed), 
+					Murmur2.hash32Utf16(new StringBuilder(s), seed));
+		}
+	}
+
+	/**
+	 * The original implementation, reading the blocks byte per byte.
+	 */
+	private static int reference(byte[] data, int seed) {
+		int m = 0x5bd1e995;
+		int r = 24;
+
+		int h = seed ^ data.length;
+
+		int len = data.length;
+		int len_4 = len >> 2;
+
+		for (int i = 0; i < len_4; i++) {
+			int i_4 = i << 2;
+			int k = data[i_4 + 3];
+			k = k << 8;
+			k = k | (data[i_4 + 2] & 0xff);
+			k = k << 8;
+			k = k | (data[i_4 + 1] & 0xff);
+			k = k << 8;
+			k = k | (data[i_4 + 0] & 0xff);
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+			h *= m;
+			h ^= k;
+		}
+
+		int left = len - (len_4 << 2);
+		if (left != 0) {
+			if (left >= 3) {
+				h ^= (int) data[len - 3] << 16;
+			}
+			if (left >= 2) {
+				h ^= (int) data[len - 2] << 8;
+			}
+			if (left >= 1) {
+				h ^= (int) data[len - 1];
+			}
+
+			h *= m;
+		}
+
+		h ^= h >>> 13;
+		h *= m;
+		h ^= h >>> 15;
+
+		return h;
+	}
+
+}
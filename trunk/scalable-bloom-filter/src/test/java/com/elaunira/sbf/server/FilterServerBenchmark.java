@@ -0,0 +1,82 @@
+package com.elaunira.sbf.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.elaunira.sbf.ScalableBloomFilter;
+
+/**
+ * Measures the throughput of a {@link FilterServer} on localhost, with
+ * requests of one or several elements, sent one by one or pipelined. Run it
+ * with {@code java -cp target/classes:target/test-classes
+ * com.elaunira.sbf.server.FilterServerBenchmark}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterServerBenchmark {
+
+	private static final int ELEMENTS = 1000000;
+
+	// the number of requests sent before waiting for their responses
+	private static final int PIPELINE_DEPTH = 64;
+
+	public static void main(String[] args) throws Exception {
+		FilterServer server = new FilterServer(0);
+		server.register("bench", new ScalableBloomFilter<Integer>(ELEMENTS, 0.001));
+		server.start();
+		FilterClient client = new FilterClient("localhost", server.getPort());
+
+		for (int round=0; round<3; round++) {
+			long start = System.nanoTime();
+			for (int i=0; i<ELEMENTS / 100; i++) {
+				client.contains("bench", i);
+			}
+			report("contains, one by one", start, ELEMENTS / 100);
+
+			int[] batchSizes = { 1, 16, 256 };
+			for (int batchSize : batchSizes) {
+				start = System.nanoTime();
+				pipeline(client, batchSize);
+				report("containsAll(" + batchSize + "), pipelined", start, ELEMENTS);
+			}
+		}
+
+		client.close();
+		server.close();
+	}
+
+	private static void pipeline(FilterClient client, int batchSize) throws Exception {
+		List<Future<boolean[]>> futures = new ArrayList<Future<boolean[]>>();
+		List<Integer> batch = new ArrayList<Integer>(batchSize);
+
+		for (int i=0; i<ELEMENTS; i++) {
+			batch.add(i);
+			if (batch.size() == batchSize) {
+				futures.add(client.containsAllAsync("bench", batch));
+				batch = new ArrayList<Integer>(batchSize);
+			}
+
+			if (futures.size() == PIPELINE_DEPTH) {
+				await(futures);
+			}
+		}
+		await(futures);
+	}
+
+	private static void await(List<Future<boolean[]>> futures) throws Exception {
+		for (Future<boolean[]> future : futures) {
+			future.get();
+		}
+		futures.clear();
+	}
+
+	private static void report(String name, long start, int elements) throws IOException {
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + ": " + (elapsed / elements) + " ns/element");
+	}
+
+}
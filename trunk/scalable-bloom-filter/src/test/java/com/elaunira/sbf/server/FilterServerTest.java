@@ -0,0 +1,171 @@
+package com.elaunira.sbf.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.elaunira.sbf.ScalableBloomFilter;
+import com.elaunira.sbf.SlicedBloomFilter;
+
+/**
+ * Tests associated to {@link FilterServer} and {@link FilterClient}.
+ *
+ * @author Laurent Pellegrino
+ *
+ * @version $Id$
+ */
+public class FilterServerTest {
+
+	private FilterServer server;
+
+	private FilterClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new FilterServer(0);
+		this.server.register("users", new ScalableBloomFilter<Integer>(1000, 0.001));
+		this.server.register("urls", new SlicedBloomFilter<String>(1000, 0.001));
+		this.server.start();
+		this.client = new FilterClient("localhost", this.server.getPort());
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		this.client.close();
+		this.server.close();
+	}
+
+	@Test
+	public void testOperations() throws IOException {
+		Assert.assertFalse(this.client.contains("users", 1));
+		Assert.assertFalse(this.client.add("users", 1));
+		Assert.assertTrue(this.client.add("users", 1));
+		Assert.assertTrue(this.client.contains("users", 1));
+
+		// the filters are distinct
+		Assert.assertFalse(this.client.contains("urls", 1));
+
+		// the results are the ones of the filter for the elements
+		Assert.assertEquals(1, this.server.getFilter("users").size());
+		@SuppressWarnings("unchecked")
+		SlicedBloomFilter<String> urls =
+			(SlicedBloomFilter<String>) this.server.getFilter("urls");
+		urls.add("http://code.google.com");
+		Assert.assertTrue(this.client.contains("urls", "http://code.google.com"));
+
+		boolean[] results = this.client.addAll("urls", Arrays.asList("a", "b", "a"));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false, true }, results));
+		results = this.client.containsAll("urls",
+				Arrays.asList("a", "http://code.google.com", "b"));
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, true, true }, results));
+
+		Assert.assertEquals(0, this.client.containsAll("urls", new ArrayList<String>()).length);
+	}
+
+	@Test
+	public void testUnknownFilter() throws IOException {
+		try {
+			this.client.contains("unknown", 1);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("unknown"));
+		}
+
+		// the connection is still usable
+		Assert.assertFalse(this.client.add("users", 1));
+	}
+
+	@Test
+	public void testPipelining() throws Exception {
+		int nbRequests = 1000;
+		int nbElementsPerRequest = 100;
+
+		List<Future<boolean[]>> additions = new ArrayList<Future<boolean[]>>();
+		for (int r = 0; r < nbRequests; r++) {
+			additions.add(this.client.addAllAsync("users", range(r * nbElementsPerRequest, nbElementsPerRequest)));
+		}
+		List<Future<boolean[]>> checks = new ArrayList<Future<boolean[]>>();
+		for (int r = 0; r < nbRequests; r++) {
+			checks.add(this.client.containsAllAsync("users", range(r * nbElementsPerRequest, nbElementsPerRequest)));
+		}
+
+		for (Future<boolean[]> future : additions) {
+			Assert.assertEquals(nbElementsPerRequest, future.get().length);
+		}
+		for (Future<boolean[]> future : checks) {
+			for (boolean contained : future.get()) {
+				Assert.assertTrue(contained);
+			}
+		}
+
+		Assert.assertEquals(2 * nbRequests, this.server.getRequestsCount());
+		Assert.assertEquals(
+				2 * nbRequests * nbElementsPerRequest, this.server.getElementsCount());
+	}
+
+	@Test
+	public void testConcurrentClients() throws Exception {
+		final int nbThreads = 4;
+		final int nbElementsPerThread = 5000;
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[nbThreads];
+		for (int t = 0; t < nbThreads; t++) {
+			final int offset = t * nbElementsPerThread;
+			// half of the threads share the connection of the test
+			final boolean shared = t % 2 == 0;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						FilterClient c = shared
+							? FilterServerTest.this.client
+							: new FilterClient("localhost", FilterServerTest.this.server.getPort());
+						for (int i = offset; i < offset + nbElementsPerThread; i++) {
+							c.add("users", i);
+						}
+						if (!shared) {
+							c.close();
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertNull(failure.get());
+		boolean[] results = this.client.containsAll("users", range(0, nbThreads * nbElementsPerThread));
+		for (boolean contained : results) {
+			Assert.assertTrue(contained);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testClosedServer() throws IOException, InterruptedException {
+		this.server.close();
+		this.client.add("users", 1);
+		this.client.add("users", 2);
+	}
+
+	private static List<Integer> range(int from, int count) {
+		List<Integer> result = new ArrayList<Integer>(count);
+		for (int i = from; i < from + count; i++) {
+			result.add(i);
+		}
+		return result;
+	}
+
+}